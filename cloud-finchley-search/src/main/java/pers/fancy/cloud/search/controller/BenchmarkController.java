@@ -0,0 +1,494 @@
+package pers.fancy.cloud.search.controller;
+
+import com.tdunning.math.stats.TDigest;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.admin.indices.forcemerge.ForceMergeRequest;
+import org.elasticsearch.action.admin.indices.get.GetIndexRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.springframework.beans.BeanUtils;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import pers.fancy.cloud.search.core.auto.intfproxy.ESCRepository;
+import pers.fancy.cloud.search.core.auto.util.ESComponentIndex;
+import pers.fancy.cloud.search.core.auto.intfproxy.RepositoryInvocationHandler;
+import pers.fancy.cloud.search.core.auto.intfproxy.SimpleESCRepository;
+import pers.fancy.cloud.search.core.metrics.TemplateMetrics;
+import pers.fancy.cloud.search.core.repository.ElasticsearchTemplate;
+import pers.fancy.cloud.search.core.repository.PageList;
+import pers.fancy.cloud.search.core.util.BeanTools;
+import pers.fancy.cloud.search.core.util.BulkTools;
+import pers.fancy.cloud.search.core.util.Constant;
+import pers.fancy.cloud.search.core.util.DigestTools;
+import pers.fancy.cloud.search.core.util.EntityCodec;
+import pers.fancy.cloud.search.core.util.IndexTools;
+import pers.fancy.cloud.search.core.util.JsonUtils;
+import pers.fancy.cloud.search.core.util.MappingData;
+import pers.fancy.cloud.search.core.util.MappingTools;
+import pers.fancy.cloud.search.core.util.MetaData;
+import pers.fancy.cloud.search.model.Main2;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * 性能测试，除benchmarkStorage外不依赖es集群，直接在本机测量
+ *
+ * @author fancy
+ */
+@Api("性能测试")
+@RestController
+public class BenchmarkController {
+
+    private static final double MB = 1024 * 1024;
+
+    @Autowired
+    RestHighLevelClient client;
+
+    @Autowired
+    RequestOptions requestOptions;
+
+    @ApiOperation("bulk请求体、检索响应体gzip压缩的线上字节数与每MB的CPU开销")
+    @GetMapping("benchmarkCompression")
+    public Map<String, Object> benchmarkCompression(@RequestParam(defaultValue = "1000") int count,
+                                                    @RequestParam(defaultValue = "20") int rounds) throws Exception {
+        List<Main2> list = mockMain2(count);
+        //与save(List)拼装bulk请求的方式一致
+        BulkRequest bulkRequest = new BulkRequest();
+        for (Main2 main2 : list) {
+            bulkRequest.add(new IndexRequest("index", "main4", main2.getProposal_no()).source(BeanTools.objectToMap(main2)));
+        }
+        byte[] bulkBody = BulkTools.toNdjson(bulkRequest);
+        //检索响应的主体是hits中的_source，用文档JSON数组近似
+        byte[] searchBody = JsonUtils.obj2String(list).getBytes("UTF-8");
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("documents", count);
+        result.put("bulk", measure(bulkBody, rounds));
+        result.put("search", measure(searchBody, rounds));
+        return result;
+    }
+
+    @ApiOperation("文档以json、smile、cbor编码的字节数与编解码CPU开销")
+    @GetMapping("benchmarkContentType")
+    public Map<String, Object> benchmarkContentType(@RequestParam(defaultValue = "1000") int count,
+                                                    @RequestParam(defaultValue = "20") int rounds) throws Exception {
+        List<Main2> list = mockMain2(count);
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("documents", count);
+        for (XContentType type : new XContentType[]{XContentType.JSON, XContentType.SMILE, XContentType.CBOR}) {
+            result.put(type.shortName(), measureCodec(list, type, rounds));
+        }
+        return result;
+    }
+
+    @ApiOperation("Main2使用es默认存储配置与@ESMapping/@ESMetaData存储调优后的索引大小与写入速度，需要es集群，会创建并删除临时索引")
+    @GetMapping("benchmarkStorage")
+    public Map<String, Object> benchmarkStorage(@RequestParam(defaultValue = "100000") int count,
+                                                @RequestParam(defaultValue = "1000") int batch) throws Exception {
+        List<Main2> list = mockMain2(count);
+        MetaData metaData = IndexTools.getMetaData(Main2.class);
+        MappingData[] tuned = IndexTools.getMappingData(Main2.class);
+        //去掉存储调优的对照组
+        MappingData[] untuned = new MappingData[tuned.length];
+        for (int i = 0; i < tuned.length; i++) {
+            if (tuned[i] == null) {
+                continue;
+            }
+            untuned[i] = new MappingData();
+            BeanUtils.copyProperties(tuned[i], untuned[i]);
+            untuned[i].setDoc_values(true);
+            untuned[i].setNorms(true);
+            untuned[i].setIndex_options("");
+            untuned[i].setStore(false);
+            untuned[i].setEager_global_ordinals(false);
+        }
+        //单分片无副本，排除分片数量的影响
+        Settings.Builder settings = MappingTools.getSettings(Main2.class)
+                .put("index.number_of_shards", 1)
+                .put("index.number_of_replicas", 0);
+        Settings.Builder defaultSettings = Settings.builder().put(settings.build());
+        defaultSettings.remove("index.codec");
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("documents", count);
+        result.put("default", measureStorage("benchmark_storage_default", MappingTools.buildMappingSource(metaData, untuned),
+                defaultSettings, list, batch));
+        result.put("tuned", measureStorage("benchmark_storage_tuned", MappingTools.buildMappingSource(metaData, tuned),
+                settings, list, batch));
+        return result;
+    }
+
+    @ApiOperation("ESCRepository每次调用的分发开销：Spring AOP代理+每次查找bean与MethodHandle直接分发，使用桩模板，不访问es")
+    @GetMapping("benchmarkRepositoryDispatch")
+    public Map<String, Object> benchmarkRepositoryDispatch(@RequestParam(defaultValue = "1000000") int calls,
+                                                           @RequestParam(defaultValue = "5") int rounds) throws Exception {
+        //独立的容器：桩模板以及单独的MeterRegistry，不影响线上的bean和指标
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.registerBean(MeterRegistry.class, SimpleMeterRegistry::new);
+        context.registerBean(TemplateMetrics.class);
+        context.registerBean(ElasticsearchTemplate.class, this::stubTemplate);
+        context.refresh();
+        try {
+            SimpleESCRepository<Main2, String> target = new SimpleESCRepository<>(context);
+            target.setDomainClass(Main2.class);
+            target.setIdClass(String.class);
+            String indexName = IndexTools.getMetaData(Main2.class).getIndexname();
+
+            //原实现：AOP拦截器链中记录指标，目标方法每次从容器中查找模板
+            ProxyFactory factory = new ProxyFactory();
+            factory.setTarget(target);
+            factory.addAdvice((MethodInterceptor) invocation -> {
+                TemplateMetrics metrics = context.getBean(TemplateMetrics.class);
+                TemplateMetrics.Context metricsContext = metrics.enter(invocation.getMethod().getName(), indexName);
+                Throwable error = null;
+                try {
+                    context.getBean(ElasticsearchTemplate.class);
+                    return invocation.proceed();
+                } catch (Throwable e) {
+                    error = e;
+                    throw e;
+                } finally {
+                    metrics.exit(metricsContext, "repository", error);
+                }
+            });
+            factory.setInterfaces(ESCRepository.class);
+            ESCRepository<Main2, String> aop = (ESCRepository<Main2, String>) factory.getProxy(getClass().getClassLoader());
+            ESCRepository<Main2, String> dispatch = RepositoryInvocationHandler.newProxy(ESCRepository.class, target, context, getClass().getClassLoader());
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("calls", calls);
+            result.put("aopNsPerCall", measureDispatch(aop, calls, rounds));
+            result.put("methodHandleNsPerCall", measureDispatch(dispatch, calls, rounds));
+            //不经过代理、不记录指标，作为下限
+            result.put("directNsPerCall", measureDispatch(target, calls, rounds));
+            return result;
+        } finally {
+            context.close();
+        }
+    }
+
+    @ApiOperation("启动时解析es组件的耗时：每个repository创建时查询一次实体类，第一次读取索引、解析classpath根，之后命中合并结果缓存，不访问es")
+    @GetMapping("benchmarkComponentIndex")
+    public Map<String, Object> benchmarkComponentIndex(@RequestParam(defaultValue = "50") int repositories,
+                                                       @RequestParam(defaultValue = "pers.fancy.cloud.search") String basePackage,
+                                                       @RequestParam(defaultValue = "5") int rounds) {
+        ResourceLoader resourceLoader = new DefaultResourceLoader(getClass().getClassLoader());
+        long first = Long.MAX_VALUE;
+        long total = Long.MAX_VALUE;
+        int entities = 0;
+        for (int round = 0; round < rounds; round++) {
+            //每轮模拟一次冷启动
+            ESComponentIndex.clearCache();
+            long start = System.nanoTime();
+            ESComponentIndex.getRepositories(resourceLoader, Stream.of(basePackage));
+            entities = ESComponentIndex.getEntities(resourceLoader, Stream.of(basePackage)).size();
+            long firstEnd = System.nanoTime();
+            //与RepositoryFactorySupport一致，其余每个repository再查询一次实体类
+            for (int i = 1; i < repositories; i++) {
+                ESComponentIndex.getEntities(resourceLoader, Stream.of(basePackage));
+            }
+            first = Math.min(first, firstEnd - start);
+            total = Math.min(total, System.nanoTime() - start);
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("repositories", repositories);
+        result.put("entities", entities);
+        result.put("firstResolveMs", first / 1e6);
+        result.put("totalMs", total / 1e6);
+        result.put("cachedUsPerRepository", repositories > 1 ? (total - first) / 1e3 / (repositories - 1) : 0);
+        return result;
+    }
+
+    @ApiOperation("分索引并行百分比聚合（分位点采样重建digest后合并）与整体百分比聚合的百分位秩误差，以与es相同的t-digest在本机模拟，不访问es")
+    @GetMapping("benchmarkPercentilesDigest")
+    public Map<String, Object> benchmarkPercentilesDigest(@RequestParam(defaultValue = "30") int indices,
+                                                          @RequestParam(defaultValue = "20000") int count) throws Exception {
+        Random random = new Random(42);
+        double[] all = new double[indices * count];
+        List<TDigest> merged = new ArrayList<>();
+        //es的百分比聚合：每个分片一个AVLTreeDigest，reduce时合并
+        TDigest single = TDigest.createAVLTreeDigest(Constant.PERCENTILES_DIGEST_COMPRESSION);
+        for (int i = 0; i < indices; i++) {
+            //每个索引的分布不同（对数正态，中位数逐渐漂移），合并时不能简单平均分位点
+            double mu = 3 + i * 0.05;
+            double sigma = 0.5 + (i % 5) * 0.2;
+            TDigest shard = TDigest.createAVLTreeDigest(Constant.PERCENTILES_DIGEST_COMPRESSION);
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            for (int j = 0; j < count; j++) {
+                double value = Math.exp(mu + sigma * random.nextGaussian());
+                all[i * count + j] = value;
+                shard.add(value);
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            single.add(shard);
+            //percentilesAggsParallel：每个索引只取网格上的分位点和stats
+            double[] values = new double[Constant.PERCENTILES_DIGEST_GRID.length];
+            for (int k = 0; k < values.length; k++) {
+                values[k] = shard.quantile(Constant.PERCENTILES_DIGEST_GRID[k] / 100);
+            }
+            merged.add(DigestTools.build(Constant.PERCENTILES_DIGEST_GRID, values, count, min, max));
+        }
+        TDigest parallel = DigestTools.merge(merged);
+        Arrays.sort(all);
+
+        double maxError = 0;
+        Map<String, Object> points = new LinkedHashMap<>();
+        for (double percent : new double[]{1, 5, 10, 25, 50, 75, 90, 95, 99, 99.9}) {
+            double singleValue = single.quantile(percent / 100);
+            double parallelValue = parallel.quantile(percent / 100);
+            //两者在真实数据中的百分位秩之差
+            double error = Math.abs(rank(all, parallelValue) - rank(all, singleValue));
+            maxError = Math.max(maxError, error);
+            Map<String, Object> point = new LinkedHashMap<>();
+            point.put("single", singleValue);
+            point.put("parallel", parallelValue);
+            point.put("rankError", error);
+            points.put(String.valueOf(percent), point);
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("indices", indices);
+        result.put("documents", all.length);
+        result.put("percentiles", points);
+        result.put("maxRankError", maxError);
+        result.put("tolerance", Constant.PERCENTILES_DIGEST_RANK_TOLERANCE);
+        result.put("withinTolerance", maxError <= Constant.PERCENTILES_DIGEST_RANK_TOLERANCE);
+        return result;
+    }
+
+    /**
+     * 值在升序数组中的百分位秩
+     */
+    private double rank(double[] sorted, double value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low * 100.0 / sorted.length;
+    }
+
+    /**
+     * 多轮调用取最快一轮的平均耗时，第一轮兼作预热
+     */
+    private double measureDispatch(ESCRepository<Main2, String> repository, int calls, int rounds) throws Exception {
+        long best = Long.MAX_VALUE;
+        int sink = 0;
+        for (int r = 0; r < rounds + 1; r++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                if (repository.getById("NO" + (i & 1023)) == null) {
+                    sink++;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            if (r > 0) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        if (sink == 0) {
+            throw new Exception("unexpected stub result");
+        }
+        return (double) best / calls;
+    }
+
+    /**
+     * 所有方法直接返回空结果的模板
+     */
+    private ElasticsearchTemplate stubTemplate() {
+        return (ElasticsearchTemplate) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ElasticsearchTemplate.class}, (proxy, method, args) -> {
+            Class<?> type = method.getReturnType();
+            if (type == boolean.class) {
+                return false;
+            } else if (type == long.class) {
+                return 0L;
+            } else if (type == int.class) {
+                return 0;
+            } else if (type == double.class) {
+                return 0.0;
+            } else if (type == PageList.class) {
+                return new PageList<>();
+            } else if (type == List.class) {
+                return Collections.emptyList();
+            }
+            return null;
+        });
+    }
+
+    private Map<String, Object> measureStorage(String index, String mapping, Settings.Builder settings, List<Main2> list, int batch) throws Exception {
+        if (client.indices().exists(new GetIndexRequest().indices(index), requestOptions)) {
+            client.indices().delete(new DeleteIndexRequest(index), requestOptions);
+        }
+        String type = IndexTools.getMetaData(Main2.class).getIndextype();
+        CreateIndexRequest create = new CreateIndexRequest(index);
+        create.settings(settings);
+        create.mapping(type, mapping, XContentType.JSON);
+        client.indices().create(create, requestOptions);
+        try {
+            long start = System.nanoTime();
+            for (int from = 0; from < list.size(); from += batch) {
+                BulkRequest bulkRequest = new BulkRequest();
+                for (Main2 main2 : list.subList(from, Math.min(from + batch, list.size()))) {
+                    bulkRequest.add(new IndexRequest(index, type, main2.getProposal_no()).source(BeanTools.objectToMap(main2)));
+                }
+                BulkResponse response = client.bulk(bulkRequest, requestOptions);
+                if (response.hasFailures()) {
+                    throw new Exception(response.buildFailureMessage());
+                }
+            }
+            long indexNanos = System.nanoTime() - start;
+            //合并为一个段后再统计，排除段合并进度的影响
+            client.indices().refresh(new RefreshRequest(index), requestOptions);
+            client.indices().forcemerge(new ForceMergeRequest(index).maxNumSegments(1), requestOptions);
+            Request stats = new Request("GET", "/" + index + "/_stats/store");
+            stats.setOptions(requestOptions);
+            Map<String, Object> body = JsonUtils.string2Obj(EntityUtils.toString(client.getLowLevelClient().performRequest(stats).getEntity()), Map.class);
+            long storeBytes = ((Number) ((Map) ((Map) ((Map) body.get("_all")).get("primaries")).get("store")).get("size_in_bytes")).longValue();
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("storeBytes", storeBytes);
+            result.put("bytesPerDoc", (double) storeBytes / list.size());
+            result.put("indexMillis", indexNanos / 1000000);
+            result.put("docsPerSecond", list.size() * 1000000000.0 / indexNanos);
+            return result;
+        } finally {
+            client.indices().delete(new DeleteIndexRequest(index), requestOptions);
+        }
+    }
+
+    private Map<String, Object> measureCodec(List<Main2> list, XContentType type, int rounds) throws Exception {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        //预热
+        BytesReference[] encoded = new BytesReference[list.size()];
+        for (int i = 0; i < list.size(); i++) {
+            encoded[i] = new BytesArray(EntityCodec.encode(list.get(i), type));
+            EntityCodec.decode(encoded[i], Main2.class);
+        }
+
+        long bytes = 0;
+        long start = threadMXBean.getCurrentThreadCpuTime();
+        for (int r = 0; r < rounds; r++) {
+            bytes = 0;
+            for (Main2 main2 : list) {
+                bytes += EntityCodec.encode(main2, type).length;
+            }
+        }
+        long encodeNanos = threadMXBean.getCurrentThreadCpuTime() - start;
+
+        start = threadMXBean.getCurrentThreadCpuTime();
+        for (int r = 0; r < rounds; r++) {
+            for (BytesReference source : encoded) {
+                EntityCodec.decode(source, Main2.class);
+            }
+        }
+        long decodeNanos = threadMXBean.getCurrentThreadCpuTime() - start;
+
+        long docs = (long) list.size() * rounds;
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("bytes", bytes);
+        result.put("bytesPerDoc", (double) bytes / list.size());
+        result.put("gzipBytes", BulkTools.gzip(concat(encoded)).length);
+        result.put("encodeCpuNsPerDoc", encodeNanos / docs);
+        result.put("decodeCpuNsPerDoc", decodeNanos / docs);
+        return result;
+    }
+
+    private byte[] concat(BytesReference[] sources) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (BytesReference source : sources) {
+            source.writeTo(out);
+        }
+        return out.toByteArray();
+    }
+
+    private Map<String, Object> measure(byte[] raw, int rounds) throws Exception {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        //预热
+        byte[] compressed = BulkTools.gzip(raw);
+        BulkTools.gunzip(compressed);
+
+        long start = threadMXBean.getCurrentThreadCpuTime();
+        for (int i = 0; i < rounds; i++) {
+            compressed = BulkTools.gzip(raw);
+        }
+        long gzipNanos = threadMXBean.getCurrentThreadCpuTime() - start;
+
+        start = threadMXBean.getCurrentThreadCpuTime();
+        for (int i = 0; i < rounds; i++) {
+            BulkTools.gunzip(compressed);
+        }
+        long gunzipNanos = threadMXBean.getCurrentThreadCpuTime() - start;
+
+        double rawMb = raw.length / MB * rounds;
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("rawBytes", raw.length);
+        result.put("gzipBytes", compressed.length);
+        result.put("ratio", (double) compressed.length / raw.length);
+        result.put("gzipCpuMsPerMb", gzipNanos / 1000000.0 / rawMb);
+        result.put("gunzipCpuMsPerMb", gunzipNanos / 1000000.0 / rawMb);
+        return result;
+    }
+
+    private List<Main2> mockMain2(int count) {
+        Random random = new Random(42);
+        String[] riskCodes = {"0101", "0102", "0103", "0501", "0502"};
+        String[] riskNames = {"机动车交通事故责任强制保险", "机动车商业保险", "家庭财产保险", "企业财产保险", "意外伤害保险"};
+        String[] comCodes = {"31010000", "31020000", "32010000", "44010000"};
+        List<Main2> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int r = random.nextInt(riskCodes.length);
+            Main2 main2 = new Main2();
+            main2.setProposal_no("NO" + String.format("%010d", i));
+            main2.setRisk_code(riskCodes[r]);
+            main2.setRisk_name(riskNames[r]);
+            main2.setBusiness_nature(String.valueOf(random.nextInt(10)));
+            main2.setBusiness_nature_name("业务来源" + random.nextInt(10));
+            main2.setAppli_code("A" + random.nextInt(100000));
+            main2.setAppli_name("投保人" + random.nextInt(100000));
+            main2.setInsured_code("I" + random.nextInt(100000));
+            main2.setInsured_name("被保险人" + random.nextInt(100000));
+            Date date = new Date(1546300800000L + random.nextInt(365) * 86400000L);
+            main2.setOperate_date(date);
+            main2.setOperate_date_format(String.format("%tF", date));
+            main2.setStart_date(date);
+            main2.setEnd_date(new Date(date.getTime() + 365 * 86400000L));
+            main2.setSum_amount(random.nextInt(1000000) / 100.0);
+            main2.setSum_premium(random.nextInt(100000) / 100.0);
+            main2.setCom_code(comCodes[random.nextInt(comCodes.length)]);
+            list.add(main2);
+        }
+        return list;
+    }
+}
@@ -119,6 +119,15 @@ public class Test2Controller {
         );
     }
 
+    public void testPercentilesParallel() throws Exception {
+        double[] dbs = {50.0, 95.0, 99.0};
+        Map<Double, Double> map = elasticsearchTemplate.percentilesAggsParallel("sum_premium", null, Main2.class, dbs);
+        map.forEach((k, v) -> System.out.println(k + "     " + v));
+        double[] ranks = {1, 4, 5, 9};
+        Map<Double, Double> map2 = elasticsearchTemplate.percentileRanksAggsParallel("sum_premium", null, Main2.class, ranks);
+        map2.forEach((k, v) -> System.out.println(k + "     " + v));
+    }
+
     public void testFilterAggs() throws Exception {
         FiltersAggregator.KeyedFilter[] filters = {new FiltersAggregator.KeyedFilter("0101", QueryBuilders.matchPhraseQuery("risk_code", "0101")),
                 new FiltersAggregator.KeyedFilter("0103", QueryBuilders.matchQuery("risk_code", "0103"))};
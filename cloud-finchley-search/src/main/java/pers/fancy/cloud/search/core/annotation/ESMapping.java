@@ -63,4 +63,35 @@ public @interface ESMapping {
      * 拷贝到哪个字段，代替_all
      */
     String copy_to() default "";
+
+    /**
+     * 是否生成doc_values，不排序、不聚合、不在脚本中使用的字段可以关闭以节省磁盘（text类型没有doc_values）
+     * 已有字段上修改只对新创建的索引（分区）生效，已有索引需要reindex()
+     */
+    boolean doc_values() default true;
+
+    /**
+     * text字段是否保存norms，不参与相关性评分的字段可以关闭以节省磁盘和堆内存
+     * 已有字段可以通过updateMapping关闭norms，重新开启需要reindex()
+     */
+    boolean norms() default true;
+
+    /**
+     * 倒排索引记录的信息：docs、freqs、positions、offsets，默认使用es的默认值；
+     * 不做短语查询、高亮的text字段可以用freqs或docs，keyword只支持docs和freqs
+     * 已有字段上修改只对新创建的索引（分区）生效，已有索引需要reindex()
+     */
+    String index_options() default "";
+
+    /**
+     * 是否在_source之外单独存储字段值
+     * 已有字段上修改只对新创建的索引（分区）生效，已有索引需要reindex()
+     */
+    boolean store() default false;
+
+    /**
+     * refresh时预先构建global ordinals，用于频繁terms聚合的keyword字段（text字段作用于keyword子字段）
+     * 已有字段上的修改由updateMapping直接更新
+     */
+    boolean eager_global_ordinals() default false;
 }
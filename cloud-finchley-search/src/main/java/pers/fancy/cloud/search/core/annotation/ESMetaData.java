@@ -1,5 +1,8 @@
 package pers.fancy.cloud.search.core.annotation;
 
+import pers.fancy.cloud.search.core.enums.PartitionInterval;
+import pers.fancy.cloud.search.core.enums.RefreshPolicy;
+
 import java.lang.annotation.*;
 
 /**
@@ -41,9 +44,111 @@ public @interface ESMetaData {
     int number_of_replicas() default 1;
 
     /**
-     * 是否打印日志
+     * 是否打印日志，开启后等同于slowQueryThreshold = 0，即每次查询都记录慢查询日志
+     * 建议使用slowQueryThreshold、slowQuerySampleRate代替
      *
      * @return
      */
     boolean printLog() default false;
+
+    /**
+     * 慢查询阈值（毫秒），查询耗时达到阈值时记录慢查询日志；小于0时使用elasticsearch.slowlog.threshold配置
+     *
+     * @return
+     */
+    long slowQueryThreshold() default -1;
+
+    /**
+     * 慢查询日志采样率（0~1），超过阈值的查询中按该比例记录
+     *
+     * @return
+     */
+    double slowQuerySampleRate() default 1.0;
+
+    /**
+     * 时间分区字段（实体类字段名，如operate_date），配置后按partitionInterval将数据写入indexName-后缀的分区索引，
+     * 检索时如果查询条件中带有该字段的range过滤，只检索有交集的分区
+     *
+     * @return
+     */
+    String partitionField() default "";
+
+    /**
+     * 时间分区粒度，默认不分区
+     *
+     * @return
+     */
+    PartitionInterval partitionInterval() default PartitionInterval.none;
+
+    /**
+     * 启动预热时执行的代表性查询（query子句的JSON，如{"term":{"risk_code":"0101"}}），默认执行match_all
+     *
+     * @return
+     */
+    String[] warmUpQueries() default {};
+
+    /**
+     * 分区结束后保持hot（不做生命周期处理）的天数，超过后由生命周期任务shrink到warmShards个主分片、
+     * force merge到一个段、副本降为warmReplicas并设置为只读；小于0时不做生命周期管理，只对分区索引有效
+     *
+     * @return
+     */
+    int hotDays() default -1;
+
+    /**
+     * 索引的存储压缩方式（index.codec），可选best_compression，以少量CPU换取更小的存储；默认使用es的LZ4
+     *
+     * @return
+     */
+    String codec() default "";
+
+    /**
+     * 索引排序字段（es字段名，如operate_date），创建索引时写入index.sort.field，只能在创建索引时指定；
+     * PageSortHighLight的排序与索引排序的前缀一致时，分片收集到足够的文档后可以提前结束
+     *
+     * @return
+     */
+    String[] indexSortFields() default {};
+
+    /**
+     * 与indexSortFields一一对应的排序方向（asc、desc），缺省为asc
+     *
+     * @return
+     */
+    String[] indexSortOrders() default {};
+
+    /**
+     * shrink后的主分片数量，必须是number_of_shards的因数，否则不做shrink
+     *
+     * @return
+     */
+    int warmShards() default 1;
+
+    /**
+     * 超过hotDays后的副本数量
+     *
+     * @return
+     */
+    int warmReplicas() default 0;
+
+    /**
+     * 写入（save、update、delete）后默认的刷新策略，可以通过WriteOptions按调用覆盖
+     *
+     * @return
+     */
+    RefreshPolicy refreshPolicy() default RefreshPolicy.none;
+
+    /**
+     * 写入前要求处于活动状态的分片副本数量（wait_for_active_shards），如all、2，默认使用es的配置（只要求主分片）
+     *
+     * @return
+     */
+    String waitForActiveShards() default "";
+
+    /**
+     * 写入等待分片可用的超时时间（毫秒），小于0时使用es的默认值1m
+     *
+     * @return
+     */
+    long writeTimeout() default -1;
 }
@@ -0,0 +1,14 @@
+package pers.fancy.cloud.search.core.annotation;
+
+import java.lang.annotation.*;
+
+/**
+ * ES entity 标识路由字段的注解,在es entity field上添加
+ * 配置后写入、按ID读取、删除都以该字段的值作为routing，
+ * 查询条件中带有该字段的term/terms过滤时，只检索对应的分片
+ **/
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.FIELD})
+@Documented
+public @interface ESRouting {
+}
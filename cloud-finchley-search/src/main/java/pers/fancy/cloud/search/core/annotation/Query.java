@@ -0,0 +1,29 @@
+package pers.fancy.cloud.search.core.annotation;
+
+import java.lang.annotation.*;
+
+/**
+ * 以es中存储的mustache模板执行查询的注解，在ESCRepository接口的方法上添加
+ * 调用时只发送模板名称和参数；方法参数按params中的名称组成模板参数，只有一个Map参数时直接作为模板参数
+ * 方法返回实体集合或者单个实体（取第一条）
+ **/
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD})
+@Documented
+public @interface Query {
+
+    /**
+     * 存储的模板名称，必须配置
+     */
+    String template();
+
+    /**
+     * 模板内容（mustache），配置时在第一次调用前以template为名称保存到es，未配置时模板需要事先通过storeTemplate保存
+     */
+    String source() default "";
+
+    /**
+     * 与方法参数一一对应的模板参数名称
+     */
+    String[] params() default {};
+}
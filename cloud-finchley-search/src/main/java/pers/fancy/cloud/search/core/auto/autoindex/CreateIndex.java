@@ -5,32 +5,47 @@ import pers.fancy.cloud.search.core.auto.util.EnableESTools;
 import pers.fancy.cloud.search.core.index.ElasticsearchIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.ApplicationContext;
-import org.springframework.context.ApplicationContextAware;
-import org.springframework.context.ApplicationEvent;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.ApplicationListener;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
 import pers.fancy.cloud.search.core.util.IndexTools;
 import pers.fancy.cloud.search.core.util.MetaData;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * 用于扫描ESMetaData注解的类，并自动创建索引mapping
- * 启动时调用，但如果需要让spring知道哪些bean配置了ESMetaData注解，需要ElasticProcessor
+ * 应用就绪时执行一次：一次请求判断所有实体的索引是否存在，缺少的索引并发创建，已存在的索引并发追加新增字段
+ * 如果需要让spring知道哪些bean配置了ESMetaData注解，需要ElasticProcessor
+ * 先于其他ApplicationReadyEvent监听（如预热）执行
  *
  * @author LiLiChai
  */
 @Configuration
-public class CreateIndex implements ApplicationListener, ApplicationContextAware {
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class CreateIndex implements ApplicationListener<ApplicationReadyEvent> {
 
     @Autowired
     ElasticsearchIndex elasticsearchIndex;
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
-    private ApplicationContext applicationContext;
+    //并发创建索引的线程数
+    @Value("${elasticsearch.bootstrap.parallelism:8}")
+    private int parallelism;
+
+    private final AtomicBoolean done = new AtomicBoolean();
 
     /**
      * 扫描ESMetaData注解的类，并自动创建索引mapping
@@ -38,27 +53,52 @@ public class CreateIndex implements ApplicationListener, ApplicationContextAware
      * @param event
      */
     @Override
-    public void onApplicationEvent(ApplicationEvent event) {
-        Map<String, Object> beansWithAnnotationMap = this.applicationContext.getBeansWithAnnotation(ESMetaData.class);
-        beansWithAnnotationMap.forEach((beanName, bean) ->
-                {
-                    try {
-                        if (!elasticsearchIndex.exists(bean.getClass())) {
-                            elasticsearchIndex.createIndex(bean.getClass());
-                            if (EnableESTools.isPrintregmsg()) {
-                                MetaData metaData = IndexTools.getMetaData(bean.getClass());
-                                logger.info("创建索引成功，索引名称：" + metaData.getIndexname() + "索引类型：" + metaData.getIndextype());
-                            }
-                        }
-                    } catch (Exception e) {
-                        logger.error("创建索引不成功", e);
-                    }
-                }
-        );
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+        if (!done.compareAndSet(false, true)) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        Set<Class> classes = new LinkedHashSet<>();
+        event.getApplicationContext().getBeansWithAnnotation(ESMetaData.class).values().forEach(bean -> classes.add(bean.getClass()));
+        if (classes.isEmpty()) {
+            return;
+        }
+        Map<Class, Boolean> exists;
+        try {
+            exists = elasticsearchIndex.exists(classes);
+        } catch (Exception e) {
+            logger.error("创建索引不成功", e);
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, classes.size()));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            exists.forEach((clazz, exist) -> futures.add(executor.submit(() -> bootstrap(clazz, exist))));
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (Exception e) {
+            logger.error("创建索引不成功", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        logger.info("elasticsearch index bootstrap of {} entities finished in {} ms", classes.size(), System.currentTimeMillis() - start);
     }
 
-    @Override
-    public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
-        this.applicationContext = applicationContext;
+    private void bootstrap(Class clazz, boolean exist) {
+        try {
+            if (!exist) {
+                elasticsearchIndex.createIndex(clazz);
+                if (EnableESTools.isPrintregmsg()) {
+                    MetaData metaData = IndexTools.getMetaData(clazz);
+                    logger.info("创建索引成功，索引名称：" + metaData.getIndexname() + "索引类型：" + metaData.getIndextype());
+                }
+            } else {
+                //追加实体上新增的字段，避免被动态映射
+                elasticsearchIndex.updateMapping(clazz);
+            }
+        } catch (Exception e) {
+            logger.error("创建索引不成功", e);
+        }
     }
 }
@@ -7,8 +7,13 @@ import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
 import org.springframework.beans.factory.support.BeanDefinitionRegistry;
 import org.springframework.context.ApplicationContext;
+import org.springframework.beans.factory.support.BeanDefinitionBuilder;
+import org.springframework.util.ClassUtils;
+import pers.fancy.cloud.search.core.auto.util.ESComponentIndex;
 import pers.fancy.cloud.search.core.auto.util.GetBasePackage;
 
+import java.beans.Introspector;
+
 /**
  * spring初始化完成后通过读取启动类EnableESTools注解上entity的路径（或者不配置，取启动类所在包），
  * 得到路径后委托ESEntityScanner扫描相关路径
@@ -32,9 +37,14 @@ public class ESIndexProcessor {//implements BeanFactoryPostProcessor, Applicatio
      */
     public void scan(AnnotationMetadata annotationMetadata, BeanFactory beanFactory, ApplicationContext applicationContext) {
         GetBasePackage getBasePackage = new GetBasePackage(EnableESTools.class);
-        ESEntityScanner scanner = new ESEntityScanner((BeanDefinitionRegistry) beanFactory);
-        scanner.setResourceLoader(applicationContext);
-        scanner.scan(getBasePackage.getEntityPackage(annotationMetadata).toArray(String[]::new));
+        BeanDefinitionRegistry registry = (BeanDefinitionRegistry) beanFactory;
+        //优先使用编译期生成的索引，与ESEntityScanner的bean命名保持一致
+        for (String className : ESComponentIndex.getEntities(applicationContext, getBasePackage.getEntityPackage(annotationMetadata))) {
+            String beanName = Introspector.decapitalize(ClassUtils.getShortName(className));
+            if (!registry.containsBeanDefinition(beanName)) {
+                registry.registerBeanDefinition(beanName, BeanDefinitionBuilder.genericBeanDefinition(className).getBeanDefinition());
+            }
+        }
     }
 
 
@@ -0,0 +1,165 @@
+package pers.fancy.cloud.search.core.auto.autoindex;
+
+import com.netflix.appinfo.ApplicationInfoManager;
+import com.netflix.appinfo.InstanceInfo;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Component;
+import pers.fancy.cloud.search.core.annotation.ESMetaData;
+import pers.fancy.cloud.search.core.repository.Deadline;
+import pers.fancy.cloud.search.core.repository.ElasticsearchTemplate;
+import pers.fancy.cloud.search.core.repository.PageList;
+import pers.fancy.cloud.search.core.repository.PageSortHighLight;
+import pers.fancy.cloud.search.core.util.EntityCodec;
+import pers.fancy.cloud.search.core.util.IndexTools;
+import pers.fancy.cloud.search.core.util.MetaData;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 启动预热
+ * 上线后的首批请求需要建立到es的连接、做jackson类型解析、JIT编译模板代码，es侧的缓存也是冷的，p99会在每次发布后出现尖刺
+ * 应用就绪后在后台线程中：并发ping集群以建立连接池中的连接；对每个@ESMetaData实体反复执行warmUpQueries中的查询（默认match_all）
+ * 以及count，并对命中结果做一次编解码；预热完成或者超时后才把eureka中的实例状态置为UP
+ * 需要配置eureka.instance.initial-status=STARTING，实例注册时为STARTING状态，不会被分配流量
+ *
+ * @author LiLiChai
+ */
+@Slf4j
+@Component
+public class WarmUp implements ApplicationListener<ApplicationReadyEvent> {
+
+    @Value("${elasticsearch.warmup.enabled:true}")
+    private boolean enabled;
+    //预热超时时间（毫秒），超时后直接上线
+    @Value("${elasticsearch.warmup.timeout:60000}")
+    private long timeout;
+    //每个查询执行的次数
+    @Value("${elasticsearch.warmup.iterations:20}")
+    private int iterations;
+    //预先建立的连接数
+    @Value("${elasticsearch.warmup.connections:8}")
+    private int connections;
+
+    @Autowired
+    RestHighLevelClient client;
+
+    @Autowired
+    ElasticsearchTemplate elasticsearchTemplate;
+
+    @Autowired
+    EntityCodec entityCodec;
+
+    @Autowired(required = false)
+    ApplicationInfoManager applicationInfoManager;
+
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+        Set<Class<?>> classes = new LinkedHashSet<>();
+        event.getApplicationContext().getBeansWithAnnotation(ESMetaData.class).values().forEach(bean -> classes.add(bean.getClass()));
+        Thread thread = new Thread(() -> {
+            long start = System.currentTimeMillis();
+            try {
+                if (enabled) {
+                    Deadline.after(timeout, TimeUnit.MILLISECONDS).call(() -> {
+                        warmUp(classes);
+                        return null;
+                    });
+                }
+                log.info("elasticsearch warm-up finished in {} ms", System.currentTimeMillis() - start);
+            } catch (Exception e) {
+                log.warn("elasticsearch warm-up aborted after {} ms: {}", System.currentTimeMillis() - start, e.toString());
+            } finally {
+                markUp();
+            }
+        }, "es-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void warmUp(Set<Class<?>> classes) throws Exception {
+        openConnections();
+        for (Class<?> clazz : classes) {
+            try {
+                warmUp(clazz);
+            } catch (TimeoutException e) {
+                throw e;
+            } catch (Exception e) {
+                //索引不存在或者查询有误时跳过该实体，不影响上线
+                log.warn("elasticsearch warm-up query on {} failed: {}", clazz.getSimpleName(), e.toString());
+            }
+        }
+    }
+
+    private void warmUp(Class<?> clazz) throws Exception {
+        List<QueryBuilder> queries = getQueries(IndexTools.getMetaData(clazz));
+        for (int i = 0; i < iterations; i++) {
+            for (QueryBuilder query : queries) {
+                PageList page = elasticsearchTemplate.search(query, new PageSortHighLight(1, 10), clazz);
+                elasticsearchTemplate.count(query, clazz);
+                //编码一次命中结果，预热写入路径的序列化
+                for (Object entity : page.getList()) {
+                    entityCodec.encode(entity);
+                }
+            }
+        }
+    }
+
+    /**
+     * 并发发送ping请求，使连接池建立connections个连接
+     *
+     * @throws Exception
+     */
+    private void openConnections() throws Exception {
+        CountDownLatch latch = new CountDownLatch(connections);
+        ResponseListener listener = new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                latch.countDown();
+            }
+        };
+        for (int i = 0; i < connections; i++) {
+            client.getLowLevelClient().performRequestAsync(new Request("HEAD", "/"), listener);
+        }
+        latch.await(Deadline.current().remaining(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+    }
+
+    private List<QueryBuilder> getQueries(MetaData metaData) {
+        List<QueryBuilder> queries = new ArrayList<>();
+        if (metaData != null) {
+            for (String query : metaData.getWarmUpQueries()) {
+                queries.add(QueryBuilders.wrapperQuery(query));
+            }
+        }
+        if (queries.isEmpty()) {
+            queries.add(QueryBuilders.matchAllQuery());
+        }
+        return queries;
+    }
+
+    private void markUp() {
+        if (applicationInfoManager != null) {
+            applicationInfoManager.setInstanceStatus(InstanceInfo.InstanceStatus.UP);
+        }
+    }
+}
@@ -9,11 +9,15 @@ import org.elasticsearch.index.query.QueryBuilder;
 import pers.fancy.cloud.search.core.enums.AggsType;
 import pers.fancy.cloud.search.core.repository.PageList;
 import pers.fancy.cloud.search.core.repository.PageSortHighLight;
+import pers.fancy.cloud.search.core.repository.WriteOptions;
 
 import java.util.List;
 import java.util.Map;
 
 /**
+ * 继承的接口上可以按方法名声明派生查询，如findByRiskCodeAndComCodeOrderByOperateDateDesc，规则见QueryMethod；
+ * 也可以通过@Query以es中存储的模板查询
+ *
  * @author LiLiChai
  */
 public interface ESCRepository<T, M> {
@@ -73,6 +77,71 @@ public interface ESCRepository<T, M> {
      */
     boolean deleteById(M id) throws Exception;
 
+    /**
+     * 按routing删除索引
+     *
+     * @param id
+     * @param routing
+     */
+    boolean deleteById(M id, String routing) throws Exception;
+
+    /**
+     * 按写入选项新增索引
+     *
+     * @param t
+     * @param options
+     */
+    boolean save(T t, WriteOptions options) throws Exception;
+
+    /**
+     * 按写入选项新增索引集合
+     *
+     * @param list
+     * @param options
+     */
+    BulkResponse save(List<T> list, WriteOptions options) throws Exception;
+
+    /**
+     * 按写入选项、按照有值字段更新索引
+     *
+     * @param t
+     * @param options
+     */
+    boolean update(T t, WriteOptions options) throws Exception;
+
+    /**
+     * 按写入选项覆盖更新索引
+     *
+     * @param t
+     * @param options
+     */
+    boolean updateCover(T t, WriteOptions options) throws Exception;
+
+    /**
+     * 按写入选项删除索引
+     *
+     * @param t
+     * @param options
+     */
+    boolean delete(T t, WriteOptions options) throws Exception;
+
+    /**
+     * 按写入选项删除索引
+     *
+     * @param id
+     * @param options
+     */
+    boolean deleteById(M id, WriteOptions options) throws Exception;
+
+    /**
+     * 按写入选项、按routing删除索引
+     *
+     * @param id
+     * @param routing
+     * @param options
+     */
+    boolean deleteById(M id, String routing, WriteOptions options) throws Exception;
+
     /**
      * 根据ID查询
      *
@@ -82,6 +151,16 @@ public interface ESCRepository<T, M> {
      */
     T getById(M id) throws Exception;
 
+    /**
+     * 根据ID和routing查询
+     *
+     * @param id
+     * @param routing
+     * @return
+     * @throws Exception
+     */
+    T getById(M id, String routing) throws Exception;
+
     /**
      * 【最原始】查询
      *
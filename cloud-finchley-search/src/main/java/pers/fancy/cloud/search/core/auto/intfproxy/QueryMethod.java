@@ -0,0 +1,446 @@
+package pers.fancy.cloud.search.core.auto.intfproxy;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.elasticsearch.search.sort.SortOrder;
+import pers.fancy.cloud.search.core.annotation.Query;
+import pers.fancy.cloud.search.core.repository.Deadline;
+import pers.fancy.cloud.search.core.repository.ElasticsearchTemplate;
+import pers.fancy.cloud.search.core.repository.PageList;
+import pers.fancy.cloud.search.core.repository.PageSortHighLight;
+import pers.fancy.cloud.search.core.repository.Sort;
+import pers.fancy.cloud.search.core.util.Constant;
+import pers.fancy.cloud.search.core.util.IndexTools;
+import pers.fancy.cloud.search.core.util.MappingData;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 派生查询方法
+ * repository接口上按方法名声明的查询，如findByRiskCodeAndComCodeOrderByOperateDateDesc，在生成代理时解析一次，得到查询计划：
+ * 条件对应的es字段（term类条件在text字段上使用keyword子字段）、参数位置、排序以及返回方式都预先确定，调用时只绑定参数值
+ * <p>
+ * 方法名：前缀 [Top/FirstN] By 条件 [OrderBy 字段Asc/Desc...]
+ * 前缀：find、search、query、get返回查询结果（实体、List、PageList），count返回数量，exists返回是否存在，delete按条件删除
+ * 条件：以And、Or连接，属性名与实体字段名忽略大小写和下划线比较（RiskCode对应risk_code），与字段名完全一致时按等值条件处理
+ * （如findByOrigin不会拆成Orig+In），否则属性后可以跟以下关键字：
+ * Is/Equals（缺省）、Not、In、NotIn、Between、LessThan、LessThanEqual、GreaterThan、GreaterThanEqual、Before、After、
+ * IsNull、IsNotNull、StartingWith、Like（通配符由调用方给出）、Match（全文检索，参与评分）
+ * 参数：按条件顺序对应，另外可以有一个PageSortHighLight参数（分页、高亮，未指定排序时使用方法名中的排序）和一个Deadline参数
+ * 不支持Distinct；delete必须带条件，不会按方法名删除全部文档
+ *
+ * @author LiLiChai
+ */
+public class QueryMethod {
+
+    private static final String KEYWORD = ".keyword";
+    private static final Pattern PREFIX = Pattern.compile("^(find|search|query|get|count|exists|delete)(\\p{Lu}.*?)??By(\\p{Lu}.*)$");
+    private static final Pattern LIMIT = Pattern.compile("(Top|First)(\\d*)");
+    private static final String ORDER_BY = "OrderBy";
+    private static final Pattern OR = Pattern.compile("(?<=[\\p{Ll}\\d])Or(?=\\p{Lu})");
+    private static final Pattern AND = Pattern.compile("(?<=[\\p{Ll}\\d])And(?=\\p{Lu})");
+    private static final Pattern ORDER = Pattern.compile("(?<=Asc|Desc)(?=\\p{Lu})");
+
+    private enum Subject {
+        find, count, exists, delete
+    }
+
+    private enum Operator {
+        //按关键字长度从长到短匹配
+        is_not_null(0, "IsNotNull", "NotNull"),
+        is_null(0, "IsNull", "Null"),
+        not_in(1, "IsNotIn", "NotIn"),
+        in(1, "IsIn", "In"),
+        between(2, "IsBetween", "Between"),
+        lte(1, "IsLessThanEqual", "LessThanEqual"),
+        lt(1, "IsLessThan", "LessThan", "IsBefore", "Before"),
+        gte(1, "IsGreaterThanEqual", "GreaterThanEqual"),
+        gt(1, "IsGreaterThan", "GreaterThan", "IsAfter", "After"),
+        starting_with(1, "IsStartingWith", "StartingWith", "StartsWith"),
+        like(1, "IsLike", "Like"),
+        match(1, "Matches", "Match"),
+        not(1, "IsNot", "Not"),
+        is(1, "Is", "Equals");
+
+        final int arity;
+        final String[] keywords;
+
+        Operator(int arity, String... keywords) {
+            this.arity = arity;
+            this.keywords = keywords;
+        }
+
+        /**
+         * term类条件使用keyword子字段
+         */
+        boolean isTermLevel() {
+            return this != match && this != is_null && this != is_not_null;
+        }
+    }
+
+    /**
+     * 一个条件：es字段、操作以及第一个参数的位置
+     */
+    private static class Part {
+        final String field;
+        final Operator operator;
+        final int slot;
+
+        Part(String field, Operator operator, int slot) {
+            this.field = field;
+            this.operator = operator;
+            this.slot = slot;
+        }
+
+        QueryBuilder bind(Object[] args) {
+            Object value = operator.arity > 0 ? args[slot] : null;
+            switch (operator) {
+                case is:
+                    return value == null ? QueryBuilders.boolQuery().mustNot(QueryBuilders.existsQuery(field)) : QueryBuilders.termQuery(field, value);
+                case not:
+                    return QueryBuilders.boolQuery().mustNot(value == null ? QueryBuilders.existsQuery(field) : QueryBuilders.termQuery(field, value));
+                case in:
+                    return QueryBuilders.termsQuery(field, toCollection(value));
+                case not_in:
+                    return QueryBuilders.boolQuery().mustNot(QueryBuilders.termsQuery(field, toCollection(value)));
+                case between:
+                    return QueryBuilders.rangeQuery(field).gte(value).lte(args[slot + 1]);
+                case lt:
+                    return QueryBuilders.rangeQuery(field).lt(value);
+                case lte:
+                    return QueryBuilders.rangeQuery(field).lte(value);
+                case gt:
+                    return QueryBuilders.rangeQuery(field).gt(value);
+                case gte:
+                    return QueryBuilders.rangeQuery(field).gte(value);
+                case is_null:
+                    return QueryBuilders.boolQuery().mustNot(QueryBuilders.existsQuery(field));
+                case is_not_null:
+                    return QueryBuilders.existsQuery(field);
+                case starting_with:
+                    return QueryBuilders.prefixQuery(field, String.valueOf(value));
+                case like:
+                    return QueryBuilders.wildcardQuery(field, String.valueOf(value));
+                default:
+                    return QueryBuilders.matchQuery(field, value);
+            }
+        }
+    }
+
+    private final Method method;
+    private final Class<?> domainClass;
+    private final Subject subject;
+    //Or分隔的条件组，组内为And
+    private final List<List<Part>> groups;
+    private final Sort sort;
+    //Top/First限定的条数，0表示不限定
+    private final int limit;
+    private final int pageSlot;
+    private final int deadlineSlot;
+
+    private QueryMethod(Method method, Class<?> domainClass, Subject subject, List<List<Part>> groups, Sort sort, int limit, int pageSlot, int deadlineSlot) {
+        this.method = method;
+        this.domainClass = domainClass;
+        this.subject = subject;
+        this.groups = groups;
+        this.sort = sort;
+        this.limit = limit;
+        this.pageSlot = pageSlot;
+        this.deadlineSlot = deadlineSlot;
+    }
+
+    /**
+     * 解析repository接口上声明的派生查询方法（ESCRepository之外、没有@Query的非default方法）
+     *
+     * @param repositoryInterface
+     * @param domainClass
+     * @return
+     * @throws Exception 方法名无法解析、属性不存在或者参数与条件不匹配
+     */
+    public static Map<Method, QueryMethod> parse(Class<?> repositoryInterface, Class<?> domainClass) throws Exception {
+        Map<Method, QueryMethod> queryMethods = new HashMap<>();
+        for (Method method : repositoryInterface.getMethods()) {
+            if (method.getDeclaringClass().isAssignableFrom(ESCRepository.class) || method.isDefault() || Modifier.isStatic(method.getModifiers())
+                    || method.isAnnotationPresent(Query.class)) {
+                continue;
+            }
+            if (domainClass == null) {
+                throw new Exception("Entity Not Found for " + repositoryInterface.getName());
+            }
+            queryMethods.put(method, parse(method, domainClass));
+        }
+        return queryMethods;
+    }
+
+    static QueryMethod parse(Method method, Class<?> domainClass) throws Exception {
+        String name = method.getName();
+        Matcher matcher = PREFIX.matcher(name);
+        if (!matcher.matches()) {
+            throw new Exception("Unsupported query method: " + name);
+        }
+        Subject subject = matcher.group(1).equals("count") || matcher.group(1).equals("exists") || matcher.group(1).equals("delete")
+                ? Subject.valueOf(matcher.group(1)) : Subject.find;
+        if (matcher.group(2) != null && matcher.group(2).contains("Distinct")) {
+            throw new Exception("Distinct is not supported in query method: " + name);
+        }
+        int limit = 0;
+        if (matcher.group(2) != null) {
+            Matcher limitMatcher = LIMIT.matcher(matcher.group(2));
+            if (limitMatcher.find()) {
+                limit = limitMatcher.group(2).isEmpty() ? 1 : Integer.parseInt(limitMatcher.group(2));
+            }
+        }
+        String predicate = matcher.group(3);
+        String orderBy = null;
+        int orderIndex = predicate.indexOf(ORDER_BY);
+        if (orderIndex >= 0) {
+            orderBy = predicate.substring(orderIndex + ORDER_BY.length());
+            predicate = predicate.substring(0, orderIndex);
+        }
+        Map<String, Field> fields = getFields(domainClass);
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        int pageSlot = -1;
+        int deadlineSlot = -1;
+        int slot = 0;
+        List<List<Part>> groups = new ArrayList<>();
+        //findAllByOrderBy...没有条件，查询全部
+        for (String or : predicate.isEmpty() ? new String[0] : OR.split(predicate)) {
+            List<Part> group = new ArrayList<>();
+            for (String and : AND.split(or)) {
+                Operator operator = Operator.is;
+                String property = and;
+                outer:
+                for (Operator candidate : fields.containsKey(normalize(and)) ? new Operator[0] : Operator.values()) {
+                    for (String keyword : candidate.keywords) {
+                        if (and.endsWith(keyword) && and.length() > keyword.length()) {
+                            operator = candidate;
+                            property = and.substring(0, and.length() - keyword.length());
+                            break outer;
+                        }
+                    }
+                }
+                //跳过特殊参数，条件参数按顺序排列
+                while (slot < parameterTypes.length && isSpecial(parameterTypes[slot])) {
+                    slot++;
+                }
+                group.add(new Part(resolveField(name, fields, property, operator.isTermLevel()), operator, slot));
+                slot += operator.arity;
+            }
+            groups.add(group);
+        }
+        if (subject == Subject.delete && groups.isEmpty()) {
+            throw new Exception("Delete query method " + name + " has no condition, deleting all documents is not supported");
+        }
+        int conditions = 0;
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (parameterTypes[i] == PageSortHighLight.class && pageSlot < 0) {
+                pageSlot = i;
+            } else if (parameterTypes[i] == Deadline.class && deadlineSlot < 0) {
+                deadlineSlot = i;
+            } else {
+                conditions++;
+            }
+        }
+        int expected = 0;
+        for (List<Part> group : groups) {
+            for (Part part : group) {
+                expected += part.operator.arity;
+            }
+        }
+        if (conditions != expected) {
+            throw new Exception("Query method " + name + " expects " + expected + " condition parameters but declares " + conditions);
+        }
+        if (pageSlot >= 0 && subject != Subject.find) {
+            throw new Exception("PageSortHighLight is only supported on find methods: " + name);
+        }
+        Sort sort = new Sort();
+        if (orderBy != null) {
+            List<Sort.Order> orders = new ArrayList<>();
+            for (String order : ORDER.split(orderBy)) {
+                SortOrder direction = order.endsWith("Desc") ? SortOrder.DESC : SortOrder.ASC;
+                String property = order.endsWith("Desc") || order.endsWith("Asc") ? order.substring(0, order.length() - (order.endsWith("Desc") ? 4 : 3)) : order;
+                if (property.isEmpty()) {
+                    throw new Exception("Unsupported order clause in query method: " + name);
+                }
+                orders.add(new Sort.Order(direction, resolveField(name, fields, property, true)));
+            }
+            sort = new Sort(orders.toArray(new Sort.Order[0]));
+        }
+        if (subject == Subject.find) {
+            Class<?> returnType = method.getReturnType();
+            if (returnType != domainClass && !List.class.isAssignableFrom(returnType) && returnType != PageList.class) {
+                throw new Exception("Query method " + name + " must return " + domainClass.getSimpleName() + ", List or PageList");
+            }
+        }
+        return new QueryMethod(method, domainClass, subject, groups, sort, limit, pageSlot, deadlineSlot);
+    }
+
+    private static boolean isSpecial(Class<?> type) {
+        return type == PageSortHighLight.class || type == Deadline.class;
+    }
+
+    /**
+     * 实体字段，key为去掉下划线后的小写字段名
+     */
+    private static Map<String, Field> getFields(Class<?> domainClass) {
+        Map<String, Field> fields = new HashMap<>();
+        for (Field field : domainClass.getDeclaredFields()) {
+            fields.put(normalize(field.getName()), field);
+        }
+        return fields;
+    }
+
+    private static String normalize(String property) {
+        return property.replace("_", "").toLowerCase();
+    }
+
+    /**
+     * 属性对应的es字段，term类条件、排序在text字段上使用keyword子字段
+     */
+    private static String resolveField(String methodName, Map<String, Field> fields, String property, boolean termLevel) throws Exception {
+        Field field = fields.get(normalize(property));
+        if (field == null) {
+            throw new Exception("No property " + property + " found for query method " + methodName);
+        }
+        MappingData mappingData = IndexTools.getMappingData(field);
+        if (!termLevel || !"text".equals(mappingData.getDatatype())) {
+            return field.getName();
+        }
+        if (!mappingData.isKeyword()) {
+            throw new Exception("Text property " + property + " has no keyword sub-field, use Match in query method " + methodName);
+        }
+        return field.getName() + KEYWORD;
+    }
+
+    /**
+     * 绑定参数，生成本次调用的查询条件
+     * 单个条件组的term类条件放在filter中，不参与评分、可以缓存；多个条件组之间为should
+     *
+     * @param args
+     * @return
+     */
+    public QueryBuilder bind(Object[] args) {
+        if (groups.isEmpty()) {
+            return QueryBuilders.matchAllQuery();
+        } else if (groups.size() == 1) {
+            return bindGroup(groups.get(0), args);
+        }
+        BoolQueryBuilder query = QueryBuilders.boolQuery().minimumShouldMatch(1);
+        for (List<Part> group : groups) {
+            query.should(bindGroup(group, args));
+        }
+        return query;
+    }
+
+    private BoolQueryBuilder bindGroup(List<Part> group, Object[] args) {
+        BoolQueryBuilder query = QueryBuilders.boolQuery();
+        for (Part part : group) {
+            if (part.operator == Operator.match) {
+                query.must(part.bind(args));
+            } else {
+                query.filter(part.bind(args));
+            }
+        }
+        return query;
+    }
+
+    /**
+     * 执行查询
+     *
+     * @param template
+     * @param args
+     * @return
+     * @throws Exception
+     */
+    public Object execute(ElasticsearchTemplate template, Object[] args) throws Exception {
+        Object[] values = args == null ? new Object[0] : args;
+        if (deadlineSlot >= 0 && values[deadlineSlot] != null) {
+            return ((Deadline) values[deadlineSlot]).call(() -> doExecute(template, values));
+        }
+        return doExecute(template, values);
+    }
+
+    private Object doExecute(ElasticsearchTemplate template, Object[] args) throws Exception {
+        QueryBuilder query = bind(args);
+        Class<?> returnType = method.getReturnType();
+        switch (subject) {
+            case count:
+                long count = template.count(query, domainClass);
+                return returnType == int.class || returnType == Integer.class ? (Object) (int) count : (Object) count;
+            case exists:
+                return template.count(query, domainClass) > 0;
+            case delete:
+                BulkByScrollResponse response = template.deleteByCondition(query, domainClass);
+                if (returnType == long.class || returnType == Long.class) {
+                    return response.getDeleted();
+                } else if (returnType == int.class || returnType == Integer.class) {
+                    return (int) response.getDeleted();
+                }
+                return returnType == void.class ? null : response;
+            default:
+                break;
+        }
+        PageSortHighLight page = pageSlot >= 0 ? (PageSortHighLight) args[pageSlot] : null;
+        if (returnType == PageList.class) {
+            return template.search(query, getPage(page, Constant.DEFALT_PAGE_SIZE), domainClass);
+        }
+        if (returnType == domainClass) {
+            List<?> list = template.search(query, getPage(page, 1), domainClass).getList();
+            return list.isEmpty() ? null : list.get(0);
+        }
+        if (page == null && limit == 0 && sort.listOrders().isEmpty()) {
+            return template.search(query, domainClass);
+        }
+        return template.search(query, getPage(page, Constant.DEFALT_PAGE_SIZE), domainClass).getList();
+    }
+
+    /**
+     * 调用方给出的分页，未指定排序时使用方法名中的排序；不修改调用方的对象
+     */
+    private PageSortHighLight getPage(PageSortHighLight page, int defaultSize) {
+        if (page == null) {
+            return new PageSortHighLight(1, limit > 0 ? limit : defaultSize, sort);
+        }
+        List<Sort.Order> orders = page.getSort() == null ? null : page.getSort().listOrders();
+        PageSortHighLight bound = new PageSortHighLight(page.getCurrentPage(), page.getPageSize(),
+                orders == null || orders.isEmpty() ? sort : page.getSort());
+        bound.setHighLight(page.getHighLight());
+        return bound;
+    }
+
+    private static Collection<?> toCollection(Object value) {
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        if (value instanceof Collection) {
+            return (Collection<?>) value;
+        }
+        if (value.getClass().isArray()) {
+            List<Object> list = new ArrayList<>();
+            for (int i = 0; i < Array.getLength(value); i++) {
+                list.add(Array.get(value, i));
+            }
+            return list;
+        }
+        return Arrays.asList(value);
+    }
+
+    @Override
+    public String toString() {
+        return method.getName() + " -> " + subject + ", " + groups.size() + " group(s), limit " + limit;
+    }
+}
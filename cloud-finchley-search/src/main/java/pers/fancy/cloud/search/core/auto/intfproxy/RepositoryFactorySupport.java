@@ -1,24 +1,15 @@
 package pers.fancy.cloud.search.core.auto.intfproxy;
 
-import org.aopalliance.intercept.MethodInterceptor;
-import org.aopalliance.intercept.MethodInvocation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.aop.framework.ProxyFactory;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.*;
 import org.springframework.context.*;
-import org.springframework.core.io.Resource;
 import org.springframework.core.io.ResourceLoader;
-import org.springframework.core.io.support.ResourcePatternResolver;
-import org.springframework.core.io.support.ResourcePatternUtils;
-import org.springframework.core.type.classreading.CachingMetadataReaderFactory;
-import org.springframework.core.type.classreading.MetadataReader;
-import org.springframework.core.type.classreading.MetadataReaderFactory;
 import pers.fancy.cloud.search.core.annotation.EnableESTools;
+import pers.fancy.cloud.search.core.auto.util.ESComponentIndex;
 import pers.fancy.cloud.search.core.auto.util.GetBasePackage;
 
-import java.io.IOException;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
@@ -46,12 +37,15 @@ public class RepositoryFactorySupport<T extends ESCRepository<S, ID>, S, ID> imp
         this.repositoryInterface = repositoryInterface;
     }
 
+    /**
+     * 生成代理时解析派生查询方法和@Query方法，声明有误时抛出异常终止启动，不注册为null的repository
+     */
     @Override
     public void afterPropertiesSet() {
         try {
             this.repository = this.getRepository(repositoryInterface);
         } catch (Exception e) {
-            logger.error("ESCRepository proxy create fail !", e);
+            throw new BeanCreationException("ESCRepository proxy create fail for " + repositoryInterface.getName() + ": " + e.getMessage(), e);
         }
     }
 
@@ -59,18 +53,7 @@ public class RepositoryFactorySupport<T extends ESCRepository<S, ID>, S, ID> imp
     public <T> T getRepository(Class<T> repositoryInterface) throws Exception {
         SimpleESCRepository target = new SimpleESCRepository(applicationContext);
         getMetadata(target);
-        ProxyFactory result = new ProxyFactory();
-        result.setTarget(target);
-        result.addAdvice(new MethodInterceptor() {
-            @Override
-            public Object invoke(MethodInvocation invocation) throws Throwable {
-                Object result = invocation.proceed();
-                return result;
-            }
-        });
-        result.setInterfaces(this.repositoryInterface, ESCRepository.class);
-        T repository = (T) result.getProxy(classLoader);
-        return repository;
+        return RepositoryInvocationHandler.newProxy(repositoryInterface, target, applicationContext, classLoader);
     }
 
     /**
@@ -120,27 +103,13 @@ public class RepositoryFactorySupport<T extends ESCRepository<S, ID>, S, ID> imp
 
 
     /**
-     * 获取实体类路径上的所有全限定类命
+     * 获取实体类路径上的所有实体类全限定类名
+     * 所有repository共用编译期索引或者同一次扫描的结果
      *
      * @return
      */
     private List<String> getEntityList() {
-        List<String> entityList = new ArrayList<>();
-        GetBasePackage.getEntityPathsMap().get(EnableESTools.class).forEach(s -> {
-            ResourcePatternResolver resolver = ResourcePatternUtils.getResourcePatternResolver(resourceLoader);
-            MetadataReaderFactory metaReader = new CachingMetadataReaderFactory(resourceLoader);
-            Resource[] resources = new Resource[0];
-            try {
-                resources = resolver.getResources("classpath*:" + s.replaceAll("\\.", "/") + "/**/*.class");
-                for (Resource r : resources) {
-                    MetadataReader reader = metaReader.getMetadataReader(r);
-                    entityList.add(reader.getClassMetadata().getClassName());
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        });
-        return entityList;
+        return new ArrayList<>(ESComponentIndex.getEntities(resourceLoader, GetBasePackage.getEntityPathsMap().get(EnableESTools.class).stream()));
     }
 
     @Override
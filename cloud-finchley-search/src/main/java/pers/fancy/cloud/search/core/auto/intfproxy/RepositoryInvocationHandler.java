@@ -0,0 +1,136 @@
+package pers.fancy.cloud.search.core.auto.intfproxy;
+
+import org.springframework.context.ApplicationContext;
+import pers.fancy.cloud.search.core.annotation.Query;
+import pers.fancy.cloud.search.core.metrics.TemplateMetrics;
+import pers.fancy.cloud.search.core.util.IndexTools;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ESCRepository代理的调用分发
+ * 生成代理时为接口上的每个方法确定调用方式：ESCRepository的方法绑定到SimpleESCRepository对应方法的MethodHandle，
+ * 派生查询方法绑定到解析好的QueryMethod，@Query方法绑定到TemplateQueryMethod；调用时按Method查表后直接执行，不经过Spring AOP的拦截器链和反射调用
+ * TemplateMetrics在第一次调用时从容器中取出后缓存，不在每次调用时查找bean
+ *
+ * @author LiLiChai
+ */
+public class RepositoryInvocationHandler implements InvocationHandler {
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    /**
+     * 预先确定的方法调用
+     */
+    @FunctionalInterface
+    interface Invoker {
+        Object invoke(Object[] args) throws Throwable;
+    }
+
+    private final Class<?> repositoryInterface;
+    private final Map<Method, Invoker> invokers;
+    private final String indexName;
+    private final ApplicationContext applicationContext;
+    private volatile TemplateMetrics templateMetrics;
+
+    private RepositoryInvocationHandler(Class<?> repositoryInterface, Map<Method, Invoker> invokers, String indexName, ApplicationContext applicationContext) {
+        this.repositoryInterface = repositoryInterface;
+        this.invokers = invokers;
+        this.indexName = indexName;
+        this.applicationContext = applicationContext;
+    }
+
+    /**
+     * 生成repository接口的代理
+     *
+     * @param repositoryInterface
+     * @param target              已经设置了实体类型、主键类型
+     * @param applicationContext
+     * @param classLoader
+     * @param <R>
+     * @return
+     * @throws Exception 派生查询方法、@Query方法无法解析
+     */
+    public static <R> R newProxy(Class<R> repositoryInterface, SimpleESCRepository<?, ?> target, ApplicationContext applicationContext, ClassLoader classLoader) throws Exception {
+        Class<?> domainClass = target.getDomainClass();
+        String indexName = domainClass == null || IndexTools.getIndexType(domainClass) == null
+                ? null : IndexTools.getIndexType(domainClass).getIndexname();
+        //派生查询方法在生成代理时解析，调用时只绑定参数
+        Map<Method, QueryMethod> queryMethods = QueryMethod.parse(repositoryInterface, domainClass);
+        Map<Method, Invoker> invokers = new HashMap<>();
+        for (Method method : repositoryInterface.getMethods()) {
+            QueryMethod queryMethod = queryMethods.get(method);
+            if (method.isAnnotationPresent(Query.class)) {
+                TemplateQueryMethod templateQueryMethod = TemplateQueryMethod.parse(method, domainClass);
+                invokers.put(method, args -> templateQueryMethod.execute(target.getElasticsearchTemplate(), args));
+            } else if (queryMethod != null) {
+                invokers.put(method, args -> queryMethod.execute(target.getElasticsearchTemplate(), args));
+            } else if (method.getDeclaringClass().isAssignableFrom(ESCRepository.class)) {
+                invokers.put(method, bind(method, target));
+            }
+        }
+        RepositoryInvocationHandler handler = new RepositoryInvocationHandler(repositoryInterface, invokers, indexName, applicationContext);
+        return (R) Proxy.newProxyInstance(classLoader, new Class<?>[]{repositoryInterface}, handler);
+    }
+
+    /**
+     * 绑定到target上同名同参数的方法，参数以数组传入
+     */
+    private static Invoker bind(Method method, SimpleESCRepository<?, ?> target) throws Exception {
+        Method targetMethod = SimpleESCRepository.class.getMethod(method.getName(), method.getParameterTypes());
+        MethodHandle handle = MethodHandles.publicLookup().unreflect(targetMethod)
+                .bindTo(target)
+                .asSpreader(Object[].class, targetMethod.getParameterCount())
+                .asType(MethodType.methodType(Object.class, Object[].class));
+        return args -> (Object) handle.invokeExact(args);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return invokeObjectMethod(proxy, method, args);
+        }
+        Invoker invoker = invokers.get(method);
+        if (invoker == null) {
+            throw new UnsupportedOperationException("Unsupported repository method: " + method);
+        }
+        TemplateMetrics metrics = getTemplateMetrics();
+        TemplateMetrics.Context context = metrics.enter(method.getName(), indexName);
+        Throwable error = null;
+        try {
+            return invoker.invoke(args == null ? NO_ARGS : args);
+        } catch (Throwable e) {
+            error = e;
+            throw e;
+        } finally {
+            metrics.exit(context, "repository", error);
+        }
+    }
+
+    private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            default:
+                return repositoryInterface.getName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+        }
+    }
+
+    private TemplateMetrics getTemplateMetrics() {
+        TemplateMetrics metrics = templateMetrics;
+        if (metrics == null) {
+            metrics = applicationContext.getBean(TemplateMetrics.class);
+            templateMetrics = metrics;
+        }
+        return metrics;
+    }
+}
@@ -11,6 +11,7 @@ import pers.fancy.cloud.search.core.enums.AggsType;
 import pers.fancy.cloud.search.core.repository.ElasticsearchTemplate;
 import pers.fancy.cloud.search.core.repository.PageList;
 import pers.fancy.cloud.search.core.repository.PageSortHighLight;
+import pers.fancy.cloud.search.core.repository.WriteOptions;
 
 import java.util.List;
 import java.util.Map;
@@ -23,14 +24,20 @@ public class SimpleESCRepository<T, M> implements ESCRepository<T, M> {
     private Class<M> idClass;
 
     private ApplicationContext applicationContext;
-    private ElasticsearchTemplate elasticsearchTemplate = null;
+    //第一次调用时从容器中取出后缓存，代理在容器刷新期间生成，此时模板可能还没有创建
+    private volatile ElasticsearchTemplate elasticsearchTemplate = null;
 
     public SimpleESCRepository(ApplicationContext applicationContext) {
         this.applicationContext = applicationContext;
     }
 
-    private ElasticsearchTemplate getElasticsearchTemplate() {
-        return applicationContext.getBean(ElasticsearchTemplate.class);
+    ElasticsearchTemplate getElasticsearchTemplate() {
+        ElasticsearchTemplate template = elasticsearchTemplate;
+        if (template == null) {
+            template = applicationContext.getBean(ElasticsearchTemplate.class);
+            elasticsearchTemplate = template;
+        }
+        return template;
     }
 
     @Override
@@ -68,11 +75,56 @@ public class SimpleESCRepository<T, M> implements ESCRepository<T, M> {
         return getElasticsearchTemplate().deleteById(id, domainClass);
     }
 
+    @Override
+    public boolean deleteById(M id, String routing) throws Exception {
+        return getElasticsearchTemplate().deleteById(id, routing, domainClass);
+    }
+
+    @Override
+    public boolean save(T t, WriteOptions options) throws Exception {
+        return getElasticsearchTemplate().save(t, options);
+    }
+
+    @Override
+    public BulkResponse save(List<T> list, WriteOptions options) throws Exception {
+        return getElasticsearchTemplate().save(list, options);
+    }
+
+    @Override
+    public boolean update(T t, WriteOptions options) throws Exception {
+        return getElasticsearchTemplate().update(t, options);
+    }
+
+    @Override
+    public boolean updateCover(T t, WriteOptions options) throws Exception {
+        return getElasticsearchTemplate().updateCover(t, options);
+    }
+
+    @Override
+    public boolean delete(T t, WriteOptions options) throws Exception {
+        return getElasticsearchTemplate().delete(t, options);
+    }
+
+    @Override
+    public boolean deleteById(M id, WriteOptions options) throws Exception {
+        return getElasticsearchTemplate().deleteById(id, domainClass, options);
+    }
+
+    @Override
+    public boolean deleteById(M id, String routing, WriteOptions options) throws Exception {
+        return getElasticsearchTemplate().deleteById(id, routing, domainClass, options);
+    }
+
     @Override
     public T getById(M id) throws Exception {
         return (T) getElasticsearchTemplate().getById(id, domainClass);
     }
 
+    @Override
+    public T getById(M id, String routing) throws Exception {
+        return (T) getElasticsearchTemplate().getById(id, routing, domainClass);
+    }
+
     @Override
     public SearchResponse search(SearchRequest searchRequest) throws Exception {
         return getElasticsearchTemplate().search(searchRequest);
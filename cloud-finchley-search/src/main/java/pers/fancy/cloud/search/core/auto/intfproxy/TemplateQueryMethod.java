@@ -0,0 +1,90 @@
+package pers.fancy.cloud.search.core.auto.intfproxy;
+
+import org.springframework.util.StringUtils;
+import pers.fancy.cloud.search.core.annotation.Query;
+import pers.fancy.cloud.search.core.repository.ElasticsearchTemplate;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 添加了@Query的repository方法
+ * 生成代理时确定模板名称、参数名称以及返回方式，调用时组装模板参数后以存储的模板执行，只发送模板名称和参数
+ *
+ * @author LiLiChai
+ */
+public class TemplateQueryMethod {
+
+    private final Method method;
+    private final Class<?> domainClass;
+    private final String template;
+    private final String source;
+    private final String[] params;
+    //只有一个Map参数时直接作为模板参数
+    private final boolean mapParams;
+
+    private TemplateQueryMethod(Method method, Class<?> domainClass, Query query, boolean mapParams) {
+        this.method = method;
+        this.domainClass = domainClass;
+        this.template = query.template();
+        this.source = query.source();
+        this.params = query.params();
+        this.mapParams = mapParams;
+    }
+
+    /**
+     * 解析方法上的@Query
+     *
+     * @param method
+     * @param domainClass
+     * @return
+     * @throws Exception 参数名称与方法参数不一致或者返回类型不支持
+     */
+    public static TemplateQueryMethod parse(Method method, Class<?> domainClass) throws Exception {
+        Query query = method.getAnnotation(Query.class);
+        if (domainClass == null) {
+            throw new Exception("Entity Not Found for " + method.getDeclaringClass().getName());
+        }
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        boolean mapParams = query.params().length == 0 && parameterTypes.length == 1 && Map.class.isAssignableFrom(parameterTypes[0]);
+        if (!mapParams && query.params().length != parameterTypes.length) {
+            throw new Exception("Query method " + method.getName() + " declares " + parameterTypes.length
+                    + " parameters but names " + query.params().length + " template params");
+        }
+        Class<?> returnType = method.getReturnType();
+        if (returnType != domainClass && !List.class.isAssignableFrom(returnType)) {
+            throw new Exception("Query method " + method.getName() + " must return " + domainClass.getSimpleName() + " or List");
+        }
+        return new TemplateQueryMethod(method, domainClass, query, mapParams);
+    }
+
+    /**
+     * 执行查询，配置了模板内容时先保存模板，模板内容未变化时不会重复保存，集群上的模板丢失时由searchTemplate重新保存
+     *
+     * @param template
+     * @param args
+     * @return
+     * @throws Exception
+     */
+    public Object execute(ElasticsearchTemplate template, Object[] args) throws Exception {
+        if (!StringUtils.isEmpty(source)) {
+            template.storeTemplate(this.template, source);
+        }
+        Map<String, Object> templateParams;
+        if (mapParams) {
+            templateParams = (Map<String, Object>) args[0];
+        } else {
+            templateParams = new HashMap<>();
+            for (int i = 0; i < params.length; i++) {
+                templateParams.put(params[i], args[i]);
+            }
+        }
+        List<?> list = template.searchTemplate(templateParams, this.template, domainClass);
+        if (method.getReturnType() == domainClass) {
+            return list.isEmpty() ? null : list.get(0);
+        }
+        return list;
+    }
+}
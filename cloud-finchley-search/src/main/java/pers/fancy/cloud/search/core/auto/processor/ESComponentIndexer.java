@@ -0,0 +1,140 @@
+package pers.fancy.cloud.search.core.auto.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * 编译期生成es组件索引的注解处理器
+ * 把@ESMetaData实体类以及ESCRepository接口写入META-INF/es-tools.components（每行：全限定类名=entity或repository），
+ * 启动时ESComponentIndex直接读取该文件，不再扫描classpath
+ * 增量编译时合并已有的索引：本次编译的类以本次结果为准（不再是实体或repository的去掉），已经删除的类从索引中去掉
+ * 处理器在编译期运行，不能依赖lombok等其他注解处理器生成的代码
+ *
+ * @author LiLiChai
+ */
+@SupportedAnnotationTypes("*")
+public class ESComponentIndexer extends AbstractProcessor {
+
+    public static final String COMPONENTS_RESOURCE_LOCATION = "META-INF/es-tools.components";
+    public static final String ENTITY = "entity";
+    public static final String REPOSITORY = "repository";
+
+    private static final String ES_META_DATA = "pers.fancy.cloud.search.core.annotation.ESMetaData";
+    private static final String ESC_REPOSITORY = "pers.fancy.cloud.search.core.auto.intfproxy.ESCRepository";
+
+    private final Map<String, String> components = new TreeMap<>();
+    //本次编译处理过的类，索引中这些类的旧条目全部以本次结果替换
+    private final Set<String> processed = new HashSet<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element element : roundEnv.getRootElements()) {
+            if (element instanceof TypeElement) {
+                String className = ((TypeElement) element).getQualifiedName().toString();
+                processed.add(className);
+                String stereotype = getStereotype((TypeElement) element);
+                if (stereotype != null) {
+                    components.put(className, stereotype);
+                }
+            }
+        }
+        if (roundEnv.processingOver()) {
+            try {
+                writeIndex();
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                        "write " + COMPONENTS_RESOURCE_LOCATION + " failed: " + e.getMessage());
+            }
+        }
+        //不占用注解，其他处理器照常处理
+        return false;
+    }
+
+    private String getStereotype(TypeElement type) {
+        if (type.getKind() == ElementKind.CLASS && !type.getModifiers().contains(Modifier.ABSTRACT)) {
+            for (AnnotationMirror annotation : type.getAnnotationMirrors()) {
+                if (ES_META_DATA.equals(((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName().toString())) {
+                    return ENTITY;
+                }
+            }
+        }
+        if (type.getKind() == ElementKind.INTERFACE && !ESC_REPOSITORY.equals(type.getQualifiedName().toString())
+                && isRepository(type.asType())) {
+            return REPOSITORY;
+        }
+        return null;
+    }
+
+    private boolean isRepository(TypeMirror type) {
+        for (TypeMirror supertype : processingEnv.getTypeUtils().directSupertypes(type)) {
+            Element element = ((DeclaredType) supertype).asElement();
+            if (ESC_REPOSITORY.equals(((TypeElement) element).getQualifiedName().toString()) || isRepository(supertype)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeIndex() throws IOException {
+        Map<String, String> index = readExistingIndex();
+        index.keySet().removeAll(processed);
+        index.putAll(components);
+        FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", COMPONENTS_RESOURCE_LOCATION);
+        try (Writer writer = new OutputStreamWriter(file.openOutputStream(), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> entry : index.entrySet()) {
+                writer.write(entry.getKey() + "=" + entry.getValue() + "\n");
+            }
+        }
+    }
+
+    /**
+     * 增量编译时只处理变化的源文件，需要保留上次生成的其余条目
+     */
+    private Map<String, String> readExistingIndex() {
+        Map<String, String> index = new TreeMap<>();
+        try {
+            FileObject file = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", COMPONENTS_RESOURCE_LOCATION);
+            try (Reader reader = new InputStreamReader(file.openInputStream(), StandardCharsets.UTF_8);
+                 BufferedReader lines = new BufferedReader(reader)) {
+                String line;
+                while ((line = lines.readLine()) != null) {
+                    int separator = line.indexOf('=');
+                    if (separator > 0 && processingEnv.getElementUtils().getTypeElement(line.substring(0, separator)) != null) {
+                        index.put(line.substring(0, separator), line.substring(separator + 1));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            //第一次编译，还没有索引
+        }
+        return index;
+    }
+}
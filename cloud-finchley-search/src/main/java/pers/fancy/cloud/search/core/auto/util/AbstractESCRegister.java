@@ -2,23 +2,15 @@ package pers.fancy.cloud.search.core.auto.util;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.BeanFactory;
-import org.springframework.beans.factory.annotation.AnnotatedBeanDefinition;
 import org.springframework.beans.factory.config.BeanDefinition;
 import org.springframework.beans.factory.support.BeanDefinitionBuilder;
 import org.springframework.beans.factory.support.BeanDefinitionRegistry;
-import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
+import org.springframework.beans.factory.support.GenericBeanDefinition;
 import org.springframework.core.env.Environment;
 import org.springframework.core.io.ResourceLoader;
 import org.springframework.core.type.AnnotationMetadata;
-import org.springframework.core.type.classreading.MetadataReader;
-import org.springframework.core.type.classreading.MetadataReaderFactory;
-import org.springframework.core.type.filter.AssignableTypeFilter;
-import org.springframework.lang.Nullable;
-import org.springframework.util.Assert;
-import pers.fancy.cloud.search.core.auto.intfproxy.ESCRepository;
 import pers.fancy.cloud.search.core.auto.intfproxy.RepositoryFactorySupport;
 
-import java.io.IOException;
 import java.util.stream.Stream;
 
 /**
@@ -54,11 +46,12 @@ public abstract class AbstractESCRegister {
      * @return
      */
     public Stream<BeanDefinition> getCandidates(AnnotationMetadata annotationMetadata, BeanDefinitionRegistry registry, Environment environment, ResourceLoader resourceLoader) {
-        ESCRepositoryComponentProvider scanner = new ESCRepositoryComponentProvider(registry);
-        scanner.setEnvironment(environment);
-        scanner.setResourceLoader(resourceLoader);
-        //输入是basepackages，输出是BeanDefinition的Stream
-        return getBasePackage(annotationMetadata).flatMap(it -> scanner.findCandidateComponents(it).stream());
+        //输入是basepackages，输出是BeanDefinition的Stream，优先使用编译期生成的索引
+        return ESComponentIndex.getRepositories(resourceLoader, getBasePackage(annotationMetadata)).stream().<BeanDefinition>map(className -> {
+            GenericBeanDefinition beanDefinition = new GenericBeanDefinition();
+            beanDefinition.setBeanClassName(className);
+            return beanDefinition;
+        });
     }
 
     /**
@@ -68,41 +61,4 @@ public abstract class AbstractESCRegister {
      * @return
      */
     public abstract Stream<String> getBasePackage(AnnotationMetadata annotationMetadata);
-
-    /**
-     * scanner interface ESCRepository
-     */
-    private static class ESCRepositoryComponentProvider extends ClassPathScanningCandidateComponentProvider {
-        private BeanDefinitionRegistry registry;
-
-        public ESCRepositoryComponentProvider(BeanDefinitionRegistry registry) {
-            super(false);
-            Assert.notNull(registry, "BeanDefinitionRegistry must not be null!");
-            super.addIncludeFilter(new InterfaceTypeFilter(ESCRepository.class));
-        }
-
-        @Override
-        protected boolean isCandidateComponent(AnnotatedBeanDefinition beanDefinition) {
-            boolean isNonRepositoryInterface = !isGenericRepositoryInterface(beanDefinition.getBeanClassName());
-            boolean isTopLevelType = !beanDefinition.getMetadata().hasEnclosingClass();
-            boolean isConsiderNestedRepositories = false;
-            return isNonRepositoryInterface && (isTopLevelType || isConsiderNestedRepositories);
-        }
-
-        private static boolean isGenericRepositoryInterface(@Nullable String interfaceName) {
-            return ESCRepository.class.getName().equals(interfaceName);
-        }
-    }
-
-    private static class InterfaceTypeFilter extends AssignableTypeFilter {
-        public InterfaceTypeFilter(Class<?> targetType) {
-            super(targetType);
-        }
-
-        @Override
-        public boolean match(MetadataReader metadataReader, MetadataReaderFactory metadataReaderFactory)
-                throws IOException {
-            return metadataReader.getClassMetadata().isInterface() && super.match(metadataReader, metadataReaderFactory);
-        }
-    }
 }
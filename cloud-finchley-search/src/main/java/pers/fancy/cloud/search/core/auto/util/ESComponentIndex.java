@@ -0,0 +1,202 @@
+package pers.fancy.cloud.search.core.auto.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.core.io.support.PropertiesLoaderUtils;
+import org.springframework.core.io.support.ResourcePatternResolver;
+import org.springframework.core.io.support.ResourcePatternUtils;
+import org.springframework.core.type.ClassMetadata;
+import org.springframework.core.type.classreading.CachingMetadataReaderFactory;
+import org.springframework.core.type.classreading.MetadataReader;
+import org.springframework.core.type.classreading.MetadataReaderFactory;
+import org.springframework.core.type.filter.AssignableTypeFilter;
+import pers.fancy.cloud.search.core.annotation.ESMetaData;
+import pers.fancy.cloud.search.core.auto.intfproxy.ESCRepository;
+import pers.fancy.cloud.search.core.auto.processor.ESComponentIndexer;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * es组件（@ESMetaData实体类、ESCRepository接口）索引
+ * 优先读取编译期由ESComponentIndexer生成的META-INF/es-tools.components；
+ * 索引中没有某个包的组件时扫描整个包；有时只额外扫描包所在的、没有生成索引的classpath根目录或jar（例如编译时没有运行处理器的依赖），两者合并
+ * 按目录查找包所在的classpath根，打包时不含目录条目的jar找不到，其中的组件只有在索引中没有该包任何组件时才会被扫描到
+ * 每个包（或包与classpath根的组合）只扫描一次，实体类和repository接口共用扫描结果；
+ * 同一组包的合并结果也只计算一次，每个repository创建时查询实体类不再重复解析classpath根
+ *
+ * @author LiLiChai
+ */
+@Slf4j
+public class ESComponentIndex {
+
+    //编译期索引，全限定类名 -> entity/repository，没有索引时为空
+    private static volatile Map<String, String> index = null;
+    //扫描结果缓存，扫描位置+包名 -> (全限定类名 -> entity/repository)
+    private static Map<String, Map<String, String>> scanCache = new ConcurrentHashMap<>();
+    //合并结果缓存，排序后的包名（逗号分隔） -> (全限定类名 -> entity/repository)
+    private static Map<String, Map<String, String>> resolveCache = new ConcurrentHashMap<>();
+    private static MetadataReaderFactory metadataReaderFactory = null;
+
+    /**
+     * 包下的@ESMetaData实体类
+     *
+     * @param resourceLoader
+     * @param packages
+     * @return 全限定类名
+     */
+    public static Set<String> getEntities(ResourceLoader resourceLoader, Stream<String> packages) {
+        return getComponents(resourceLoader, packages, ESComponentIndexer.ENTITY);
+    }
+
+    /**
+     * 包下继承ESCRepository的接口
+     *
+     * @param resourceLoader
+     * @param packages
+     * @return 全限定类名
+     */
+    public static Set<String> getRepositories(ResourceLoader resourceLoader, Stream<String> packages) {
+        return getComponents(resourceLoader, packages, ESComponentIndexer.REPOSITORY);
+    }
+
+    private static Set<String> getComponents(ResourceLoader resourceLoader, Stream<String> packages, String stereotype) {
+        long start = System.currentTimeMillis();
+        List<String> pkgs = packages.distinct().collect(Collectors.toList());
+        Set<String> components = new LinkedHashSet<>();
+        resolveCache.computeIfAbsent(String.join(",", new TreeSet<>(pkgs)), key -> resolve(resourceLoader, pkgs)).forEach((className, type) -> {
+            if (type.equals(stereotype)) {
+                components.add(className);
+            }
+        });
+        if (EnableESTools.isPrintregmsg()) {
+            log.info("resolved {} es {} classes in {} ms", components.size(), stereotype, System.currentTimeMillis() - start);
+        }
+        return components;
+    }
+
+    private static Map<String, String> resolve(ResourceLoader resourceLoader, List<String> packages) {
+        Map<String, String> indexed = getIndex(resourceLoader);
+        Map<String, String> components = new LinkedHashMap<>();
+        for (String pkg : packages) {
+            Map<String, String> candidates = filter(indexed, pkg);
+            //索引中没有该包的组件（例如依赖的jar编译时没有生成索引）时扫描该包，否则补充扫描没有索引的classpath根
+            components.putAll(candidates.isEmpty() ? scan(resourceLoader, "classpath*:", pkg) : merge(resourceLoader, candidates, pkg));
+        }
+        return components;
+    }
+
+    /**
+     * 清空索引以及扫描、合并结果的缓存，下次查询重新读取classpath，用于测量启动耗时
+     */
+    public static synchronized void clearCache() {
+        index = null;
+        scanCache.clear();
+        resolveCache.clear();
+        metadataReaderFactory = null;
+    }
+
+    private static Map<String, String> filter(Map<String, String> components, String pkg) {
+        Map<String, String> result = new LinkedHashMap<>();
+        components.forEach((className, stereotype) -> {
+            if (className.startsWith(pkg + ".")) {
+                result.put(className, stereotype);
+            }
+        });
+        return result;
+    }
+
+    private static Map<String, String> getIndex(ResourceLoader resourceLoader) {
+        if (index == null) {
+            synchronized (ESComponentIndex.class) {
+                if (index == null) {
+                    index = loadIndex(resourceLoader);
+                }
+            }
+        }
+        return index;
+    }
+
+    private static Map<String, String> loadIndex(ResourceLoader resourceLoader) {
+        Map<String, String> components = new LinkedHashMap<>();
+        try {
+            Properties properties = PropertiesLoaderUtils.loadAllProperties(ESComponentIndexer.COMPONENTS_RESOURCE_LOCATION, resourceLoader.getClassLoader());
+            properties.forEach((className, stereotype) -> components.put((String) className, (String) stereotype));
+        } catch (IOException e) {
+            log.warn("load " + ESComponentIndexer.COMPONENTS_RESOURCE_LOCATION + " failed, fall back to classpath scan", e);
+        }
+        return Collections.unmodifiableMap(components);
+    }
+
+    /**
+     * 索引中的组件加上包所在的、没有索引文件的classpath根中扫描到的组件
+     */
+    private static Map<String, String> merge(ResourceLoader resourceLoader, Map<String, String> indexed, String pkg) {
+        Map<String, String> components = new LinkedHashMap<>(indexed);
+        ResourcePatternResolver resolver = ResourcePatternUtils.getResourcePatternResolver(resourceLoader);
+        String path = pkg.replaceAll("\\.", "/") + "/";
+        try {
+            for (Resource directory : resolver.getResources("classpath*:" + path)) {
+                String url = directory.getURL().toString();
+                if (!url.endsWith(path)) {
+                    continue;
+                }
+                String root = url.substring(0, url.length() - path.length());
+                if (!resolver.getResource(root + ESComponentIndexer.COMPONENTS_RESOURCE_LOCATION).exists()) {
+                    components.putAll(scan(resourceLoader, root, pkg));
+                }
+            }
+        } catch (IOException e) {
+            log.error("resolve classpath roots of package " + pkg + " failed", e);
+        }
+        return components;
+    }
+
+    /**
+     * 扫描location（classpath*:或者某个classpath根）下包中的组件
+     */
+    private static Map<String, String> scan(ResourceLoader resourceLoader, String location, String pkg) {
+        return scanCache.computeIfAbsent(location + pkg, key -> {
+            Map<String, String> components = new LinkedHashMap<>();
+            ResourcePatternResolver resolver = ResourcePatternUtils.getResourcePatternResolver(resourceLoader);
+            MetadataReaderFactory readerFactory = getMetadataReaderFactory(resourceLoader);
+            AssignableTypeFilter repositoryFilter = new AssignableTypeFilter(ESCRepository.class);
+            try {
+                for (Resource resource : resolver.getResources(location + pkg.replaceAll("\\.", "/") + "/**/*.class")) {
+                    MetadataReader reader = readerFactory.getMetadataReader(resource);
+                    ClassMetadata metadata = reader.getClassMetadata();
+                    if (metadata.hasEnclosingClass()) {
+                        continue;
+                    }
+                    if (metadata.isConcrete() && reader.getAnnotationMetadata().hasAnnotation(ESMetaData.class.getName())) {
+                        components.put(metadata.getClassName(), ESComponentIndexer.ENTITY);
+                    } else if (metadata.isInterface() && !ESCRepository.class.getName().equals(metadata.getClassName())
+                            && repositoryFilter.match(reader, readerFactory)) {
+                        components.put(metadata.getClassName(), ESComponentIndexer.REPOSITORY);
+                    }
+                }
+            } catch (IOException e) {
+                log.error("scan package " + pkg + " in " + location + " failed", e);
+            }
+            return components;
+        });
+    }
+
+    private static synchronized MetadataReaderFactory getMetadataReaderFactory(ResourceLoader resourceLoader) {
+        if (metadataReaderFactory == null) {
+            metadataReaderFactory = new CachingMetadataReaderFactory(resourceLoader);
+        }
+        return metadataReaderFactory;
+    }
+}
@@ -0,0 +1,42 @@
+package pers.fancy.cloud.search.core.config;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+
+/**
+ * restHighLevelClient连接池指标
+ * leased：正在使用的连接数，available：空闲连接数，pending：等待获取连接的请求数，max：连接池上限
+ * pending持续大于0说明连接池成为瓶颈，需要调大elasticsearch.pool配置
+ *
+ * @author LiLiChai
+ */
+public class ConnectionPoolMetrics implements MeterBinder {
+
+    private final PoolingNHttpClientConnectionManager connectionManager;
+
+    public ConnectionPoolMetrics(PoolingNHttpClientConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("elasticsearch.client.pool.leased", connectionManager, cm -> cm.getTotalStats().getLeased())
+                .description("leased connections")
+                .register(registry);
+        Gauge.builder("elasticsearch.client.pool.available", connectionManager, cm -> cm.getTotalStats().getAvailable())
+                .description("idle connections")
+                .register(registry);
+        Gauge.builder("elasticsearch.client.pool.pending", connectionManager, cm -> cm.getTotalStats().getPending())
+                .description("requests waiting for a connection")
+                .register(registry);
+        Gauge.builder("elasticsearch.client.pool.max", connectionManager, cm -> cm.getTotalStats().getMax())
+                .description("max connections")
+                .register(registry);
+        Gauge.builder("elasticsearch.client.pool.utilization", connectionManager,
+                cm -> cm.getTotalStats().getMax() == 0 ? 0 : (double) cm.getTotalStats().getLeased() / cm.getTotalStats().getMax())
+                .description("leased / max")
+                .register(registry);
+    }
+}
@@ -1,20 +1,32 @@
 package pers.fancy.cloud.search.core.config;
 
-import pers.fancy.cloud.search.core.util.Constant;
+import io.micrometer.core.instrument.binder.MeterBinder;
 import org.apache.http.HttpHost;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestHighLevelClient;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.elasticsearch.client.sniff.Sniffer;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Scope;
 import org.springframework.util.StringUtils;
+import pers.fancy.cloud.search.core.metrics.TemplateMetrics;
+import pers.fancy.cloud.search.core.util.Constant;
+import pers.fancy.cloud.search.core.util.EntityCodec;
 
 /**
  * 自动配置注入restHighLevelClient
+ * 连接池、IO线程数、超时、keep-alive以及TCP参数均可在application.yml的elasticsearch节点下配置，
+ * 未配置时使用下面@Value中的默认值
  *
  * @author LiLiChai
  */
@@ -25,6 +37,49 @@ public class ElasticSearchConfiguration {
     @Value("${elasticsearch.host}")
     private String host;
 
+    //连接池总连接数
+    @Value("${elasticsearch.pool.max-total:100}")
+    private int maxTotal;
+    //每个节点的最大连接数
+    @Value("${elasticsearch.pool.max-per-route:50}")
+    private int maxPerRoute;
+    //IO reactor线程数，0表示使用cpu核数
+    @Value("${elasticsearch.io-thread-count:0}")
+    private int ioThreadCount;
+    //建立连接超时时间（毫秒）
+    @Value("${elasticsearch.connect-timeout:1000}")
+    private int connectTimeout;
+    //读取响应超时时间（毫秒）
+    @Value("${elasticsearch.socket-timeout:30000}")
+    private int socketTimeout;
+    //从连接池获取连接的超时时间（毫秒），-1表示一直等待空闲连接（与原行为一致），设置后连接池耗尽时超时抛出ConnectionPoolTimeoutException
+    @Value("${elasticsearch.connection-request-timeout:-1}")
+    private int connectionRequestTimeout;
+    //服务端没有返回Keep-Alive头时，空闲连接的保持时间（毫秒），需要小于中间网络设备的空闲断开时间
+    @Value("${elasticsearch.keep-alive:60000}")
+    private long keepAlive;
+    @Value("${elasticsearch.tcp-no-delay:true}")
+    private boolean tcpNoDelay;
+    @Value("${elasticsearch.so-keep-alive:true}")
+    private boolean soKeepAlive;
+    //节点连续失败多少次后暂时摘除
+    @Value("${elasticsearch.selector.eject-failures:3}")
+    private int ejectFailures;
+    //节点摘除时长（毫秒）
+    @Value("${elasticsearch.selector.eject-time:30000}")
+    private long ejectTime;
+    //sniffer定时刷新节点列表的间隔（毫秒）
+    @Value("${elasticsearch.sniff.interval:300000}")
+    private int sniffInterval;
+    //节点失败后延迟多久重新sniff（毫秒）
+    @Value("${elasticsearch.sniff.after-failure-delay:60000}")
+    private int sniffAfterFailureDelay;
+    //是否请求es返回gzip压缩的响应
+    @Value("${elasticsearch.compression.enabled:true}")
+    private boolean compressionEnabled;
+    //文档编码格式：json、smile、cbor
+    @Value("${elasticsearch.content-type:json}")
+    private String contentType;
 
     private RestHighLevelClient restHighLevelClient;
 
@@ -44,9 +99,96 @@ public class ElasticSearchConfiguration {
 //        close();
 //    }
 
+    /**
+     * restHighLevelClient使用的连接池，单独声明以便暴露连接池指标
+     * 自定义连接池后RestClientBuilder上的连接数、IO线程配置不再生效，统一在这里配置
+     *
+     * @return
+     * @throws IOReactorException
+     */
+    @Bean
+    public PoolingNHttpClientConnectionManager elasticsearchConnectionManager() throws IOReactorException {
+        IOReactorConfig.Builder ioReactorConfig = IOReactorConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setSoTimeout(socketTimeout)
+                .setTcpNoDelay(tcpNoDelay)
+                .setSoKeepAlive(soKeepAlive);
+        if (ioThreadCount > 0) {
+            ioReactorConfig.setIoThreadCount(ioThreadCount);
+        }
+        PoolingNHttpClientConnectionManager connectionManager =
+                new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig.build()));
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        return connectionManager;
+    }
+
+    /**
+     * 连接池指标，通过actuator的/metrics暴露
+     *
+     * @param connectionManager
+     * @return
+     */
+    @Bean
+    public MeterBinder elasticsearchConnectionPoolMetrics(PoolingNHttpClientConnectionManager connectionManager) {
+        return new ConnectionPoolMetrics(connectionManager);
+    }
+
+    /**
+     * 所有请求共用的RequestOptions，替代RequestOptions.DEFAULT
+     *
+     * @return
+     */
+    @Bean
+    public RequestOptions elasticsearchRequestOptions() {
+        RequestOptions.Builder builder = RequestOptions.DEFAULT.toBuilder();
+        if (compressionEnabled) {
+            builder.addHeader("Accept-Encoding", "gzip");
+            builder.setHttpAsyncResponseConsumerFactory(new GzipResponseConsumerFactory());
+        }
+        return builder.build();
+    }
+
+    @Bean
+    public EntityCodec entityCodec() {
+        return new EntityCodec(contentType);
+    }
+
+    @Bean
+    public LatencyAwareNodeSelector latencyAwareNodeSelector() {
+        return new LatencyAwareNodeSelector(ejectFailures, ejectTime);
+    }
+
+    @Bean
+    public NodeFailureListener nodeFailureListener(LatencyAwareNodeSelector nodeSelector) {
+        return new NodeFailureListener(nodeSelector);
+    }
+
+    /**
+     * 定时以及节点失败后从集群发现数据节点，替换elasticsearch.host中配置的初始节点列表
+     * 客户端无法直接访问节点publish_address（如容器、NAT环境）时配置elasticsearch.sniff.enabled=false关闭
+     *
+     * @param client
+     * @param failureListener
+     * @return
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "elasticsearch.sniff.enabled", havingValue = "true", matchIfMissing = true)
+    public Sniffer sniffer(RestHighLevelClient client, NodeFailureListener failureListener) {
+        Sniffer sniffer = Sniffer.builder(client.getLowLevelClient())
+                .setSniffIntervalMillis(sniffInterval)
+                .setSniffAfterFailureDelayMillis(sniffAfterFailureDelay)
+                .build();
+        failureListener.setSniffer(sniffer);
+        return sniffer;
+    }
+
     @Bean(destroyMethod = "close")//这个close是调用RestHighLevelClient中的close
     @Scope("singleton")
-    public RestHighLevelClient createInstance() {
+    public RestHighLevelClient createInstance(PoolingNHttpClientConnectionManager connectionManager,
+                                              LatencyAwareNodeSelector nodeSelector,
+                                              NodeFailureListener failureListener,
+                                              TemplateMetrics templateMetrics) {
         try {
             if (StringUtils.isEmpty(host)) {
                 host = Constant.DEFAULT_ES_HOST;
@@ -57,8 +199,25 @@ public class ElasticSearchConfiguration {
                 String h = hosts[i];
                 httpHosts[i] = new HttpHost(h.split(":")[0], Integer.parseInt(h.split(":")[1]), "http");
             }
+            ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+                long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                return duration > 0 ? duration : keepAlive;
+            };
             restHighLevelClient = new RestHighLevelClient(
-                    RestClient.builder(httpHosts));
+                    RestClient.builder(httpHosts)
+                            .setNodeSelector(nodeSelector)
+                            .setFailureListener(failureListener)
+                            .setRequestConfigCallback(requestConfigBuilder -> requestConfigBuilder
+                                    .setConnectTimeout(connectTimeout)
+                                    .setSocketTimeout(socketTimeout)
+                                    .setConnectionRequestTimeout(connectionRequestTimeout))
+                            .setHttpClientConfigCallback(httpClientBuilder -> httpClientBuilder
+                                    .setConnectionManager(connectionManager)
+                                    .setKeepAliveStrategy(keepAliveStrategy)
+                                    .addInterceptorLast(nodeSelector.requestInterceptor())
+                                    .addInterceptorLast(nodeSelector.responseInterceptor())
+                                    .addInterceptorLast(templateMetrics.requestInterceptor())
+                                    .addInterceptorLast(templateMetrics.responseInterceptor())));
         } catch (Exception e) {
             e.printStackTrace();
             return null;
@@ -0,0 +1,39 @@
+package pers.fancy.cloud.search.core.config;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.elasticsearch.client.HeapBufferedAsyncResponseConsumer;
+import org.elasticsearch.client.HttpAsyncResponseConsumerFactory;
+
+/**
+ * 请求带Accept-Encoding: gzip时，es返回压缩后的响应体，RestClient不会自动解压，
+ * 这里在响应体接收完成后替换为解压实体，对highLevelClient的响应解析透明
+ * 缓冲上限按压缩后的字节数计算
+ *
+ * @author LiLiChai
+ */
+public class GzipResponseConsumerFactory implements HttpAsyncResponseConsumerFactory {
+
+    //与HttpAsyncResponseConsumerFactory.DEFAULT一致
+    private static final int BUFFER_LIMIT = 100 * 1024 * 1024;
+
+    @Override
+    public HttpAsyncResponseConsumer<HttpResponse> createHttpAsyncResponseConsumer() {
+        return new HeapBufferedAsyncResponseConsumer(BUFFER_LIMIT) {
+            @Override
+            protected HttpResponse buildResult(HttpContext context) throws Exception {
+                HttpResponse response = super.buildResult(context);
+                Header contentEncoding = response.getFirstHeader("Content-Encoding");
+                if (response.getEntity() != null && contentEncoding != null && "gzip".equalsIgnoreCase(contentEncoding.getValue())) {
+                    response.setEntity(new GzipDecompressingEntity(response.getEntity()));
+                    response.removeHeaders("Content-Encoding");
+                    response.removeHeaders("Content-Length");
+                }
+                return response;
+            }
+        };
+    }
+}
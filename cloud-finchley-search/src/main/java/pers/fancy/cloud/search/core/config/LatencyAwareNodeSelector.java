@@ -0,0 +1,299 @@
+package pers.fancy.cloud.search.core.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.protocol.HttpCoreContext;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.NodeSelector;
+import org.elasticsearch.client.ResponseException;
+import pers.fancy.cloud.search.core.limit.TaskCanceller;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按节点延迟选择请求节点
+ * 每个节点维护响应延迟的EWMA和正在执行的请求数，每次请求随机取两个节点，选择 EWMA*(in-flight+1) 较小的一个（power-of-two-choices）；
+ * 连续失败（包括超时）达到ejectFailures次的节点在ejectMillis内不再被选择，所有节点都被摘除时不做选择，交给RestClient自身的死节点重试逻辑
+ * 延迟和in-flight通过httpclient的请求/响应拦截器采集，失败通过RestClient.FailureListener采集；
+ * 本进程主动取消的请求（按X-Opaque-Id登记）的响应不更新延迟，失败也不计入连续失败
+ * <p>
+ * 只选出一个节点时RestClient无法再换节点重试，所以只有调用方自己处理节点失败时才按延迟选择：
+ * 同步调用通过failover执行，节点失败（IO异常、超时、502/503/504）后避开失败的节点重试；异步调用通过route指定本线程下一次选择时避开的节点，
+ * 并通过lastSelected取得选中的节点后自行重试。其他调用只去掉被摘除的节点，保留RestClient自身的轮询和换节点重试
+ *
+ * @author LiLiChai
+ */
+@Slf4j
+public class LatencyAwareNodeSelector implements NodeSelector {
+
+    private static final String START_ATTRIBUTE = "es.node.selector.start";
+    //EWMA平滑系数，越大越偏向最近的延迟
+    private static final double ALPHA = 0.3;
+    //主动取消的请求登记保留的时间（毫秒），超过后没有收到响应的登记被清理
+    private static final long CANCELLED_RETENTION = 60000;
+    private static final int CANCELLED_CLEANUP_SIZE = 1024;
+
+    private final int ejectFailures;
+    private final long ejectMillis;
+
+    private final Map<HttpHost, NodeStats> nodeStats = new ConcurrentHashMap<>();
+
+    //本线程下一次选择时避开的节点，为null时不按延迟选择
+    private final ThreadLocal<Set<HttpHost>> routed = new ThreadLocal<>();
+    private final ThreadLocal<HttpHost> selected = new ThreadLocal<>();
+    //本进程主动取消的请求：X-Opaque-Id -> 取消时间
+    private final Map<String, Long> cancelled = new ConcurrentHashMap<>();
+
+    public LatencyAwareNodeSelector(int ejectFailures, long ejectMillis) {
+        this.ejectFailures = ejectFailures;
+        this.ejectMillis = ejectMillis;
+    }
+
+    @Override
+    public void select(Iterable<Node> nodes) {
+        long now = System.currentTimeMillis();
+        Set<HttpHost> excluded = routed.get();
+        List<Node> candidates = new ArrayList<>();
+        for (Node node : nodes) {
+            if (!getStats(node.getHost()).isEjected(now) && (excluded == null || !excluded.contains(node.getHost()))) {
+                candidates.add(node);
+            }
+        }
+        if (candidates.isEmpty() && excluded != null && !excluded.isEmpty()) {
+            //只剩避开的节点时仍然选择它
+            for (Node node : nodes) {
+                if (!getStats(node.getHost()).isEjected(now)) {
+                    candidates.add(node);
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+        if (excluded == null) {
+            //调用方不处理节点失败，保留所有可用节点供RestClient换节点重试
+            retain(nodes, candidates);
+            return;
+        }
+        Node chosen = candidates.get(0);
+        if (candidates.size() > 1) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(candidates.size());
+            int second = random.nextInt(candidates.size() - 1);
+            if (second >= first) {
+                second++;
+            }
+            Node a = candidates.get(first);
+            Node b = candidates.get(second);
+            chosen = getStats(a.getHost()).score() <= getStats(b.getHost()).score() ? a : b;
+        }
+        selected.set(chosen.getHost());
+        retain(nodes, Collections.singletonList(chosen));
+    }
+
+    private void retain(Iterable<Node> nodes, List<Node> retained) {
+        Iterator<Node> iterator = nodes.iterator();
+        while (iterator.hasNext()) {
+            if (!retained.contains(iterator.next())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 按延迟选择节点执行同步调用，节点失败时避开已经失败的节点重试，直到没有其他可用节点
+     *
+     * @param callable 只发出一次请求的调用
+     * @param <V>
+     * @return
+     * @throws Exception 最后一次调用的异常
+     */
+    public <V> V failover(Callable<V> callable) throws Exception {
+        Set<HttpHost> tried = new HashSet<>();
+        while (true) {
+            routed.set(tried);
+            selected.remove();
+            try {
+                return callable.call();
+            } catch (Exception e) {
+                HttpHost host = selected.get();
+                if (host == null || !isNodeFailure(e) || !tried.add(host)) {
+                    throw e;
+                }
+                log.debug("elasticsearch node {} failed, retrying on another node: {}", host, e.toString());
+            } finally {
+                routed.remove();
+                selected.remove();
+            }
+        }
+    }
+
+    /**
+     * 本线程下一次选择节点时按延迟只选择一个节点，并避开excluded中的节点，调用方负责节点失败后的重试；传入null取消
+     *
+     * @param excluded
+     */
+    public void route(Set<HttpHost> excluded) {
+        if (excluded == null) {
+            routed.remove();
+        } else {
+            routed.set(excluded);
+        }
+    }
+
+    /**
+     * 是否为RestClient会换节点重试的失败：IO异常（连接失败、超时）以及502、503、504
+     *
+     * @param e
+     * @return
+     */
+    public static boolean isNodeFailure(Throwable e) {
+        int status = 0;
+        if (e instanceof ElasticsearchStatusException) {
+            status = ((ElasticsearchStatusException) e).status().getStatus();
+        } else if (e instanceof ResponseException) {
+            status = ((ResponseException) e).getResponse().getStatusLine().getStatusCode();
+        } else if (e instanceof IOException) {
+            return true;
+        }
+        return status == 502 || status == 503 || status == 504;
+    }
+
+    /**
+     * 取出本线程最近一次选中的节点，没有时返回null
+     *
+     * @return
+     */
+    public HttpHost lastSelected() {
+        HttpHost host = selected.get();
+        selected.remove();
+        return host;
+    }
+
+    /**
+     * 登记本进程主动取消的请求，其响应不更新节点延迟，因取消而失败时不计入节点失败
+     *
+     * @param opaqueId 请求的X-Opaque-Id
+     */
+    public void ignoreFailure(String opaqueId) {
+        long now = System.currentTimeMillis();
+        if (cancelled.size() >= CANCELLED_CLEANUP_SIZE) {
+            cancelled.values().removeIf(at -> now - at > CANCELLED_RETENTION);
+        }
+        cancelled.put(opaqueId, now);
+    }
+
+    /**
+     * 请求发出前：in-flight加一并记录开始时间
+     */
+    public HttpRequestInterceptor requestInterceptor() {
+        return (request, context) -> {
+            HttpHost host = (HttpHost) context.getAttribute(HttpCoreContext.HTTP_TARGET_HOST);
+            if (host != null) {
+                getStats(host).inflight.incrementAndGet();
+                context.setAttribute(START_ATTRIBUTE, System.nanoTime());
+            }
+        };
+    }
+
+    /**
+     * 收到响应头：in-flight减一并更新延迟
+     */
+    public HttpResponseInterceptor responseInterceptor() {
+        return (response, context) -> {
+            HttpHost host = (HttpHost) context.getAttribute(HttpCoreContext.HTTP_TARGET_HOST);
+            Long start = (Long) context.getAttribute(START_ATTRIBUTE);
+            if (host == null || start == null) {
+                return;
+            }
+            context.removeAttribute(START_ATTRIBUTE);
+            NodeStats stats = getStats(host);
+            stats.release();
+            int status = response.getStatusLine().getStatusCode();
+            HttpRequest request = (HttpRequest) context.getAttribute(HttpCoreContext.HTTP_REQUEST);
+            Header opaqueId = request == null ? null : request.getFirstHeader(TaskCanceller.OPAQUE_ID);
+            if (opaqueId != null && cancelled.remove(opaqueId.getValue()) != null) {
+                //主动取消的请求：不更新延迟；502、503、504随后的onFailure不计入连续失败
+                if (status == 502 || status == 503 || status == 504) {
+                    stats.ignoredResponses.incrementAndGet();
+                }
+                return;
+            }
+            //502、503、504会被RestClient当作节点失败，随后回调onFailure，这里不再重复减in-flight
+            if (status == 502 || status == 503 || status == 504) {
+                stats.failedResponses.incrementAndGet();
+                return;
+            }
+            stats.onSuccess((System.nanoTime() - start) / 1000000.0);
+        };
+    }
+
+    /**
+     * 节点请求失败（IO异常、超时或者502/503/504）
+     *
+     * @param host
+     */
+    public void onFailure(HttpHost host) {
+        NodeStats stats = getStats(host);
+        if (stats.ignoredResponses.getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0) {
+            return;
+        }
+        if (stats.failedResponses.getAndUpdate(n -> n > 0 ? n - 1 : 0) == 0) {
+            stats.release();
+        }
+        int failures = stats.consecutiveFailures.incrementAndGet();
+        if (failures >= ejectFailures) {
+            stats.ejectedUntil = System.currentTimeMillis() + ejectMillis;
+            stats.consecutiveFailures.set(0);
+            log.warn("elasticsearch node {} failed {} times in a row, ejected for {} ms", host, failures, ejectMillis);
+        }
+    }
+
+    private NodeStats getStats(HttpHost host) {
+        return nodeStats.computeIfAbsent(host, h -> new NodeStats());
+    }
+
+    private static class NodeStats {
+        //未采集到延迟的新节点EWMA为0，优先分配请求以尽快得到延迟数据
+        volatile double ewma = 0;
+        volatile long ejectedUntil = 0;
+        final AtomicInteger inflight = new AtomicInteger();
+        final AtomicInteger consecutiveFailures = new AtomicInteger();
+        final AtomicInteger failedResponses = new AtomicInteger();
+        //主动取消的请求返回的502、503、504，对应的onFailure忽略
+        final AtomicInteger ignoredResponses = new AtomicInteger();
+
+        boolean isEjected(long now) {
+            return ejectedUntil > now;
+        }
+
+        double score() {
+            return ewma * (inflight.get() + 1);
+        }
+
+        void release() {
+            inflight.getAndUpdate(n -> n > 0 ? n - 1 : 0);
+        }
+
+        synchronized void onSuccess(double millis) {
+            ewma = ewma == 0 ? millis : ALPHA * millis + (1 - ALPHA) * ewma;
+            consecutiveFailures.set(0);
+        }
+    }
+}
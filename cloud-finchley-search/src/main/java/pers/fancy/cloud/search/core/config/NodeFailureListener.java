@@ -0,0 +1,35 @@
+package pers.fancy.cloud.search.core.config;
+
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.sniff.SniffOnFailureListener;
+import org.elasticsearch.client.sniff.Sniffer;
+
+/**
+ * RestClient只能设置一个FailureListener，这里把节点失败同时通知给节点选择器和sniffer
+ *
+ * @author LiLiChai
+ */
+public class NodeFailureListener extends RestClient.FailureListener {
+
+    private final LatencyAwareNodeSelector nodeSelector;
+    private final SniffOnFailureListener sniffOnFailureListener = new SniffOnFailureListener();
+    private volatile boolean sniffEnabled = false;
+
+    public NodeFailureListener(LatencyAwareNodeSelector nodeSelector) {
+        this.nodeSelector = nodeSelector;
+    }
+
+    public void setSniffer(Sniffer sniffer) {
+        sniffOnFailureListener.setSniffer(sniffer);
+        sniffEnabled = true;
+    }
+
+    @Override
+    public void onFailure(Node node) {
+        nodeSelector.onFailure(node.getHost());
+        if (sniffEnabled) {
+            sniffOnFailureListener.onFailure(node);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package pers.fancy.cloud.search.core.enums;
+
+/**
+ * 熔断器状态
+ *
+ * @author LiLiChai
+ */
+public enum BreakerState {
+    closed,
+    open,
+    half_open
+}
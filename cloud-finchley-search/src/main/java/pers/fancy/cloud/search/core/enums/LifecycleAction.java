@@ -0,0 +1,13 @@
+package pers.fancy.cloud.search.core.enums;
+
+/**
+ * 索引生命周期任务执行的操作
+ *
+ * @author LiLiChai
+ */
+public enum LifecycleAction {
+    shrink,//减少主分片数量
+    forcemerge,//合并为一个段
+    replicas,//降低副本数量
+    read_only,//禁止写入
+}
@@ -0,0 +1,13 @@
+package pers.fancy.cloud.search.core.enums;
+
+/**
+ * 时间分区索引的分区粒度
+ *
+ * @author LiLiChai
+ */
+public enum PartitionInterval {
+    none,//不分区
+    day,//按天分区，索引后缀 yyyy.MM.dd
+    week,//按ISO周分区，索引后缀 yyyy.'w'ww
+    month,//按月分区，索引后缀 yyyy.MM
+}
@@ -0,0 +1,12 @@
+package pers.fancy.cloud.search.core.enums;
+
+/**
+ * 写入后的刷新策略，对应es的refresh参数
+ *
+ * @author LiLiChai
+ */
+public enum RefreshPolicy {
+    none,//不刷新，按refresh_interval周期刷新后可见
+    wait_until,//等待下一次周期刷新后返回，不额外产生段
+    immediate,//写入后立即刷新，会产生大量小段，只用于写入后需要马上查到的低频场景
+}
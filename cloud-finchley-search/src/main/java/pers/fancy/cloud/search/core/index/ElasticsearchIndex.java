@@ -1,5 +1,9 @@
 package pers.fancy.cloud.search.core.index;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
 /**
  * 索引结构基础方法接口
  *
@@ -23,6 +27,21 @@ public interface ElasticsearchIndex<T> {
      */
     void dropIndex(Class<T> clazz) throws Exception;
 
+    /**
+     * 无停机重建索引
+     * 按实体当前的mapping创建带版本号的新索引，以任务方式分片、限速执行_reindex；
+     * 复制完成后按_seq_no增量追平复制期间的写入，变更量足够小后旧索引设置为只读（index.blocks.write），只复制最后一轮增量，
+     * 然后原子地把读写别名切换到新索引，切换后再删除新索引中在旧索引已被删除的文档
+     * 旧索引在宽限期后删除，删除计划记录在es中，应用重启后继续执行；旧版本直接以indexname创建的索引在切换时删除，
+     * 切换后按原mapping复制一份只读副本，同样在宽限期后删除
+     * 从旧索引设置为只读到别名切换完成之间的写入会失败（不会丢失），需要调用方重试
+     *
+     * @param clazz
+     * @return 新索引的名称
+     * @throws Exception
+     */
+    String reindex(Class<T> clazz) throws Exception;
+
     /**
      * 索引是否存在
      *
@@ -31,4 +50,61 @@ public interface ElasticsearchIndex<T> {
      */
     boolean exists(Class<T> clazz) throws Exception;
 
+    /**
+     * 批量判断索引是否存在，只请求一次索引列表（有分区索引时再请求一次模板列表）
+     *
+     * @param classes
+     * @return 每个实体类对应的索引是否存在
+     * @throws Exception
+     */
+    Map<Class<T>, Boolean> exists(Collection<Class<T>> classes) throws Exception;
+
+    /**
+     * 将实体生成的mapping与线上mapping比较，新增字段、新增子字段、eager_global_ordinals变化、关闭norms通过put mapping更新
+     * 字段类型以及doc_values、index_options、store等无法在已有字段上修改的差异只打印警告，分区实体在之后创建的分区生效，
+     * 已有索引需要调用reindex()后生效
+     *
+     * @param clazz
+     * @throws Exception
+     */
+    void updateMapping(Class<T> clazz) throws Exception;
+
+    /**
+     * 进入bulk-load模式：记录当前的refresh_interval、number_of_replicas、translog.durability，
+     * 并设置为-1、0、async，大批量导入期间获得最大写入吞吐
+     *
+     * @param clazz
+     * @throws Exception
+     */
+    void beginBulkLoad(Class<T> clazz) throws Exception;
+
+    /**
+     * 退出bulk-load模式：恢复进入前的settings并refresh
+     *
+     * @param clazz
+     * @throws Exception
+     */
+    void endBulkLoad(Class<T> clazz) throws Exception;
+
+    /**
+     * 退出bulk-load模式，并异步force merge到maxNumSegments个段
+     *
+     * @param clazz
+     * @param maxNumSegments 小于等于0时不合并
+     * @throws Exception
+     */
+    void endBulkLoad(Class<T> clazz, int maxNumSegments) throws Exception;
+
+    /**
+     * 在bulk-load模式下执行导入，导入失败时同样恢复settings
+     *
+     * @param clazz
+     * @param maxNumSegments 导入后force merge的目标段数，小于等于0时不合并
+     * @param load
+     * @param <V>
+     * @return
+     * @throws Exception
+     */
+    <V> V bulkLoad(Class<T> clazz, int maxNumSegments, Callable<V> load) throws Exception;
+
 }
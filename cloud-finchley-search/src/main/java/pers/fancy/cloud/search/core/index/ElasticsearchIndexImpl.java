@@ -1,163 +1,705 @@
 package pers.fancy.cloud.search.core.index;
 
 import pers.fancy.cloud.search.core.util.IndexTools;
-import pers.fancy.cloud.search.core.util.MappingData;
+import pers.fancy.cloud.search.core.util.MappingTools;
 import pers.fancy.cloud.search.core.util.MetaData;
+import pers.fancy.cloud.search.core.util.PartitionTools;
+import com.carrotsearch.hppc.cursors.ObjectObjectCursor;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.alias.Alias;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
 import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.admin.indices.forcemerge.ForceMergeRequest;
 import org.elasticsearch.action.admin.indices.get.GetIndexRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.admin.indices.template.delete.DeleteIndexTemplateRequest;
+import org.elasticsearch.action.admin.indices.template.put.PutIndexTemplateRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.action.support.master.AcknowledgedResponse;
+import org.elasticsearch.client.GetAliasesResponse;
+import org.elasticsearch.client.Request;
 import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.core.CountRequest;
+import org.elasticsearch.client.indices.GetIndexResponse;
+import org.elasticsearch.client.indices.GetMappingsRequest;
+import org.elasticsearch.client.indices.GetMappingsResponse;
+import org.elasticsearch.client.indices.PutMappingRequest;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
 import org.springframework.stereotype.Component;
-import org.springframework.util.StringUtils;
 
+import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * 索引结构基础方法实现类
  *
  * @author LiLiChai
  */
+@Slf4j
 @Component
-public class ElasticsearchIndexImpl<T> implements ElasticsearchIndex<T> {
+public class ElasticsearchIndexImpl<T> implements ElasticsearchIndex<T>, ApplicationListener<ApplicationReadyEvent> {
 
     @Autowired
     RestHighLevelClient client;
 
+    @Autowired
+    RequestOptions requestOptions;
+
+    //bulk-load模式下放宽的settings
+    private static final String REFRESH_INTERVAL = "index.refresh_interval";
+    private static final String NUMBER_OF_REPLICAS = "index.number_of_replicas";
+    private static final String TRANSLOG_DURABILITY = "index.translog.durability";
+    private static final String WRITE_BLOCK = "index.blocks.write";
+    //reindex后清理已删除文档时遍历新索引的批大小
+    private static final int SCROLL_SIZE = 1000;
+    private static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+    //禁止写入前最多做几轮增量追平，一轮复制的文档数不超过阈值时提前结束
+    private static final int CATCH_UP_PASSES = 3;
+    private static final long CATCH_UP_THRESHOLD = 10000;
+    //旧版本索引切换后保留的副本名称后缀
+    private static final String LEGACY_BACKUP_SUFFIX = "_legacy";
+    //reindex后待删除的旧索引，文档id为索引名称
+    private static final String DROP_INDEX = "es-tools-reindex-drop";
+
+    //进入bulk-load模式前各索引的settings快照，key为具体的索引名称
+    private final Map<String, Settings> bulkLoadSnapshots = new ConcurrentHashMap<>();
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    //reindex的分片数，auto为每个分片一个slice
+    @Value("${elasticsearch.reindex.slices:auto}")
+    private String reindexSlices;
+    //reindex限速（每秒文档数），小于等于0时不限速
+    @Value("${elasticsearch.reindex.requests-per-second:-1}")
+    private float reindexRequestsPerSecond;
+    //reindex进度查询间隔（毫秒）
+    @Value("${elasticsearch.reindex.poll-interval:5000}")
+    private long reindexPollInterval;
+    //别名切换后旧索引保留的时间（毫秒），期间可以切回旧索引
+    @Value("${elasticsearch.reindex.grace-period:3600000}")
+    private long reindexGracePeriod;
+
+    private final ScheduledExecutorService dropScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "es-reindex-drop");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean dropsResumed = new AtomicBoolean();
+
     @Override
     public void createIndex(Class<T> clazz) {
         MetaData metaData = IndexTools.getMetaData(clazz);
-        CreateIndexRequest request = new CreateIndexRequest(metaData.getIndexname());
-
-        StringBuffer source = new StringBuffer();
-        source.append("  {\n" +
-                "    \"" + metaData.getIndextype() + "\": {\n" +
-                "      \"properties\": {\n");
-        MappingData[] mappingDataList = IndexTools.getMappingData(clazz);
-
-        boolean isAutocomplete = false;
-        for (int i = 0; i < mappingDataList.length; i++) {
-            MappingData mappingData = mappingDataList[i];
-            if (mappingData == null || mappingData.getField_name() == null) {
+        try {
+            String source = MappingTools.getMappingSource(clazz);
+            Settings.Builder settings = MappingTools.getSettings(clazz);
+            if (metaData.isPartitioned()) {
+                putTemplate(metaData, source, settings);
+                //提前创建当前分区，避免第一次写入时才创建
+                String current = PartitionTools.getPartitionIndexName(metaData, new Date());
+                if (!client.indices().exists(new GetIndexRequest().indices(current), requestOptions)) {
+                    client.indices().create(new CreateIndexRequest(current), requestOptions);
+                }
+                return;
+            }
+            //实际索引带版本号，模板通过与indexname同名的别名读写，之后可以通过reindex无停机地切换到新索引
+            CreateIndexRequest request = new CreateIndexRequest(IndexTools.newVersionedName(metaData));
+            request.alias(new Alias(metaData.getIndexname()).writeIndex(true));
+            request.settings(settings);
+            request.mapping(metaData.getIndextype(),//类型定义
+                    source,//类型映射，需要的是一个JSON字符串
+                    XContentType.JSON);
+            CreateIndexResponse createIndexResponse = client.indices().create(request, requestOptions);
+            //返回的CreateIndexResponse允许检索有关执行的操作的信息，如下所示：
+            boolean acknowledged = createIndexResponse.isAcknowledged();//指示是否所有节点都已确认请求
+            System.out.println(acknowledged);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 分区索引通过索引模板统一settings和mapping，新分区在第一次写入时由es自动按模板创建
+     */
+    private void putTemplate(MetaData metaData, String source, Settings.Builder settings) throws IOException {
+        PutIndexTemplateRequest templateRequest = new PutIndexTemplateRequest(metaData.getIndexname());
+        templateRequest.patterns(Collections.singletonList(PartitionTools.getIndexPattern(metaData)));
+        templateRequest.settings(settings);
+        templateRequest.mapping(metaData.getIndextype(), source, XContentType.JSON);
+        AcknowledgedResponse templateResponse = client.indices().putTemplate(templateRequest, requestOptions);
+        log.info("index template {} put, acknowledged: {}", metaData.getIndexname(), templateResponse.isAcknowledged());
+    }
+
+    @Override
+    public void updateMapping(Class<T> clazz) throws Exception {
+        MetaData metaData = IndexTools.getMetaData(clazz);
+        Map<String, Object> properties = MappingTools.getProperties(clazz);
+        if (metaData.isPartitioned()) {
+            //更新模板，之后创建的分区使用新的mapping
+            putTemplate(metaData, MappingTools.getMappingSource(clazz), MappingTools.getSettings(clazz));
+        }
+        String target = metaData.isPartitioned() ? PartitionTools.getIndexPattern(metaData) : metaData.getIndexname();
+        GetMappingsResponse response = client.indices().getMapping(new GetMappingsRequest().indices(target), requestOptions);
+        for (Map.Entry<String, MappingMetaData> entry : response.mappings().entrySet()) {
+            Map<String, Object> live = entry.getValue() == null ? null
+                    : (Map<String, Object>) entry.getValue().sourceAsMap().get("properties");
+            List<String> conflicts = new ArrayList<>();
+            Map<String, Object> additions = MappingTools.diff(properties, live, conflicts);
+            if (!conflicts.isEmpty()) {
+                log.warn("mapping of index {} differs from {} and only takes effect after reindex(): {}", entry.getKey(), clazz.getSimpleName(), conflicts);
+            }
+            if (additions.isEmpty()) {
                 continue;
             }
-            source.append(" \"" + mappingData.getField_name() + "\": {\n");
-            source.append(" \"type\": \"" + mappingData.getDatatype() + "\"\n");
-            if (!StringUtils.isEmpty(mappingData.getCopy_to())) {
-                source.append(" ,\"copy_to\": \"" + mappingData.getCopy_to() + "\"\n");
-            }
-            if (!mappingData.isAllow_search()) {
-                source.append(" ,\"index\": false\n");
-            }
-            if (mappingData.isAutocomplete() && (mappingData.getDatatype().equals("text") || mappingData.getDatatype().equals("keyword"))) {
-                source.append(" ,\"analyzer\": \"autocomplete\"\n");
-                source.append(" ,\"search_analyzer\": \"standard\"\n");
-                isAutocomplete = true;
-            } else if (mappingData.getDatatype().equals("text")) {
-                source.append(" ,\"analyzer\": \"" + mappingData.getAnalyzer() + "\"\n");
-                source.append(" ,\"search_analyzer\": \"" + mappingData.getSearch_analyzer() + "\"\n");
-            }
-//            if(mappingData.isKeyword() && !mappingData.getDatatype().equals("keyword")){
-//                source.append(" \n");
-//                source.append(" ,\"fields\": {\n");
-//                source.append(" \"keyword\": {\n");
-//                source.append(" \"type\": \"keyword\",\n");
-//                source.append(" \"ignore_above\": "+mappingData.getIgnore_above());
-//                source.append(" }\n");
-//                source.append(" }\n");
-//            }else if(mappingData.isSuggest()){
-//                source.append(" \n");
-//                source.append(" ,\"fields\": {\n");
-//                source.append(" \"suggest\": {\n");
-//                source.append(" \"type\": \"completion\",\n");
-//                source.append(" \"analyzer\": \""+mappingData.getAnalyzer()+"\",\n");
-//                source.append(" }\n");
-//                source.append(" }\n");
-//            }
-            if (mappingData.isKeyword() && !mappingData.getDatatype().equals("keyword") && mappingData.isSuggest()) {
-                source.append(" \n");
-                source.append(" ,\"fields\": {\n");
-
-                source.append(" \"keyword\": {\n");
-                source.append(" \"type\": \"keyword\",\n");
-                source.append(" \"ignore_above\": " + mappingData.getIgnore_above());
-                source.append(" },\n");
-
-                source.append(" \"suggest\": {\n");
-                source.append(" \"type\": \"completion\",\n");
-                source.append(" \"analyzer\": \"" + mappingData.getAnalyzer() + "\"\n");
-                source.append(" }\n");
-
-                source.append(" }\n");
-            } else if (mappingData.isKeyword() && !mappingData.getDatatype().equals("keyword") && !mappingData.isSuggest()) {
-                source.append(" \n");
-                source.append(" ,\"fields\": {\n");
-                source.append(" \"keyword\": {\n");
-                source.append(" \"type\": \"keyword\",\n");
-                source.append(" \"ignore_above\": " + mappingData.getIgnore_above());
-                source.append(" }\n");
-                source.append(" }\n");
-            } else if (!mappingData.isKeyword() && mappingData.isSuggest()) {
-                source.append(" \n");
-                source.append(" ,\"fields\": {\n");
-                source.append(" \"suggest\": {\n");
-                source.append(" \"type\": \"completion\",\n");
-                source.append(" \"analyzer\": \"" + mappingData.getAnalyzer() + "\"\n");
-                source.append(" }\n");
-                source.append(" }\n");
-            }
-            if (i == mappingDataList.length - 1) {
-                source.append(" }\n");
+            PutMappingRequest request = new PutMappingRequest(entry.getKey());
+            request.source(Collections.singletonMap("properties", additions));
+            client.indices().putMapping(request, requestOptions);
+            log.info("mapping of index {} updated, fields: {}", entry.getKey(), additions.keySet());
+        }
+    }
+
+    @Override
+    public void beginBulkLoad(Class<T> clazz) throws Exception {
+        String target = getWriteTarget(IndexTools.getMetaData(clazz));
+        GetSettingsResponse response = client.indices().getSettings(new GetSettingsRequest().indices(target), requestOptions);
+        for (ObjectObjectCursor<String, Settings> cursor : response.getIndexToSettings()) {
+            //重复进入时保留最初的快照
+            bulkLoadSnapshots.putIfAbsent(cursor.key, Settings.builder()
+                    .put(REFRESH_INTERVAL, cursor.value.get(REFRESH_INTERVAL))
+                    .put(NUMBER_OF_REPLICAS, cursor.value.get(NUMBER_OF_REPLICAS))
+                    .put(TRANSLOG_DURABILITY, cursor.value.get(TRANSLOG_DURABILITY))
+                    .build());
+        }
+        UpdateSettingsRequest request = new UpdateSettingsRequest(target);
+        request.settings(Settings.builder()
+                .put(REFRESH_INTERVAL, "-1")
+                .put(NUMBER_OF_REPLICAS, 0)
+                .put(TRANSLOG_DURABILITY, "async"));
+        client.indices().putSettings(request, requestOptions);
+        log.info("index {} entered bulk-load mode", target);
+    }
+
+    @Override
+    public void endBulkLoad(Class<T> clazz) throws Exception {
+        endBulkLoad(clazz, 0);
+    }
+
+    @Override
+    public void endBulkLoad(Class<T> clazz, int maxNumSegments) throws Exception {
+        MetaData metaData = IndexTools.getMetaData(clazz);
+        String target = getWriteTarget(metaData);
+        GetSettingsResponse response = client.indices().getSettings(new GetSettingsRequest().indices(target), requestOptions);
+        for (ObjectObjectCursor<String, Settings> cursor : response.getIndexToSettings()) {
+            Settings snapshot = bulkLoadSnapshots.remove(cursor.key);
+            Settings.Builder settings = Settings.builder();
+            if (snapshot != null) {
+                //快照中没有的settings恢复为默认值
+                for (String key : new String[]{REFRESH_INTERVAL, NUMBER_OF_REPLICAS, TRANSLOG_DURABILITY}) {
+                    if (snapshot.get(key) == null) {
+                        settings.putNull(key);
+                    } else {
+                        settings.put(key, snapshot.get(key));
+                    }
+                }
             } else {
-                source.append(" },\n");
-            }
-        }
-        source.append(" }\n");
-        source.append(" }\n");
-        source.append(" }\n");
-
-        if (isAutocomplete) {
-            request.settings(Settings.builder()
-                    .put("index.number_of_shards", metaData.getNumber_of_shards())
-                    .put("index.number_of_replicas", metaData.getNumber_of_replicas())
-                    .put("analysis.filter.autocomplete_filter.type", "edge_ngram")
-                    .put("analysis.filter.autocomplete_filter.min_gram", 1)
-                    .put("analysis.filter.autocomplete_filter.max_gram", 20)
-                    .put("analysis.analyzer.autocomplete.type", "custom")
-                    .put("analysis.analyzer.autocomplete.tokenizer", "standard")
-                    .putList("analysis.analyzer.autocomplete.filter", new String[]{"lowercase", "autocomplete_filter"})
-            );
+                //没有快照（例如进入bulk-load后应用重启过），按实体的配置恢复
+                settings.putNull(REFRESH_INTERVAL)
+                        .put(NUMBER_OF_REPLICAS, metaData.getNumber_of_replicas())
+                        .putNull(TRANSLOG_DURABILITY);
+            }
+            client.indices().putSettings(new UpdateSettingsRequest(cursor.key).settings(settings), requestOptions);
+        }
+        client.indices().refresh(new RefreshRequest(target), requestOptions);
+        log.info("index {} left bulk-load mode", target);
+        if (maxNumSegments > 0) {
+            forceMerge(target, maxNumSegments);
+        }
+    }
+
+    @Override
+    public <V> V bulkLoad(Class<T> clazz, int maxNumSegments, Callable<V> load) throws Exception {
+        beginBulkLoad(clazz);
+        try {
+            return load.call();
+        } finally {
+            endBulkLoad(clazz, maxNumSegments);
+        }
+    }
+
+    /**
+     * 异步段合并，合并耗时可能超过socket超时时间，不等待结果
+     */
+    private void forceMerge(String target, int maxNumSegments) {
+        ForceMergeRequest request = new ForceMergeRequest(target);
+        request.maxNumSegments(maxNumSegments);
+        client.indices().forcemergeAsync(request, requestOptions, ActionListener.wrap(
+                response -> log.info("index {} force merged to {} segments", target, maxNumSegments),
+                e -> log.warn("force merge of index " + target + " failed", e)));
+    }
+
+    /**
+     * 写入的目标索引，分区索引为所有分区
+     */
+    private String getWriteTarget(MetaData metaData) {
+        return metaData.isPartitioned() ? PartitionTools.getIndexPattern(metaData) : metaData.getIndexname();
+    }
+
+    @Override
+    public String reindex(Class<T> clazz) throws Exception {
+        MetaData metaData = IndexTools.getMetaData(clazz);
+        if (metaData.isPartitioned()) {
+            throw new Exception("partitioned index " + metaData.getIndexname() + " is not supported by reindex, new partitions use the updated template");
+        }
+        String alias = metaData.getIndexname();
+        List<String> oldIndices = getAliasedIndices(alias);
+        //旧版本直接以indexname创建的索引，没有别名
+        boolean legacy = oldIndices.isEmpty();
+        if (legacy) {
+            if (!client.indices().exists(new GetIndexRequest().indices(alias), requestOptions)) {
+                throw new Exception("index " + alias + " does not exist");
+            }
+            oldIndices = Collections.singletonList(alias);
+        }
+        String source = String.join(",", oldIndices);
+        String target = IndexTools.newVersionedName(metaData);
+
+        //新索引在复制期间不refresh、不复制副本
+        Settings.Builder settings = MappingTools.getSettings(clazz)
+                .put(REFRESH_INTERVAL, "-1")
+                .put(NUMBER_OF_REPLICAS, 0);
+        CreateIndexRequest createRequest = new CreateIndexRequest(target);
+        createRequest.settings(settings);
+        createRequest.mapping(metaData.getIndextype(), MappingTools.getMappingSource(clazz), XContentType.JSON);
+        client.indices().create(createRequest, requestOptions);
+        log.info("reindex {} -> {} started", source, target);
+
+        //复制开始前源索引的_seq_no位置，之后每轮只追平此后变更的文档
+        Map<String, Long> checkpoints = getSeqNoCheckpoints(oldIndices);
+        GetIndexResponse legacyIndex = null;
+        try {
+            runReindex(source, target, null, reindexSlices, reindexRequestsPerSecond);
+            //旧索引仍可写入时增量追平，直到一轮的变更量足够小
+            for (int pass = 0; pass < CATCH_UP_PASSES; pass++) {
+                Map<String, Long> next = getSeqNoCheckpoints(oldIndices);
+                client.indices().refresh(new RefreshRequest(oldIndices.toArray(new String[0])), requestOptions);
+                long changed = runReindex(source, target, changedSince(checkpoints), reindexSlices, -1);
+                checkpoints = next;
+                if (changed <= CATCH_UP_THRESHOLD) {
+                    break;
+                }
+            }
+            //副本在写入阻塞之前开始复制
+            UpdateSettingsRequest restore = new UpdateSettingsRequest(target);
+            restore.settings(Settings.builder()
+                    .putNull(REFRESH_INTERVAL)
+                    .put(NUMBER_OF_REPLICAS, metaData.getNumber_of_replicas()));
+            client.indices().putSettings(restore, requestOptions);
+            if (legacy) {
+                //旧索引在别名切换时删除，先记下它的mapping和settings，切换后据此保留一份副本
+                legacyIndex = client.indices().get(new org.elasticsearch.client.indices.GetIndexRequest(alias), requestOptions);
+            }
+        } catch (Exception e) {
+            client.indices().delete(new DeleteIndexRequest(target), requestOptions);
+            throw e;
+        }
+
+        //只在最后一轮增量期间禁止写入旧索引，之后的写入直接失败而不是写入即将被切走的旧索引
+        setWriteBlock(oldIndices, true);
+        Map<Integer, Long> targetCheckpoints;
+        try {
+            client.indices().refresh(new RefreshRequest(oldIndices.toArray(new String[0])), requestOptions);
+            runReindex(source, target, changedSince(checkpoints), reindexSlices, -1);
+            client.indices().refresh(new RefreshRequest(target), requestOptions);
+            if (legacy) {
+                //旧索引在切换时删除，只能在切换前清理
+                removeDeleted(source, target, null);
+            }
+            targetCheckpoints = getMaxSeqNos(Collections.singletonList(target)).get(target);
+
+            //原子切换读写别名
+            IndicesAliasesRequest aliasesRequest = new IndicesAliasesRequest();
+            aliasesRequest.addAliasAction(IndicesAliasesRequest.AliasActions.add().index(target).alias(alias).writeIndex(true));
+            for (String index : oldIndices) {
+                aliasesRequest.addAliasAction(legacy
+                        //别名不能与索引同名，只能在同一个操作中删除旧索引
+                        ? IndicesAliasesRequest.AliasActions.removeIndex().index(index)
+                        : IndicesAliasesRequest.AliasActions.remove().index(index).alias(alias));
+            }
+            client.indices().updateAliases(aliasesRequest, requestOptions);
+        } catch (Exception e) {
+            setWriteBlock(oldIndices, false);
+            client.indices().delete(new DeleteIndexRequest(target), requestOptions);
+            throw e;
+        }
+        log.info("alias {} switched from {} to {}", alias, source, target);
+
+        long dropAt = System.currentTimeMillis() + reindexGracePeriod;
+        if (legacy) {
+            backupLegacy(alias, target, legacyIndex, dropAt);
+            return target;
+        }
+        //external版本的reindex不会同步删除，复制期间在旧索引删除的文档切换后再从新索引中删除，不占用写入阻塞的时间
+        try {
+            removeDeleted(source, target, targetCheckpoints);
+        } catch (Exception e) {
+            log.warn("remove documents deleted during reindex " + source + " -> " + target + " failed", e);
+        }
+        //旧索引保持只读，切回旧索引时需要先去掉index.blocks.write
+        for (String index : oldIndices) {
+            scheduleDrop(alias, index, dropAt);
+        }
+        return target;
+    }
+
+    /**
+     * 旧版本的索引在别名切换时已经删除，按它原来的mapping和settings从新索引复制一份只读副本，与其他旧索引一样在宽限期后删除
+     * 宽限期内可以把别名切到副本上回退
+     */
+    private void backupLegacy(String alias, String target, GetIndexResponse legacyIndex, long dropAt) {
+        String backup = alias + LEGACY_BACKUP_SUFFIX;
+        try {
+            CreateIndexRequest request = new CreateIndexRequest(backup);
+            request.settings(legacyIndex.getSettings().get(alias).filter(key -> key.equals("index.number_of_shards")
+                    || key.equals(NUMBER_OF_REPLICAS) || key.equals("index.codec")
+                    || key.startsWith("index.analysis.") || key.startsWith("index.sort.")));
+            MappingMetaData mapping = legacyIndex.getMappings().get(alias);
+            if (mapping != null) {
+                request.mapping(mapping.type(), mapping.sourceAsMap());
+            }
+            client.indices().create(request, requestOptions);
+            runReindex(target, backup, null, reindexSlices, reindexRequestsPerSecond);
+            setWriteBlock(Collections.singletonList(backup), true);
+        } catch (Exception e) {
+            log.warn("backup of legacy index " + alias + " into " + backup + " failed", e);
+        }
+        scheduleDrop(alias, backup, dropAt);
+    }
+
+    /**
+     * 以任务方式执行_reindex并等待完成，期间定时打印进度
+     * 目标索引使用external版本，重复执行时只覆盖源索引中版本更新的文档
+     *
+     * @param source
+     * @param target
+     * @param query             只复制匹配的文档，为null时复制全部
+     * @param slices
+     * @param requestsPerSecond 小于等于0时不限速
+     * @return 本次复制的文档数
+     * @throws Exception
+     */
+    private long runReindex(String source, String target, QueryBuilder query, String slices, float requestsPerSecond) throws Exception {
+        XContentBuilder body = XContentFactory.jsonBuilder()
+                .startObject()
+                .field("conflicts", "proceed")
+                .startObject("source").field("index", source).field("size", 1000);
+        if (query != null) {
+            body.field("query", query);
+        }
+        body.endObject()
+                .startObject("dest").field("index", target).field("version_type", "external").endObject()
+                .endObject();
+        Request request = new Request("POST", "/_reindex");
+        request.addParameter("wait_for_completion", "false");
+        request.addParameter("slices", slices);
+        request.addParameter("requests_per_second", requestsPerSecond > 0 ? String.valueOf(requestsPerSecond) : "-1");
+        request.setJsonEntity(Strings.toString(body));
+        request.setOptions(requestOptions);
+        String taskId = readTree(client.getLowLevelClient().performRequest(request)).path("task").asText();
+
+        while (true) {
+            Thread.sleep(reindexPollInterval);
+            JsonNode task = readTree(client.getLowLevelClient().performRequest(newGet("/_tasks/" + taskId)));
+            JsonNode status = task.path("task").path("status");
+            log.info("reindex {} -> {}: {}/{} docs, {} created, {} updated, {} version conflicts",
+                    source, target, status.path("created").asLong() + status.path("updated").asLong() + status.path("version_conflicts").asLong(),
+                    status.path("total").asLong(), status.path("created").asLong(), status.path("updated").asLong(), status.path("version_conflicts").asLong());
+            if (!task.path("completed").asBoolean()) {
+                continue;
+            }
+            if (task.has("error")) {
+                throw new Exception("reindex " + source + " -> " + target + " failed: " + task.path("error"));
+            }
+            JsonNode failures = task.path("response").path("failures");
+            if (failures.size() > 0) {
+                throw new Exception("reindex " + source + " -> " + target + " failed: " + failures);
+            }
+            return task.path("response").path("total").asLong();
+        }
+    }
+
+    /**
+     * 各索引主分片的max_seq_no，key依次为索引名称、分片号
+     */
+    private Map<String, Map<Integer, Long>> getMaxSeqNos(List<String> indices) throws IOException {
+        Request request = newGet("/" + String.join(",", indices) + "/_stats");
+        request.addParameter("level", "shards");
+        request.addParameter("filter_path", "indices.*.shards.*.routing.primary,indices.*.shards.*.seq_no.max_seq_no");
+        Map<String, Map<Integer, Long>> result = new LinkedHashMap<>();
+        Iterator<Map.Entry<String, JsonNode>> stats = readTree(client.getLowLevelClient().performRequest(request)).path("indices").fields();
+        while (stats.hasNext()) {
+            Map.Entry<String, JsonNode> index = stats.next();
+            Map<Integer, Long> shards = new LinkedHashMap<>();
+            Iterator<Map.Entry<String, JsonNode>> copies = index.getValue().path("shards").fields();
+            while (copies.hasNext()) {
+                Map.Entry<String, JsonNode> shard = copies.next();
+                for (JsonNode copy : shard.getValue()) {
+                    if (copy.path("routing").path("primary").asBoolean()) {
+                        shards.put(Integer.valueOf(shard.getKey()), copy.path("seq_no").path("max_seq_no").asLong());
+                    }
+                }
+            }
+            result.put(index.getKey(), shards);
+        }
+        return result;
+    }
+
+    /**
+     * 每个索引取各主分片max_seq_no的最小值，_seq_no大于它的文档包含了之后所有分片上变更的文档
+     */
+    private Map<String, Long> getSeqNoCheckpoints(List<String> indices) throws IOException {
+        Map<String, Long> checkpoints = new LinkedHashMap<>();
+        getMaxSeqNos(indices).forEach((index, shards) ->
+                checkpoints.put(index, shards.values().stream().mapToLong(Long::longValue).min().orElse(-1)));
+        return checkpoints;
+    }
+
+    private QueryBuilder changedSince(Map<String, Long> checkpoints) {
+        BoolQueryBuilder query = QueryBuilders.boolQuery();
+        checkpoints.forEach((index, seqNo) -> query.should(QueryBuilders.boolQuery()
+                .filter(QueryBuilders.termQuery("_index", index))
+                .filter(QueryBuilders.rangeQuery("_seq_no").gt(seqNo))));
+        return query;
+    }
+
+    private void setWriteBlock(List<String> indices, boolean block) throws IOException {
+        UpdateSettingsRequest request = new UpdateSettingsRequest(indices.toArray(new String[0]));
+        request.settings(block ? Settings.builder().put(WRITE_BLOCK, true) : Settings.builder().putNull(WRITE_BLOCK));
+        client.indices().putSettings(request, requestOptions);
+        log.info("index {} write block {}", indices, block ? "set" : "removed");
+    }
+
+    /**
+     * 删除目标索引中源索引已经不存在的文档
+     * 按批遍历目标索引的_id，在源索引中以ids查询确认
+     *
+     * @param source
+     * @param target
+     * @param checkpoints 别名切换时目标索引各分片的max_seq_no，只检查此前写入的文档，切换后新写入的不删除；
+     *                    为null时检查全部文档，两边文档数一致时不需要检查
+     * @throws Exception
+     */
+    private void removeDeleted(String source, String target, Map<Integer, Long> checkpoints) throws Exception {
+        long removed = 0;
+        if (checkpoints == null) {
+            long sourceCount = client.count(new CountRequest(source.split(",")), requestOptions).getCount();
+            long targetCount = client.count(new CountRequest(target), requestOptions).getCount();
+            if (targetCount <= sourceCount) {
+                return;
+            }
+            removed = removeDeleted(source, target, null, QueryBuilders.matchAllQuery());
         } else {
-            request.settings(Settings.builder()
-                    .put("index.number_of_shards", metaData.getNumber_of_shards())
-                    .put("index.number_of_replicas", metaData.getNumber_of_replicas())
-            );
+            for (Map.Entry<Integer, Long> shard : checkpoints.entrySet()) {
+                removed += removeDeleted(source, target, "_shards:" + shard.getKey(), QueryBuilders.rangeQuery("_seq_no").lte(shard.getValue()));
+            }
         }
+        client.indices().refresh(new RefreshRequest(target), requestOptions);
+        log.info("reindex {} -> {}: {} documents deleted during the copy removed", source, target, removed);
+    }
 
-        request.mapping(metaData.getIndextype(),//类型定义
-                source.toString(),//类型映射，需要的是一个JSON字符串
-                XContentType.JSON);
+    /**
+     * 按seq_no条件删除，遍历之后被重新写入的文档不删除
+     */
+    private long removeDeleted(String source, String target, String preference, QueryBuilder query) throws Exception {
+        SearchRequest searchRequest = new SearchRequest(target);
+        searchRequest.scroll(SCROLL_KEEP_ALIVE);
+        searchRequest.preference(preference);
+        searchRequest.source(new SearchSourceBuilder().size(SCROLL_SIZE).fetchSource(false).seqNoAndPrimaryTerm(true)
+                .query(query).sort("_doc"));
+        SearchResponse response = client.search(searchRequest, requestOptions);
+        String scrollId = response.getScrollId();
+        long removed = 0;
         try {
-            CreateIndexResponse createIndexResponse = client.indices().create(request, RequestOptions.DEFAULT);
-            //返回的CreateIndexResponse允许检索有关执行的操作的信息，如下所示：
-            boolean acknowledged = createIndexResponse.isAcknowledged();//指示是否所有节点都已确认请求
-            System.out.println(acknowledged);
-        } catch (IOException e) {
-            e.printStackTrace();
+            while (response.getHits().getHits().length > 0) {
+                Map<String, SearchHit> hits = new LinkedHashMap<>();
+                for (SearchHit hit : response.getHits().getHits()) {
+                    hits.put(hit.getId(), hit);
+                }
+                SearchRequest existing = new SearchRequest(source.split(","));
+                existing.source(new SearchSourceBuilder().size(hits.size()).fetchSource(false)
+                        .query(QueryBuilders.idsQuery().addIds(hits.keySet().toArray(new String[0]))));
+                for (SearchHit hit : client.search(existing, requestOptions).getHits().getHits()) {
+                    hits.remove(hit.getId());
+                }
+                if (!hits.isEmpty()) {
+                    BulkRequest bulkRequest = new BulkRequest();
+                    for (SearchHit hit : hits.values()) {
+                        bulkRequest.add(new DeleteRequest(target, hit.getId())
+                                .setIfSeqNo(hit.getSeqNo()).setIfPrimaryTerm(hit.getPrimaryTerm()));
+                    }
+                    for (BulkItemResponse item : client.bulk(bulkRequest, requestOptions).getItems()) {
+                        if (!item.isFailed()) {
+                            removed++;
+                        } else if (item.status() != RestStatus.CONFLICT) {
+                            throw new Exception("remove deleted documents from " + target + " failed: " + item.getFailureMessage());
+                        }
+                    }
+                }
+                response = client.scroll(new SearchScrollRequest(scrollId).scroll(SCROLL_KEEP_ALIVE), requestOptions);
+                scrollId = response.getScrollId();
+            }
+        } finally {
+            ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
+            clearScrollRequest.addScrollId(scrollId);
+            client.clearScroll(clearScrollRequest, requestOptions);
+        }
+        return removed;
+    }
+
+    /**
+     * 宽限期后删除旧索引，期间可以手动把别名切回旧索引；删除前旧索引重新挂回别名的不删除
+     * 删除计划记录在DROP_INDEX中，应用重启后继续执行
+     */
+    private void scheduleDrop(String alias, String index, long dropAt) {
+        Map<String, Object> drop = new LinkedHashMap<>();
+        drop.put("alias", alias);
+        drop.put("drop_at", dropAt);
+        try {
+            client.index(new IndexRequest(DROP_INDEX).id(index).source(drop), requestOptions);
+        } catch (Exception e) {
+            log.warn("drop schedule of index " + index + " not persisted, drop it manually if the application restarts before " + new Date(dropAt), e);
+        }
+        log.info("index {} will be dropped at {}", index, new Date(dropAt));
+        dropScheduler.schedule(() -> drop(alias, index), Math.max(0, dropAt - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    private void drop(String alias, String index) {
+        try {
+            if (getAliasedIndices(alias).contains(index)) {
+                log.info("index {} is behind alias {} again, not dropped", index, alias);
+            } else {
+                client.indices().delete(new DeleteIndexRequest(index), requestOptions);
+                log.info("index {} dropped", index);
+            }
+        } catch (ElasticsearchStatusException e) {
+            //其他实例已经删除
+            if (e.status() != RestStatus.NOT_FOUND) {
+                log.warn("drop index " + index + " failed", e);
+                return;
+            }
+        } catch (Exception e) {
+            log.warn("drop index " + index + " failed", e);
+            return;
+        }
+        try {
+            client.delete(new DeleteRequest(DROP_INDEX, index), requestOptions);
+        } catch (Exception e) {
+            log.warn("drop schedule of index " + index + " not removed", e);
+        }
+    }
+
+    /**
+     * 应用就绪后恢复重启前未执行的旧索引删除计划
+     */
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+        if (!dropsResumed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            SearchRequest request = new SearchRequest(DROP_INDEX);
+            request.source(new SearchSourceBuilder().size(SCROLL_SIZE));
+            for (SearchHit hit : client.search(request, requestOptions).getHits().getHits()) {
+                String alias = (String) hit.getSourceAsMap().get("alias");
+                long dropAt = ((Number) hit.getSourceAsMap().get("drop_at")).longValue();
+                log.info("index {} will be dropped at {}", hit.getId(), new Date(dropAt));
+                dropScheduler.schedule(() -> drop(alias, hit.getId()), Math.max(0, dropAt - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+        } catch (ElasticsearchStatusException e) {
+            if (e.status() != RestStatus.NOT_FOUND) {
+                log.warn("resume index drops failed", e);
+            }
+        } catch (Exception e) {
+            log.warn("resume index drops failed", e);
         }
     }
 
+    private List<String> getAliasedIndices(String alias) throws IOException {
+        GetAliasesResponse response = client.indices().getAlias(new GetAliasesRequest(alias), requestOptions);
+        return new ArrayList<>(response.getAliases().keySet());
+    }
+
+    private JsonNode readTree(Response response) throws IOException {
+        return objectMapper.readTree(EntityUtils.toString(response.getEntity()));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        dropScheduler.shutdownNow();
+    }
+
     @Override
     public void dropIndex(Class<T> clazz) throws Exception {
         MetaData metaData = IndexTools.getIndexType(clazz);
-        String indexname = "testindex";
-        DeleteIndexRequest request = new DeleteIndexRequest(indexname);
-        Object result = client.indices().delete(request,RequestOptions.DEFAULT);
-        System.out.println(result.toString());
+        if (metaData.isPartitioned()) {
+            client.indices().delete(new DeleteIndexRequest(PartitionTools.getIndexPattern(metaData)), requestOptions);
+            client.indices().deleteTemplate(new DeleteIndexTemplateRequest(metaData.getIndexname()), requestOptions);
+            return;
+        }
+        //通过别名创建的索引删除别名下的实际索引
+        List<String> indices = getAliasedIndices(metaData.getIndexname());
+        String[] indexnames = indices.isEmpty() ? new String[]{metaData.getIndexname()} : indices.toArray(new String[0]);
+        client.indices().delete(new DeleteIndexRequest(indexnames), requestOptions);
     }
 
     @Override
@@ -165,10 +707,50 @@ public class ElasticsearchIndexImpl<T> implements ElasticsearchIndex<T> {
         MetaData metaData = IndexTools.getIndexType(clazz);
         String indexname = metaData.getIndexname();
         String indextype = metaData.getIndextype();
+        if (metaData.isPartitioned()) {
+            Request request = new Request("HEAD", "/_template/" + indexname);
+            request.setOptions(requestOptions);
+            Response response = client.getLowLevelClient().performRequest(request);
+            return response.getStatusLine().getStatusCode() == 200;
+        }
         GetIndexRequest request = new GetIndexRequest();
         request.indices(indexname);
         request.types(indextype);
-        boolean exists = client.indices().exists(request, RequestOptions.DEFAULT);
+        boolean exists = client.indices().exists(request, requestOptions);
         return exists;
     }
+
+    @Override
+    public Map<Class<T>, Boolean> exists(Collection<Class<T>> classes) throws Exception {
+        //所有索引名称以及别名
+        Set<String> names = new HashSet<>();
+        Iterator<Map.Entry<String, JsonNode>> indices = readTree(client.getLowLevelClient().performRequest(newGet("/_aliases"))).fields();
+        while (indices.hasNext()) {
+            Map.Entry<String, JsonNode> index = indices.next();
+            names.add(index.getKey());
+            index.getValue().path("aliases").fieldNames().forEachRemaining(names::add);
+        }
+        //分区索引以模板是否存在为准
+        Set<String> templates = new HashSet<>();
+        for (Class<T> clazz : classes) {
+            if (IndexTools.getIndexType(clazz).isPartitioned()) {
+                Request request = newGet("/_template");
+                request.addParameter("filter_path", "*.order");
+                readTree(client.getLowLevelClient().performRequest(request)).fieldNames().forEachRemaining(templates::add);
+                break;
+            }
+        }
+        Map<Class<T>, Boolean> result = new LinkedHashMap<>();
+        for (Class<T> clazz : classes) {
+            MetaData metaData = IndexTools.getIndexType(clazz);
+            result.put(clazz, (metaData.isPartitioned() ? templates : names).contains(metaData.getIndexname()));
+        }
+        return result;
+    }
+
+    private Request newGet(String endpoint) {
+        Request request = new Request("GET", endpoint);
+        request.setOptions(requestOptions);
+        return request;
+    }
 }
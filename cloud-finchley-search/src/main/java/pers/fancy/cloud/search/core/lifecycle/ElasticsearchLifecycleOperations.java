@@ -0,0 +1,246 @@
+package pers.fancy.cloud.search.core.lifecycle;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.forcemerge.ForceMergeRequest;
+import org.elasticsearch.action.admin.indices.get.GetIndexRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.admin.indices.shrink.ResizeRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.cluster.health.ClusterHealthStatus;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 生命周期任务对es集群的操作
+ * 等待分片迁移、shrink完成时分多次短时间的cluster health请求轮询，避免超过客户端的socket超时时间
+ * 集群锁是LOCK_INDEX中的一个文档（owner、expires_at），通过op_type=create以及if_seq_no/if_primary_term的条件写入保证只有一个持有者
+ *
+ * @author LiLiChai
+ */
+@Slf4j
+@Component
+public class ElasticsearchLifecycleOperations implements LifecycleOperations {
+
+    private static final String REQUIRE_NAME = "index.routing.allocation.require._name";
+    private static final String BLOCKS_WRITE = "index.blocks.write";
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final String LOCK_INDEX = "es-tools-lock";
+    private static final String LOCK_ID = "index-lifecycle";
+
+    //等待分片迁移以及shrink完成的最长时间（毫秒）
+    @Value("${elasticsearch.lifecycle.shrink-timeout:1800000}")
+    private long shrinkTimeout;
+
+    @Autowired
+    RestHighLevelClient client;
+
+    @Autowired
+    RequestOptions requestOptions;
+
+    @Override
+    public boolean tryLock(String owner, long ttlMillis) throws Exception {
+        long now = System.currentTimeMillis();
+        Map<String, Object> lock = new HashMap<>();
+        lock.put("owner", owner);
+        lock.put("expires_at", now + ttlMillis);
+        try {
+            client.index(new IndexRequest(LOCK_INDEX).id(LOCK_ID).source(lock).opType(DocWriteRequest.OpType.CREATE), requestOptions);
+            return true;
+        } catch (ElasticsearchStatusException e) {
+            if (e.status() != RestStatus.CONFLICT) {
+                throw e;
+            }
+        }
+        GetResponse current = client.get(new GetRequest(LOCK_INDEX, LOCK_ID), requestOptions);
+        IndexRequest request = new IndexRequest(LOCK_INDEX).id(LOCK_ID).source(lock);
+        if (current.isExists()) {
+            Map<String, Object> source = current.getSourceAsMap();
+            Object expiresAt = source.get("expires_at");
+            //其他实例持有且未过期
+            if (!owner.equals(source.get("owner")) && expiresAt instanceof Number && ((Number) expiresAt).longValue() > now) {
+                return false;
+            }
+            request.setIfSeqNo(current.getSeqNo()).setIfPrimaryTerm(current.getPrimaryTerm());
+        } else {
+            request.opType(DocWriteRequest.OpType.CREATE);
+        }
+        try {
+            client.index(request, requestOptions);
+            return true;
+        } catch (ElasticsearchStatusException e) {
+            //同时有其他实例获取或者续期
+            if (e.status() == RestStatus.CONFLICT) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void unlock(String owner) throws Exception {
+        GetResponse current;
+        try {
+            current = client.get(new GetRequest(LOCK_INDEX, LOCK_ID), requestOptions);
+        } catch (ElasticsearchStatusException e) {
+            if (e.status() == RestStatus.NOT_FOUND) {
+                return;
+            }
+            throw e;
+        }
+        if (!current.isExists() || !owner.equals(current.getSourceAsMap().get("owner"))) {
+            return;
+        }
+        try {
+            client.delete(new DeleteRequest(LOCK_INDEX, LOCK_ID)
+                    .setIfSeqNo(current.getSeqNo()).setIfPrimaryTerm(current.getPrimaryTerm()), requestOptions);
+        } catch (ElasticsearchStatusException e) {
+            if (e.status() != RestStatus.CONFLICT && e.status() != RestStatus.NOT_FOUND) {
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public Map<String, IndexState> getIndices(String pattern) throws Exception {
+        GetSettingsResponse response = client.indices().getSettings(new GetSettingsRequest().indices(pattern), requestOptions);
+        Map<String, IndexState> indices = new LinkedHashMap<>();
+        response.getIndexToSettings().forEach(cursor -> indices.put(cursor.key, new IndexState(
+                cursor.value.getAsInt("index.number_of_shards", 0),
+                cursor.value.getAsInt("index.number_of_replicas", 0),
+                cursor.value.getAsBoolean(BLOCKS_WRITE, false))));
+        return indices;
+    }
+
+    @Override
+    public String selectShrinkNode() throws Exception {
+        //剩余磁盘空间最多的数据节点
+        Request request = new Request("GET", "/_cat/allocation");
+        request.addParameter("format", "json");
+        request.addParameter("bytes", "b");
+        request.setOptions(requestOptions);
+        JsonNode nodes = objectMapper.readTree(EntityUtils.toString(client.getLowLevelClient().performRequest(request).getEntity()));
+        String selected = null;
+        long available = -1;
+        Iterator<JsonNode> iterator = nodes.elements();
+        while (iterator.hasNext()) {
+            JsonNode node = iterator.next();
+            if (node.path("disk.avail").isMissingNode() || node.path("node").asText().equals("UNASSIGNED")) {
+                continue;
+            }
+            if (node.path("disk.avail").asLong() > available) {
+                available = node.path("disk.avail").asLong();
+                selected = node.path("node").asText();
+            }
+        }
+        if (selected == null) {
+            throw new Exception("no data node available for shrink");
+        }
+        return selected;
+    }
+
+    @Override
+    public void prepareShrink(String index, String node) throws Exception {
+        UpdateSettingsRequest request = new UpdateSettingsRequest(index);
+        request.settings(Settings.builder()
+                .put(REQUIRE_NAME, node)
+                .put(BLOCKS_WRITE, true)
+                //副本不能与主分片在同一个节点上，集中之前去掉副本
+                .put("index.number_of_replicas", 0));
+        client.indices().putSettings(request, requestOptions);
+        waitFor(new ClusterHealthRequest(index).waitForNoRelocatingShards(true).waitForNoInitializingShards(true));
+    }
+
+    @Override
+    public void cancelShrink(String index, int replicas, boolean readOnly) throws Exception {
+        Settings.Builder settings = Settings.builder()
+                .putNull(REQUIRE_NAME)
+                .put("index.number_of_replicas", replicas);
+        if (!readOnly) {
+            settings.putNull(BLOCKS_WRITE);
+        }
+        client.indices().putSettings(new UpdateSettingsRequest(index).settings(settings), requestOptions);
+        log.info("shrink of index {} cancelled, {} replicas restored", index, replicas);
+    }
+
+    @Override
+    public void shrink(String index, String target, int shards, int replicas) throws Exception {
+        //上次shrink完成但没有切换别名时直接切换
+        if (!client.indices().exists(new GetIndexRequest().indices(target), requestOptions)) {
+            ResizeRequest request = new ResizeRequest(target, index);
+            request.getTargetIndexRequest().settings(Settings.builder()
+                    .put("index.number_of_shards", shards)
+                    .put("index.number_of_replicas", replicas)
+                    .putNull(REQUIRE_NAME)
+                    .put(BLOCKS_WRITE, true));
+            client.indices().shrink(request, requestOptions);
+        }
+        waitFor(new ClusterHealthRequest(target).waitForGreenStatus());
+        IndicesAliasesRequest aliases = new IndicesAliasesRequest();
+        aliases.addAliasAction(IndicesAliasesRequest.AliasActions.removeIndex().index(index));
+        aliases.addAliasAction(IndicesAliasesRequest.AliasActions.add().index(target).alias(index));
+        client.indices().updateAliases(aliases, requestOptions);
+    }
+
+    @Override
+    public void forceMerge(String index, int maxNumSegments) {
+        //段合并耗时可能超过socket超时时间，不等待结果
+        ForceMergeRequest request = new ForceMergeRequest(index);
+        request.maxNumSegments(maxNumSegments);
+        client.indices().forcemergeAsync(request, requestOptions, ActionListener.wrap(
+                response -> log.info("index {} force merged to {} segments", index, maxNumSegments),
+                e -> log.warn("force merge of index " + index + " failed", e)));
+    }
+
+    @Override
+    public void setReplicas(String index, int replicas) throws Exception {
+        client.indices().putSettings(new UpdateSettingsRequest(index)
+                .settings(Settings.builder().put("index.number_of_replicas", replicas)), requestOptions);
+    }
+
+    @Override
+    public void setReadOnly(String index) throws Exception {
+        client.indices().putSettings(new UpdateSettingsRequest(index)
+                .settings(Settings.builder().put(BLOCKS_WRITE, true)), requestOptions);
+    }
+
+    private void waitFor(ClusterHealthRequest request) throws Exception {
+        request.timeout(TimeValue.timeValueSeconds(20));
+        long deadline = System.currentTimeMillis() + shrinkTimeout;
+        while (true) {
+            ClusterHealthResponse response = client.cluster().health(request, requestOptions);
+            if (!response.isTimedOut() && response.getStatus() != ClusterHealthStatus.RED) {
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new TimeoutException("wait for index " + String.join(",", request.indices()) + " timed out");
+            }
+        }
+    }
+}
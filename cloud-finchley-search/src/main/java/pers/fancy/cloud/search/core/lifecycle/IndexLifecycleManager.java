@@ -0,0 +1,240 @@
+package pers.fancy.cloud.search.core.lifecycle;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Component;
+import pers.fancy.cloud.search.core.annotation.ESMetaData;
+import pers.fancy.cloud.search.core.enums.LifecycleAction;
+import pers.fancy.cloud.search.core.util.IndexTools;
+import pers.fancy.cloud.search.core.util.MetaData;
+import pers.fancy.cloud.search.core.util.PartitionTools;
+
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 时间分区索引的生命周期管理
+ * 后台定时检查配置了hotDays的分区实体，分区结束超过hotDays天的索引依次：
+ * shrink到warmShards个主分片（新索引名称为原名称-shrunk，原名称作为其别名）、force merge到一个段、副本降为warmReplicas、禁止写入
+ * 已经禁止写入且分片、副本数量达到目标的索引视为处理完成；单个索引失败不影响其他索引，下一次执行时重试
+ * 每次执行的操作记录在报告中并打印日志，累计次数通过elasticsearch.lifecycle.actions指标输出
+ * 每个服务实例都会定时执行，执行前需要获取集群上的锁，处理每个索引前以及索引的每个耗时步骤之间续期，同一时间只有一个实例对索引做shrink、改别名等操作
+ * shrink的准备（集中分片时去掉了副本）或者shrink本身失败时恢复原索引的副本数量并去掉节点限制，不会让索引长时间没有副本
+ *
+ * @author LiLiChai
+ */
+@Slf4j
+@Component
+public class IndexLifecycleManager implements ApplicationListener<ApplicationReadyEvent>, MeterBinder {
+
+    public static final String SHRUNK_SUFFIX = "-shrunk";
+
+    @Value("${elasticsearch.lifecycle.enabled:true}")
+    private boolean enabled;
+    //执行间隔（毫秒）
+    @Value("${elasticsearch.lifecycle.interval:3600000}")
+    private long interval;
+    //应用就绪后第一次执行的延迟（毫秒），避开启动阶段
+    @Value("${elasticsearch.lifecycle.initial-delay:300000}")
+    private long initialDelay;
+    //集群锁的有效期（毫秒），每个步骤前续期，需要大于单个步骤的最长时间（shrink-timeout）
+    @Value("${elasticsearch.lifecycle.lock-ttl:3600000}")
+    private long lockTtl;
+
+    @Autowired
+    LifecycleOperations operations;
+
+    private final Set<Class<?>> classes = new LinkedHashSet<>();
+    private final Map<LifecycleAction, AtomicLong> counts = new EnumMap<>(LifecycleAction.class);
+    private volatile List<String> lastReport = Collections.emptyList();
+    //本实例持有集群锁时的标识
+    private final String owner = UUID.randomUUID().toString();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "es-lifecycle");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    {
+        for (LifecycleAction action : LifecycleAction.values()) {
+            counts.put(action, new AtomicLong());
+        }
+    }
+
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+        if (!enabled) {
+            return;
+        }
+        event.getApplicationContext().getBeansWithAnnotation(ESMetaData.class).values().forEach(bean -> classes.add(bean.getClass()));
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                lastReport = run(classes, operations, LocalDate.now());
+            } catch (Exception e) {
+                log.warn("elasticsearch index lifecycle run failed", e);
+            }
+        }, initialDelay, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 执行一次生命周期检查
+     *
+     * @param classes    实体类
+     * @param operations 集群操作
+     * @param today      当前日期，用于计算分区已结束的天数
+     * @return 本次执行的操作，每项为"索引名称: 操作"；其他实例正在执行时为空
+     */
+    public List<String> run(Collection<Class<?>> classes, LifecycleOperations operations, LocalDate today) {
+        List<String> report = new ArrayList<>();
+        try {
+            if (!operations.tryLock(owner, lockTtl)) {
+                log.info("elasticsearch index lifecycle is running on another instance, skipped");
+                return report;
+            }
+        } catch (Exception e) {
+            log.warn("acquire elasticsearch index lifecycle lock failed: {}", e.toString());
+            return report;
+        }
+        try {
+            process(classes, operations, today, report);
+        } finally {
+            try {
+                operations.unlock(owner);
+            } catch (Exception e) {
+                log.warn("release elasticsearch index lifecycle lock failed: {}", e.toString());
+            }
+        }
+        if (!report.isEmpty()) {
+            log.info("elasticsearch index lifecycle actions: {}", report);
+        }
+        return report;
+    }
+
+    private void process(Collection<Class<?>> classes, LifecycleOperations operations, LocalDate today, List<String> report) {
+        for (Class<?> clazz : classes) {
+            MetaData metaData = IndexTools.getMetaData(clazz);
+            if (metaData == null || !metaData.hasLifecycle()) {
+                continue;
+            }
+            Map<String, IndexState> indices;
+            try {
+                indices = operations.getIndices(PartitionTools.getIndexPattern(metaData));
+            } catch (Exception e) {
+                log.warn("get indices of {} failed: {}", metaData.getIndexname(), e.toString());
+                continue;
+            }
+            for (Map.Entry<String, IndexState> entry : indices.entrySet()) {
+                LocalDate end = PartitionTools.getPartitionEnd(metaData, entry.getKey());
+                if (end == null || end.plusDays(metaData.getHotDays()).isAfter(today)) {
+                    continue;
+                }
+                try {
+                    //续期失败说明锁已过期并被其他实例获取，停止本次执行
+                    if (!operations.tryLock(owner, lockTtl)) {
+                        log.warn("elasticsearch index lifecycle lock lost, stop before index {}", entry.getKey());
+                        return;
+                    }
+                    process(metaData, entry.getKey(), entry.getValue(), operations, report);
+                } catch (Exception e) {
+                    log.warn("lifecycle of index " + entry.getKey() + " failed", e);
+                }
+            }
+        }
+    }
+
+    private void process(MetaData metaData, String index, IndexState state, LifecycleOperations operations, List<String> report) throws Exception {
+        int warmShards = metaData.getWarmShards();
+        int warmReplicas = metaData.getWarmReplicas();
+        //主分片数量不是warmShards的倍数时无法shrink
+        boolean shrink = warmShards > 0 && state.getShards() > warmShards && state.getShards() % warmShards == 0
+                && !index.endsWith(SHRUNK_SUFFIX);
+        if (state.isReadOnly() && !shrink && state.getReplicas() <= warmReplicas) {
+            return;
+        }
+        int replicas = state.getReplicas();
+        if (shrink) {
+            String target = index + SHRUNK_SUFFIX;
+            try {
+                operations.prepareShrink(index, operations.selectShrinkNode());
+                //等待分片迁移、等待shrink完成各自最长shrink-timeout，之间续期
+                renewLock(operations, index);
+                operations.shrink(index, target, warmShards, warmReplicas);
+            } catch (Exception e) {
+                cancelShrink(operations, index, state);
+                throw e;
+            }
+            record(report, index, LifecycleAction.shrink);
+            index = target;
+            replicas = warmReplicas;
+            renewLock(operations, index);
+        }
+        operations.forceMerge(index, 1);
+        record(report, index, LifecycleAction.forcemerge);
+        if (replicas > warmReplicas) {
+            operations.setReplicas(index, warmReplicas);
+            record(report, index, LifecycleAction.replicas);
+        }
+        operations.setReadOnly(index);
+        record(report, index, LifecycleAction.read_only);
+    }
+
+    private void renewLock(LifecycleOperations operations, String index) throws Exception {
+        if (!operations.tryLock(owner, lockTtl)) {
+            throw new Exception("elasticsearch index lifecycle lock lost while processing index " + index);
+        }
+    }
+
+    private void cancelShrink(LifecycleOperations operations, String index, IndexState state) {
+        try {
+            operations.cancelShrink(index, state.getReplicas(), state.isReadOnly());
+        } catch (Exception e) {
+            log.warn("restore index " + index + " after failed shrink failed", e);
+        }
+    }
+
+    private void record(List<String> report, String index, LifecycleAction action) {
+        report.add(index + ": " + action);
+        counts.get(action).incrementAndGet();
+    }
+
+    /**
+     * 最近一次定时执行的操作
+     *
+     * @return
+     */
+    public List<String> getLastReport() {
+        return lastReport;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        counts.forEach((action, count) -> FunctionCounter.builder("elasticsearch.lifecycle.actions", count, AtomicLong::get)
+                .tag("action", action.name())
+                .register(registry));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
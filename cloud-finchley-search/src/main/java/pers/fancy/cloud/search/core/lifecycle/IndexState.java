@@ -0,0 +1,22 @@
+package pers.fancy.cloud.search.core.lifecycle;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 生命周期任务关心的索引状态
+ *
+ * @author LiLiChai
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class IndexState {
+    //主分片数量
+    private int shards;
+    //副本数量
+    private int replicas;
+    //是否已经禁止写入（index.blocks.write）
+    private boolean readOnly;
+}
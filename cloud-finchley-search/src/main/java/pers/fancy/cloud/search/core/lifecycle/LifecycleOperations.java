@@ -0,0 +1,91 @@
+package pers.fancy.cloud.search.core.lifecycle;
+
+import java.util.Map;
+
+/**
+ * 生命周期任务对集群的操作
+ * IndexLifecycleManager只通过该接口访问集群，可以用记录调用顺序的内存实现代替真实集群验证处理流程
+ *
+ * @author LiLiChai
+ */
+public interface LifecycleOperations {
+
+    /**
+     * 获取或者续期生命周期任务的集群锁，多个服务实例中同一时间只有一个执行生命周期任务
+     * 锁已被其他owner持有且未过期时返回false；已被owner持有时延长有效期
+     *
+     * @param owner
+     * @param ttlMillis 锁的有效期，持有者异常退出时过期后其他实例可以获取
+     * @return 是否持有锁
+     * @throws Exception
+     */
+    boolean tryLock(String owner, long ttlMillis) throws Exception;
+
+    /**
+     * 释放owner持有的锁，未持有时不做处理
+     *
+     * @param owner
+     * @throws Exception
+     */
+    void unlock(String owner) throws Exception;
+
+    /**
+     * 获取匹配pattern的所有索引的状态
+     *
+     * @param pattern
+     * @return key为具体的索引名称
+     * @throws Exception
+     */
+    Map<String, IndexState> getIndices(String pattern) throws Exception;
+
+    /**
+     * 选择shrink时集中分片的节点
+     *
+     * @return 节点名称
+     * @throws Exception
+     */
+    String selectShrinkNode() throws Exception;
+
+    /**
+     * shrink前的准备：禁止写入、去掉副本，并把所有主分片迁移到node上，等待迁移完成
+     *
+     * @param index
+     * @param node
+     * @throws Exception
+     */
+    void prepareShrink(String index, String node) throws Exception;
+
+    /**
+     * prepareShrink或者shrink失败后恢复原索引：去掉节点限制、恢复副本数量，原来可以写入时去掉写入阻塞
+     *
+     * @param index
+     * @param replicas 原来的副本数量
+     * @param readOnly 原来是否禁止写入
+     * @throws Exception
+     */
+    void cancelShrink(String index, int replicas, boolean readOnly) throws Exception;
+
+    /**
+     * shrink到target并等待target可用，然后原子地删除index并把index作为target的别名
+     *
+     * @param index
+     * @param target
+     * @param shards   target的主分片数量
+     * @param replicas target的副本数量
+     * @throws Exception
+     */
+    void shrink(String index, String target, int shards, int replicas) throws Exception;
+
+    /**
+     * force merge到maxNumSegments个段
+     *
+     * @param index
+     * @param maxNumSegments
+     * @throws Exception
+     */
+    void forceMerge(String index, int maxNumSegments) throws Exception;
+
+    void setReplicas(String index, int replicas) throws Exception;
+
+    void setReadOnly(String index) throws Exception;
+}
@@ -0,0 +1,149 @@
+package pers.fancy.cloud.search.core.limit;
+
+import lombok.extern.slf4j.Slf4j;
+import pers.fancy.cloud.search.core.enums.BreakerState;
+
+/**
+ * 熔断器
+ * 最近windowSize次请求中集群失败的比例达到failureRate（且不少于minimumCalls次请求）时打开，openMillis内的请求直接失败；
+ * 之后进入半开状态，放行halfOpenCalls次试探请求，全部成功则关闭，任何一次失败重新打开；
+ * 被取消的试探请求归还试探次数，试探请求在openMillis内没有全部完成时重新放行，熔断器不会一直停留在半开状态
+ *
+ * @author LiLiChai
+ */
+@Slf4j
+public class CircuitBreaker {
+
+    private final int failureRate;
+    private final int minimumCalls;
+    private final long openMillis;
+    private final int halfOpenCalls;
+
+    //环形窗口，true表示失败
+    private final boolean[] window;
+    private int index = 0;
+    private int calls = 0;
+    private int failures = 0;
+
+    private volatile BreakerState state = BreakerState.closed;
+    private long openedAt;
+    private long halfOpenedAt;
+    private int halfOpenPermits;
+    private int halfOpenSuccesses;
+
+    private long rejected = 0;
+    private long opened = 0;
+
+    public CircuitBreaker(int failureRate, int windowSize, int minimumCalls, long openMillis, int halfOpenCalls) {
+        this.failureRate = failureRate;
+        this.window = new boolean[windowSize];
+        this.minimumCalls = minimumCalls;
+        this.openMillis = openMillis;
+        this.halfOpenCalls = halfOpenCalls;
+    }
+
+    /**
+     * 是否放行请求
+     *
+     * @return 放行时熔断器的状态（closed或者half_open，half_open时为试探请求），拒绝时为null
+     */
+    public synchronized BreakerState tryAcquire() {
+        long now = System.currentTimeMillis();
+        if (state == BreakerState.open && now - openedAt >= openMillis) {
+            state = BreakerState.half_open;
+            halfOpenPermits = halfOpenCalls;
+            halfOpenSuccesses = 0;
+            halfOpenedAt = now;
+            log.info("elasticsearch circuit breaker half open");
+        }
+        if (state == BreakerState.half_open && halfOpenPermits == 0 && now - halfOpenedAt >= openMillis) {
+            //试探请求没有全部完成（回调丢失等），重新放行尚未成功的次数
+            halfOpenPermits = halfOpenCalls - halfOpenSuccesses;
+            halfOpenedAt = now;
+        }
+        if (state == BreakerState.closed) {
+            return state;
+        }
+        if (state == BreakerState.half_open && halfOpenPermits > 0) {
+            halfOpenPermits--;
+            return state;
+        }
+        rejected++;
+        return null;
+    }
+
+    /**
+     * 放行的请求被取消或者没有发出，不计入成功或失败
+     *
+     * @param admitted 放行时的状态
+     */
+    public synchronized void onCancel(BreakerState admitted) {
+        if (admitted == BreakerState.half_open && state == BreakerState.half_open) {
+            halfOpenPermits++;
+        }
+    }
+
+    public synchronized void onSuccess() {
+        if (state == BreakerState.half_open) {
+            if (++halfOpenSuccesses >= halfOpenCalls) {
+                reset();
+                state = BreakerState.closed;
+                log.info("elasticsearch circuit breaker closed");
+            }
+            return;
+        }
+        record(false);
+    }
+
+    public synchronized void onFailure() {
+        if (state == BreakerState.half_open) {
+            open();
+            return;
+        }
+        record(true);
+        if (state == BreakerState.closed && calls >= minimumCalls && failures * 100 >= failureRate * calls) {
+            open();
+        }
+    }
+
+    private void record(boolean failed) {
+        if (calls == window.length) {
+            if (window[index]) {
+                failures--;
+            }
+        } else {
+            calls++;
+        }
+        window[index] = failed;
+        if (failed) {
+            failures++;
+        }
+        index = (index + 1) % window.length;
+    }
+
+    private void open() {
+        state = BreakerState.open;
+        openedAt = System.currentTimeMillis();
+        opened++;
+        reset();
+        log.warn("elasticsearch circuit breaker opened, fail fast for {} ms", openMillis);
+    }
+
+    private void reset() {
+        index = 0;
+        calls = 0;
+        failures = 0;
+    }
+
+    public BreakerState getState() {
+        return state;
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    public synchronized long getOpened() {
+        return opened;
+    }
+}
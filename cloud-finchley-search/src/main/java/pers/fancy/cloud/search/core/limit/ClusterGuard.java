@@ -0,0 +1,213 @@
+package pers.fancy.cloud.search.core.limit;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.client.ResponseException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import pers.fancy.cloud.search.core.enums.BreakerState;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 集群调用保护：读、写分别做自适应并发限制，共用一个熔断器
+ * 超出并发上限或者熔断打开时立即抛出ClusterRejectedException，不再占用调用线程等待集群
+ * 默认关闭（elasticsearch.limit.enabled），开启前按部署的集群容量配置初始并发，否则原本排队等待的调用会直接被拒绝
+ * 只有集群侧的失败（IO异常、超时、5xx、429）计入熔断和限流回退，查询语法错误等4xx以及本进程主动取消的请求不计入
+ *
+ * @author LiLiChai
+ */
+@Component
+public class ClusterGuard implements MeterBinder {
+
+    @Value("${elasticsearch.limit.enabled:false}")
+    private boolean enabled;
+    @Value("${elasticsearch.limit.read.initial:20}")
+    private int readInitial;
+    @Value("${elasticsearch.limit.read.min:4}")
+    private int readMin;
+    @Value("${elasticsearch.limit.read.max:200}")
+    private int readMax;
+    @Value("${elasticsearch.limit.write.initial:10}")
+    private int writeInitial;
+    @Value("${elasticsearch.limit.write.min:2}")
+    private int writeMin;
+    @Value("${elasticsearch.limit.write.max:100}")
+    private int writeMax;
+    //熔断：失败率阈值（百分比）
+    @Value("${elasticsearch.breaker.failure-rate:50}")
+    private int failureRate;
+    @Value("${elasticsearch.breaker.window-size:100}")
+    private int windowSize;
+    @Value("${elasticsearch.breaker.minimum-calls:20}")
+    private int minimumCalls;
+    //熔断打开时长（毫秒）
+    @Value("${elasticsearch.breaker.open-time:10000}")
+    private long openTime;
+    @Value("${elasticsearch.breaker.half-open-calls:5}")
+    private int halfOpenCalls;
+
+    private GradientLimiter readLimiter;
+    private GradientLimiter writeLimiter;
+    private CircuitBreaker circuitBreaker;
+
+    @PostConstruct
+    public void init() {
+        readLimiter = new GradientLimiter(readInitial, readMin, readMax);
+        writeLimiter = new GradientLimiter(writeInitial, writeMin, writeMax);
+        circuitBreaker = new CircuitBreaker(failureRate, windowSize, minimumCalls, openTime, halfOpenCalls);
+    }
+
+    /**
+     * 在并发限制和熔断保护下执行一次集群调用
+     *
+     * @param read
+     * @param callable
+     * @param <V>
+     * @return
+     * @throws Exception
+     */
+    public <V> V execute(boolean read, Callable<V> callable) throws Exception {
+        Permit permit = acquire(read);
+        try {
+            V result = callable.call();
+            permit.onSuccess();
+            return result;
+        } catch (Exception e) {
+            permit.onFailure(e);
+            throw e;
+        } finally {
+            //Error等未完成的调用归还许可，已经完成时为空操作
+            permit.onCancel();
+        }
+    }
+
+    /**
+     * 获取一次集群调用的许可，异步调用在回调中调用Permit的onSuccess/onFailure/onCancel，请求没有发出时调用onCancel
+     * 每个许可只在第一次完成时生效，半开状态的试探许可必须完成，否则熔断器要等到下一轮试探才能关闭
+     *
+     * @param read
+     * @return
+     * @throws ClusterRejectedException 超出并发上限或者熔断打开
+     */
+    public Permit acquire(boolean read) throws ClusterRejectedException {
+        if (!enabled) {
+            return new Permit(null, 0, null);
+        }
+        GradientLimiter limiter = read ? readLimiter : writeLimiter;
+        int inflight = limiter.tryAcquire();
+        if (inflight < 0) {
+            throw new ClusterRejectedException("elasticsearch " + (read ? "read" : "write") + " concurrency limit " + limiter.getLimit() + " exceeded");
+        }
+        BreakerState admitted = circuitBreaker.tryAcquire();
+        if (admitted == null) {
+            limiter.cancel();
+            throw new ClusterRejectedException("elasticsearch circuit breaker is open");
+        }
+        return new Permit(limiter, inflight, admitted);
+    }
+
+    /**
+     * 是否为集群侧的失败
+     *
+     * @param e
+     * @return
+     */
+    public static boolean isClusterFailure(Throwable e) {
+        if (e instanceof ElasticsearchStatusException) {
+            int status = ((ElasticsearchStatusException) e).status().getStatus();
+            return status >= 500 || status == 429;
+        }
+        if (e instanceof ResponseException) {
+            int status = ((ResponseException) e).getResponse().getStatusLine().getStatusCode();
+            return status >= 500 || status == 429;
+        }
+        return e instanceof IOException;
+    }
+
+    public class Permit {
+        private final GradientLimiter limiter;
+        private final int inflight;
+        //获取许可时熔断器的状态，半开时为试探许可
+        private final BreakerState admitted;
+        private final long start = System.nanoTime();
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        Permit(GradientLimiter limiter, int inflight, BreakerState admitted) {
+            this.limiter = limiter;
+            this.inflight = inflight;
+            this.admitted = admitted;
+        }
+
+        private boolean complete() {
+            return limiter != null && completed.compareAndSet(false, true);
+        }
+
+        public void onSuccess() {
+            if (!complete()) {
+                return;
+            }
+            limiter.release(System.nanoTime() - start, inflight, false);
+            circuitBreaker.onSuccess();
+        }
+
+        /**
+         * 本进程主动取消的请求：归还许可，既不算成功也不算失败，不参与上限调整和熔断统计
+         */
+        public void onCancel() {
+            if (!complete()) {
+                return;
+            }
+            limiter.cancel();
+            circuitBreaker.onCancel(admitted);
+        }
+
+        public void onFailure(Throwable e) {
+            if (!complete()) {
+                return;
+            }
+            boolean clusterFailure = isClusterFailure(e);
+            limiter.release(System.nanoTime() - start, inflight, clusterFailure);
+            if (clusterFailure) {
+                circuitBreaker.onFailure();
+            } else {
+                circuitBreaker.onSuccess();
+            }
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        bindLimiter(registry, "read", readLimiter);
+        bindLimiter(registry, "write", writeLimiter);
+        Gauge.builder("elasticsearch.breaker.state", circuitBreaker, b -> b.getState().ordinal())
+                .description("0 closed, 1 open, 2 half_open")
+                .register(registry);
+        FunctionCounter.builder("elasticsearch.breaker.rejected", circuitBreaker, CircuitBreaker::getRejected)
+                .register(registry);
+        FunctionCounter.builder("elasticsearch.breaker.opened", circuitBreaker, CircuitBreaker::getOpened)
+                .register(registry);
+    }
+
+    private void bindLimiter(MeterRegistry registry, String type, GradientLimiter limiter) {
+        Gauge.builder("elasticsearch.limit.limit", limiter, GradientLimiter::getLimit)
+                .tag("type", type)
+                .register(registry);
+        Gauge.builder("elasticsearch.limit.inflight", limiter, GradientLimiter::getInflight)
+                .tag("type", type)
+                .register(registry);
+        FunctionCounter.builder("elasticsearch.limit.rejected", limiter, GradientLimiter::getRejected)
+                .tag("type", type)
+                .register(registry);
+    }
+
+    public BreakerState getBreakerState() {
+        return circuitBreaker.getState();
+    }
+}
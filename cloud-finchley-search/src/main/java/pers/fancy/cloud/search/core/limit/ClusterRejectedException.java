@@ -0,0 +1,14 @@
+package pers.fancy.cloud.search.core.limit;
+
+/**
+ * 集群调用在本地被拒绝：超出并发上限或者熔断打开，请求没有发往es
+ * 调用方可以据此与es返回的错误区分，做降级或稍后重试
+ *
+ * @author LiLiChai
+ */
+public class ClusterRejectedException extends Exception {
+
+    public ClusterRejectedException(String message) {
+        super(message);
+    }
+}
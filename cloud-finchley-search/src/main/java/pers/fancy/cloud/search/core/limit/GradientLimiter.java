@@ -0,0 +1,113 @@
+package pers.fancy.cloud.search.core.limit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于RTT梯度的自适应并发限制
+ * 以长期RTT（慢速EWMA）为基准，当前RTT升高说明集群开始排队，按 长期RTT/当前RTT 的梯度缩小并发上限；
+ * RTT平稳时上限每次增加sqrt(limit)的排队余量，从而在集群能承受的范围内逐步探测上限
+ * 请求失败（IO异常、超时、5xx、429）时按backoffRatio直接回退
+ * 实际并发不足上限一半时认为是调用方自身压力不够，只更新RTT，不放大上限
+ *
+ * @author LiLiChai
+ */
+public class GradientLimiter {
+
+    //当前RTT相对长期RTT的容忍倍数，在此范围内不缩小上限
+    private static final double RTT_TOLERANCE = 1.5;
+    //上限变化的平滑系数
+    private static final double SMOOTHING = 0.2;
+    //失败时的回退比例
+    private static final double BACKOFF_RATIO = 0.9;
+    //长期RTT的EWMA窗口（样本数）
+    private static final int LONG_WINDOW = 600;
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    private volatile double estimatedLimit;
+    private double longRtt = 0;
+
+    private final AtomicInteger inflight = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public GradientLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.estimatedLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * 获取一个并发许可
+     *
+     * @return 超出当前上限返回-1，否则返回获取许可时的并发数，释放时传回
+     */
+    public int tryAcquire() {
+        while (true) {
+            int current = inflight.get();
+            if (current >= (int) estimatedLimit) {
+                rejected.incrementAndGet();
+                return -1;
+            }
+            if (inflight.compareAndSet(current, current + 1)) {
+                return current + 1;
+            }
+        }
+    }
+
+    /**
+     * 释放许可并根据本次请求的RTT调整上限
+     *
+     * @param rttNanos
+     * @param inflightAtStart tryAcquire的返回值
+     * @param dropped         请求是否因集群原因失败
+     */
+    public void release(long rttNanos, int inflightAtStart, boolean dropped) {
+        inflight.decrementAndGet();
+        update(rttNanos, inflightAtStart, dropped);
+    }
+
+    /**
+     * 获取许可后未实际发出请求时归还许可，不参与上限调整
+     */
+    public void cancel() {
+        inflight.decrementAndGet();
+    }
+
+    private synchronized void update(long rttNanos, int inflightAtStart, boolean dropped) {
+        if (dropped) {
+            estimatedLimit = Math.max(minLimit, estimatedLimit * BACKOFF_RATIO);
+            return;
+        }
+        double rtt = rttNanos;
+        if (longRtt == 0) {
+            longRtt = rtt;
+        } else {
+            longRtt = longRtt + (rtt - longRtt) * 2 / (LONG_WINDOW + 1);
+        }
+        //长期RTT明显高于当前RTT（集群刚从高负载恢复），加快长期RTT回落，避免上限长时间偏大
+        if (longRtt / rtt > 2) {
+            longRtt = longRtt * 0.95;
+        }
+        if (inflightAtStart < estimatedLimit / 2) {
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, RTT_TOLERANCE * longRtt / rtt));
+        double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+        newLimit = estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    }
+
+    public int getLimit() {
+        return (int) estimatedLimit;
+    }
+
+    public int getInflight() {
+        return inflight.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+}
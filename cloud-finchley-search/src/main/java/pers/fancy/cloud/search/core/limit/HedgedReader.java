@@ -0,0 +1,369 @@
+package pers.fancy.cloud.search.core.limit;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpHost;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.RequestOptions;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import pers.fancy.cloud.search.core.config.LatencyAwareNodeSelector;
+import pers.fancy.cloud.search.core.repository.Deadline;
+
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 异步读请求：对冲以及截止时间
+ * 对冲：search、count、get在delay内没有返回时，向另一个节点再发送一次同样的请求，先返回的结果生效，落后的查询通过tasks API取消；
+ * delay未配置时取该操作最近响应时间的p95
+ * 对冲请求消耗预算：每个读请求向预算中存入budget%个令牌，每次对冲取出一个，预算不足时不对冲，额外负载不超过读流量的budget%
+ * 截止时间：调用线程最多等待到截止时间，超时或者被中断时取消所有仍在执行的查询
+ * 每次发送（包括对冲）都单独经过ClusterGuard的并发限制和熔断，对冲被拒绝时只等待原请求
+ * 每次发送只选择一个节点，所有已发出的请求都因节点失败（IO异常、超时、502/503/504）结束时，避开失败的节点重发一次
+ * 本进程取消的请求（对冲落后的请求等）因取消而失败时不计入ClusterGuard和节点选择的失败
+ *
+ * @author LiLiChai
+ */
+@Slf4j
+@Component
+public class HedgedReader implements MeterBinder {
+
+    private static final Set<String> HEDGED_OPERATIONS = new HashSet<>(Arrays.asList("search", "count", "get"));
+    //es上可以取消的操作
+    private static final Set<String> CANCELLABLE_OPERATIONS = new HashSet<>(Arrays.asList("search", "count", "scroll"));
+
+    @Value("${elasticsearch.hedge.enabled:false}")
+    private boolean enabled;
+    //对冲延迟（毫秒），小于0时使用观察到的p95
+    @Value("${elasticsearch.hedge.delay:-1}")
+    private long delay;
+    @Value("${elasticsearch.hedge.min-delay:5}")
+    private long minDelay;
+    //对冲预算，占读请求的百分比
+    @Value("${elasticsearch.hedge.budget:5}")
+    private double budget;
+    //预算最多累积的对冲次数
+    @Value("${elasticsearch.hedge.burst:10}")
+    private double burst;
+
+    @Autowired
+    ClusterGuard clusterGuard;
+
+    @Autowired
+    TaskCanceller taskCanceller;
+
+    @Autowired
+    LatencyAwareNodeSelector nodeSelector;
+
+    private final Map<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong budgetRejected = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private double tokens = 0;
+
+    private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "es-hedge");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    {
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * 异步读请求，options中带有本次发送的X-Opaque-Id
+     *
+     * @param <V>
+     */
+    @FunctionalInterface
+    public interface AsyncCall<V> {
+        void call(RequestOptions options, ActionListener<V> listener) throws Exception;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 执行一次读请求
+     *
+     * @param operation search、count、get、scroll，用于区分响应时间统计；scroll不做对冲
+     * @param options
+     * @param deadline  截止时间，为null时不限制
+     * @param call
+     * @param <V>
+     * @return
+     * @throws Exception 全部请求失败；超过截止时间时为TimeoutException
+     */
+    public <V> V execute(String operation, RequestOptions options, Deadline deadline, AsyncCall<V> call) throws Exception {
+        if (deadline != null) {
+            deadline.check();
+        }
+        Hedge<V> hedge = new Hedge<>(operation, options, call);
+        Attempt primary = hedge.send(null);
+        ScheduledFuture<?> timer = enabled && HEDGED_OPERATIONS.contains(operation) ? scheduleHedge(hedge, primary) : null;
+        try {
+            return deadline == null ? hedge.result.get() : hedge.result.get(deadline.remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } catch (TimeoutException e) {
+            hedge.cancel();
+            throw new TimeoutException("elasticsearch " + operation + " deadline exceeded");
+        } catch (InterruptedException e) {
+            hedge.cancel();
+            Thread.currentThread().interrupt();
+            throw e;
+        } finally {
+            if (timer != null) {
+                timer.cancel(false);
+            }
+        }
+    }
+
+    private <V> ScheduledFuture<?> scheduleHedge(Hedge<V> hedge, Attempt primary) {
+        String operation = hedge.operation;
+        deposit();
+        return scheduler.schedule(() -> {
+            if (hedge.result.isDone()) {
+                return;
+            }
+            if (!withdraw()) {
+                budgetRejected.incrementAndGet();
+                return;
+            }
+            try {
+                hedge.send(primary.host);
+                hedged.incrementAndGet();
+            } catch (Exception e) {
+                //对冲被并发限制或熔断拒绝，只等待原请求
+                log.debug("hedged {} rejected: {}", operation, e.getMessage());
+            }
+        }, getDelay(operation), TimeUnit.MILLISECONDS);
+    }
+
+    private long getDelay(String operation) {
+        if (delay >= 0) {
+            return delay;
+        }
+        LatencyWindow window = latencies.get(operation);
+        return Math.max(minDelay, window == null ? 0 : window.getP95());
+    }
+
+    private synchronized void deposit() {
+        tokens = Math.min(burst, tokens + budget / 100);
+    }
+
+    private synchronized boolean withdraw() {
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    /**
+     * 一次对冲读：原请求以及可能的对冲请求
+     *
+     * @param <V>
+     */
+    private class Hedge<V> {
+        final String operation;
+        final RequestOptions options;
+        final AsyncCall<V> call;
+        final long start = System.nanoTime();
+        final CompletableFuture<V> result = new CompletableFuture<>();
+        final List<Attempt> attempts = new CopyOnWriteArrayList<>();
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicBoolean failedOver = new AtomicBoolean();
+
+        Hedge(String operation, RequestOptions options, AsyncCall<V> call) {
+            this.operation = operation;
+            this.options = options;
+            this.call = call;
+        }
+
+        /**
+         * 发送一次请求
+         *
+         * @param avoid 避开的节点，对冲时为原请求的节点
+         * @return
+         * @throws Exception 被并发限制或熔断拒绝
+         */
+        Attempt send(HttpHost avoid) throws Exception {
+            Attempt attempt = new Attempt(avoid != null);
+            RequestOptions attemptOptions = TaskCanceller.withOpaqueId(options, attempt.opaqueId);
+            ClusterGuard.Permit permit = clusterGuard.acquire(true);
+            attempts.add(attempt);
+            outstanding.incrementAndGet();
+            ActionListener<V> listener = ActionListener.wrap(response -> {
+                attempt.done.set(true);
+                outstanding.decrementAndGet();
+                permit.onSuccess();
+                if (result.complete(response)) {
+                    onWin(attempt);
+                }
+            }, e -> {
+                attempt.done.set(true);
+                if (attempt.cancelled.get()) {
+                    permit.onCancel();
+                } else {
+                    permit.onFailure(e);
+                }
+                //所有已发出的请求都失败时才失败，被取消的请求不重发
+                if (outstanding.decrementAndGet() == 0 && (attempt.cancelled.get() || !failover(attempt, e))) {
+                    result.completeExceptionally(e);
+                }
+            });
+            nodeSelector.route(avoid == null ? Collections.emptySet() : Collections.singleton(avoid));
+            try {
+                call.call(attemptOptions, listener);
+            } catch (Exception e) {
+                listener.onFailure(e);
+            } finally {
+                nodeSelector.route(null);
+                attempt.host = nodeSelector.lastSelected();
+            }
+            return attempt;
+        }
+
+        /**
+         * 请求只发往一个节点，RestClient不会换节点重试，节点失败时避开该节点重发一次
+         *
+         * @param failed
+         * @param e
+         * @return 是否已经重发
+         */
+        boolean failover(Attempt failed, Exception e) {
+            if (failed.host == null || result.isDone() || !LatencyAwareNodeSelector.isNodeFailure(e)
+                    || !failedOver.compareAndSet(false, true)) {
+                return false;
+            }
+            try {
+                send(failed.host);
+                return true;
+            } catch (Exception rejected) {
+                log.debug("failover of {} rejected: {}", operation, rejected.getMessage());
+                return false;
+            }
+        }
+
+        void onWin(Attempt winner) {
+            latencies.computeIfAbsent(operation, o -> new LatencyWindow())
+                    .record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            if (winner.hedge) {
+                hedgeWins.incrementAndGet();
+            }
+            if (cancelOutstanding(winner) > 0) {
+                cancelled.incrementAndGet();
+            }
+        }
+
+        /**
+         * 超过截止时间或者被中断，取消所有仍在执行的请求
+         * 先结束result，之后返回的失败不会触发重发；被取消的请求按ClusterGuard.Permit.onCancel归还许可，不计入熔断、限流和节点失败
+         */
+        void cancel() {
+            result.cancel(false);
+            cancelOutstanding(null);
+        }
+
+        int cancelOutstanding(Attempt winner) {
+            if (!CANCELLABLE_OPERATIONS.contains(operation)) {
+                return 0;
+            }
+            int count = 0;
+            for (Attempt attempt : attempts) {
+                if (attempt == winner) {
+                    continue;
+                }
+                //先标记再检查是否完成，与回调中先设置done再检查cancelled配合，不会漏掉取消后才返回的失败
+                attempt.cancelled.set(true);
+                if (!attempt.done.get()) {
+                    nodeSelector.ignoreFailure(attempt.opaqueId);
+                    taskCanceller.cancel(attempt.opaqueId, attempt.host);
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    private static class Attempt {
+        final String opaqueId = TaskCanceller.newOpaqueId();
+        final boolean hedge;
+        final AtomicBoolean done = new AtomicBoolean();
+        //已经由本进程取消
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        volatile HttpHost host;
+
+        Attempt(boolean hedge) {
+            this.hedge = hedge;
+        }
+    }
+
+    /**
+     * 最近的响应时间窗口，每记录一定次数重新计算一次p95
+     */
+    private static class LatencyWindow {
+        private static final int SIZE = 1024;
+        private static final int RECOMPUTE = 64;
+        private final long[] samples = new long[SIZE];
+        private long count = 0;
+        private volatile long p95 = 0;
+
+        synchronized void record(long millis) {
+            samples[(int) (count % SIZE)] = millis;
+            count++;
+            if (count % RECOMPUTE == 0 || count < RECOMPUTE) {
+                long[] sorted = Arrays.copyOf(samples, (int) Math.min(count, SIZE));
+                Arrays.sort(sorted);
+                p95 = sorted[(int) Math.ceil(sorted.length * 0.95) - 1];
+            }
+        }
+
+        long getP95() {
+            return p95;
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("elasticsearch.hedge.sent", hedged, AtomicLong::get)
+                .register(registry);
+        FunctionCounter.builder("elasticsearch.hedge.won", hedgeWins, AtomicLong::get)
+                .register(registry);
+        FunctionCounter.builder("elasticsearch.hedge.budget.rejected", budgetRejected, AtomicLong::get)
+                .register(registry);
+        FunctionCounter.builder("elasticsearch.hedge.cancelled", cancelled, AtomicLong::get)
+                .register(registry);
+        FunctionCounter.builder("elasticsearch.hedge.cancel.skipped", taskCanceller, TaskCanceller::getSkipped)
+                .register(registry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
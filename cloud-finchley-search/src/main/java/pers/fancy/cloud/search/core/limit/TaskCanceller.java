@@ -0,0 +1,132 @@
+package pers.fancy.cloud.search.core.limit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpHost;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 取消es上仍在执行的查询
+ * 7.3的客户端无法中止已经发出的http请求，这里给请求带上X-Opaque-Id，需要取消时通过tasks API按X-Opaque-Id找到对应的任务并取消
+ * 查找任务时只列出请求发往的协调节点上的search、scroll任务（父任务在协调节点上），不带description，避免在已经变慢的集群上向所有节点扇出；
+ * 同时进行的查找不超过max-pending个，超出时放弃本次取消
+ * 只有search、scroll（包括count）任务可以取消；取消是尽力而为的，查询已经结束、尚未在es上注册或者节点地址无法匹配（如经过负载均衡）时不做处理
+ *
+ * @author LiLiChai
+ */
+@Slf4j
+@Component
+public class TaskCanceller {
+
+    public static final String OPAQUE_ID = "X-Opaque-Id";
+    private static final String CANCELLABLE_ACTIONS = "indices:data/read/search*,indices:data/read/scroll*";
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Autowired
+    RestHighLevelClient client;
+
+    //同时进行的任务查找数量上限
+    @Value("${elasticsearch.cancel.max-pending:4}")
+    private int maxPending;
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong skipped = new AtomicLong();
+
+    public static String newOpaqueId() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * 带有X-Opaque-Id的RequestOptions
+     *
+     * @param options
+     * @param opaqueId
+     * @return
+     */
+    public static RequestOptions withOpaqueId(RequestOptions options, String opaqueId) {
+        return options.toBuilder().addHeader(OPAQUE_ID, opaqueId).build();
+    }
+
+    /**
+     * 异步取消带有opaqueId的查询
+     *
+     * @param opaqueId
+     * @param host     请求发往的节点，为null时查找所有节点
+     */
+    public void cancel(String opaqueId, HttpHost host) {
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            skipped.incrementAndGet();
+            log.debug("cancel elasticsearch task {} skipped, {} cancels pending", opaqueId, maxPending);
+            return;
+        }
+        Request list = new Request("GET", "/_tasks");
+        list.addParameter("actions", CANCELLABLE_ACTIONS);
+        list.addParameter("detailed", "false");
+        list.addParameter("group_by", "none");
+        list.addParameter("filter_path", "tasks.node,tasks.id,tasks.parent_task_id,tasks.headers");
+        if (host != null) {
+            list.addParameter("nodes", host.getHostName());
+        }
+        client.getLowLevelClient().performRequestAsync(list, new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                pending.decrementAndGet();
+                try {
+                    JsonNode tasks = objectMapper.readTree(EntityUtils.toString(response.getEntity())).path("tasks");
+                    Iterator<JsonNode> iterator = tasks.elements();
+                    while (iterator.hasNext()) {
+                        JsonNode task = iterator.next();
+                        //只取消父任务，分片上的子任务随之取消
+                        if (opaqueId.equals(task.path("headers").path(OPAQUE_ID).asText())
+                                && !task.has("parent_task_id")) {
+                            String taskId = task.path("node").asText() + ":" + task.path("id").asText();
+                            client.getLowLevelClient().performRequestAsync(new Request("POST", "/_tasks/" + taskId + "/_cancel"), IGNORE);
+                        }
+                    }
+                } catch (Exception e) {
+                    log.debug("cancel elasticsearch task {} failed: {}", opaqueId, e.getMessage());
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                pending.decrementAndGet();
+                log.debug("cancel elasticsearch task {} failed: {}", opaqueId, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * 因查找数量超出上限而放弃的取消次数
+     *
+     * @return
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    private static final ResponseListener IGNORE = new ResponseListener() {
+        @Override
+        public void onSuccess(Response response) {
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+        }
+    };
+}
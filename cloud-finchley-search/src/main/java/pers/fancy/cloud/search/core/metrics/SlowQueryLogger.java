@@ -0,0 +1,104 @@
+package pers.fancy.cloud.search.core.metrics;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import pers.fancy.cloud.search.core.util.MetaData;
+
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 慢查询日志
+ * 只有耗时超过阈值且命中采样的查询才会渲染查询JSON，渲染和写日志都在单独的后台线程中进行，不占用调用线程；
+ * 后台队列满时直接丢弃并计数，不会阻塞查询
+ * 日志输出到名为elasticsearch.slowlog的logger，可以在日志配置中单独指定appender
+ *
+ * @author LiLiChai
+ */
+@Component
+public class SlowQueryLogger implements MeterBinder {
+
+    private static final Logger slowlog = LoggerFactory.getLogger("elasticsearch.slowlog");
+
+    @Value("${elasticsearch.slowlog.enabled:true}")
+    private boolean enabled;
+    //实体没有配置slowQueryThreshold时的默认阈值（毫秒）
+    @Value("${elasticsearch.slowlog.threshold:1000}")
+    private long defaultThreshold;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(1024), r -> {
+        Thread thread = new Thread(r, "es-slowlog");
+        thread.setDaemon(true);
+        return thread;
+    }, (r, e) -> dropped.incrementAndGet());
+
+    /**
+     * 记录一次查询，未超过阈值或者未命中采样时直接返回
+     *
+     * @param metaData      实体元数据，为null时使用默认阈值
+     * @param searchRequest
+     * @param response
+     * @param elapsedNanos  客户端观察到的耗时
+     */
+    public void log(MetaData metaData, SearchRequest searchRequest, SearchResponse response, long elapsedNanos) {
+        if (!enabled) {
+            return;
+        }
+        long threshold = metaData == null || metaData.getSlowQueryThreshold() < 0 ? defaultThreshold : metaData.getSlowQueryThreshold();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        if (elapsedMillis < threshold) {
+            return;
+        }
+        double sampleRate = metaData == null ? 1.0 : metaData.getSlowQuerySampleRate();
+        if (sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        executor.execute(() -> slowlog.warn("elapsed={}ms took={}ms indices={} shards={}/{} skipped={} failed={} timed_out={} terminated_early={} hits={} source={}",
+                elapsedMillis,
+                response.getTook().millis(),
+                Arrays.toString(searchRequest.indices()),
+                response.getSuccessfulShards(),
+                response.getTotalShards(),
+                response.getSkippedShards(),
+                response.getFailedShards(),
+                response.isTimedOut(),
+                response.isTerminatedEarly(),
+                response.getHits().getTotalHits(),
+                searchRequest.source()));
+    }
+
+    /**
+     * 因后台队列已满而丢弃的慢查询日志条数
+     *
+     * @return
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("elasticsearch.slowlog.dropped", dropped, AtomicLong::get)
+                .register(registry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,258 @@
+package pers.fancy.cloud.search.core.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.protocol.HttpCoreContext;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ElasticsearchTemplate、ESCRepository的性能指标，通过actuator的/metrics暴露
+ * elasticsearch.template.operation：直接调用的每个模板方法的总耗时，按operation（方法名）、index（实体的indexName）、outcome统计
+ * elasticsearch.repository.operation：每个repository方法的总耗时，期间的模板调用不再计入template.operation，以下指标的operation为repository方法名
+ * elasticsearch.template.phase：总耗时拆分为build（发出请求前构造查询）、call（集群调用）、decode（收到响应后解析命中）
+ * elasticsearch.template.took / overhead：集群调用中es返回的took，以及其余的客户端开销（网络、排队、响应解析）
+ * elasticsearch.template.hits、bulk.items、bulk.failures：返回命中数、bulk条数与失败条数
+ * elasticsearch.client.request.bytes / response.bytes：线上字节数（压缩后），按endpoint统计
+ * meter按名称和标签缓存，记录时不再重新构造和注册；耗时的百分位直方图通过elasticsearch.metrics.histogram开启
+ *
+ * @author LiLiChai
+ */
+@Component
+public class TemplateMetrics {
+
+    private static final ThreadLocal<Context> CONTEXT = new ThreadLocal<>();
+
+    @Autowired
+    MeterRegistry registry;
+
+    //operation、took、overhead是否发布百分位直方图，每个标签组合会增加几十个bucket的时间序列
+    @Value("${elasticsearch.metrics.histogram:false}")
+    private boolean histogram;
+
+    //key为名称以及标签
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, DistributionSummary> summaries = new ConcurrentHashMap<>();
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    /**
+     * 一次模板操作的上下文，集群调用在调用线程上执行，通过ThreadLocal关联到当前操作
+     */
+    public static class Context {
+        final String operation;
+        final String index;
+        final long start = System.nanoTime();
+        long lastCallEnd = 0;
+        long buildNanos = 0;
+        long callNanos = 0;
+        Context previous;
+
+        Context(String operation, String index) {
+            this.operation = operation;
+            this.index = index;
+        }
+    }
+
+    /**
+     * 开始一次模板操作
+     *
+     * @param operation
+     * @param index
+     * @return
+     */
+    public Context enter(String operation, String index) {
+        Context context = new Context(operation, index == null ? "none" : index);
+        context.previous = CONTEXT.get();
+        CONTEXT.set(context);
+        return context;
+    }
+
+    /**
+     * 结束一次模板操作
+     *
+     * @param context
+     * @param layer   template或者repository
+     * @param error
+     */
+    public void exit(Context context, String layer, Throwable error) {
+        long end = System.nanoTime();
+        if (context.previous == null) {
+            CONTEXT.remove();
+        } else {
+            CONTEXT.set(context.previous);
+        }
+        timer("elasticsearch." + layer + ".operation", true,
+                "operation", context.operation, "index", context.index, "outcome", error == null ? "success" : "error")
+                .record(end - context.start, TimeUnit.NANOSECONDS);
+        if (context.lastCallEnd > 0) {
+            phase(context, "build", context.buildNanos);
+            phase(context, "call", context.callNanos);
+            phase(context, "decode", end - context.lastCallEnd);
+        }
+    }
+
+    private void phase(Context context, String phase, long nanos) {
+        timer("elasticsearch.template.phase", false, "operation", context.operation, "index", context.index, "phase", phase)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public Context current() {
+        return CONTEXT.get();
+    }
+
+    /**
+     * 记录当前操作中的一次集群调用
+     *
+     * @param start    调用开始时间（System.nanoTime）
+     * @param response
+     */
+    public void recordCall(long start, Object response) {
+        recordCall(CONTEXT.get(), start, response);
+    }
+
+    /**
+     * 记录一次集群调用，异步回调不在调用线程上，需要传入发起调用时的上下文
+     *
+     * @param context
+     * @param start
+     * @param response
+     */
+    public void recordCall(Context context, long start, Object response) {
+        long end = System.nanoTime();
+        long nanos = end - start;
+        String operation = context == null ? "direct" : context.operation;
+        String index = context == null ? "none" : context.index;
+        if (context != null && CONTEXT.get() == context) {
+            context.buildNanos += start - (context.lastCallEnd == 0 ? context.start : context.lastCallEnd);
+            context.callNanos += nanos;
+            context.lastCallEnd = end;
+        }
+        if (response instanceof SearchResponse) {
+            SearchResponse searchResponse = (SearchResponse) response;
+            long took = searchResponse.getTook().nanos();
+            took(operation, index, took, nanos);
+            summary("elasticsearch.template.hits", null, "operation", operation, "index", index)
+                    .record(searchResponse.getHits().getHits().length);
+        } else if (response instanceof BulkResponse) {
+            BulkResponse bulkResponse = (BulkResponse) response;
+            took(operation, index, bulkResponse.getTook().nanos(), nanos);
+            int failures = 0;
+            for (BulkItemResponse item : bulkResponse.getItems()) {
+                if (item.isFailed()) {
+                    failures++;
+                }
+            }
+            bulk(operation, index, bulkResponse.getItems().length, failures);
+        } else if (response instanceof BulkByScrollResponse) {
+            BulkByScrollResponse bulkResponse = (BulkByScrollResponse) response;
+            took(operation, index, bulkResponse.getTook().nanos(), nanos);
+            bulk(operation, index, bulkResponse.getTotal(), bulkResponse.getBulkFailures().size());
+        } else if (response instanceof MultiGetResponse) {
+            summary("elasticsearch.template.hits", null, "operation", operation, "index", index)
+                    .record(((MultiGetResponse) response).getResponses().length);
+        }
+    }
+
+    private void took(String operation, String index, long took, long total) {
+        timer("elasticsearch.template.took", true, "operation", operation, "index", index)
+                .record(took, TimeUnit.NANOSECONDS);
+        timer("elasticsearch.template.overhead", true, "operation", operation, "index", index)
+                .record(Math.max(0, total - took), TimeUnit.NANOSECONDS);
+    }
+
+    private void bulk(String operation, String index, long items, long failures) {
+        summary("elasticsearch.template.bulk.items", null, "operation", operation, "index", index).record(items);
+        counters.computeIfAbsent(key("elasticsearch.template.bulk.failures", "operation", operation, "index", index),
+                key -> registry.counter("elasticsearch.template.bulk.failures", "operation", operation, "index", index))
+                .increment(failures);
+    }
+
+    /**
+     * 请求字节数，压缩后的请求体按压缩后大小统计
+     */
+    public HttpRequestInterceptor requestInterceptor() {
+        return (request, context) -> {
+            if (request instanceof HttpEntityEnclosingRequest) {
+                HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+                if (entity != null && entity.getContentLength() >= 0) {
+                    bytes("elasticsearch.client.request.bytes", request, entity.getContentLength());
+                }
+            }
+        };
+    }
+
+    /**
+     * 响应字节数，取Content-Length，即压缩后的线上字节数
+     */
+    public HttpResponseInterceptor responseInterceptor() {
+        return (response, context) -> {
+            HttpRequest request = (HttpRequest) context.getAttribute(HttpCoreContext.HTTP_REQUEST);
+            if (request != null && response.getFirstHeader("Content-Length") != null) {
+                bytes("elasticsearch.client.response.bytes", request, Long.parseLong(response.getFirstHeader("Content-Length").getValue()));
+            }
+        };
+    }
+
+    private void bytes(String name, HttpRequest request, long bytes) {
+        summary(name, "bytes", "endpoint", endpoint(request.getRequestLine().getUri())).record(bytes);
+    }
+
+    private Timer timer(String name, boolean percentiles, String... tags) {
+        return timers.computeIfAbsent(key(name, tags), key -> {
+            Timer.Builder builder = Timer.builder(name).tags(tags);
+            if (percentiles && histogram) {
+                builder.publishPercentileHistogram();
+            }
+            return builder.register(registry);
+        });
+    }
+
+    private DistributionSummary summary(String name, String baseUnit, String... tags) {
+        return summaries.computeIfAbsent(key(name, tags), key -> DistributionSummary.builder(name)
+                .baseUnit(baseUnit)
+                .tags(tags)
+                .register(registry));
+    }
+
+    private static String key(String name, String... tags) {
+        StringBuilder key = new StringBuilder(name);
+        for (String tag : tags) {
+            key.append('|').append(tag);
+        }
+        return key.toString();
+    }
+
+    /**
+     * 取请求路径中最后一个以_开头的部分作为endpoint，如/index/_search为_search，没有时为文档读写
+     *
+     * @param uri
+     * @return
+     */
+    static String endpoint(String uri) {
+        int query = uri.indexOf('?');
+        String[] parts = (query < 0 ? uri : uri.substring(0, query)).split("/");
+        for (int i = parts.length - 1; i >= 0; i--) {
+            if (parts[i].startsWith("_")) {
+                return parts[i];
+            }
+        }
+        return "doc";
+    }
+}
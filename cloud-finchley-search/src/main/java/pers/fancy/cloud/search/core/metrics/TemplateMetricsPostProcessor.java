@@ -0,0 +1,89 @@
+package pers.fancy.cloud.search.core.metrics;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.stereotype.Component;
+import pers.fancy.cloud.search.core.annotation.ESMetaData;
+import pers.fancy.cloud.search.core.repository.ElasticsearchTemplate;
+import pers.fancy.cloud.search.core.util.IndexTools;
+
+import java.util.List;
+
+/**
+ * 为ElasticsearchTemplate生成代理，统计每个模板方法的耗时
+ * 模板内部方法之间的相互调用不经过代理，每次外部调用只统计一次；repository中的模板调用由repository统计，这里不重复统计
+ *
+ * @author LiLiChai
+ */
+@Component
+public class TemplateMetricsPostProcessor implements BeanPostProcessor, BeanFactoryAware {
+
+    private BeanFactory beanFactory;
+    private volatile TemplateMetrics templateMetrics;
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+        if (!(bean instanceof ElasticsearchTemplate)) {
+            return bean;
+        }
+        ProxyFactory proxyFactory = new ProxyFactory();
+        proxyFactory.setTarget(bean);
+        proxyFactory.setInterfaces(ElasticsearchTemplate.class);
+        proxyFactory.addAdvice((MethodInterceptor) invocation -> {
+            TemplateMetrics metrics = getTemplateMetrics();
+            if (metrics.current() != null) {
+                return invocation.proceed();
+            }
+            TemplateMetrics.Context context = metrics.enter(invocation.getMethod().getName(), getIndexName(invocation.getArguments()));
+            Throwable error = null;
+            try {
+                return invocation.proceed();
+            } catch (Throwable e) {
+                error = e;
+                throw e;
+            } finally {
+                metrics.exit(context, "template", error);
+            }
+        });
+        return proxyFactory.getProxy(bean.getClass().getClassLoader());
+    }
+
+    /**
+     * 从参数中的实体类或实体对象取得indexName作为指标的index标签，不使用具体的索引名，避免分区索引造成标签过多
+     *
+     * @param args
+     * @return
+     */
+    private String getIndexName(Object[] args) {
+        for (Object arg : args) {
+            Class<?> clazz = null;
+            if (arg instanceof Class) {
+                clazz = (Class<?>) arg;
+            } else if (arg instanceof List && !((List) arg).isEmpty() && ((List) arg).get(0) != null) {
+                clazz = ((List) arg).get(0).getClass();
+            } else if (arg != null) {
+                clazz = arg.getClass();
+            }
+            if (clazz != null && clazz.getAnnotation(ESMetaData.class) != null) {
+                return IndexTools.getIndexType(clazz).getIndexname();
+            }
+        }
+        return null;
+    }
+
+    private TemplateMetrics getTemplateMetrics() {
+        if (templateMetrics == null) {
+            templateMetrics = beanFactory.getBean(TemplateMetrics.class);
+        }
+        return templateMetrics;
+    }
+
+    @Override
+    public void setBeanFactory(BeanFactory beanFactory) throws BeansException {
+        this.beanFactory = beanFactory;
+    }
+}
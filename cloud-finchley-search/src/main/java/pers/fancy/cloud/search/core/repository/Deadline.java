@@ -0,0 +1,86 @@
+package pers.fancy.cloud.search.core.repository;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 调用截止时间
+ * 通过call在当前线程上绑定截止时间，期间模板发出的查询（search、aggs、count、scroll等）：
+ * 查询条件的timeout设置为剩余时间，es超时后返回已经得到的部分结果；
+ * 客户端最多等待到截止时间，超时或者调用线程被中断时通过tasks API取消es上仍在执行的查询，并抛出TimeoutException
+ * 这些被本进程取消的查询不计入ClusterGuard的熔断、限流回退以及节点选择的失败统计，过紧的截止时间不会打开熔断
+ * 嵌套调用时取较早的截止时间
+ *
+ * @author LiLiChai
+ */
+public class Deadline {
+
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+    private final long deadlineNanos;
+
+    private Deadline(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * 从现在起duration之后截止
+     *
+     * @param duration
+     * @param unit
+     * @return
+     */
+    public static Deadline after(long duration, TimeUnit unit) {
+        return new Deadline(System.nanoTime() + unit.toNanos(duration));
+    }
+
+    /**
+     * 当前线程绑定的截止时间，没有时返回null
+     *
+     * @return
+     */
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    public long remaining(TimeUnit unit) {
+        return unit.convert(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isExpired() {
+        return deadlineNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * @throws TimeoutException 已经超过截止时间
+     */
+    public void check() throws TimeoutException {
+        if (isExpired()) {
+            throw new TimeoutException("elasticsearch call deadline exceeded");
+        }
+    }
+
+    /**
+     * 在截止时间内执行callable
+     *
+     * @param callable
+     * @param <V>
+     * @return
+     * @throws Exception
+     */
+    public <V> V call(Callable<V> callable) throws Exception {
+        Deadline previous = CURRENT.get();
+        CURRENT.set(previous != null && previous.deadlineNanos - deadlineNanos < 0 ? previous : this);
+        try {
+            check();
+            return callable.call();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+}
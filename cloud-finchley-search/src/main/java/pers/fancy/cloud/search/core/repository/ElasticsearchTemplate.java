@@ -36,6 +36,7 @@ public interface ElasticsearchTemplate<T, M> {
 
     /**
      * 新增索引
+     * 分区实体修改了分区字段的值时文档写入新的分区，其他分区中同ID的旧文档随后被删除（按ID检索，近实时）
      *
      * @param t
      * @return boolean
@@ -66,6 +67,7 @@ public interface ElasticsearchTemplate<T, M> {
 
     /**
      * 按照有值字段更新索引
+     * 分区实体没有给出分区字段的值时，先在全部分区中查找文档所在的分区，找不到时抛出异常
      *
      * @param t
      * @return boolean
@@ -97,6 +99,7 @@ public interface ElasticsearchTemplate<T, M> {
 
     /**
      * 删除索引
+     * 分区实体没有给出分区字段的值时，先在全部分区中查找文档所在的分区，找不到时返回false
      *
      * @param t
      * @return boolean
@@ -125,6 +128,112 @@ public interface ElasticsearchTemplate<T, M> {
      */
     boolean deleteById(M id, Class<T> clazz) throws Exception;
 
+    /**
+     * 按routing删除索引，实体配置了@ESRouting时使用
+     *
+     * @param id
+     * @param routing
+     * @param clazz
+     * @return boolean
+     * @throws Exception
+     */
+    boolean deleteById(M id, String routing, Class<T> clazz) throws Exception;
+
+    /**
+     * 按写入选项新增索引，如需要写入后马上可以查到时使用WriteOptions.refresh(RefreshPolicy.wait_until)
+     * 其他写入方法可以通过WriteOptions.call以指定的选项调用
+     *
+     * @param t
+     * @param options
+     * @return boolean
+     * @throws Exception
+     */
+    boolean save(T t, WriteOptions options) throws Exception;
+
+    /**
+     * 按写入选项新增索引集合，选项作用于整个bulk请求
+     *
+     * @param list
+     * @param options
+     * @return BulkResponse
+     * @throws Exception
+     */
+    BulkResponse save(List<T> list, WriteOptions options) throws Exception;
+
+    /**
+     * 按写入选项更新索引集合
+     *
+     * @param list
+     * @param options
+     * @return
+     * @throws Exception
+     */
+    BulkResponse bulkUpdate(List<T> list, WriteOptions options) throws Exception;
+
+    /**
+     * 按写入选项、按照有值字段更新索引
+     *
+     * @param t
+     * @param options
+     * @return boolean
+     * @throws Exception
+     */
+    boolean update(T t, WriteOptions options) throws Exception;
+
+    /**
+     * 按写入选项覆盖更新索引
+     *
+     * @param t
+     * @param options
+     * @return boolean
+     * @throws Exception
+     */
+    boolean updateCover(T t, WriteOptions options) throws Exception;
+
+    /**
+     * 按写入选项删除索引
+     *
+     * @param t
+     * @param options
+     * @return boolean
+     * @throws Exception
+     */
+    boolean delete(T t, WriteOptions options) throws Exception;
+
+    /**
+     * 按写入选项根据条件删除索引，delete_by_query只支持结束后刷新，wait_until与immediate相同
+     *
+     * @param queryBuilder
+     * @param clazz
+     * @param options
+     * @return
+     * @throws Exception
+     */
+    BulkByScrollResponse deleteByCondition(QueryBuilder queryBuilder, Class<T> clazz, WriteOptions options) throws Exception;
+
+    /**
+     * 按写入选项删除索引
+     *
+     * @param id
+     * @param clazz
+     * @param options
+     * @return boolean
+     * @throws Exception
+     */
+    boolean deleteById(M id, Class<T> clazz, WriteOptions options) throws Exception;
+
+    /**
+     * 按写入选项、按routing删除索引
+     *
+     * @param id
+     * @param routing
+     * @param clazz
+     * @param options
+     * @return boolean
+     * @throws Exception
+     */
+    boolean deleteById(M id, String routing, Class<T> clazz, WriteOptions options) throws Exception;
+
 
     /**
      * 【最原始】查询
@@ -146,6 +255,17 @@ public interface ElasticsearchTemplate<T, M> {
      */
     List<T> search(QueryBuilder queryBuilder, Class<T> clazz) throws Exception;
 
+    /**
+     * 非分页查询，在截止时间内完成
+     *
+     * @param queryBuilder
+     * @param clazz
+     * @param deadline
+     * @return
+     * @throws Exception 超过截止时间时为TimeoutException
+     */
+    List<T> search(QueryBuilder queryBuilder, Class<T> clazz, Deadline deadline) throws Exception;
+
     /**
      * 非分页查询(跨索引)
      * 目前暂时传入类类型
@@ -194,6 +314,17 @@ public interface ElasticsearchTemplate<T, M> {
      */
     long count(QueryBuilder queryBuilder, Class<T> clazz) throws Exception;
 
+    /**
+     * 查询数量，在截止时间内完成
+     *
+     * @param queryBuilder
+     * @param clazz
+     * @param deadline
+     * @return
+     * @throws Exception 超过截止时间时为TimeoutException
+     */
+    long count(QueryBuilder queryBuilder, Class<T> clazz, Deadline deadline) throws Exception;
+
 
     /**
      * 查询数量(跨索引)
@@ -217,6 +348,18 @@ public interface ElasticsearchTemplate<T, M> {
      */
     PageList<T> search(QueryBuilder queryBuilder, PageSortHighLight pageSortHighLight, Class<T> clazz) throws Exception;
 
+    /**
+     * 支持分页、高亮、排序的查询，在截止时间内完成
+     *
+     * @param queryBuilder
+     * @param pageSortHighLight
+     * @param clazz
+     * @param deadline
+     * @return
+     * @throws Exception 超过截止时间时为TimeoutException
+     */
+    PageList<T> search(QueryBuilder queryBuilder, PageSortHighLight pageSortHighLight, Class<T> clazz, Deadline deadline) throws Exception;
+
 
     /**
      * 支持分页、高亮、排序的查询（跨索引）
@@ -241,6 +384,17 @@ public interface ElasticsearchTemplate<T, M> {
      */
     List<T> scroll(QueryBuilder queryBuilder, Class<T> clazz) throws Exception;
 
+    /**
+     * scroll方式查询，全部分页在截止时间内完成，超时后释放scroll上下文
+     *
+     * @param queryBuilder
+     * @param clazz
+     * @param deadline
+     * @return
+     * @throws Exception 超过截止时间时为TimeoutException
+     */
+    List<T> scroll(QueryBuilder queryBuilder, Class<T> clazz, Deadline deadline) throws Exception;
+
     /**
      * scroll方式查询
      *
@@ -254,44 +408,64 @@ public interface ElasticsearchTemplate<T, M> {
     List<T> scroll(QueryBuilder queryBuilder, Class<T> clazz, long time, String... indexs) throws Exception;
 
     /**
-     * Template方式搜索，Template已经保存在script目录下
-     * look at https://www.elastic.co/guide/en/elasticsearch/client/java-api/6.6/java-search-template.html
-     * 暂时无法使用该方法，原因为官方API SearchTemplateRequestBuilder仍保留对transportClient 的依赖，但Migration Guide 中描述需要把transportClient迁移为RestHighLevelClient
+     * 以存储的mustache模板搜索，只发送模板名称和参数，模板需要事先通过storeTemplate保存
+     * 集群上的模板不存在（resource_not_found）且本进程保存过该模板时，重新保存后重试一次
+     * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/current/java-rest-high-search-template.html
      *
      * @param template_params
      * @param templateName
      * @param clazz
      * @return
+     * @throws Exception
      */
-    @Deprecated
     List<T> searchTemplate(Map<String, Object> template_params, String templateName, Class<T> clazz) throws Exception;
 
     /**
-     * Template方式搜索，Template内容以参数方式传入
-     * look at https://www.elastic.co/guide/en/elasticsearch/client/java-api/6.6/java-search-template.html
-     * 暂时无法使用该方法，原因为官方API SearchTemplateRequestBuilder仍保留对transportClient 的依赖，但Migration Guide 中描述需要把transportClient迁移为RestHighLevelClient
+     * Template方式搜索，Template内容以参数方式传入，每次请求都发送模板内容，频繁执行的查询应保存后使用searchTemplate
      *
      * @param template_params
      * @param templateSource
      * @param clazz
      * @return
+     * @throws Exception
      */
-    @Deprecated
     List<T> searchTemplateBySource(Map<String, Object> template_params, String templateSource, Class<T> clazz) throws Exception;
 
     /**
-     * 保存Template
-     * look at https://www.elastic.co/guide/en/elasticsearch/client/java-api/6.6/java-search-template.html
-     * 暂时无法使用该方法，原因为官方API SearchTemplateRequestBuilder仍保留对transportClient 的依赖，但Migration Guide 中描述需要把transportClient迁移为RestHighLevelClient
+     * 批量以存储的模板搜索，多个模板在一次msearch请求中执行，结果与请求一一对应
+     * 集群上不存在的模板处理方式与searchTemplate相同
+     *
+     * @param templateNames
+     * @param template_params 与templateNames一一对应
+     * @param clazz
+     * @return
+     * @throws Exception 任一查询失败
+     */
+    List<List<T>> multiSearchTemplate(List<String> templateNames, List<Map<String, Object>> template_params, Class<T> clazz) throws Exception;
+
+    /**
+     * 保存mustache模板，保留原有签名以兼容已有调用，新代码使用storeTemplate
      *
      * @param templateName
      * @param templateSource
      * @param clazz
-     * @return
+     * @return 空列表
+     * @throws Exception 保存失败或未被确认
      */
     @Deprecated
     List<T> saveTemplate(String templateName, String templateSource, Class<T> clazz) throws Exception;
 
+    /**
+     * 保存mustache模板（stored script），本进程已经保存过相同内容时不再重复发送
+     * 本进程的记录不代表集群上的状态，模板在集群上丢失时由searchTemplate重新保存
+     *
+     * @param templateName
+     * @param templateSource
+     * @return 是否已保存
+     * @throws Exception
+     */
+    boolean storeTemplate(String templateName, String templateSource) throws Exception;
+
     /**
      * 搜索建议
      *
@@ -317,7 +491,8 @@ public interface ElasticsearchTemplate<T, M> {
     List<String> completionSuggest(String fieldName, String fieldValue, Class<T> clazz, String... indexs) throws Exception;
 
     /**
-     * 根据ID查询
+     * 根据ID查询，为实时GET；分区实体在全部分区中mget
+     * 实体配置了@ESRouting而没有给出routing时无法确定分片，退化为按ID检索，为近实时，刚写入还未refresh的文档查询不到
      *
      * @param id
      * @param clazz
@@ -327,7 +502,19 @@ public interface ElasticsearchTemplate<T, M> {
     T getById(M id, Class<T> clazz) throws Exception;
 
     /**
-     * 根据ID列表批量查询
+     * 根据ID和routing查询，实体配置了@ESRouting时只访问一个分片
+     *
+     * @param id
+     * @param routing
+     * @param clazz
+     * @return
+     * @throws Exception
+     */
+    T getById(M id, String routing, Class<T> clazz) throws Exception;
+
+    /**
+     * 根据ID列表批量查询，为实时mget；分区实体在全部分区中mget
+     * 实体配置了@ESRouting时无法确定分片，退化为按ID检索，为近实时
      *
      * @param ids
      * @param clazz
@@ -345,6 +532,16 @@ public interface ElasticsearchTemplate<T, M> {
      */
     boolean exists(M id, Class<T> clazz) throws Exception;
 
+    /**
+     * 根据ID和routing判断数据是否存在
+     *
+     * @param id
+     * @param routing
+     * @param clazz
+     * @return
+     */
+    boolean exists(M id, String routing, Class<T> clazz) throws Exception;
+
     /**
      * 普通聚合查询
      * 以bucket分组以aggstypes的方式metric度量
@@ -488,6 +685,19 @@ public interface ElasticsearchTemplate<T, M> {
      */
     Aggregations aggs(AggregationBuilder aggregationBuilder, QueryBuilder queryBuilder, Class<T> clazz) throws Exception;
 
+    /**
+     * 通用（定制）聚合基础方法，在截止时间内完成
+     * 其他聚合方法可以通过Deadline.call在截止时间内调用
+     *
+     * @param aggregationBuilder
+     * @param queryBuilder
+     * @param clazz
+     * @param deadline
+     * @return
+     * @throws Exception 超过截止时间时为TimeoutException
+     */
+    Aggregations aggs(AggregationBuilder aggregationBuilder, QueryBuilder queryBuilder, Class<T> clazz, Deadline deadline) throws Exception;
+
     /**
      * 通用（定制）聚合基础方法
      *
@@ -575,6 +785,61 @@ public interface ElasticsearchTemplate<T, M> {
     Map percentileRanksAggs(String metricName, QueryBuilder queryBuilder, Class<T> clazz, double[] customSegment, String... indexs) throws Exception;
 
 
+    /**
+     * 以百分比聚合（分索引并行）
+     * 每个索引单独并行查询，在本地以t-digest合并，不再写入的索引的中间结果会缓存Constant.PERCENTILES_DIGEST_CACHE_TTL（查询条件带now等相对时间时不缓存），
+     * 结果与percentilesAggs的误差不超过Constant.PERCENTILES_DIGEST_RANK_TOLERANCE个百分位秩
+     *
+     * @param metricName
+     * @param queryBuilder
+     * @param clazz
+     * @param customSegment
+     * @return
+     * @throws Exception
+     */
+    Map<Double, Double> percentilesAggsParallel(String metricName, QueryBuilder queryBuilder, Class<T> clazz, double[] customSegment) throws Exception;
+
+    /**
+     * 以百分比聚合（分索引并行）
+     *
+     * @param metricName
+     * @param queryBuilder
+     * @param clazz
+     * @param customSegment
+     * @param indexs
+     * @return
+     * @throws Exception
+     */
+    Map<Double, Double> percentilesAggsParallel(String metricName, QueryBuilder queryBuilder, Class<T> clazz, double[] customSegment, String... indexs) throws Exception;
+
+    /**
+     * 以百分等级聚合（分索引并行）
+     * 每个索引单独并行查询，在本地以t-digest合并，不再写入的索引的中间结果会缓存Constant.PERCENTILES_DIGEST_CACHE_TTL（查询条件带now等相对时间时不缓存），
+     * 结果与percentileRanksAggs的误差不超过Constant.PERCENTILES_DIGEST_RANK_TOLERANCE个百分位秩
+     *
+     * @param metricName
+     * @param queryBuilder
+     * @param clazz
+     * @param customSegment
+     * @return
+     * @throws Exception
+     */
+    Map<Double, Double> percentileRanksAggsParallel(String metricName, QueryBuilder queryBuilder, Class<T> clazz, double[] customSegment) throws Exception;
+
+    /**
+     * 以百分等级聚合（分索引并行）
+     *
+     * @param metricName
+     * @param queryBuilder
+     * @param clazz
+     * @param customSegment
+     * @param indexs
+     * @return
+     * @throws Exception
+     */
+    Map<Double, Double> percentileRanksAggsParallel(String metricName, QueryBuilder queryBuilder, Class<T> clazz, double[] customSegment, String... indexs) throws Exception;
+
+
     /**
      * 过滤器聚合
      * new FiltersAggregator.KeyedFilter("men", QueryBuilders.termQuery("gender", "male"))
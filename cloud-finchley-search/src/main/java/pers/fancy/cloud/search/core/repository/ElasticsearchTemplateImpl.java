@@ -1,13 +1,33 @@
 package pers.fancy.cloud.search.core.repository;
 
+import com.carrotsearch.hppc.cursors.ObjectObjectCursor;
+import com.tdunning.math.stats.TDigest;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.lucene.search.TotalHits;
+import org.elasticsearch.action.admin.cluster.storedscripts.PutStoredScriptRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.support.ActiveShardCount;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.action.support.master.AcknowledgedResponse;
 import org.elasticsearch.index.reindex.BulkByScrollResponse;
 import org.elasticsearch.index.reindex.DeleteByQueryRequest;
 import org.elasticsearch.search.aggregations.metrics.*;
 import pers.fancy.cloud.search.core.annotation.ESMapping;
+import pers.fancy.cloud.search.core.config.LatencyAwareNodeSelector;
 import pers.fancy.cloud.search.core.enums.AggsType;
 import pers.fancy.cloud.search.core.enums.DataType;
+import pers.fancy.cloud.search.core.limit.ClusterGuard;
+import pers.fancy.cloud.search.core.limit.HedgedReader;
+import pers.fancy.cloud.search.core.metrics.SlowQueryLogger;
+import pers.fancy.cloud.search.core.metrics.TemplateMetrics;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
@@ -16,6 +36,7 @@ import org.elasticsearch.action.get.*;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.*;
+import org.elasticsearch.action.support.WriteRequest;
 import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.action.update.UpdateResponse;
 import org.elasticsearch.client.Request;
@@ -24,11 +45,23 @@ import org.elasticsearch.client.Response;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.client.core.CountRequest;
 import org.elasticsearch.client.core.CountResponse;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.script.ScriptType;
-import org.elasticsearch.script.mustache.SearchTemplateRequestBuilder;
+import org.elasticsearch.script.mustache.MultiSearchTemplateRequest;
+import org.elasticsearch.script.mustache.MultiSearchTemplateResponse;
+import org.elasticsearch.script.mustache.SearchTemplateRequest;
+import org.elasticsearch.script.mustache.SearchTemplateResponse;
 import org.elasticsearch.search.Scroll;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
@@ -54,23 +87,30 @@ import org.elasticsearch.search.aggregations.metrics.StatsAggregationBuilder;
 import org.elasticsearch.search.aggregations.metrics.ParsedSum;
 import org.elasticsearch.search.aggregations.metrics.ValueCount;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
 import org.elasticsearch.search.fetch.subphase.highlight.HighlightBuilder;
 import org.elasticsearch.search.fetch.subphase.highlight.HighlightField;
 import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortOrder;
 import org.elasticsearch.search.suggest.Suggest;
 import org.elasticsearch.search.suggest.SuggestBuilder;
 import org.elasticsearch.search.suggest.completion.CompletionSuggestion;
 import org.elasticsearch.search.suggest.completion.CompletionSuggestionBuilder;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
 import pers.fancy.cloud.search.core.util.*;
 
+import javax.annotation.PostConstruct;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -85,29 +125,72 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
     @Autowired
     RestHighLevelClient client;
 
+    @Autowired
+    RequestOptions requestOptions;
+
+    @Autowired
+    ClusterGuard clusterGuard;
+
+    @Autowired
+    TemplateMetrics templateMetrics;
+
+    @Autowired
+    SlowQueryLogger slowQueryLogger;
+
+    @Autowired
+    HedgedReader hedgedReader;
+
+    @Autowired
+    LatencyAwareNodeSelector nodeSelector;
+
+    @Autowired
+    EntityCodec entityCodec;
+
+    //查询请求使用的RequestOptions，二进制格式时带有Accept头
+    private RequestOptions readOptions;
+
+    //本进程保存过的模板内容，内容未变化时不再重复保存；集群上的模板丢失时按此内容重新保存
+    private final Map<String, String> storedTemplates = new ConcurrentHashMap<>();
+    //查询的索引（逗号分隔）是否按注解的索引排序创建
+    private final Map<String, IndexSortCheck> indexSortChecks = new ConcurrentHashMap<>();
+    private static final String INDEX_SORT_FIELD = "index.sort.field";
+    private static final String INDEX_SORT_ORDER = "index.sort.order";
+
+    //bulk请求体压缩，超过阈值（字节）的请求体以gzip发送
+    @Value("${elasticsearch.compression.enabled:true}")
+    private boolean compressionEnabled;
+    @Value("${elasticsearch.compression.request-threshold:16384}")
+    private int compressionThreshold;
+
+    @PostConstruct
+    public void init() {
+        readOptions = entityCodec.readOptions(requestOptions);
+    }
+
     @Override
     public Response request(Request request) throws Exception {
-        Response response = client.getLowLevelClient().performRequest(request);
+        boolean read = "GET".equals(request.getMethod()) || "HEAD".equals(request.getMethod());
+        Response response = execute(read, () -> client.getLowLevelClient().performRequest(request));
         return response;
     }
 
     @Override
     public boolean save(T t) throws Exception {
         MetaData metaData = IndexTools.getIndexType(t.getClass());
-        String indexname = metaData.getIndexname();
+        String indexname = PartitionTools.getWriteIndexName(metaData, t);
         String indextype = metaData.getIndextype();
         String id = Tools.getESId(t);
-        IndexRequest indexRequest = null;
-        if (StringUtils.isEmpty(id)) {
-            indexRequest = new IndexRequest(indexname, indextype);
-        } else {
-            indexRequest = new IndexRequest(indexname, indextype, id);
-        }
-        String source = JsonUtils.obj2String(t);
-        indexRequest.source(source, XContentType.JSON);
+        IndexRequest indexRequest = StringUtils.isEmpty(id) ? new IndexRequest(indexname, indextype) : new IndexRequest(indexname, indextype, id);
+        indexRequest.source(entityCodec.encode(t), entityCodec.getXContentType());
+        indexRequest.routing(Tools.getESRouting(t));
+        WriteOptions.resolve(metaData).applyTo(indexRequest);
         IndexResponse indexResponse;
-        indexResponse = client.index(indexRequest, RequestOptions.DEFAULT);
+        indexResponse = execute(false, () -> client.index(indexRequest, requestOptions));
         if (indexResponse.getResult() == DocWriteResponse.Result.CREATED) {
+            //分区字段的值被修改时文档会在新的分区中创建
+            if (metaData.isPartitioned() && !StringUtils.isEmpty(id)) {
+                removeMovedCopies(metaData, Collections.singletonMap(indexResponse.getIndex(), Collections.singletonList(id)));
+            }
             log.info("INDEX CREATE SUCCESS");
         } else if (indexResponse.getResult() == DocWriteResponse.Result.UPDATED) {
             log.info("INDEX UPDATE SUCCESS");
@@ -124,18 +207,31 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
         }
         T t = list.get(0);
         MetaData metaData = IndexTools.getIndexType(t.getClass());
-        String indexname = metaData.getIndexname();
         String indextype = metaData.getIndextype();
         BulkRequest rrr = new BulkRequest();
         for (int i = 0; i < list.size(); i++) {
             T tt = list.get(i);
             String id = Tools.getESId(tt);
+            String indexname = PartitionTools.getWriteIndexName(metaData, tt);
             //            rrr.add(new IndexRequest(indexname, indextype, id)
             //                    .source(XContentType.JSON, JsonUtils.obj2String(tt)));
             rrr.add(new IndexRequest(indexname, indextype, id)
-                    .source(BeanTools.objectToMap(tt)));
+                    .routing(Tools.getESRouting(tt))
+                    .source(BeanTools.objectToMap(tt), entityCodec.getBulkXContentType()));
+        }
+        WriteOptions.resolve(metaData).applyTo(rrr);
+        BulkResponse bulkResponse = bulk(rrr);
+        if (metaData.isPartitioned()) {
+            Map<String, List<String>> created = new HashMap<>();
+            for (int i = 0; i < list.size(); i++) {
+                BulkItemResponse item = bulkResponse.getItems()[i];
+                if (!item.isFailed() && !StringUtils.isEmpty(Tools.getESId(list.get(i)))
+                        && item.getResponse().getResult() == DocWriteResponse.Result.CREATED) {
+                    created.computeIfAbsent(item.getIndex(), k -> new ArrayList<>()).add(item.getId());
+                }
+            }
+            removeMovedCopies(metaData, created);
         }
-        BulkResponse bulkResponse = client.bulk(rrr, RequestOptions.DEFAULT);
         return bulkResponse;
     }
 
@@ -146,32 +242,42 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
         }
         T t = list.get(0);
         MetaData metaData = IndexTools.getIndexType(t.getClass());
-        String indexname = metaData.getIndexname();
         String indextype = metaData.getIndextype();
+        Map<String, String> located = locatePartitions(metaData, list);
         BulkRequest rrr = new BulkRequest();
         for (int i = 0; i < list.size(); i++) {
             T tt = list.get(i);
             String id = Tools.getESId(tt);
+            String indexname = getUpdateIndexName(metaData, tt, located);
             rrr.add(new UpdateRequest(indexname, indextype, id)
-                    .doc(Tools.getFieldValue(tt)));
+                    .routing(Tools.getESRouting(tt))
+                    .doc(Tools.getFieldValue(tt), entityCodec.getBulkXContentType()));
         }
-        BulkResponse bulkResponse = client.bulk(rrr, RequestOptions.DEFAULT);
+        WriteOptions.resolve(metaData).applyTo(rrr);
+        BulkResponse bulkResponse = bulk(rrr);
         return bulkResponse;
     }
 
     @Override
     public boolean update(T t) throws Exception {
         MetaData metaData = IndexTools.getIndexType(t.getClass());
-        String indexname = metaData.getIndexname();
         String indextype = metaData.getIndextype();
         String id = Tools.getESId(t);
         if (StringUtils.isEmpty(id)) {
             throw new Exception("ID cannot be empty");
         }
+        //局部更新通常不带分区字段，此时按ID查找文档所在的分区
+        String indexname = PartitionTools.hasPartitionValue(metaData, t) ? PartitionTools.getWriteIndexName(metaData, t)
+                : locatePartitions(metaData, Tools.getESRouting(t), Collections.singletonList(id)).get(id);
+        if (indexname == null) {
+            throw new Exception("document " + id + " not found in partitions of " + metaData.getIndexname());
+        }
         UpdateRequest updateRequest = new UpdateRequest(indexname, indextype, id);
-        updateRequest.doc(Tools.getFieldValue(t));
+        updateRequest.doc(Tools.getFieldValue(t), entityCodec.getXContentType());
+        updateRequest.routing(Tools.getESRouting(t));
+        WriteOptions.resolve(metaData).applyTo(updateRequest);
         UpdateResponse updateResponse = null;
-        updateResponse = client.update(updateRequest, RequestOptions.DEFAULT);
+        updateResponse = execute(false, () -> client.update(updateRequest, requestOptions));
         if (updateResponse.getResult() == DocWriteResponse.Result.CREATED) {
             log.info("INDEX CREATE SUCCESS");
         } else if (updateResponse.getResult() == DocWriteResponse.Result.UPDATED) {
@@ -186,21 +292,23 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
     public BulkResponse batchUpdate(QueryBuilder queryBuilder, T t, Class clazz, int limitcount, boolean asyn) throws Exception {
         MetaData metaData = IndexTools.getIndexType(t.getClass());
         String indexname = metaData.getIndexname();
-        String indextype = metaData.getIndextype();
         if (queryBuilder == null) {
             throw new NullPointerException();
         }
         if (Tools.getESId(t) == null || "".equals(Tools.getESId(t))) {
             PageSortHighLight psh = new PageSortHighLight(1, limitcount);
             psh.setHighLight(null);
-            PageList pageList = this.search(queryBuilder, psh, clazz, indexname);
+            String[] searchIndexname = metaData.isPartitioned() ? PartitionTools.getSearchIndexNames(metaData, queryBuilder) : new String[]{indexname};
+            PageList pageList = this.search(queryBuilder, psh, clazz, searchIndexname);
             if (pageList.getTotalElements() > limitcount) {
                 throw new Exception("beyond the limitcount");
             }
+            //异步执行时写入选项在调用线程上解析
+            WriteOptions options = WriteOptions.resolve(metaData);
             if (asyn) {
                 new Thread(() -> {
                     try {
-                        batchUpdate(pageList.getList(), indexname, indextype, t);
+                        batchUpdate(pageList.getList(), metaData, t, options);
                         log.info("asyn batch finished update");
                     } catch (Exception e) {
                         log.error("asyn batch update fail", e);
@@ -208,22 +316,25 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
                 }).start();
                 return null;
             } else {
-                return batchUpdate(pageList.getList(), indexname, indextype, t);
+                return batchUpdate(pageList.getList(), metaData, t, options);
             }
         } else {
             throw new Exception("批量更新请不要给主键传值");
         }
     }
 
-    private BulkResponse batchUpdate(List<T> list, String indexname, String indextype, T tot) throws Exception {
+    private BulkResponse batchUpdate(List<T> list, MetaData metaData, T tot, WriteOptions options) throws Exception {
         Map map = Tools.getFieldValue(tot);
+        Map<String, String> located = locatePartitions(metaData, list);
         BulkRequest rrr = new BulkRequest();
         for (int i = 0; i < list.size(); i++) {
             T tt = list.get(i);
-            rrr.add(new UpdateRequest(indexname, indextype, Tools.getESId(tt))
-                    .doc(map));
+            rrr.add(new UpdateRequest(getUpdateIndexName(metaData, tt, located), metaData.getIndextype(), Tools.getESId(tt))
+                    .routing(Tools.getESRouting(tt))
+                    .doc(map, entityCodec.getBulkXContentType()));
         }
-        BulkResponse bulkResponse = client.bulk(rrr, RequestOptions.DEFAULT);
+        options.applyTo(rrr);
+        BulkResponse bulkResponse = bulk(rrr);
         return bulkResponse;
     }
 
@@ -236,15 +347,21 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
     @Override
     public boolean delete(T t) throws Exception {
         MetaData metaData = IndexTools.getIndexType(t.getClass());
-        String indexname = metaData.getIndexname();
         String indextype = metaData.getIndextype();
         String id = Tools.getESId(t);
         if (StringUtils.isEmpty(id)) {
             throw new Exception("ID cannot be empty");
         }
+        String indexname = PartitionTools.hasPartitionValue(metaData, t) ? PartitionTools.getWriteIndexName(metaData, t)
+                : locatePartitions(metaData, Tools.getESRouting(t), Collections.singletonList(id)).get(id);
+        if (indexname == null) {
+            return false;
+        }
         DeleteRequest deleteRequest = new DeleteRequest(indexname, indextype, id);
+        deleteRequest.routing(Tools.getESRouting(t));
+        WriteOptions.resolve(metaData).applyTo(deleteRequest);
         DeleteResponse deleteResponse = null;
-        deleteResponse = client.delete(deleteRequest, RequestOptions.DEFAULT);
+        deleteResponse = execute(false, () -> client.delete(deleteRequest, requestOptions));
         if (deleteResponse.getResult() == DocWriteResponse.Result.DELETED) {
             log.info("INDEX DELETE SUCCESS");
         } else {
@@ -253,27 +370,158 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
         return true;
     }
 
+    /**
+     * 更新已有文档时的目标索引：分区字段有值时为对应分区，否则为locatePartitions查找到的分区；
+     * 都没有时使用当前分区，由es在bulk结果中报告文档不存在
+     */
+    private String getUpdateIndexName(MetaData metaData, T t, Map<String, String> located) throws Exception {
+        String indexname = PartitionTools.hasPartitionValue(metaData, t) ? null : located.get(Tools.getESId(t));
+        return indexname == null ? PartitionTools.getWriteIndexName(metaData, t) : indexname;
+    }
+
+    private Map<String, String> locatePartitions(MetaData metaData, List<T> list) throws Exception {
+        List<String> ids = new ArrayList<>();
+        for (T t : list) {
+            if (!PartitionTools.hasPartitionValue(metaData, t)) {
+                ids.add(Tools.getESId(t));
+            }
+        }
+        return locatePartitions(metaData, null, ids);
+    }
+
+    /**
+     * 查找已有文档所在的分区索引
+     * 能确定分片时（未配置routing或者给出了routing）在全部分区中实时GET；
+     * 否则按ID检索，为近实时，刚写入还未refresh的文档找不到
+     *
+     * @param metaData
+     * @param routing
+     * @param ids
+     * @return ID到分区索引的映射，找不到的ID不在结果中
+     * @throws Exception
+     */
+    private Map<String, String> locatePartitions(MetaData metaData, String routing, Collection<String> ids) throws Exception {
+        Map<String, String> located = new HashMap<>();
+        if (ids.isEmpty()) {
+            return located;
+        }
+        if (metaData.isRouted() && routing == null) {
+            SearchRequest searchRequest = new SearchRequest(metaData.getSearchIndexNames());
+            SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+            searchSourceBuilder.query(QueryBuilders.idsQuery().addIds(ids.toArray(new String[0])));
+            searchSourceBuilder.fetchSource(false);
+            searchSourceBuilder.size(ids.size());
+            searchRequest.source(searchSourceBuilder);
+            for (SearchHit hit : executeSearch(null, searchRequest).getHits().getHits()) {
+                located.putIfAbsent(hit.getId(), hit.getIndex());
+            }
+            return located;
+        }
+        getFromPartitions(metaData, routing, false, ids.toArray(new String[0]))
+                .forEach((id, response) -> located.put(id, response.getIndex()));
+        return located;
+    }
+
+    /**
+     * 分区实体当前存在的全部分区索引
+     */
+    private String[] getPartitionIndices(MetaData metaData) throws Exception {
+        GetSettingsRequest request = new GetSettingsRequest()
+                .indices(PartitionTools.getIndexPattern(metaData))
+                .names("index.number_of_shards");
+        GetSettingsResponse response = execute(true, () -> client.indices().getSettings(request, requestOptions));
+        List<String> indices = new ArrayList<>();
+        response.getIndexToSettings().forEach(cursor -> indices.add(cursor.key));
+        return indices.toArray(new String[0]);
+    }
+
+    /**
+     * 在全部分区中以mget实时获取文档，每个ID取找到的第一个
+     *
+     * @param metaData
+     * @param routing     实体配置了routing时必须给出
+     * @param fetchSource
+     * @param ids
+     * @return ID到GET结果的映射，按ids的顺序，找不到的ID不在结果中
+     * @throws Exception
+     */
+    private Map<String, GetResponse> getFromPartitions(MetaData metaData, String routing, boolean fetchSource, String... ids) throws Exception {
+        Map<String, GetResponse> found = new LinkedHashMap<>();
+        String[] indices = getPartitionIndices(metaData);
+        if (indices.length == 0 || ids.length == 0) {
+            return found;
+        }
+        MultiGetRequest request = new MultiGetRequest();
+        for (String id : ids) {
+            for (String index : indices) {
+                request.add(new MultiGetRequest.Item(index, metaData.getIndextype(), id)
+                        .routing(routing)
+                        .fetchSourceContext(fetchSource ? FetchSourceContext.FETCH_SOURCE : FetchSourceContext.DO_NOT_FETCH_SOURCE));
+            }
+        }
+        MultiGetResponse response = execute(true, () -> client.mget(request, readOptions));
+        for (MultiGetItemResponse item : response.getResponses()) {
+            //关闭的分区等返回失败，跳过
+            if (!item.isFailed() && item.getResponse().isExists()) {
+                found.putIfAbsent(item.getId(), item.getResponse());
+            }
+        }
+        return found;
+    }
+
+    /**
+     * 分区字段的值被修改后文档写入了新的分区，删除其他分区中同ID的旧文档
+     * 按ID检索，为近实时，旧文档在写入后还未refresh时不会被删除
+     *
+     * @param metaData
+     * @param created  新创建文档所在的索引到ID的映射
+     * @throws Exception
+     */
+    private void removeMovedCopies(MetaData metaData, Map<String, List<String>> created) throws Exception {
+        if (created.isEmpty()) {
+            return;
+        }
+        BoolQueryBuilder query = QueryBuilders.boolQuery();
+        created.forEach((index, ids) -> query.should(QueryBuilders.boolQuery()
+                .filter(QueryBuilders.idsQuery().addIds(ids.toArray(new String[0])))
+                .mustNot(QueryBuilders.termQuery("_index", index))));
+        DeleteByQueryRequest request = new DeleteByQueryRequest(metaData.getSearchIndexNames());
+        request.setQuery(query);
+        request.setConflicts("proceed");
+        BulkByScrollResponse response = execute(false, () -> client.deleteByQuery(request, requestOptions));
+        if (response.getDeleted() > 0) {
+            log.info("{} documents moved to other partitions of {}, old copies deleted", response.getDeleted(), metaData.getIndexname());
+        }
+    }
+
     @Override
     public BulkByScrollResponse deleteByCondition(QueryBuilder queryBuilder, Class<T> clazz) throws Exception {
         MetaData metaData = IndexTools.getIndexType(clazz);
-        String[] indexname = metaData.getSearchIndexNames();
+        String[] indexname = PartitionTools.getSearchIndexNames(metaData, queryBuilder);
         DeleteByQueryRequest request = new DeleteByQueryRequest(indexname);
         request.setQuery(queryBuilder);
-        BulkByScrollResponse bulkResponse = client.deleteByQuery(request, RequestOptions.DEFAULT);
+        request.setRouting(getRouting(clazz, queryBuilder));
+        WriteOptions.resolve(metaData).applyTo(request);
+        BulkByScrollResponse bulkResponse = execute(false, () -> client.deleteByQuery(request, requestOptions));
         return bulkResponse;
     }
 
 
     @Override
-    public SearchResponse search(SearchRequest searchRequest) throws IOException {
-        SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
+    public SearchResponse search(SearchRequest searchRequest) throws Exception {
+        SearchResponse searchResponse = executeSearch(null, searchRequest);
         return searchResponse;
     }
 
+    @Override
+    public List<T> search(QueryBuilder queryBuilder, Class<T> clazz, Deadline deadline) throws Exception {
+        return deadline.call(() -> search(queryBuilder, clazz));
+    }
+
     @Override
     public List<T> search(QueryBuilder queryBuilder, Class<T> clazz) throws Exception {
         MetaData metaData = IndexTools.getIndexType(clazz);
-        String[] indexname = metaData.getSearchIndexNames();
+        String[] indexname = PartitionTools.getSearchIndexNames(metaData, queryBuilder);
         return search(queryBuilder, clazz, indexname);
     }
 
@@ -283,19 +531,17 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
         String indextype = metaData.getIndextype();
         List<T> list = new ArrayList<>();
         SearchRequest searchRequest = new SearchRequest(indexs);
+        searchRequest.routing(getRouting(clazz, queryBuilder));
         SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
         searchSourceBuilder.query(queryBuilder);
         searchSourceBuilder.from(0);
         searchSourceBuilder.size(Constant.DEFALT_PAGE_SIZE);
         searchRequest.source(searchSourceBuilder);
-        if (metaData.isPrintLog()) {
-            log.info(searchSourceBuilder.toString());
-        }
-        SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
+        SearchResponse searchResponse = executeSearch(clazz, searchRequest);
         SearchHits hits = searchResponse.getHits();
         SearchHit[] searchHits = hits.getHits();
         for (SearchHit hit : searchHits) {
-            T t = JsonUtils.string2Obj(hit.getSourceAsString(), clazz);
+            T t = EntityCodec.decode(hit.getSourceRef(), clazz);
             list.add(t);
         }
         return list;
@@ -304,7 +550,7 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
     @Override
     public List<T> searchMore(QueryBuilder queryBuilder, int limitSize, Class<T> clazz) throws Exception {
         MetaData metaData = IndexTools.getIndexType(clazz);
-        String[] indexname = metaData.getSearchIndexNames();
+        String[] indexname = PartitionTools.getSearchIndexNames(metaData, queryBuilder);
         return searchMore(queryBuilder, limitSize, clazz, indexname);
     }
 
@@ -318,10 +564,15 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
         return null;
     }
 
+    @Override
+    public long count(QueryBuilder queryBuilder, Class<T> clazz, Deadline deadline) throws Exception {
+        return deadline.call(() -> count(queryBuilder, clazz));
+    }
+
     @Override
     public long count(QueryBuilder queryBuilder, Class<T> clazz) throws Exception {
         MetaData metaData = IndexTools.getIndexType(clazz);
-        String[] indexname = metaData.getSearchIndexNames();
+        String[] indexname = PartitionTools.getSearchIndexNames(metaData, queryBuilder);
         return count(queryBuilder, clazz, indexname);
     }
 
@@ -329,26 +580,45 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
     public long count(QueryBuilder queryBuilder, Class<T> clazz, String... indexs) throws Exception {
         MetaData metaData = IndexTools.getIndexType(clazz);
         CountRequest countRequest = new CountRequest(indexs);
+        countRequest.routing(getRouting(clazz, queryBuilder));
         SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
         searchSourceBuilder.query(queryBuilder);
         countRequest.source(searchSourceBuilder);
-        CountResponse countResponse = client.count(countRequest, RequestOptions.DEFAULT);
+        CountResponse countResponse = executeRead("count", () -> client.count(countRequest, readOptions),
+                (options, listener) -> client.countAsync(countRequest, options, listener));
         long count = countResponse.getCount();
         return count;
     }
 
     @Override
     public T getById(M id, Class<T> clazz) throws Exception {
+        return getById(id, null, clazz);
+    }
+
+    @Override
+    public T getById(M id, String routing, Class<T> clazz) throws Exception {
         MetaData metaData = IndexTools.getIndexType(clazz);
         String indexname = metaData.getIndexname();
         String indextype = metaData.getIndextype();
         if (StringUtils.isEmpty(id)) {
             throw new Exception("ID cannot be empty");
         }
+        //未给出routing时无法确定文档所在分片，按ID检索（近实时）
+        if (metaData.isRouted() && routing == null) {
+            List<T> list = searchByIds(metaData, clazz, null, id.toString());
+            return list.isEmpty() ? null : list.get(0);
+        }
+        //分区索引无法确定文档所在分区，在全部分区中实时GET
+        if (metaData.isPartitioned()) {
+            GetResponse getResponse = getFromPartitions(metaData, routing, true, id.toString()).get(id.toString());
+            return getResponse == null ? null : EntityCodec.decode(getResponse.getSourceAsBytesRef(), clazz);
+        }
         GetRequest getRequest = new GetRequest(indexname, indextype, id.toString());
-        GetResponse getResponse = client.get(getRequest, RequestOptions.DEFAULT);
+        getRequest.routing(routing);
+        GetResponse getResponse = executeRead("get", () -> client.get(getRequest, readOptions),
+                (options, listener) -> client.getAsync(getRequest, options, listener));
         if (getResponse.isExists()) {
-            return JsonUtils.string2Obj(getResponse.getSourceAsString(), clazz);
+            return EntityCodec.decode(getResponse.getSourceAsBytesRef(), clazz);
         }
         return null;
     }
@@ -358,17 +628,32 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
         MetaData metaData = IndexTools.getIndexType(clazz);
         String indexname = metaData.getIndexname();
         String indextype = metaData.getIndextype();
+        if (metaData.isPartitioned() || metaData.isRouted()) {
+            String[] idStrs = new String[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                idStrs[i] = ids[i].toString();
+            }
+            //没有routing参数，配置了routing的实体只能按ID检索（近实时）
+            if (metaData.isRouted()) {
+                return searchByIds(metaData, clazz, null, idStrs);
+            }
+            List<T> list = new ArrayList<>();
+            for (GetResponse getResponse : getFromPartitions(metaData, null, true, idStrs).values()) {
+                list.add(EntityCodec.decode(getResponse.getSourceAsBytesRef(), clazz));
+            }
+            return list;
+        }
         MultiGetRequest request = new MultiGetRequest();
         for (int i = 0; i < ids.length; i++) {
             request.add(new MultiGetRequest.Item(indexname, indextype, ids[i].toString()));
         }
-        MultiGetResponse response = client.mget(request, RequestOptions.DEFAULT);
+        MultiGetResponse response = execute(true, () -> client.mget(request, readOptions));
         List<T> list = new ArrayList<>();
         for (int i = 0; i < response.getResponses().length; i++) {
             MultiGetItemResponse item = response.getResponses()[i];
             GetResponse getResponse = item.getResponse();
             if (getResponse.isExists()) {
-                list.add(JsonUtils.string2Obj(getResponse.getSourceAsString(), clazz));
+                list.add(EntityCodec.decode(getResponse.getSourceAsBytesRef(), clazz));
             }
         }
         return list;
@@ -376,25 +661,62 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
 
     @Override
     public boolean exists(M id, Class<T> clazz) throws Exception {
+        return exists(id, null, clazz);
+    }
+
+    @Override
+    public boolean exists(M id, String routing, Class<T> clazz) throws Exception {
         MetaData metaData = IndexTools.getIndexType(clazz);
         String indexname = metaData.getIndexname();
         String indextype = metaData.getIndextype();
         if (StringUtils.isEmpty(id)) {
             throw new Exception("ID cannot be empty");
         }
+        if (metaData.isRouted() && routing == null) {
+            return !searchByIds(metaData, clazz, null, id.toString()).isEmpty();
+        }
+        if (metaData.isPartitioned()) {
+            return !getFromPartitions(metaData, routing, false, id.toString()).isEmpty();
+        }
         GetRequest getRequest = new GetRequest(indexname, indextype, id.toString());
-        GetResponse getResponse = client.get(getRequest, RequestOptions.DEFAULT);
+        getRequest.routing(routing);
+        GetResponse getResponse = execute(true, () -> client.get(getRequest, readOptions));
         if (getResponse.isExists()) {
             return true;
         }
         return false;
     }
 
+    /**
+     * 在全部分区、全部分片中按ID检索，为近实时，刚写入还未refresh的文档检索不到
+     *
+     * @param metaData
+     * @param clazz
+     * @param routing
+     * @param ids
+     * @return
+     * @throws Exception
+     */
+    private List<T> searchByIds(MetaData metaData, Class<T> clazz, String routing, String... ids) throws Exception {
+        SearchRequest searchRequest = new SearchRequest(metaData.getSearchIndexNames());
+        searchRequest.routing(routing);
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+        searchSourceBuilder.query(QueryBuilders.idsQuery().addIds(ids));
+        searchSourceBuilder.size(ids.length);
+        searchRequest.source(searchSourceBuilder);
+        SearchResponse searchResponse = executeSearch(clazz, searchRequest);
+        List<T> list = new ArrayList<>();
+        for (SearchHit hit : searchResponse.getHits().getHits()) {
+            list.add(EntityCodec.decode(hit.getSourceRef(), clazz));
+        }
+        return list;
+    }
+
 
     @Override
     public Map aggs(String metricName, AggsType aggsType, QueryBuilder queryBuilder, Class<T> clazz, String bucketName) throws Exception {
         MetaData metaData = IndexTools.getIndexType(clazz);
-        String[] indexname = metaData.getSearchIndexNames();
+        String[] indexname = PartitionTools.getSearchIndexNames(metaData, queryBuilder);
         return aggs(metricName, aggsType, queryBuilder, clazz, bucketName, indexname);
     }
 
@@ -442,11 +764,9 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
 
 
         SearchRequest searchRequest = new SearchRequest(indexname);
+        searchRequest.routing(getRouting(clazz, queryBuilder));
         searchRequest.source(searchSourceBuilder);
-        if (metaData.isPrintLog()) {
-            log.info(searchSourceBuilder.toString());
-        }
-        SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
+        SearchResponse searchResponse = executeSearch(clazz, searchRequest);
 
         Aggregations aggregations = searchResponse.getAggregations();
         Terms by_risk_code = aggregations.get(by);
@@ -480,7 +800,7 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
     @Override
     public List<Down> aggswith2level(String metricName, AggsType aggsType, QueryBuilder queryBuilder, Class<T> clazz, String[] bucketNames) throws Exception {
         MetaData metaData = IndexTools.getIndexType(clazz);
-        String[] indexname = metaData.getSearchIndexNames();
+        String[] indexname = PartitionTools.getSearchIndexNames(metaData, queryBuilder);
         return aggswith2level(metricName, aggsType, queryBuilder, clazz, bucketNames, indexname);
     }
 
@@ -545,8 +865,9 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
         searchSourceBuilder.size(0);
         searchSourceBuilder.aggregation(termsAggregationBuilders[0]);
         SearchRequest searchRequest = new SearchRequest(indexname);
+        searchRequest.routing(getRouting(clazz, queryBuilder));
         searchRequest.source(searchSourceBuilder);
-        SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
+        SearchResponse searchResponse = executeSearch(clazz, searchRequest);
         //下面不支持2层以上的下钻
         List<Down> downList = new ArrayList<>();
         Terms terms1 = searchResponse.getAggregations().get(bys[0]);
@@ -619,7 +940,7 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
     @Override
     public double aggs(String metricName, AggsType aggsType, QueryBuilder queryBuilder, Class<T> clazz) throws Exception {
         MetaData metaData = IndexTools.getIndexType(clazz);
-        String[] indexname = metaData.getSearchIndexNames();
+        String[] indexname = PartitionTools.getSearchIndexNames(metaData, queryBuilder);
         return aggs(metricName, aggsType, queryBuilder, clazz, indexname);
     }
 
@@ -649,8 +970,9 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
             searchSourceBuilder.aggregation(AggregationBuilders.avg(me).field(metricName));
         }
         SearchRequest searchRequest = new SearchRequest(indexname);
+        searchRequest.routing(getRouting(clazz, queryBuilder));
         searchRequest.source(searchSourceBuilder);
-        SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
+        SearchResponse searchResponse = executeSearch(clazz, searchRequest);
         if (AggsType.count == aggsType) {
             ValueCount count = searchResponse.getAggregations().get(me);
             long value = count.getValue();
@@ -678,7 +1000,7 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
     @Override
     public Stats statsAggs(String metricName, QueryBuilder queryBuilder, Class<T> clazz) throws Exception {
         MetaData metaData = IndexTools.getIndexType(clazz);
-        String[] indexname = metaData.getSearchIndexNames();
+        String[] indexname = PartitionTools.getSearchIndexNames(metaData, queryBuilder);
         return statsAggs(metricName, queryBuilder, clazz, indexname);
     }
 
@@ -699,8 +1021,9 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
         StatsAggregationBuilder aggregation = AggregationBuilders.stats(me).field(metricName);
         searchSourceBuilder.aggregation(aggregation);
         SearchRequest searchRequest = new SearchRequest(indexname);
+        searchRequest.routing(getRouting(clazz, queryBuilder));
         searchRequest.source(searchSourceBuilder);
-        SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
+        SearchResponse searchResponse = executeSearch(clazz, searchRequest);
         Stats stats = searchResponse.getAggregations().get(me);
         return stats;
     }
@@ -708,7 +1031,7 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
     @Override
     public Map<String, Stats> statsAggs(String metricName, QueryBuilder queryBuilder, Class<T> clazz, String bucketName) throws Exception {
         MetaData metaData = IndexTools.getIndexType(clazz);
-        String[] indexname = metaData.getSearchIndexNames();
+        String[] indexname = PartitionTools.getSearchIndexNames(metaData, queryBuilder);
         return statsAggs(metricName, queryBuilder, clazz, bucketName, indexname);
     }
 
@@ -741,8 +1064,9 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
         searchSourceBuilder.size(0);
         searchSourceBuilder.aggregation(aggregation);
         SearchRequest searchRequest = new SearchRequest(indexname);
+        searchRequest.routing(getRouting(clazz, queryBuilder));
         searchRequest.source(searchSourceBuilder);
-        SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
+        SearchResponse searchResponse = executeSearch(clazz, searchRequest);
 
         Aggregations aggregations = searchResponse.getAggregations();
         Terms by_risk_code = aggregations.get(by);
@@ -754,10 +1078,15 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
         return map;
     }
 
+    @Override
+    public Aggregations aggs(AggregationBuilder aggregationBuilder, QueryBuilder queryBuilder, Class<T> clazz, Deadline deadline) throws Exception {
+        return deadline.call(() -> aggs(aggregationBuilder, queryBuilder, clazz));
+    }
+
     @Override
     public Aggregations aggs(AggregationBuilder aggregationBuilder, QueryBuilder queryBuilder, Class<T> clazz) throws Exception {
         MetaData metaData = IndexTools.getIndexType(clazz);
-        String[] indexname = metaData.getSearchIndexNames();
+        String[] indexname = PartitionTools.getSearchIndexNames(metaData, queryBuilder);
         return aggs(aggregationBuilder, queryBuilder, clazz, indexname);
     }
 
@@ -772,18 +1101,16 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
         searchSourceBuilder.size(0);
         searchSourceBuilder.aggregation(aggregationBuilder);
         SearchRequest searchRequest = new SearchRequest(indexname);
+        searchRequest.routing(getRouting(clazz, queryBuilder));
         searchRequest.source(searchSourceBuilder);
-        if (metaData.isPrintLog()) {
-            log.info(searchSourceBuilder.toString());
-        }
-        SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
+        SearchResponse searchResponse = executeSearch(clazz, searchRequest);
         return searchResponse.getAggregations();
     }
 
     @Override
     public long cardinality(String metricName, QueryBuilder queryBuilder, Class<T> clazz) throws Exception {
         MetaData metaData = IndexTools.getIndexType(clazz);
-        String[] indexname = metaData.getSearchIndexNames();
+        String[] indexname = PartitionTools.getSearchIndexNames(metaData, queryBuilder);
         return cardinality(metricName, queryBuilder, clazz, indexname);
     }
 
@@ -806,8 +1133,9 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
         searchSourceBuilder.size(0);
         searchSourceBuilder.aggregation(aggregation);
         SearchRequest searchRequest = new SearchRequest(indexname);
+        searchRequest.routing(getRouting(clazz, queryBuilder));
         searchRequest.source(searchSourceBuilder);
-        SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
+        SearchResponse searchResponse = executeSearch(clazz, searchRequest);
         Cardinality agg = searchResponse.getAggregations().get(me);
         return agg.getValue();
     }
@@ -815,7 +1143,7 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
     @Override
     public Map<Double, Double> percentilesAggs(String metricName, QueryBuilder queryBuilder, Class<T> clazz) throws Exception {
         MetaData metaData = IndexTools.getIndexType(clazz);
-        String[] indexname = metaData.getSearchIndexNames();
+        String[] indexname = PartitionTools.getSearchIndexNames(metaData, queryBuilder);
         return percentilesAggs(metricName, queryBuilder, clazz, Constant.DEFAULT_PERCSEGMENT, indexname);
     }
 
@@ -840,8 +1168,9 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
         searchSourceBuilder.size(0);
         searchSourceBuilder.aggregation(aggregation);
         SearchRequest searchRequest = new SearchRequest(indexs);
+        searchRequest.routing(getRouting(clazz, queryBuilder));
         searchRequest.source(searchSourceBuilder);
-        SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
+        SearchResponse searchResponse = executeSearch(clazz, searchRequest);
         Map<Double, Double> map = new LinkedHashMap<>();
         Percentiles agg = searchResponse.getAggregations().get(me);
         for (Percentile entry : agg) {
@@ -855,7 +1184,7 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
     @Override
     public Map percentileRanksAggs(String metricName, QueryBuilder queryBuilder, Class<T> clazz, double... customSegment) throws Exception {
         MetaData metaData = IndexTools.getIndexType(clazz);
-        String[] indexname = metaData.getSearchIndexNames();
+        String[] indexname = PartitionTools.getSearchIndexNames(metaData, queryBuilder);
         return percentileRanksAggs(metricName, queryBuilder, clazz, customSegment, indexname);
     }
 
@@ -879,8 +1208,9 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
         searchSourceBuilder.size(0);
         searchSourceBuilder.aggregation(aggregation);
         SearchRequest searchRequest = new SearchRequest(indexname);
+        searchRequest.routing(getRouting(clazz, queryBuilder));
         searchRequest.source(searchSourceBuilder);
-        SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
+        SearchResponse searchResponse = executeSearch(clazz, searchRequest);
         Map<Double, Double> map = new LinkedHashMap<>();
         PercentileRanks agg = searchResponse.getAggregations().get(me);
         for (Percentile entry : agg) {
@@ -892,10 +1222,154 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
     }
 
 
+    @Override
+    public Map<Double, Double> percentilesAggsParallel(String metricName, QueryBuilder queryBuilder, Class<T> clazz, double[] customSegment) throws Exception {
+        MetaData metaData = IndexTools.getIndexType(clazz);
+        String[] indexname = PartitionTools.getSearchIndexNames(metaData, queryBuilder);
+        return percentilesAggsParallel(metricName, queryBuilder, clazz, customSegment, indexname);
+    }
+
+    @Override
+    public Map<Double, Double> percentilesAggsParallel(String metricName, QueryBuilder queryBuilder, Class<T> clazz, double[] customSegment, String... indexs) throws Exception {
+        if (customSegment == null || customSegment.length == 0) {
+            throw new Exception("customSegment is null");
+        }
+        TDigest digest = parallelDigest(metricName, queryBuilder, clazz, indexs);
+        Map<Double, Double> map = new LinkedHashMap<>();
+        for (double percent : customSegment) {
+            map.put(percent, digest.quantile(percent / 100));
+        }
+        return map;
+    }
+
+    @Override
+    public Map<Double, Double> percentileRanksAggsParallel(String metricName, QueryBuilder queryBuilder, Class<T> clazz, double[] customSegment) throws Exception {
+        MetaData metaData = IndexTools.getIndexType(clazz);
+        String[] indexname = PartitionTools.getSearchIndexNames(metaData, queryBuilder);
+        return percentileRanksAggsParallel(metricName, queryBuilder, clazz, customSegment, indexname);
+    }
+
+    @Override
+    public Map<Double, Double> percentileRanksAggsParallel(String metricName, QueryBuilder queryBuilder, Class<T> clazz, double[] customSegment, String... indexs) throws Exception {
+        if (customSegment == null || customSegment.length == 0) {
+            throw new Exception("customSegment is null");
+        }
+        TDigest digest = parallelDigest(metricName, queryBuilder, clazz, indexs);
+        Map<Double, Double> map = new LinkedHashMap<>();
+        for (double value : customSegment) {
+            map.put(value, digest.cdf(value) * 100);
+        }
+        return map;
+    }
+
+    /**
+     * 分索引并行查询分位点采样，重建并合并t-digest
+     * 非活跃索引的digest从缓存读取，只有活跃索引（以及缓存未命中、过期的索引）才会真正发起查询
+     *
+     * @param metricName
+     * @param queryBuilder
+     * @param clazz
+     * @param indexs
+     * @return
+     * @throws Exception
+     */
+    private TDigest parallelDigest(String metricName, QueryBuilder queryBuilder, Class<T> clazz, String... indexs) throws Exception {
+        MetaData metaData = IndexTools.getIndexType(clazz);
+        Field f_metric = clazz.getDeclaredField(metricName.replaceAll(keyword, ""));
+        if (f_metric == null) {
+            throw new Exception("metric field is null");
+        }
+        metricName = genKeyword(f_metric, metricName);
+        String me = "percentiles_" + metricName.replaceAll(keyword, "");
+        String st = "stats_" + metricName.replaceAll(keyword, "");
+        String queryKey = queryBuilder == null ? "" : queryBuilder.toString();
+        boolean cacheable = DigestTools.isCacheable(queryKey);
+
+        List<TDigest> digests = new ArrayList<>();
+        Map<String, PlainActionFuture<SearchResponse>> futures = new LinkedHashMap<>();
+        Map<String, Boolean> closedMap = new HashMap<>();
+        TemplateMetrics.Context metricsContext = templateMetrics.current();
+        Deadline deadline = Deadline.current();
+        for (String index : resolveIndices(indexs)) {
+            String cacheKey = index + "|" + metricName + "|" + queryKey;
+            //查询条件带相对时间时不缓存，条件不变但命中的文档会随时间变化
+            boolean closed = cacheable && !IndexTools.isActiveIndex(metaData, index);
+            TDigest cached = closed ? DigestTools.getClosed(cacheKey) : null;
+            if (cached != null) {
+                digests.add(cached);
+                continue;
+            }
+            SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+            if (queryBuilder != null) {
+                searchSourceBuilder.query(queryBuilder);
+            }
+            searchSourceBuilder.size(0);
+            searchSourceBuilder.aggregation(AggregationBuilders.percentiles(me).field(metricName).percentiles(Constant.PERCENTILES_DIGEST_GRID));
+            searchSourceBuilder.aggregation(AggregationBuilders.stats(st).field(metricName));
+            if (deadline != null) {
+                deadline.check();
+                searchSourceBuilder.timeout(TimeValue.timeValueMillis(Math.max(1, deadline.remaining(TimeUnit.MILLISECONDS))));
+            }
+            SearchRequest searchRequest = new SearchRequest(index);
+            searchRequest.routing(getRouting(clazz, queryBuilder));
+            searchRequest.source(searchSourceBuilder);
+            PlainActionFuture<SearchResponse> future = PlainActionFuture.newFuture();
+            ClusterGuard.Permit permit = clusterGuard.acquire(true);
+            long start = System.nanoTime();
+            try {
+                client.searchAsync(searchRequest, readOptions, ActionListener.wrap(response -> {
+                    permit.onSuccess();
+                    templateMetrics.recordCall(metricsContext, start, response);
+                    future.onResponse(response);
+                }, e -> {
+                    permit.onFailure(e);
+                    future.onFailure(e);
+                }));
+            } catch (RuntimeException e) {
+                //请求没有发出
+                permit.onCancel();
+                throw e;
+            }
+            futures.put(cacheKey, future);
+            closedMap.put(cacheKey, closed);
+        }
+        for (Map.Entry<String, PlainActionFuture<SearchResponse>> entry : futures.entrySet()) {
+            SearchResponse searchResponse = deadline == null ? entry.getValue().actionGet()
+                    : entry.getValue().actionGet(Math.max(0, deadline.remaining(TimeUnit.MILLISECONDS)));
+            Percentiles percentiles = searchResponse.getAggregations().get(me);
+            Stats stats = searchResponse.getAggregations().get(st);
+            TDigest digest = DigestTools.build(percentiles, stats);
+            if (closedMap.get(entry.getKey())) {
+                DigestTools.putClosed(entry.getKey(), digest);
+            }
+            digests.add(digest);
+        }
+        return DigestTools.merge(digests);
+    }
+
+    /**
+     * 将索引名称、别名、通配符解析为具体的索引名称
+     *
+     * @param indexs
+     * @return
+     * @throws Exception
+     */
+    private String[] resolveIndices(String... indexs) throws Exception {
+        GetSettingsRequest request = new GetSettingsRequest()
+                .indices(indexs)
+                .indicesOptions(IndicesOptions.lenientExpandOpen())
+                .names("index.creation_date");
+        GetSettingsResponse response = execute(true, () -> client.indices().getSettings(request, requestOptions));
+        List<String> list = new ArrayList<>();
+        response.getIndexToSettings().keysIt().forEachRemaining(list::add);
+        return list.toArray(new String[0]);
+    }
+
+
     @Override
     public Map filterAggs(String metricName, AggsType aggsType, QueryBuilder queryBuilder, Class<T> clazz, FiltersAggregator.KeyedFilter... filters) throws Exception {
         MetaData metaData = IndexTools.getIndexType(clazz);
-        String[] indexname = metaData.getSearchIndexNames();
+        String[] indexname = PartitionTools.getSearchIndexNames(metaData, queryBuilder);
         return filterAggs(metricName, aggsType, queryBuilder, clazz, filters, indexname);
     }
 
@@ -930,8 +1404,9 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
         }
         searchSourceBuilder.aggregation(aggregation);
         SearchRequest searchRequest = new SearchRequest(indexname);
+        searchRequest.routing(getRouting(clazz, queryBuilder));
         searchRequest.source(searchSourceBuilder);
-        SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
+        SearchResponse searchResponse = executeSearch(clazz, searchRequest);
         Filters agg = searchResponse.getAggregations().get("filteragg");
         Map map = new LinkedHashMap();
         for (Filters.Bucket entry : agg.getBuckets()) {
@@ -963,7 +1438,7 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
     @Override
     public Map histogramAggs(String metricName, AggsType aggsType, QueryBuilder queryBuilder, Class<T> clazz, String bucketName, double interval) throws Exception {
         MetaData metaData = IndexTools.getIndexType(clazz);
-        String[] indexname = metaData.getSearchIndexNames();
+        String[] indexname = PartitionTools.getSearchIndexNames(metaData, queryBuilder);
         return histogramAggs(metricName, aggsType, queryBuilder, clazz, bucketName, interval, indexname);
     }
 
@@ -1002,8 +1477,9 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
         }
         searchSourceBuilder.aggregation(aggregation);
         SearchRequest searchRequest = new SearchRequest(indexname);
+        searchRequest.routing(getRouting(clazz, queryBuilder));
         searchRequest.source(searchSourceBuilder);
-        SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
+        SearchResponse searchResponse = executeSearch(clazz, searchRequest);
         ParsedHistogram agg = searchResponse.getAggregations().get(by);
         Map map = new LinkedHashMap();
         for (Histogram.Bucket entry : agg.getBuckets()) {
@@ -1035,7 +1511,7 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
     @Override
     public Map dateHistogramAggs(String metricName, AggsType aggsType, QueryBuilder queryBuilder, Class<T> clazz, String bucketName, DateHistogramInterval interval) throws Exception {
         MetaData metaData = IndexTools.getIndexType(clazz);
-        String[] indexname = metaData.getSearchIndexNames();
+        String[] indexname = PartitionTools.getSearchIndexNames(metaData, queryBuilder);
         return dateHistogramAggs(metricName, aggsType, queryBuilder, clazz, bucketName, interval, indexname);
     }
 
@@ -1080,8 +1556,9 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
         }
         searchSourceBuilder.aggregation(aggregation);
         SearchRequest searchRequest = new SearchRequest(indexname);
+        searchRequest.routing(getRouting(clazz, queryBuilder));
         searchRequest.source(searchSourceBuilder);
-        SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
+        SearchResponse searchResponse = executeSearch(clazz, searchRequest);
         ParsedDateHistogram agg = searchResponse.getAggregations().get(by);
         Map map = new LinkedHashMap();
         for (Histogram.Bucket entry : agg.getBuckets()) {
@@ -1112,15 +1589,30 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
 
     @Override
     public boolean deleteById(M id, Class<T> clazz) throws Exception {
+        return deleteById(id, null, clazz);
+    }
+
+    @Override
+    public boolean deleteById(M id, String routing, Class<T> clazz) throws Exception {
         MetaData metaData = IndexTools.getIndexType(clazz);
         String indexname = metaData.getIndexname();
         String indextype = metaData.getIndextype();
         if (StringUtils.isEmpty(id)) {
             throw new Exception("ID cannot be empty");
         }
+        if (metaData.isPartitioned() || (metaData.isRouted() && routing == null)) {
+            DeleteByQueryRequest request = new DeleteByQueryRequest(metaData.getSearchIndexNames());
+            request.setQuery(QueryBuilders.idsQuery().addIds(id.toString()));
+            request.setRouting(routing);
+            WriteOptions.resolve(metaData).applyTo(request);
+            BulkByScrollResponse bulkResponse = execute(false, () -> client.deleteByQuery(request, requestOptions));
+            return bulkResponse.getDeleted() > 0;
+        }
         DeleteRequest deleteRequest = new DeleteRequest(indexname, indextype, id.toString());
+        deleteRequest.routing(routing);
+        WriteOptions.resolve(metaData).applyTo(deleteRequest);
         DeleteResponse deleteResponse = null;
-        deleteResponse = client.delete(deleteRequest, RequestOptions.DEFAULT);
+        deleteResponse = execute(false, () -> client.delete(deleteRequest, requestOptions));
         if (deleteResponse.getResult() == DocWriteResponse.Result.DELETED) {
             log.info("INDEX DELETE SUCCESS");
         } else {
@@ -1129,10 +1621,60 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
         return true;
     }
 
+    @Override
+    public boolean save(T t, WriteOptions options) throws Exception {
+        return options.call(() -> save(t));
+    }
+
+    @Override
+    public BulkResponse save(List<T> list, WriteOptions options) throws Exception {
+        return options.call(() -> save(list));
+    }
+
+    @Override
+    public BulkResponse bulkUpdate(List<T> list, WriteOptions options) throws Exception {
+        return options.call(() -> bulkUpdate(list));
+    }
+
+    @Override
+    public boolean update(T t, WriteOptions options) throws Exception {
+        return options.call(() -> update(t));
+    }
+
+    @Override
+    public boolean updateCover(T t, WriteOptions options) throws Exception {
+        return options.call(() -> updateCover(t));
+    }
+
+    @Override
+    public boolean delete(T t, WriteOptions options) throws Exception {
+        return options.call(() -> delete(t));
+    }
+
+    @Override
+    public BulkByScrollResponse deleteByCondition(QueryBuilder queryBuilder, Class<T> clazz, WriteOptions options) throws Exception {
+        return options.call(() -> deleteByCondition(queryBuilder, clazz));
+    }
+
+    @Override
+    public boolean deleteById(M id, Class<T> clazz, WriteOptions options) throws Exception {
+        return options.call(() -> deleteById(id, clazz));
+    }
+
+    @Override
+    public boolean deleteById(M id, String routing, Class<T> clazz, WriteOptions options) throws Exception {
+        return options.call(() -> deleteById(id, routing, clazz));
+    }
+
+    @Override
+    public PageList<T> search(QueryBuilder queryBuilder, PageSortHighLight pageSortHighLight, Class<T> clazz, Deadline deadline) throws Exception {
+        return deadline.call(() -> search(queryBuilder, pageSortHighLight, clazz));
+    }
+
     @Override
     public PageList<T> search(QueryBuilder queryBuilder, PageSortHighLight pageSortHighLight, Class<T> clazz) throws Exception {
         MetaData metaData = IndexTools.getIndexType(clazz);
-        String[] indexname = metaData.getSearchIndexNames();
+        String[] indexname = PartitionTools.getSearchIndexNames(metaData, queryBuilder);
         if (pageSortHighLight == null) {
             throw new NullPointerException("PageSortHighLight不能为空!");
         }
@@ -1148,6 +1690,7 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
             throw new NullPointerException("PageSortHighLight不能为空!");
         }
         SearchRequest searchRequest = new SearchRequest(indexs);
+        searchRequest.routing(getRouting(clazz, queryBuilder));
         SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
         searchSourceBuilder.query(queryBuilder);
         //分页
@@ -1159,6 +1702,11 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
         orders.forEach(order ->
                 searchSourceBuilder.sort(new FieldSortBuilder(order.getProperty()).order(order.getDirection()))
         );
+        //排序与索引排序一致时只统计有限的命中数，分片收集够文档后提前结束
+        if (isIndexSortPrefix(metaData, orders) && isLiveIndexSorted(metaData, indexs)) {
+            searchSourceBuilder.trackTotalHitsUpTo(Math.max(Constant.INDEX_SORT_TRACK_TOTAL_HITS,
+                    pageSortHighLight.getCurrentPage() * pageSortHighLight.getPageSize()));
+        }
         //高亮
         HighLight highLight = pageSortHighLight.getHighLight();
         boolean highLightFlag = false;
@@ -1177,14 +1725,11 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
             searchSourceBuilder.highlighter(highlightBuilder);
         }
         searchRequest.source(searchSourceBuilder);
-        if (metaData.isPrintLog()) {
-            log.info(searchSourceBuilder.toString());
-        }
-        SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
+        SearchResponse searchResponse = executeSearch(clazz, searchRequest);
         SearchHits hits = searchResponse.getHits();
         SearchHit[] searchHits = hits.getHits();
         for (SearchHit hit : searchHits) {
-            T t = JsonUtils.string2Obj(hit.getSourceAsString(), clazz);
+            T t = EntityCodec.decode(hit.getSourceRef(), clazz);
             //替换高亮字段
             if (highLightFlag) {
                 Map<String, HighlightField> hmap = hit.getHighlightFields();
@@ -1204,10 +1749,74 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
 
         pageList.setList(list);
         pageList.setTotalElements(hits.getTotalHits().value);
+        pageList.setTotalElementsExact(hits.getTotalHits().relation == TotalHits.Relation.EQUAL_TO);
         pageList.setTotalPages(getTotalPages(hits.getTotalHits().value, pageSortHighLight.getPageSize()));
         return pageList;
     }
 
+    /**
+     * 排序是否为索引排序的前缀（字段、方向都一致）
+     */
+    private boolean isIndexSortPrefix(MetaData metaData, List<Sort.Order> orders) {
+        if (metaData == null || !metaData.isIndexSorted() || orders.isEmpty() || orders.size() > metaData.getIndexSortFields().length) {
+            return false;
+        }
+        for (int i = 0; i < orders.size(); i++) {
+            if (!orders.get(i).getProperty().equals(metaData.getIndexSortFields()[i])
+                    || orders.get(i).getDirection() != metaData.getIndexSortOrders()[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 查询的实际索引是否都按实体注解的索引排序创建，结果按Constant.INDEX_SORT_CHECK_INTERVAL缓存
+     * 注解新增或修改的索引排序只对新建的索引生效，已有索引需要reindex()之后才会放宽命中数统计
+     */
+    private boolean isLiveIndexSorted(MetaData metaData, String... indexs) {
+        String key = String.join(",", indexs);
+        IndexSortCheck check = indexSortChecks.get(key);
+        if (check != null && System.currentTimeMillis() - check.checkedAt < Constant.INDEX_SORT_CHECK_INTERVAL) {
+            return check.sorted;
+        }
+        boolean sorted;
+        try {
+            GetSettingsRequest request = new GetSettingsRequest().indices(indexs).names(INDEX_SORT_FIELD, INDEX_SORT_ORDER);
+            GetSettingsResponse response = execute(true, () -> client.indices().getSettings(request, requestOptions));
+            List<String> fields = Arrays.asList(metaData.getIndexSortFields());
+            List<String> orders = new ArrayList<>();
+            for (SortOrder order : metaData.getIndexSortOrders()) {
+                orders.add(order.toString());
+            }
+            sorted = response.getIndexToSettings().size() > 0;
+            for (ObjectObjectCursor<String, Settings> cursor : response.getIndexToSettings()) {
+                List<String> liveOrders = cursor.value.getAsList(INDEX_SORT_ORDER);
+                if (!fields.equals(cursor.value.getAsList(INDEX_SORT_FIELD))
+                        || !orders.equals(liveOrders.isEmpty() ? Collections.nCopies(fields.size(), SortOrder.ASC.toString()) : liveOrders)) {
+                    log.warn("index {} is not sorted by {} {}, reindex() it to apply the index sort", cursor.key, fields, orders);
+                    sorted = false;
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            log.warn("index sort of " + key + " not checked", e);
+            sorted = false;
+        }
+        indexSortChecks.put(key, new IndexSortCheck(sorted, System.currentTimeMillis()));
+        return sorted;
+    }
+
+    private static final class IndexSortCheck {
+        private final boolean sorted;
+        private final long checkedAt;
+
+        private IndexSortCheck(boolean sorted, long checkedAt) {
+            this.sorted = sorted;
+            this.checkedAt = checkedAt;
+        }
+    }
+
     private Object mapToObject(Map map, Class<?> beanClass) throws Exception {
         if (map == null) {
             return null;
@@ -1231,35 +1840,127 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
 
     @Override
     public List<T> searchTemplate(Map<String, Object> template_params, String templateName, Class<T> clazz) throws Exception {
-        if (true) {
-            throw new Exception("nonsupport!");
+        SearchTemplateRequest request = newSearchTemplateRequest(ScriptType.STORED, templateName, template_params, clazz);
+        try {
+            return searchTemplate(request, clazz);
+        } catch (ElasticsearchException e) {
+            if (!restoreTemplate(templateName, e)) {
+                throw e;
+            }
+            return searchTemplate(request, clazz);
         }
-        MetaData metaData = IndexTools.getIndexType(clazz);
-        String[] indexname = metaData.getSearchIndexNames();
-        SearchResponse sr = new SearchTemplateRequestBuilder(null)
-                .setScript("templateName")
-                .setScriptType(ScriptType.STORED)
-                .setScriptParams(template_params)
-                .setRequest(new SearchRequest(indexname))
-                .get()
-                .getResponse();
-        return null;
     }
 
     @Override
     public List<T> searchTemplateBySource(Map<String, Object> template_params, String templateSource, Class<T> clazz) throws Exception {
-        if (true) {
-            throw new Exception("nonsupport!");
+        return searchTemplate(newSearchTemplateRequest(ScriptType.INLINE, templateSource, template_params, clazz), clazz);
+    }
+
+    @Override
+    public List<List<T>> multiSearchTemplate(List<String> templateNames, List<Map<String, Object>> template_params, Class<T> clazz) throws Exception {
+        if (templateNames.size() != template_params.size()) {
+            throw new Exception("templateNames and template_params size mismatch");
+        }
+        MultiSearchTemplateRequest request = new MultiSearchTemplateRequest();
+        for (int i = 0; i < templateNames.size(); i++) {
+            request.add(newSearchTemplateRequest(ScriptType.STORED, templateNames.get(i), template_params.get(i), clazz));
+        }
+        MultiSearchTemplateResponse response = multiSearchTemplate(request);
+        boolean restored = false;
+        for (int i = 0; i < templateNames.size(); i++) {
+            MultiSearchTemplateResponse.Item item = response.getResponses()[i];
+            if (item.isFailure() && restoreTemplate(templateNames.get(i), item.getFailure())) {
+                restored = true;
+            }
         }
-        return null;
+        if (restored) {
+            response = multiSearchTemplate(request);
+        }
+        List<List<T>> results = new ArrayList<>();
+        for (MultiSearchTemplateResponse.Item item : response.getResponses()) {
+            if (item.isFailure()) {
+                throw new Exception("search template failed: " + item.getFailureMessage(), item.getFailure());
+            }
+            results.add(toList(item.getResponse().getResponse(), clazz));
+        }
+        return results;
+    }
+
+    private MultiSearchTemplateResponse multiSearchTemplate(MultiSearchTemplateRequest request) throws Exception {
+        return executeRead("msearch", () -> client.msearchTemplate(request, readOptions),
+                (options, listener) -> client.msearchTemplateAsync(request, options, listener));
+    }
+
+    /**
+     * 存储的模板在集群上不存在（被删除、集群重建等）时，按本进程保存过的内容重新保存
+     *
+     * @param templateName
+     * @param e            查询失败的异常
+     * @return 是否已重新保存，为true时可以重试查询
+     * @throws Exception
+     */
+    private boolean restoreTemplate(String templateName, Exception e) throws Exception {
+        if (e.getMessage() == null || !e.getMessage().contains("resource_not_found_exception")) {
+            return false;
+        }
+        String templateSource = storedTemplates.remove(templateName);
+        if (templateSource == null) {
+            return false;
+        }
+        log.warn("stored template {} not found in cluster, save it again", templateName);
+        return storeTemplate(templateName, templateSource);
     }
 
     @Override
+    @Deprecated
     public List<T> saveTemplate(String templateName, String templateSource, Class<T> clazz) throws Exception {
-        if (true) {
-            throw new Exception("nonsupport!");
+        if (!storeTemplate(templateName, templateSource)) {
+            throw new Exception("save template " + templateName + " not acknowledged");
         }
-        return null;
+        return new ArrayList<>();
+    }
+
+    @Override
+    public boolean storeTemplate(String templateName, String templateSource) throws Exception {
+        if (templateSource.equals(storedTemplates.get(templateName))) {
+            return true;
+        }
+        XContentBuilder builder = XContentFactory.jsonBuilder();
+        builder.startObject().startObject("script")
+                .field("lang", "mustache")
+                .field("source", templateSource)
+                .endObject().endObject();
+        PutStoredScriptRequest request = new PutStoredScriptRequest()
+                .id(templateName)
+                .content(BytesReference.bytes(builder), XContentType.JSON);
+        AcknowledgedResponse response = execute(false, () -> client.putScript(request, requestOptions));
+        if (response.isAcknowledged()) {
+            storedTemplates.put(templateName, templateSource);
+        }
+        return response.isAcknowledged();
+    }
+
+    private SearchTemplateRequest newSearchTemplateRequest(ScriptType scriptType, String script, Map<String, Object> template_params, Class<T> clazz) {
+        MetaData metaData = IndexTools.getIndexType(clazz);
+        SearchTemplateRequest request = new SearchTemplateRequest(new SearchRequest(metaData.getSearchIndexNames()));
+        request.setScriptType(scriptType);
+        request.setScript(script);
+        request.setScriptParams(template_params == null ? Collections.emptyMap() : template_params);
+        return request;
+    }
+
+    private List<T> searchTemplate(SearchTemplateRequest request, Class<T> clazz) throws Exception {
+        SearchTemplateResponse response = executeRead("search", () -> client.searchTemplate(request, readOptions),
+                (options, listener) -> client.searchTemplateAsync(request, options, listener));
+        return toList(response.getResponse(), clazz);
+    }
+
+    private List<T> toList(SearchResponse searchResponse, Class<T> clazz) throws Exception {
+        List<T> list = new ArrayList<>();
+        for (SearchHit hit : searchResponse.getHits().getHits()) {
+            list.add(EntityCodec.decode(hit.getSourceRef(), clazz));
+        }
+        return list;
     }
 
     @Override
@@ -1271,43 +1972,54 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
         List<T> list = new ArrayList<>();
         Scroll scroll = new Scroll(TimeValue.timeValueHours(time));
         SearchRequest searchRequest = new SearchRequest(indexname);
+        searchRequest.routing(getRouting(clazz, queryBuilder));
         searchRequest.scroll(scroll);
         SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
         searchSourceBuilder.query(queryBuilder);
         searchSourceBuilder.size(Constant.DEFAULT_SCROLL_PERPAGE);
         searchRequest.source(searchSourceBuilder);
-        SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
+        SearchResponse searchResponse = executeSearch(clazz, searchRequest);
         String scrollId = searchResponse.getScrollId();
         SearchHit[] searchHits = searchResponse.getHits().getHits();
         //第一把查询出的结果
         for (SearchHit hit : searchHits) {
-            T t = JsonUtils.string2Obj(hit.getSourceAsString(), clazz);
+            T t = EntityCodec.decode(hit.getSourceRef(), clazz);
             list.add(t);
         }
-        while (searchHits != null && searchHits.length > 0) {
-            SearchScrollRequest scrollRequest = new SearchScrollRequest(scrollId);
-            scrollRequest.scroll(scroll);
-            searchResponse = client.scroll(scrollRequest, RequestOptions.DEFAULT);
-            scrollId = searchResponse.getScrollId();
-            searchHits = searchResponse.getHits().getHits();
-            for (SearchHit hit : searchHits) {
-                T t = JsonUtils.string2Obj(hit.getSourceAsString(), clazz);
-                list.add(t);
+        try {
+            while (searchHits != null && searchHits.length > 0) {
+                SearchScrollRequest scrollRequest = new SearchScrollRequest(scrollId);
+                scrollRequest.scroll(scroll);
+                searchResponse = executeRead("scroll", () -> client.scroll(scrollRequest, readOptions),
+                        (options, listener) -> client.scrollAsync(scrollRequest, options, listener));
+                scrollId = searchResponse.getScrollId();
+                searchHits = searchResponse.getHits().getHits();
+                for (SearchHit hit : searchHits) {
+                    T t = EntityCodec.decode(hit.getSourceRef(), clazz);
+                    list.add(t);
+                }
             }
+        } finally {
+            //超过截止时间等异常中断时也释放scroll上下文
+            ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
+            clearScrollRequest.addScrollId(scrollId);
+            ClearScrollResponse clearScrollResponse
+                    = execute(true, () -> client.clearScroll(clearScrollRequest, requestOptions));
+            boolean succeeded = clearScrollResponse.isSucceeded();
         }
-        ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
-        clearScrollRequest.addScrollId(scrollId);
-        ClearScrollResponse clearScrollResponse
-                = client.clearScroll(clearScrollRequest, RequestOptions.DEFAULT);
-        boolean succeeded = clearScrollResponse.isSucceeded();
         return list;
     }
 
 
+    @Override
+    public List<T> scroll(QueryBuilder queryBuilder, Class<T> clazz, Deadline deadline) throws Exception {
+        return deadline.call(() -> scroll(queryBuilder, clazz));
+    }
+
     @Override
     public List<T> scroll(QueryBuilder queryBuilder, Class<T> clazz) throws Exception {
         MetaData metaData = IndexTools.getIndexType(clazz);
-        String[] indexname = metaData.getSearchIndexNames();
+        String[] indexname = PartitionTools.getSearchIndexNames(metaData, queryBuilder);
         return scroll(queryBuilder, clazz, Constant.DEFAULT_SCROLL_TIME, indexname);
     }
 
@@ -1335,7 +2047,7 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
 
         SearchRequest searchRequest = new SearchRequest(indexname);
         searchRequest.source(searchSourceBuilder);
-        SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
+        SearchResponse searchResponse = executeSearch(clazz, searchRequest);
 
         Suggest suggest = searchResponse.getSuggest();
         if (suggest == null) {
@@ -1352,6 +2064,134 @@ public class ElasticsearchTemplateImpl<T, M> implements ElasticsearchTemplate<T,
         return list;
     }
 
+    /**
+     * 所有集群调用经过并发限制和熔断保护，并记录调用耗时
+     * 按延迟选择节点，节点失败时换节点重试
+     *
+     * @param read
+     * @param callable
+     * @param <V>
+     * @return
+     * @throws Exception
+     */
+    private <V> V execute(boolean read, Callable<V> callable) throws Exception {
+        long start = System.nanoTime();
+        V result = clusterGuard.execute(read, () -> nodeSelector.failover(callable));
+        templateMetrics.recordCall(start, result);
+        return result;
+    }
+
+    /**
+     * 执行读请求，开启对冲或者当前线程绑定了截止时间时通过HedgedReader异步发送，否则同步执行
+     *
+     * @param operation
+     * @param callable
+     * @param asyncCall
+     * @param <V>
+     * @return
+     * @throws Exception
+     */
+    private <V> V executeRead(String operation, Callable<V> callable, HedgedReader.AsyncCall<V> asyncCall) throws Exception {
+        Deadline deadline = Deadline.current();
+        if (!hedgedReader.isEnabled() && deadline == null) {
+            return execute(true, callable);
+        }
+        long start = System.nanoTime();
+        V result = hedgedReader.execute(operation, readOptions, deadline, asyncCall);
+        templateMetrics.recordCall(start, result);
+        return result;
+    }
+
+    /**
+     * 执行查询请求，耗时超过实体配置的阈值时记录慢查询日志
+     *
+     * @param clazz         实体类型，为null时使用默认阈值
+     * @param searchRequest
+     * @return
+     * @throws Exception
+     */
+    private SearchResponse executeSearch(Class<T> clazz, SearchRequest searchRequest) throws Exception {
+        long start = System.nanoTime();
+        Deadline deadline = Deadline.current();
+        if (deadline != null && searchRequest.source() != null) {
+            deadline.check();
+            searchRequest.source().timeout(TimeValue.timeValueMillis(Math.max(1, deadline.remaining(TimeUnit.MILLISECONDS))));
+        }
+        //scroll查询对冲会多创建一个scroll上下文，不做对冲
+        SearchResponse searchResponse = executeRead(searchRequest.scroll() != null ? "scroll" : "search",
+                () -> client.search(searchRequest, readOptions),
+                (options, listener) -> client.searchAsync(searchRequest, options, listener));
+        slowQueryLogger.log(clazz == null ? null : IndexTools.getMetaData(clazz), searchRequest, searchResponse, System.nanoTime() - start);
+        return searchResponse;
+    }
+
+    /**
+     * 执行bulk请求，请求体估算大小（estimatedSizeInBytes）超过compressionThreshold时以gzip压缩后通过LowLevelClient发送
+     *
+     * @param bulkRequest
+     * @return
+     * @throws Exception
+     */
+    private BulkResponse bulk(BulkRequest bulkRequest) throws Exception {
+        if (!compressionEnabled) {
+            return execute(false, () -> client.bulk(bulkRequest, requestOptions));
+        }
+        //按估算大小判断，未达到阈值的请求不额外序列化一次
+        if (bulkRequest.estimatedSizeInBytes() < compressionThreshold) {
+            return execute(false, () -> client.bulk(bulkRequest, requestOptions));
+        }
+        byte[] body = BulkTools.toNdjson(bulkRequest);
+        if (body == null) {
+            return execute(false, () -> client.bulk(bulkRequest, requestOptions));
+        }
+        Request request = new Request("POST", "/_bulk");
+        request.setOptions(requestOptions);
+        if (bulkRequest.getRefreshPolicy() != WriteRequest.RefreshPolicy.NONE) {
+            request.addParameter("refresh", bulkRequest.getRefreshPolicy().getValue());
+        }
+        if (bulkRequest.waitForActiveShards() != ActiveShardCount.DEFAULT) {
+            request.addParameter("wait_for_active_shards", bulkRequest.waitForActiveShards().toString().toLowerCase(Locale.ROOT));
+        }
+        request.addParameter("timeout", bulkRequest.timeout().getStringRep());
+        NByteArrayEntity entity = new NByteArrayEntity(BulkTools.gzip(body), ContentType.create("application/x-ndjson"));
+        entity.setContentEncoding("gzip");
+        request.setEntity(entity);
+        Response response = execute(false, () -> client.getLowLevelClient().performRequest(request));
+        try (XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY,
+                DeprecationHandler.THROW_UNSUPPORTED_OPERATION, response.getEntity().getContent())) {
+            return BulkResponse.fromXContent(parser);
+        }
+    }
+
+    /**
+     * 根据查询条件中路由字段的term/terms过滤得到routing，多个取值以逗号分隔
+     *
+     * @param clazz
+     * @param queryBuilder
+     * @return 实体未配置@ESRouting或者查询条件不能确定路由时返回null，检索全部分片
+     */
+    private String getRouting(Class<T> clazz, QueryBuilder queryBuilder) {
+        MetaData metaData = IndexTools.getIndexType(clazz);
+        if (metaData == null || !metaData.isRouted()) {
+            return null;
+        }
+        List<Object> values = QueryTools.findTermValues(queryBuilder, metaData.getRoutingField());
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        StringBuilder routing = new StringBuilder();
+        for (Object value : values) {
+            if (value == null) {
+                return null;
+            }
+            if (routing.length() > 0) {
+                routing.append(",");
+            }
+            routing.append(value.toString());
+        }
+        return routing.toString();
+    }
+
     private int getTotalPages(long totalHits, int pageSize) {
         return pageSize == 0 ? 1 : (int) Math.ceil((double) totalHits / (double) pageSize);
     }
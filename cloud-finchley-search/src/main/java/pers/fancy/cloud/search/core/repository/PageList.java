@@ -15,5 +15,7 @@ public class PageList<T> {
     List<T> list;
     private int totalPages = 0;
     private long totalElements = 0;
+    //totalElements是否为精确值，按索引排序提前结束的查询只统计到一定数量，此时为下限
+    private boolean totalElementsExact = true;
 
 }
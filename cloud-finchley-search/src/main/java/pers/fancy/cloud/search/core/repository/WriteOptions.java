@@ -0,0 +1,204 @@
+package pers.fancy.cloud.search.core.repository;
+
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.support.ActiveShardCount;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.action.support.replication.ReplicatedWriteRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.reindex.DeleteByQueryRequest;
+import org.springframework.util.StringUtils;
+import pers.fancy.cloud.search.core.enums.RefreshPolicy;
+import pers.fancy.cloud.search.core.util.MetaData;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 写入选项：刷新策略、wait_for_active_shards以及超时时间
+ * 实体通过@ESMetaData的refreshPolicy、waitForActiveShards、writeTimeout配置默认值；
+ * 调用时通过call在当前线程上绑定，期间模板发出的写请求（save、update、delete等）使用其中设置了的项，未设置的项取实体的默认值
+ * 嵌套调用时内层设置的项优先
+ *
+ * @author LiLiChai
+ */
+public class WriteOptions {
+
+    private static final ThreadLocal<WriteOptions> CURRENT = new ThreadLocal<>();
+
+    //为null、空、小于0时表示未设置
+    private RefreshPolicy refreshPolicy;
+    private String waitForActiveShards;
+    private long timeout = -1;
+
+    public static WriteOptions create() {
+        return new WriteOptions();
+    }
+
+    /**
+     * 只指定刷新策略
+     *
+     * @param refreshPolicy
+     * @return
+     */
+    public static WriteOptions refresh(RefreshPolicy refreshPolicy) {
+        return create().refreshPolicy(refreshPolicy);
+    }
+
+    public WriteOptions refreshPolicy(RefreshPolicy refreshPolicy) {
+        this.refreshPolicy = refreshPolicy;
+        return this;
+    }
+
+    /**
+     * @param waitForActiveShards all或者分片副本数量
+     * @return
+     */
+    public WriteOptions waitForActiveShards(String waitForActiveShards) {
+        this.waitForActiveShards = waitForActiveShards;
+        return this;
+    }
+
+    public WriteOptions waitForActiveShards(int waitForActiveShards) {
+        return waitForActiveShards(String.valueOf(waitForActiveShards));
+    }
+
+    public WriteOptions timeout(long duration, TimeUnit unit) {
+        this.timeout = unit.toMillis(duration);
+        return this;
+    }
+
+    public RefreshPolicy getRefreshPolicy() {
+        return refreshPolicy;
+    }
+
+    public String getWaitForActiveShards() {
+        return waitForActiveShards;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * 当前线程绑定的写入选项，没有时返回null
+     *
+     * @return
+     */
+    public static WriteOptions current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * 以当前写入选项执行callable
+     *
+     * @param callable
+     * @param <V>
+     * @return
+     * @throws Exception
+     */
+    public <V> V call(Callable<V> callable) throws Exception {
+        WriteOptions previous = CURRENT.get();
+        CURRENT.set(previous == null ? this : merge(this, previous));
+        try {
+            return callable.call();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    /**
+     * 实体的写入选项：当前线程绑定的选项覆盖@ESMetaData中的默认值
+     * 异步执行写入时需要在调用线程上解析后再交给执行线程
+     *
+     * @param metaData
+     * @return
+     */
+    public static WriteOptions resolve(MetaData metaData) {
+        WriteOptions defaults = create();
+        if (metaData != null) {
+            defaults.refreshPolicy = metaData.getRefreshPolicy();
+            defaults.waitForActiveShards = metaData.getWaitForActiveShards();
+            defaults.timeout = metaData.getWriteTimeout();
+        }
+        WriteOptions current = CURRENT.get();
+        return current == null ? defaults : merge(current, defaults);
+    }
+
+    private static WriteOptions merge(WriteOptions primary, WriteOptions fallback) {
+        WriteOptions merged = create();
+        merged.refreshPolicy = primary.refreshPolicy != null ? primary.refreshPolicy : fallback.refreshPolicy;
+        merged.waitForActiveShards = !StringUtils.isEmpty(primary.waitForActiveShards) ? primary.waitForActiveShards : fallback.waitForActiveShards;
+        merged.timeout = primary.timeout >= 0 ? primary.timeout : fallback.timeout;
+        return merged;
+    }
+
+    public <R extends ReplicatedWriteRequest<R>> R applyTo(R request) {
+        request.setRefreshPolicy(toWriteRefreshPolicy());
+        if (!StringUtils.isEmpty(waitForActiveShards)) {
+            request.waitForActiveShards(ActiveShardCount.parseString(waitForActiveShards));
+        }
+        if (timeout >= 0) {
+            request.timeout(TimeValue.timeValueMillis(timeout));
+        }
+        return request;
+    }
+
+    public UpdateRequest applyTo(UpdateRequest request) {
+        request.setRefreshPolicy(toWriteRefreshPolicy());
+        if (!StringUtils.isEmpty(waitForActiveShards)) {
+            request.waitForActiveShards(ActiveShardCount.parseString(waitForActiveShards));
+        }
+        if (timeout >= 0) {
+            request.timeout(TimeValue.timeValueMillis(timeout));
+        }
+        return request;
+    }
+
+    /**
+     * bulk请求的选项作用于整个请求，单条请求上的刷新策略必须为NONE
+     *
+     * @param request
+     * @return
+     */
+    public BulkRequest applyTo(BulkRequest request) {
+        request.setRefreshPolicy(toWriteRefreshPolicy());
+        if (!StringUtils.isEmpty(waitForActiveShards)) {
+            request.waitForActiveShards(ActiveShardCount.parseString(waitForActiveShards));
+        }
+        if (timeout >= 0) {
+            request.timeout(TimeValue.timeValueMillis(timeout));
+        }
+        return request;
+    }
+
+    /**
+     * delete_by_query不支持wait_for，wait_until与immediate都在结束后刷新一次
+     *
+     * @param request
+     * @return
+     */
+    public DeleteByQueryRequest applyTo(DeleteByQueryRequest request) {
+        request.setRefresh(refreshPolicy == RefreshPolicy.wait_until || refreshPolicy == RefreshPolicy.immediate);
+        if (!StringUtils.isEmpty(waitForActiveShards)) {
+            request.setWaitForActiveShards(ActiveShardCount.parseString(waitForActiveShards));
+        }
+        if (timeout >= 0) {
+            request.setTimeout(TimeValue.timeValueMillis(timeout));
+        }
+        return request;
+    }
+
+    private WriteRequest.RefreshPolicy toWriteRefreshPolicy() {
+        if (refreshPolicy == RefreshPolicy.wait_until) {
+            return WriteRequest.RefreshPolicy.WAIT_UNTIL;
+        } else if (refreshPolicy == RefreshPolicy.immediate) {
+            return WriteRequest.RefreshPolicy.IMMEDIATE;
+        }
+        return WriteRequest.RefreshPolicy.NONE;
+    }
+}
@@ -0,0 +1,90 @@
+package pers.fancy.cloud.search.core.util;
+
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * bulk请求体工具类
+ * highLevelClient内部拼装bulk请求体的逻辑不对外开放，需要压缩请求体时在这里按_bulk接口格式自行拼装
+ *
+ * @author LiLiChai
+ */
+public class BulkTools {
+
+    /**
+     * 拼装_bulk接口的NDJSON请求体
+     *
+     * @param bulkRequest
+     * @return 含有非JSON格式source的请求返回null，由调用方走highLevelClient原有逻辑
+     * @throws IOException
+     */
+    public static byte[] toNdjson(BulkRequest bulkRequest) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (DocWriteRequest<?> request : bulkRequest.requests()) {
+            if (request instanceof IndexRequest && ((IndexRequest) request).getContentType() != XContentType.JSON) {
+                return null;
+            }
+            XContentBuilder action = XContentFactory.jsonBuilder();
+            action.startObject().startObject(request.opType().getLowercase());
+            action.field("_index", request.index());
+            if (request.type() != null) {
+                action.field("_type", request.type());
+            }
+            if (request.id() != null) {
+                action.field("_id", request.id());
+            }
+            if (request.routing() != null) {
+                action.field("routing", request.routing());
+            }
+            if (request instanceof UpdateRequest && ((UpdateRequest) request).retryOnConflict() > 0) {
+                action.field("retry_on_conflict", ((UpdateRequest) request).retryOnConflict());
+            }
+            action.endObject().endObject();
+            out.write(BytesReference.toBytes(BytesReference.bytes(action)));
+            out.write('\n');
+            if (request instanceof IndexRequest) {
+                out.write(BytesReference.toBytes(((IndexRequest) request).source()));
+                out.write('\n');
+            } else if (request instanceof UpdateRequest) {
+                XContentBuilder body = XContentFactory.jsonBuilder();
+                ((UpdateRequest) request).toXContent(body, ToXContent.EMPTY_PARAMS);
+                out.write(BytesReference.toBytes(BytesReference.bytes(body)));
+                out.write('\n');
+            }
+        }
+        return out.toByteArray();
+    }
+
+    public static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    public static byte[] gunzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = gzip.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -24,4 +24,28 @@ public class Constant {
 
 
     public static double[] DEFAULT_PERCSEGMENT = {50.0, 95.0, 99.0};
+
+    //时间分区索引：按range条件裁剪后最多检索的分区数，超出后放宽为通配
+    public static int PARTITION_PRUNE_MAX = 62;
+
+    //排序与索引排序一致的分页查询：命中总数最多精确统计到的条数，超出后totalElements为下限，分片可以提前结束
+    public static int INDEX_SORT_TRACK_TOTAL_HITS = 1000;
+    //索引实际的index.sort设置的缓存时间（毫秒）
+    public static long INDEX_SORT_CHECK_INTERVAL = 60000;
+
+    //分索引并行百分比聚合：本地t-digest的压缩系数
+    public static double PERCENTILES_DIGEST_COMPRESSION = 100.0;
+    //分索引并行百分比聚合：每个索引向服务端采样的百分位网格，两端加密以保证尾部精度
+    public static double[] PERCENTILES_DIGEST_GRID = {
+            0.1, 0.5, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20,
+            21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32, 33, 34, 35, 36, 37, 38, 39, 40,
+            41, 42, 43, 44, 45, 46, 47, 48, 49, 50, 51, 52, 53, 54, 55, 56, 57, 58, 59, 60,
+            61, 62, 63, 64, 65, 66, 67, 68, 69, 70, 71, 72, 73, 74, 75, 76, 77, 78, 79, 80,
+            81, 82, 83, 84, 85, 86, 87, 88, 89, 90, 91, 92, 93, 94, 95, 96, 97, 98, 99, 99.5, 99.9};
+    //分索引并行百分比聚合：与服务端百分比聚合结果的容差（百分位秩），即网格最大间距
+    public static double PERCENTILES_DIGEST_RANK_TOLERANCE = 1.0;
+    //分索引并行百分比聚合：已关闭（不再写入）索引的digest缓存条数
+    public static int PERCENTILES_DIGEST_CACHE_SIZE = 1024;
+    //分索引并行百分比聚合：已关闭索引的digest缓存有效期（毫秒）
+    public static long PERCENTILES_DIGEST_CACHE_TTL = 600000;
 }
@@ -0,0 +1,156 @@
+package pers.fancy.cloud.search.core.util;
+
+import com.tdunning.math.stats.TDigest;
+import org.elasticsearch.search.aggregations.metrics.Percentile;
+import org.elasticsearch.search.aggregations.metrics.Percentiles;
+import org.elasticsearch.search.aggregations.metrics.Stats;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * 分索引并行百分比聚合的本地t-digest工具类
+ * 服务端不会返回t-digest的原始状态，这里用每个索引按Constant.PERCENTILES_DIGEST_GRID采样出的分位点以及stats（count、min、max）
+ * 重建一个等价的本地digest，各索引的digest可以直接合并；
+ * 合并结果与服务端整体百分比聚合的误差不超过Constant.PERCENTILES_DIGEST_RANK_TOLERANCE个百分位秩，可以通过BenchmarkController.benchmarkPercentilesDigest验证
+ *
+ * @author LiLiChai
+ */
+public class DigestTools {
+
+    //放大分段权重，避免文档数较少的索引分段质量被取整为0
+    private static final int WEIGHT_SCALE = 100;
+
+    //查询条件中的相对时间（now、now-7d/d等），同样的条件在不同时间命中的文档不同
+    private static final Pattern DATE_MATH = Pattern.compile("\"now([-+/|][^\"]*)?\"");
+
+    //已关闭（不再写入）索引的digest缓存，key为 索引名|字段名|查询条件
+    private static final Map<String, CachedDigest> closedIndexDigests = Collections.synchronizedMap(
+            new LinkedHashMap<String, CachedDigest>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedDigest> eldest) {
+                    return size() > Constant.PERCENTILES_DIGEST_CACHE_SIZE;
+                }
+            });
+
+    private static class CachedDigest {
+        final TDigest digest;
+        final long expireAt;
+
+        CachedDigest(TDigest digest, long expireAt) {
+            this.digest = digest;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * 根据单个索引的分位点采样和stats重建digest
+     * 相邻两个分位点之间的文档质量放在两点中间，首尾分别以min、max为界
+     *
+     * @param percentiles
+     * @param stats
+     * @return
+     */
+    public static TDigest build(Percentiles percentiles, Stats stats) {
+        if (stats == null || stats.getCount() == 0) {
+            return TDigest.createMergingDigest(Constant.PERCENTILES_DIGEST_COMPRESSION);
+        }
+        List<Percentile> points = new ArrayList<>();
+        for (Percentile percentile : percentiles) {
+            points.add(percentile);
+        }
+        points.sort(Comparator.comparingDouble(Percentile::getPercent));
+        double[] percents = new double[points.size()];
+        double[] values = new double[points.size()];
+        for (int i = 0; i < points.size(); i++) {
+            percents[i] = points.get(i).getPercent();
+            values[i] = points.get(i).getValue();
+        }
+        return build(percents, values, stats.getCount(), stats.getMin(), stats.getMax());
+    }
+
+    /**
+     * 根据升序的分位点采样和count、min、max重建digest
+     *
+     * @param percents 百分位，升序
+     * @param values   百分位对应的值
+     * @param count
+     * @param min
+     * @param max
+     * @return
+     */
+    public static TDigest build(double[] percents, double[] values, long count, double min, double max) {
+        TDigest digest = TDigest.createMergingDigest(Constant.PERCENTILES_DIGEST_COMPRESSION);
+        if (count == 0) {
+            return digest;
+        }
+        double lastPercent = 0;
+        double lastValue = min;
+        for (int i = 0; i < percents.length; i++) {
+            add(digest, lastValue, values[i], (percents[i] - lastPercent) / 100 * count);
+            lastPercent = percents[i];
+            lastValue = values[i];
+        }
+        add(digest, lastValue, max, (100 - lastPercent) / 100 * count);
+        return digest;
+    }
+
+    private static void add(TDigest digest, double from, double to, double mass) {
+        int weight = (int) Math.round(mass * WEIGHT_SCALE);
+        if (weight <= 0 || Double.isNaN(from) || Double.isNaN(to)) {
+            return;
+        }
+        digest.add((from + to) / 2, weight);
+    }
+
+    /**
+     * 合并多个索引的digest，缓存中的digest只读不改
+     *
+     * @param digests
+     * @return
+     */
+    public static TDigest merge(List<TDigest> digests) {
+        TDigest merged = TDigest.createMergingDigest(Constant.PERCENTILES_DIGEST_COMPRESSION);
+        for (TDigest digest : digests) {
+            //MergingDigest读取centroids时会触发内部压缩，需要与其他读取者互斥
+            synchronized (digest) {
+                if (digest.size() > 0) {
+                    merged.add(digest);
+                }
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * 查询条件中没有相对时间时，已关闭索引的digest才可以缓存
+     *
+     * @param queryKey 查询条件的json
+     * @return
+     */
+    public static boolean isCacheable(String queryKey) {
+        return !DATE_MATH.matcher(queryKey).find();
+    }
+
+    /**
+     * 缓存的digest，超过Constant.PERCENTILES_DIGEST_CACHE_TTL后失效，之后对已关闭索引的补写可以被重新统计到
+     *
+     * @param key
+     * @return
+     */
+    public static TDigest getClosed(String key) {
+        CachedDigest cached = closedIndexDigests.get(key);
+        if (cached == null) {
+            return null;
+        }
+        if (cached.expireAt <= System.currentTimeMillis()) {
+            closedIndexDigests.remove(key);
+            return null;
+        }
+        return cached.digest;
+    }
+
+    public static void putClosed(String key, TDigest digest) {
+        closedIndexDigests.put(key, new CachedDigest(digest, System.currentTimeMillis() + Constant.PERCENTILES_DIGEST_CACHE_TTL));
+    }
+}
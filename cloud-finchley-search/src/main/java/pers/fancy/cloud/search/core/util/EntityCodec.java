@@ -0,0 +1,123 @@
+package pers.fancy.cloud.search.core.util;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * 实体与es文档之间的编解码
+ * 写入时按配置的格式（json、smile、cbor）编码文档，查询时通过Accept头要求es以同样的格式返回，
+ * 读取命中的_source时按实际字节判断格式直接用对应的jackson mapper解析，不再经过JSON字符串中转
+ * highLevelClient的search请求体固定为JSON，查询条件本身仍以JSON发送；_bulk接口不支持cbor，bulk写入在cbor模式下使用JSON
+ *
+ * @author LiLiChai
+ */
+public class EntityCodec {
+
+    private static final Map<XContentType, ObjectMapper> mappers = new EnumMap<>(XContentType.class);
+
+    static {
+        mappers.put(XContentType.JSON, new ObjectMapper());
+        mappers.put(XContentType.SMILE, new ObjectMapper(new SmileFactory()));
+        mappers.put(XContentType.CBOR, new ObjectMapper(new CBORFactory()));
+        //与JsonUtils一致，忽略多余字段
+        for (ObjectMapper mapper : mappers.values()) {
+            mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        }
+    }
+
+    private final XContentType xContentType;
+
+    /**
+     * @param format json、smile、cbor
+     */
+    public EntityCodec(String format) {
+        XContentType type = XContentType.fromMediaTypeOrFormat(format);
+        if (type == null || !mappers.containsKey(type)) {
+            throw new IllegalArgumentException("unsupported elasticsearch content type: " + format);
+        }
+        this.xContentType = type;
+    }
+
+    public XContentType getXContentType() {
+        return xContentType;
+    }
+
+    /**
+     * bulk写入使用的格式，_bulk接口只支持json和smile
+     *
+     * @return
+     */
+    public XContentType getBulkXContentType() {
+        return xContentType == XContentType.CBOR ? XContentType.JSON : xContentType;
+    }
+
+    public boolean isBinary() {
+        return xContentType != XContentType.JSON;
+    }
+
+    /**
+     * 查询请求的RequestOptions，二进制格式时加上Accept头
+     *
+     * @param options
+     * @return
+     */
+    public RequestOptions readOptions(RequestOptions options) {
+        if (!isBinary()) {
+            return options;
+        }
+        return options.toBuilder().addHeader("Accept", xContentType.mediaTypeWithoutParameters()).build();
+    }
+
+    /**
+     * 按配置的格式编码实体
+     *
+     * @param obj
+     * @return
+     * @throws IOException
+     */
+    public byte[] encode(Object obj) throws IOException {
+        return encode(obj, xContentType);
+    }
+
+    public static byte[] encode(Object obj, XContentType type) throws IOException {
+        if (obj instanceof String && type == XContentType.JSON) {
+            return ((String) obj).getBytes("UTF-8");
+        }
+        return mappers.get(type).writeValueAsBytes(obj);
+    }
+
+    /**
+     * 解析_source，格式由内容自动判断
+     *
+     * @param source
+     * @param clazz
+     * @param <T>
+     * @return source为空时返回null
+     * @throws IOException
+     */
+    public static <T> T decode(BytesReference source, Class<T> clazz) throws IOException {
+        if (source == null || source.length() == 0 || clazz == null) {
+            return null;
+        }
+        BytesRef bytes = source.toBytesRef();
+        XContentType type = XContentFactory.xContentType(bytes.bytes, bytes.offset, bytes.length);
+        ObjectMapper mapper = mappers.getOrDefault(type, mappers.get(XContentType.JSON));
+        if (clazz.equals(String.class)) {
+            return (T) (mapper == mappers.get(XContentType.JSON) ? source.utf8ToString()
+                    : JsonUtils.obj2String(mapper.readValue(bytes.bytes, bytes.offset, bytes.length, JsonNode.class)));
+        }
+        return mapper.readValue(bytes.bytes, bytes.offset, bytes.length, clazz);
+    }
+}
@@ -2,8 +2,12 @@ package pers.fancy.cloud.search.core.util;
 
 import pers.fancy.cloud.search.core.annotation.ESMapping;
 import pers.fancy.cloud.search.core.annotation.ESMetaData;
+import org.elasticsearch.search.sort.SortOrder;
 
 import java.lang.reflect.Field;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 索引信息操作工具类
@@ -12,6 +16,12 @@ import java.lang.reflect.Field;
  */
 public class IndexTools {
 
+    //带版本号的实际索引名称中indexname与版本号的分隔
+    private static final String VERSION_SEPARATOR = "_v";
+
+    //实体类对应的索引元数据缓存
+    private static Map<Class<?>, MetaData> metaDataCache = new ConcurrentHashMap<>();
+
     /**
      * 获取索引元数据：indexname、indextype
      *
@@ -19,24 +29,7 @@ public class IndexTools {
      * @return
      */
     public static MetaData getIndexType(Class<?> clazz) {
-        String indexname = "";
-        String indextype = "";
-        if (clazz.getAnnotation(ESMetaData.class) != null) {
-            indexname = clazz.getAnnotation(ESMetaData.class).indexName();
-            indextype = clazz.getAnnotation(ESMetaData.class).indexType();
-            if (indextype == null || indextype.equals("")) {
-                indextype = "_doc";
-            }
-            MetaData metaData = new MetaData(indexname, indextype);
-            metaData.setPrintLog(clazz.getAnnotation(ESMetaData.class).printLog());
-            if (Tools.arrayISNULL(clazz.getAnnotation(ESMetaData.class).searchIndexNames())) {
-                metaData.setSearchIndexNames(new String[]{indexname});
-            } else {
-                metaData.setSearchIndexNames((clazz.getAnnotation(ESMetaData.class).searchIndexNames()));
-            }
-            return metaData;
-        }
-        return null;
+        return getMetaData(clazz);
     }
 
     /**
@@ -60,35 +53,115 @@ public class IndexTools {
 
     /**
      * 获取索引元数据：indexname、indextype、主分片、备份分片数的配置
+     * 每次读写都会调用，解析结果按类缓存
      *
      * @param clazz
      * @return
      */
     public static MetaData getMetaData(Class<?> clazz) {
+        MetaData metaData = metaDataCache.get(clazz);
+        if (metaData == null) {
+            metaData = loadMetaData(clazz);
+            if (metaData != null) {
+                metaDataCache.put(clazz, metaData);
+            }
+        }
+        return metaData;
+    }
+
+    private static MetaData loadMetaData(Class<?> clazz) {
         String indexname = "";
         String indextype = "";
         int number_of_shards = 0;
         int number_of_replicas = 0;
-        if (clazz.getAnnotation(ESMetaData.class) != null) {
-            indexname = clazz.getAnnotation(ESMetaData.class).indexName();
-            indextype = clazz.getAnnotation(ESMetaData.class).indexType();
+        ESMetaData esMetaData = clazz.getAnnotation(ESMetaData.class);
+        if (esMetaData != null) {
+            indexname = esMetaData.indexName();
+            indextype = esMetaData.indexType();
             if (indextype == null || indextype.equals("")) {
                 indextype = "_doc";
             }
-            number_of_shards = clazz.getAnnotation(ESMetaData.class).number_of_shards();
-            number_of_replicas = clazz.getAnnotation(ESMetaData.class).number_of_replicas();
+            number_of_shards = esMetaData.number_of_shards();
+            number_of_replicas = esMetaData.number_of_replicas();
             MetaData metaData = new MetaData(indexname, indextype, number_of_shards, number_of_replicas);
-            metaData.setPrintLog(clazz.getAnnotation(ESMetaData.class).printLog());
-            if (Tools.arrayISNULL(clazz.getAnnotation(ESMetaData.class).searchIndexNames())) {
-                metaData.setSearchIndexNames(new String[]{indexname});
+            metaData.setPrintLog(esMetaData.printLog());
+            metaData.setSlowQueryThreshold(esMetaData.printLog() ? 0 : esMetaData.slowQueryThreshold());
+            metaData.setSlowQuerySampleRate(esMetaData.slowQuerySampleRate());
+            metaData.setPartitionField(esMetaData.partitionField());
+            metaData.setPartitionInterval(esMetaData.partitionInterval());
+            metaData.setWarmUpQueries(esMetaData.warmUpQueries());
+            metaData.setIndexSortFields(esMetaData.indexSortFields());
+            SortOrder[] indexSortOrders = new SortOrder[esMetaData.indexSortFields().length];
+            for (int i = 0; i < indexSortOrders.length; i++) {
+                indexSortOrders[i] = i < esMetaData.indexSortOrders().length
+                        ? SortOrder.fromString(esMetaData.indexSortOrders()[i]) : SortOrder.ASC;
+            }
+            metaData.setIndexSortOrders(indexSortOrders);
+            metaData.setCodec(esMetaData.codec());
+            metaData.setRefreshPolicy(esMetaData.refreshPolicy());
+            metaData.setWaitForActiveShards(esMetaData.waitForActiveShards());
+            metaData.setWriteTimeout(esMetaData.writeTimeout());
+            metaData.setHotDays(esMetaData.hotDays());
+            metaData.setWarmShards(esMetaData.warmShards());
+            metaData.setWarmReplicas(esMetaData.warmReplicas());
+            metaData.setRoutingField(Tools.getESRoutingField(clazz));
+            if (!Tools.arrayISNULL(esMetaData.searchIndexNames())) {
+                metaData.setSearchIndexNames(esMetaData.searchIndexNames());
+            } else if (metaData.isPartitioned()) {
+                metaData.setSearchIndexNames(new String[]{PartitionTools.getIndexPattern(metaData)});
             } else {
-                metaData.setSearchIndexNames((clazz.getAnnotation(ESMetaData.class).searchIndexNames()));
+                metaData.setSearchIndexNames(new String[]{indexname});
             }
             return metaData;
         }
         return null;
     }
 
+    /**
+     * 索引是否仍在写入（活跃索引），非活跃索引的聚合中间结果可以缓存
+     * 未分区的实体通过与indexname同名的别名读写，别名下带版本号的实际索引（包括reindex后等待删除的旧版本）都视为活跃
+     *
+     * @param metaData
+     * @param index    具体的索引名称
+     * @return
+     */
+    public static boolean isActiveIndex(MetaData metaData, String index) {
+        if (metaData.isPartitioned()) {
+            return index.startsWith(PartitionTools.getPartitionIndexName(metaData, new Date()));
+        }
+        return metaData.getIndexname().equals(index) || isVersionedIndex(metaData, index);
+    }
+
+    /**
+     * 新的带版本号的实际索引名称：indexname_v时间戳
+     *
+     * @param metaData
+     * @return
+     */
+    public static String newVersionedName(MetaData metaData) {
+        return metaData.getIndexname() + VERSION_SEPARATOR + System.currentTimeMillis();
+    }
+
+    /**
+     * 是否为实体的带版本号的实际索引
+     *
+     * @param metaData
+     * @param index
+     * @return
+     */
+    public static boolean isVersionedIndex(MetaData metaData, String index) {
+        String prefix = metaData.getIndexname() + VERSION_SEPARATOR;
+        if (!index.startsWith(prefix) || index.length() == prefix.length()) {
+            return false;
+        }
+        for (int i = prefix.length(); i < index.length(); i++) {
+            if (!Character.isDigit(index.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * 获取配置于Field上的mapping信息，如果未配置注解，则给出默认信息
      *
@@ -114,6 +187,11 @@ public class IndexTools {
             mappingData.setSuggest(esMapping.suggest());
             mappingData.setAllow_search(esMapping.allow_search());
             mappingData.setCopy_to(esMapping.copy_to());
+            mappingData.setDoc_values(esMapping.doc_values());
+            mappingData.setNorms(esMapping.norms());
+            mappingData.setIndex_options(esMapping.index_options());
+            mappingData.setStore(esMapping.store());
+            mappingData.setEager_global_ordinals(esMapping.eager_global_ordinals());
         } else {
             mappingData.setDatatype("text");
 //            mappingData.setAnalyzedtype("analyzed");
@@ -125,6 +203,11 @@ public class IndexTools {
             mappingData.setSuggest(false);
             mappingData.setAllow_search(true);
             mappingData.setCopy_to("");
+            mappingData.setDoc_values(true);
+            mappingData.setNorms(true);
+            mappingData.setIndex_options("");
+            mappingData.setStore(false);
+            mappingData.setEager_global_ordinals(false);
         }
         return mappingData;
     }
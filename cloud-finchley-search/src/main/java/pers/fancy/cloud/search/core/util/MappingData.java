@@ -64,4 +64,14 @@ public class MappingData {
 
     private String copy_to;
 
+    private boolean doc_values;
+
+    private boolean norms;
+
+    private String index_options;
+
+    private boolean store;
+
+    private boolean eager_global_ordinals;
+
 }
@@ -0,0 +1,261 @@
+package pers.fancy.cloud.search.core.util;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * mapping生成工具类
+ * 根据实体的@ESMapping用XContentBuilder生成mapping，按类缓存，启动时多个实体、多次调用不会重复生成；
+ * 并提供与线上mapping的差异比较，用于追加新增字段
+ *
+ * @author LiLiChai
+ */
+public class MappingTools {
+
+    //实体类对应的mapping（{indextype:{properties:{...}}}）缓存
+    private static Map<Class<?>, String> mappingCache = new ConcurrentHashMap<>();
+    //实体类对应的properties缓存，用于与线上mapping比较
+    private static Map<Class<?>, Map<String, Object>> propertiesCache = new ConcurrentHashMap<>();
+    //与线上mapping比较的存储层配置
+    private static final String[] STORAGE_ATTRIBUTES = {"doc_values", "norms", "index_options", "store", "eager_global_ordinals"};
+
+    /**
+     * 获取实体的mapping JSON
+     *
+     * @param clazz
+     * @return
+     * @throws IOException
+     */
+    public static String getMappingSource(Class<?> clazz) throws IOException {
+        String source = mappingCache.get(clazz);
+        if (source == null) {
+            source = buildMappingSource(IndexTools.getMetaData(clazz), IndexTools.getMappingData(clazz));
+            mappingCache.put(clazz, source);
+        }
+        return source;
+    }
+
+    /**
+     * 获取实体mapping中的properties
+     *
+     * @param clazz
+     * @return
+     * @throws IOException
+     */
+    public static Map<String, Object> getProperties(Class<?> clazz) throws IOException {
+        Map<String, Object> properties = propertiesCache.get(clazz);
+        if (properties == null) {
+            Map<String, Object> mapping = XContentHelper.convertToMap(XContentType.JSON.xContent(), getMappingSource(clazz), true);
+            Map<String, Object> type = (Map<String, Object>) mapping.get(IndexTools.getMetaData(clazz).getIndextype());
+            properties = Collections.unmodifiableMap((Map<String, Object>) type.get("properties"));
+            propertiesCache.put(clazz, properties);
+        }
+        return properties;
+    }
+
+    /**
+     * 获取实体的索引settings：分片、副本、autocomplete分词器、索引排序以及codec
+     *
+     * @param clazz
+     * @return
+     */
+    public static Settings.Builder getSettings(Class<?> clazz) {
+        MetaData metaData = IndexTools.getMetaData(clazz);
+        Settings.Builder settings = Settings.builder()
+                .put("index.number_of_shards", metaData.getNumber_of_shards())
+                .put("index.number_of_replicas", metaData.getNumber_of_replicas());
+        if (isAutocomplete(IndexTools.getMappingData(clazz))) {
+            settings.put("analysis.filter.autocomplete_filter.type", "edge_ngram")
+                    .put("analysis.filter.autocomplete_filter.min_gram", 1)
+                    .put("analysis.filter.autocomplete_filter.max_gram", 20)
+                    .put("analysis.analyzer.autocomplete.type", "custom")
+                    .put("analysis.analyzer.autocomplete.tokenizer", "standard")
+                    .putList("analysis.analyzer.autocomplete.filter", new String[]{"lowercase", "autocomplete_filter"});
+        }
+        if (metaData.isIndexSorted()) {
+            String[] orders = new String[metaData.getIndexSortOrders().length];
+            for (int i = 0; i < orders.length; i++) {
+                orders[i] = metaData.getIndexSortOrders()[i].toString();
+            }
+            settings.putList("index.sort.field", metaData.getIndexSortFields())
+                    .putList("index.sort.order", orders);
+        }
+        if (!StringUtils.isEmpty(metaData.getCodec())) {
+            settings.put("index.codec", metaData.getCodec());
+        }
+        return settings;
+    }
+
+    private static boolean isAutocomplete(MappingData[] mappingDataList) {
+        for (MappingData mappingData : mappingDataList) {
+            if (mappingData != null && mappingData.getField_name() != null && mappingData.isAutocomplete()
+                    && (mappingData.getDatatype().equals("text") || mappingData.getDatatype().equals("keyword"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 根据字段的mapping信息生成mapping JSON，不做缓存
+     *
+     * @param metaData
+     * @param mappingDataList
+     * @return
+     * @throws IOException
+     */
+    public static String buildMappingSource(MetaData metaData, MappingData[] mappingDataList) throws IOException {
+        XContentBuilder builder = XContentFactory.jsonBuilder();
+        builder.startObject().startObject(metaData.getIndextype()).startObject("properties");
+        for (MappingData mappingData : mappingDataList) {
+            if (mappingData == null || mappingData.getField_name() == null) {
+                continue;
+            }
+            buildField(builder, mappingData);
+        }
+        builder.endObject().endObject().endObject();
+        return Strings.toString(builder);
+    }
+
+    private static void buildField(XContentBuilder builder, MappingData mappingData) throws IOException {
+        String datatype = mappingData.getDatatype();
+        boolean textual = datatype.equals("text") || datatype.equals("keyword");
+        builder.startObject(mappingData.getField_name());
+        builder.field("type", datatype);
+        if (!StringUtils.isEmpty(mappingData.getCopy_to())) {
+            builder.field("copy_to", mappingData.getCopy_to());
+        }
+        if (!mappingData.isAllow_search()) {
+            builder.field("index", false);
+        }
+        //存储层调优，只输出与es默认值不同的配置
+        if (!mappingData.isDoc_values() && !datatype.equals("text")) {
+            builder.field("doc_values", false);
+        }
+        if (!mappingData.isNorms() && datatype.equals("text")) {
+            builder.field("norms", false);
+        }
+        if (!StringUtils.isEmpty(mappingData.getIndex_options()) && textual) {
+            builder.field("index_options", mappingData.getIndex_options());
+        }
+        if (mappingData.isStore()) {
+            builder.field("store", true);
+        }
+        if (mappingData.isEager_global_ordinals() && datatype.equals("keyword")) {
+            builder.field("eager_global_ordinals", true);
+        }
+        if (mappingData.isAutocomplete() && textual) {
+            builder.field("analyzer", "autocomplete");
+            builder.field("search_analyzer", "standard");
+        } else if (datatype.equals("text")) {
+            builder.field("analyzer", mappingData.getAnalyzer());
+            builder.field("search_analyzer", mappingData.getSearch_analyzer());
+        }
+        boolean keyword = mappingData.isKeyword() && !datatype.equals("keyword");
+        if (keyword || mappingData.isSuggest()) {
+            builder.startObject("fields");
+            if (keyword) {
+                builder.startObject("keyword")
+                        .field("type", "keyword")
+                        .field("ignore_above", mappingData.getIgnore_above());
+                //text字段的聚合、排序使用keyword子字段
+                if (mappingData.isEager_global_ordinals()) {
+                    builder.field("eager_global_ordinals", true);
+                }
+                builder.endObject();
+            }
+            if (mappingData.isSuggest()) {
+                builder.startObject("suggest")
+                        .field("type", "completion")
+                        .field("analyzer", mappingData.getAnalyzer())
+                        .endObject();
+            }
+            builder.endObject();
+        }
+        builder.endObject();
+    }
+
+    /**
+     * 比较生成的properties与线上的properties
+     * 线上没有的字段、已有字段上新增的子字段（fields）、已有字段的eager_global_ordinals变化以及关闭norms可以通过put mapping更新，返回需要更新的字段定义；
+     * 字段类型不一致以及doc_values、index_options、store、开启norms等无法在已有字段上修改的差异记录到conflicts中，需要reindex()后生效
+     *
+     * @param generated
+     * @param live      线上properties，为null时表示没有任何字段
+     * @param conflicts
+     * @return 需要追加的字段，没有时为空
+     */
+    public static Map<String, Object> diff(Map<String, Object> generated, Map<String, Object> live, List<String> conflicts) {
+        Map<String, Object> additions = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : generated.entrySet()) {
+            Map<String, Object> field = (Map<String, Object>) entry.getValue();
+            Map<String, Object> liveField = live == null ? null : (Map<String, Object>) live.get(entry.getKey());
+            if (liveField == null) {
+                additions.put(entry.getKey(), field);
+                continue;
+            }
+            //对象字段在线上mapping中没有type
+            Object liveType = liveField.containsKey("type") ? liveField.get("type") : "object";
+            if (!Objects.equals(field.get("type"), liveType)) {
+                conflicts.add(entry.getKey() + ": " + liveType + " -> " + field.get("type"));
+                continue;
+            }
+            int conflictCount = conflicts.size();
+            boolean changed = false;
+            for (String attribute : STORAGE_ATTRIBUTES) {
+                String value = getStorageValue(field, attribute);
+                String liveValue = getStorageValue(liveField, attribute);
+                if (value.equals(liveValue)) {
+                    continue;
+                }
+                //es只允许在已有字段上修改eager_global_ordinals、关闭norms
+                if (attribute.equals("eager_global_ordinals") || (attribute.equals("norms") && value.equals("false"))) {
+                    changed = true;
+                } else {
+                    conflicts.add(entry.getKey() + ": " + attribute + " " + liveValue + " -> " + value);
+                }
+            }
+            Map<String, Object> fields = (Map<String, Object>) field.get("fields");
+            if (fields != null && !diff(fields, (Map<String, Object>) liveField.get("fields"), conflicts).isEmpty()) {
+                changed = true;
+            }
+            //put mapping需要给出字段的完整定义，字段上还有无法修改的差异时整个定义会被拒绝
+            if (changed && conflicts.size() == conflictCount) {
+                additions.put(entry.getKey(), field);
+            }
+        }
+        return additions;
+    }
+
+    /**
+     * 字段的存储层配置，没有配置时为es的默认值
+     */
+    static String getStorageValue(Map<String, Object> field, String attribute) {
+        Object value = field.get(attribute);
+        if (value != null) {
+            return String.valueOf(value);
+        }
+        switch (attribute) {
+            case "index_options":
+                return "text".equals(field.get("type")) ? "positions" : "docs";
+            case "store":
+            case "eager_global_ordinals":
+                return "false";
+            default:
+                return "true";
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package pers.fancy.cloud.search.core.util;
 
+import org.elasticsearch.search.sort.SortOrder;
+import pers.fancy.cloud.search.core.enums.PartitionInterval;
+import pers.fancy.cloud.search.core.enums.RefreshPolicy;
+
 /**
  * 元数据载体类
  *
@@ -35,6 +39,25 @@ public class MetaData {
         this.printLog = printLog;
     }
 
+    long slowQueryThreshold = -1;
+    double slowQuerySampleRate = 1.0;
+
+    public long getSlowQueryThreshold() {
+        return slowQueryThreshold;
+    }
+
+    public void setSlowQueryThreshold(long slowQueryThreshold) {
+        this.slowQueryThreshold = slowQueryThreshold;
+    }
+
+    public double getSlowQuerySampleRate() {
+        return slowQuerySampleRate;
+    }
+
+    public void setSlowQuerySampleRate(double slowQuerySampleRate) {
+        this.slowQuerySampleRate = slowQuerySampleRate;
+    }
+
     public String getIndexname() {
         return indexname;
     }
@@ -51,6 +74,146 @@ public class MetaData {
         this.indextype = indextype;
     }
 
+    String partitionField = "";
+    PartitionInterval partitionInterval = PartitionInterval.none;
+
+    public String getPartitionField() {
+        return partitionField;
+    }
+
+    public void setPartitionField(String partitionField) {
+        this.partitionField = partitionField;
+    }
+
+    public PartitionInterval getPartitionInterval() {
+        return partitionInterval;
+    }
+
+    public void setPartitionInterval(PartitionInterval partitionInterval) {
+        this.partitionInterval = partitionInterval;
+    }
+
+    public boolean isPartitioned() {
+        return partitionInterval != PartitionInterval.none && partitionField != null && !partitionField.equals("");
+    }
+
+    String routingField;
+
+    public String getRoutingField() {
+        return routingField;
+    }
+
+    public void setRoutingField(String routingField) {
+        this.routingField = routingField;
+    }
+
+    public boolean isRouted() {
+        return routingField != null && !routingField.equals("");
+    }
+
+    String[] warmUpQueries = new String[0];
+
+    public String[] getWarmUpQueries() {
+        return warmUpQueries;
+    }
+
+    public void setWarmUpQueries(String[] warmUpQueries) {
+        this.warmUpQueries = warmUpQueries;
+    }
+
+    String[] indexSortFields = new String[0];
+    SortOrder[] indexSortOrders = new SortOrder[0];
+
+    public String[] getIndexSortFields() {
+        return indexSortFields;
+    }
+
+    public void setIndexSortFields(String[] indexSortFields) {
+        this.indexSortFields = indexSortFields;
+    }
+
+    public SortOrder[] getIndexSortOrders() {
+        return indexSortOrders;
+    }
+
+    public void setIndexSortOrders(SortOrder[] indexSortOrders) {
+        this.indexSortOrders = indexSortOrders;
+    }
+
+    public boolean isIndexSorted() {
+        return indexSortFields.length > 0;
+    }
+
+    String codec = "";
+
+    public String getCodec() {
+        return codec;
+    }
+
+    public void setCodec(String codec) {
+        this.codec = codec;
+    }
+
+    RefreshPolicy refreshPolicy = RefreshPolicy.none;
+    String waitForActiveShards = "";
+    long writeTimeout = -1;
+
+    public RefreshPolicy getRefreshPolicy() {
+        return refreshPolicy;
+    }
+
+    public void setRefreshPolicy(RefreshPolicy refreshPolicy) {
+        this.refreshPolicy = refreshPolicy;
+    }
+
+    public String getWaitForActiveShards() {
+        return waitForActiveShards;
+    }
+
+    public void setWaitForActiveShards(String waitForActiveShards) {
+        this.waitForActiveShards = waitForActiveShards;
+    }
+
+    public long getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    public void setWriteTimeout(long writeTimeout) {
+        this.writeTimeout = writeTimeout;
+    }
+
+    int hotDays = -1;
+    int warmShards = 1;
+    int warmReplicas = 0;
+
+    public int getHotDays() {
+        return hotDays;
+    }
+
+    public void setHotDays(int hotDays) {
+        this.hotDays = hotDays;
+    }
+
+    public int getWarmShards() {
+        return warmShards;
+    }
+
+    public void setWarmShards(int warmShards) {
+        this.warmShards = warmShards;
+    }
+
+    public int getWarmReplicas() {
+        return warmReplicas;
+    }
+
+    public void setWarmReplicas(int warmReplicas) {
+        this.warmReplicas = warmReplicas;
+    }
+
+    public boolean hasLifecycle() {
+        return isPartitioned() && hotDays >= 0;
+    }
+
     int number_of_shards;
     int number_of_replicas;
 
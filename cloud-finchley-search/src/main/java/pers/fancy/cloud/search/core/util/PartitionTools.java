@@ -0,0 +1,242 @@
+package pers.fancy.cloud.search.core.util;
+
+import org.elasticsearch.common.time.DateFormatter;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import pers.fancy.cloud.search.core.enums.PartitionInterval;
+
+import java.lang.reflect.Field;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.IsoFields;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 时间分区索引工具类
+ * 分区索引名称为 indexName-后缀，后缀按系统时区的自然日/ISO周/自然月生成
+ *
+ * @author LiLiChai
+ */
+public class PartitionTools {
+
+    private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.ofPattern("yyyy.MM.dd");
+    private static final DateTimeFormatter MONTH_FORMAT = DateTimeFormatter.ofPattern("yyyy.MM");
+    //range条件没有指定format时，与es date类型默认格式保持一致
+    private static final String DEFAULT_DATE_FORMAT = "strict_date_optional_time||epoch_millis";
+
+    //分区字段反射缓存
+    private static Map<Class<?>, Field> partitionFieldCache = new ConcurrentHashMap<>();
+
+    /**
+     * 所有分区索引的通配符
+     *
+     * @param metaData
+     * @return
+     */
+    public static String getIndexPattern(MetaData metaData) {
+        return metaData.getIndexname() + "-*";
+    }
+
+    /**
+     * 获取date所在分区的索引名称
+     *
+     * @param metaData
+     * @param date
+     * @return
+     */
+    public static String getPartitionIndexName(MetaData metaData, Date date) {
+        return getPartitionIndexName(metaData, date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate());
+    }
+
+    private static String getPartitionIndexName(MetaData metaData, LocalDate date) {
+        PartitionInterval interval = metaData.getPartitionInterval();
+        if (interval == PartitionInterval.day) {
+            return metaData.getIndexname() + "-" + DAY_FORMAT.format(date);
+        } else if (interval == PartitionInterval.week) {
+            return metaData.getIndexname() + "-" + String.format("%d.w%02d",
+                    date.get(IsoFields.WEEK_BASED_YEAR), date.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR));
+        } else if (interval == PartitionInterval.month) {
+            return metaData.getIndexname() + "-" + MONTH_FORMAT.format(date);
+        }
+        return metaData.getIndexname();
+    }
+
+    /**
+     * 分区索引对应分区的结束日期（即下一个分区的开始日期），不是该实体的分区索引时返回null
+     * 分区后缀之后的部分（如shrink后的-shrunk）忽略
+     *
+     * @param metaData
+     * @param index    具体的索引名称
+     * @return
+     */
+    public static LocalDate getPartitionEnd(MetaData metaData, String index) {
+        String prefix = metaData.getIndexname() + "-";
+        if (!metaData.isPartitioned() || !index.startsWith(prefix)) {
+            return null;
+        }
+        String suffix = index.substring(prefix.length());
+        if (suffix.indexOf('-') > 0) {
+            suffix = suffix.substring(0, suffix.indexOf('-'));
+        }
+        PartitionInterval interval = metaData.getPartitionInterval();
+        try {
+            LocalDate start;
+            if (interval == PartitionInterval.day) {
+                start = LocalDate.parse(suffix, DAY_FORMAT);
+            } else if (interval == PartitionInterval.week) {
+                String[] parts = suffix.split("\\.w");
+                //1月4日总是在该年的第一个ISO周内
+                start = LocalDate.of(Integer.parseInt(parts[0]), 1, 4)
+                        .with(IsoFields.WEEK_OF_WEEK_BASED_YEAR, Long.parseLong(parts[1]))
+                        .with(DayOfWeek.MONDAY);
+            } else {
+                start = YearMonth.parse(suffix, MONTH_FORMAT).atDay(1);
+            }
+            return nextPartition(interval, start);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static LocalDate partitionStart(PartitionInterval interval, LocalDate date) {
+        if (interval == PartitionInterval.week) {
+            return date.with(DayOfWeek.MONDAY);
+        } else if (interval == PartitionInterval.month) {
+            return date.withDayOfMonth(1);
+        }
+        return date;
+    }
+
+    private static LocalDate nextPartition(PartitionInterval interval, LocalDate date) {
+        if (interval == PartitionInterval.week) {
+            return date.plusWeeks(1);
+        } else if (interval == PartitionInterval.month) {
+            return date.plusMonths(1);
+        }
+        return date.plusDays(1);
+    }
+
+    /**
+     * 对象的分区字段是否有值，没有值时无法确定已有文档所在的分区（如局部更新），需要按ID查找
+     *
+     * @param metaData
+     * @param t
+     * @return 未分区的实体总是返回true
+     * @throws Exception
+     */
+    public static boolean hasPartitionValue(MetaData metaData, Object t) throws Exception {
+        return !metaData.isPartitioned() || getPartitionValue(metaData, t) != null;
+    }
+
+    private static Object getPartitionValue(MetaData metaData, Object t) throws Exception {
+        Field field = partitionFieldCache.get(t.getClass());
+        if (field == null) {
+            field = t.getClass().getDeclaredField(metaData.getPartitionField());
+            field.setAccessible(true);
+            partitionFieldCache.put(t.getClass(), field);
+        }
+        return field.get(t);
+    }
+
+    /**
+     * 获取对象应写入的索引名称，未分区的实体直接返回indexName；
+     * 分区字段没有值时返回当前时间所在的分区，只适用于写入新文档，更新、删除已有文档前需要通过hasPartitionValue判断
+     *
+     * @param metaData
+     * @param t
+     * @return
+     * @throws Exception 分区字段的值无法解析为时间
+     */
+    public static String getWriteIndexName(MetaData metaData, Object t) throws Exception {
+        if (!metaData.isPartitioned()) {
+            return metaData.getIndexname();
+        }
+        Object value = getPartitionValue(metaData, t);
+        if (value == null) {
+            return getPartitionIndexName(metaData, new Date());
+        }
+        Instant instant = toInstant(value, null, false, ZoneOffset.UTC);
+        //无法解析时不能退化为当前分区，否则文档会被写入错误的分区
+        if (instant == null) {
+            throw new Exception("partition field " + metaData.getPartitionField() + " of " + t.getClass().getSimpleName()
+                    + " is not a valid date: " + value);
+        }
+        return getPartitionIndexName(metaData, Date.from(instant));
+    }
+
+    /**
+     * 根据查询条件中分区字段的range过滤裁剪需要检索的分区索引
+     * 每个分区以通配符形式给出，不存在的分区不会报错；分区数量超过Constant.PARTITION_PRUNE_MAX时，
+     * 按天分区的实体退化为按月通配，仍然超出则检索全部分区
+     *
+     * @param metaData
+     * @param queryBuilder
+     * @return
+     */
+    public static String[] getSearchIndexNames(MetaData metaData, QueryBuilder queryBuilder) {
+        String[] searchIndexNames = metaData.getSearchIndexNames();
+        //手工配置了searchIndexNames的实体不做裁剪
+        if (!metaData.isPartitioned() || searchIndexNames.length != 1 || !searchIndexNames[0].equals(getIndexPattern(metaData))) {
+            return searchIndexNames;
+        }
+        RangeQueryBuilder range = QueryTools.findRangeQuery(queryBuilder, metaData.getPartitionField());
+        if (range == null) {
+            return searchIndexNames;
+        }
+        ZoneId zone = range.timeZone() == null ? ZoneOffset.UTC : ZoneId.of(range.timeZone());
+        Instant from = toInstant(range.from(), range.format(), false, zone);
+        Instant to = toInstant(range.to(), range.format(), true, zone);
+        if (from == null) {
+            return searchIndexNames;
+        }
+        if (to == null) {
+            to = Instant.now();
+        }
+        PartitionInterval interval = metaData.getPartitionInterval();
+        LocalDate start = partitionStart(interval, from.atZone(ZoneId.systemDefault()).toLocalDate());
+        LocalDate end = to.atZone(ZoneId.systemDefault()).toLocalDate();
+        if (start.isAfter(end)) {
+            end = start;
+        }
+        List<String> names = new ArrayList<>();
+        for (LocalDate date = start; !date.isAfter(end) && names.size() <= Constant.PARTITION_PRUNE_MAX; date = nextPartition(interval, date)) {
+            names.add(getPartitionIndexName(metaData, date) + "*");
+        }
+        if (names.size() > Constant.PARTITION_PRUNE_MAX && interval == PartitionInterval.day) {
+            names.clear();
+            for (LocalDate month = start.withDayOfMonth(1); !month.isAfter(end) && names.size() <= Constant.PARTITION_PRUNE_MAX; month = month.plusMonths(1)) {
+                names.add(metaData.getIndexname() + "-" + MONTH_FORMAT.format(month) + ".*");
+            }
+        }
+        if (names.size() > Constant.PARTITION_PRUNE_MAX) {
+            return searchIndexNames;
+        }
+        return names.toArray(new String[0]);
+    }
+
+    /**
+     * 将分区字段值或range边界转换为时间点
+     * 字符串按es的日期格式（含now-7d/d之类的date math）解析，解析失败返回null
+     */
+    private static Instant toInstant(Object value, String format, boolean roundUp, ZoneId zone) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Date) {
+            return ((Date) value).toInstant();
+        }
+        if (value instanceof Number) {
+            return Instant.ofEpochMilli(((Number) value).longValue());
+        }
+        try {
+            DateFormatter formatter = DateFormatter.forPattern(format == null ? DEFAULT_DATE_FORMAT : format);
+            return formatter.toDateMathParser().parse(value.toString(), System::currentTimeMillis, roundUp, zone);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package pers.fancy.cloud.search.core.util;
+
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ConstantScoreQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.TermsQueryBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 查询条件分析工具类
+ * 只分析必须满足的子句（bool的must、filter以及constant_score），should、must_not不能用来缩小检索范围
+ *
+ * @author LiLiChai
+ */
+public class QueryTools {
+
+    /**
+     * 查找作用在fieldName上的range条件
+     *
+     * @param queryBuilder
+     * @param fieldName
+     * @return 没有找到返回null
+     */
+    public static RangeQueryBuilder findRangeQuery(QueryBuilder queryBuilder, String fieldName) {
+        if (queryBuilder == null) {
+            return null;
+        }
+        if (queryBuilder instanceof RangeQueryBuilder) {
+            RangeQueryBuilder rangeQueryBuilder = (RangeQueryBuilder) queryBuilder;
+            return rangeQueryBuilder.fieldName().equals(fieldName) ? rangeQueryBuilder : null;
+        }
+        if (queryBuilder instanceof ConstantScoreQueryBuilder) {
+            return findRangeQuery(((ConstantScoreQueryBuilder) queryBuilder).innerQuery(), fieldName);
+        }
+        if (queryBuilder instanceof BoolQueryBuilder) {
+            BoolQueryBuilder boolQueryBuilder = (BoolQueryBuilder) queryBuilder;
+            for (QueryBuilder clause : boolQueryBuilder.filter()) {
+                RangeQueryBuilder found = findRangeQuery(clause, fieldName);
+                if (found != null) {
+                    return found;
+                }
+            }
+            for (QueryBuilder clause : boolQueryBuilder.must()) {
+                RangeQueryBuilder found = findRangeQuery(clause, fieldName);
+                if (found != null) {
+                    return found;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 查找作用在fieldName（或其keyword子字段）上的term/terms条件的取值
+     *
+     * @param queryBuilder
+     * @param fieldName
+     * @return 没有找到返回null
+     */
+    public static List<Object> findTermValues(QueryBuilder queryBuilder, String fieldName) {
+        if (queryBuilder == null) {
+            return null;
+        }
+        if (queryBuilder instanceof TermQueryBuilder) {
+            TermQueryBuilder termQueryBuilder = (TermQueryBuilder) queryBuilder;
+            if (isField(termQueryBuilder.fieldName(), fieldName)) {
+                List<Object> values = new ArrayList<>();
+                values.add(termQueryBuilder.value());
+                return values;
+            }
+            return null;
+        }
+        if (queryBuilder instanceof TermsQueryBuilder) {
+            TermsQueryBuilder termsQueryBuilder = (TermsQueryBuilder) queryBuilder;
+            //terms lookup方式没有直接给出取值
+            if (isField(termsQueryBuilder.fieldName(), fieldName) && termsQueryBuilder.values() != null) {
+                return new ArrayList<>(termsQueryBuilder.values());
+            }
+            return null;
+        }
+        if (queryBuilder instanceof ConstantScoreQueryBuilder) {
+            return findTermValues(((ConstantScoreQueryBuilder) queryBuilder).innerQuery(), fieldName);
+        }
+        if (queryBuilder instanceof BoolQueryBuilder) {
+            BoolQueryBuilder boolQueryBuilder = (BoolQueryBuilder) queryBuilder;
+            for (QueryBuilder clause : boolQueryBuilder.filter()) {
+                List<Object> found = findTermValues(clause, fieldName);
+                if (found != null) {
+                    return found;
+                }
+            }
+            for (QueryBuilder clause : boolQueryBuilder.must()) {
+                List<Object> found = findTermValues(clause, fieldName);
+                if (found != null) {
+                    return found;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean isField(String queryField, String fieldName) {
+        return queryField.equals(fieldName) || queryField.equals(fieldName + ".keyword");
+    }
+}
@@ -1,6 +1,7 @@
 package pers.fancy.cloud.search.core.util;
 
 import pers.fancy.cloud.search.core.annotation.ESID;
+import pers.fancy.cloud.search.core.annotation.ESRouting;
 import org.springframework.util.StringUtils;
 
 import java.lang.reflect.Field;
@@ -40,6 +41,45 @@ public class Tools {
         return null;
     }
 
+    /**
+     * 根据对象中的注解获取routing的字段值
+     *
+     * @param obj
+     * @return 未配置@ESRouting或者字段没有值时返回null
+     */
+    public static String getESRouting(Object obj) throws Exception {
+        Field[] fields = obj.getClass().getDeclaredFields();
+        for (Field f : fields) {
+            f.setAccessible(true);
+            ESRouting esRouting = f.getAnnotation(ESRouting.class);
+            if (esRouting != null) {
+                Object value = f.get(obj);
+                if (value == null || "".equals(value.toString())) {
+                    return null;
+                } else {
+                    return value.toString();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 获取配置了@ESRouting的字段名
+     *
+     * @param clazz
+     * @return 未配置返回null
+     */
+    public static String getESRoutingField(Class<?> clazz) {
+        Field[] fields = clazz.getDeclaredFields();
+        for (Field f : fields) {
+            if (f.getAnnotation(ESRouting.class) != null) {
+                return f.getName();
+            }
+        }
+        return null;
+    }
+
     /**
      * 获取o中所有的字段有值的map组合
      *
@@ -12,20 +12,22 @@ import java.util.Date;
 
 /**
  * @description: ${description}
+ * indexSortFields只对新建的索引生效，已有的索引需要reindex()后才按operate_date排序
  **/
 @Data
-@ESMetaData(indexName = "index",indexType = "main4", number_of_shards = 5,number_of_replicas = 0,printLog = false)
+@ESMetaData(indexName = "index",indexType = "main4", number_of_shards = 5,number_of_replicas = 0,printLog = false,
+        indexSortFields = "operate_date", indexSortOrders = "desc", codec = "best_compression")
 public class Main2 implements Serializable {
     private static final long serialVersionUID = 1L;
     @ESID
     private String proposal_no;
-    @ESMapping(datatype = DataType.keyword_type)
+    @ESMapping(datatype = DataType.keyword_type, eager_global_ordinals = true)
     private String risk_code;
-    @ESMapping(datatype = DataType.text_type)
+    @ESMapping(datatype = DataType.text_type, norms = false)
     private String risk_name;
     @ESMapping(keyword = true)
     private String business_nature;
-    @ESMapping(datatype = DataType.text_type)
+    @ESMapping(datatype = DataType.text_type, norms = false, index_options = "freqs")
     private String business_nature_name;
     private String appli_code;//可以用默认值，这样会有appli_code.keyword可以直接搜
     @ESMapping(suggest = true)
@@ -35,17 +37,17 @@ public class Main2 implements Serializable {
     private String insured_name;
     @ESMapping(datatype = DataType.date_type)
     private Date operate_date;
-    @ESMapping(datatype = DataType.text_type)
+    @ESMapping(datatype = DataType.text_type, norms = false, index_options = "docs")
     private String operate_date_format;
     @ESMapping(datatype = DataType.date_type)
     private Date start_date;
-    @ESMapping(datatype = DataType.date_type)
+    @ESMapping(datatype = DataType.date_type, doc_values = false)
     private Date end_date;
     @ESMapping(datatype = DataType.double_type)
     private double sum_amount;
     @ESMapping(datatype = DataType.double_type)
     private double sum_premium;
-    @ESMapping(datatype = DataType.keyword_type)
+    @ESMapping(datatype = DataType.keyword_type, eager_global_ordinals = true)
     private String com_code;
 
     @Override
@@ -0,0 +1,246 @@
+package pers.fancy.cloud.search.core.auto.intfproxy;
+
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.junit.Test;
+import pers.fancy.cloud.search.core.annotation.ESID;
+import pers.fancy.cloud.search.core.annotation.ESMapping;
+import pers.fancy.cloud.search.core.annotation.ESMetaData;
+import pers.fancy.cloud.search.core.enums.DataType;
+import pers.fancy.cloud.search.core.repository.ElasticsearchTemplate;
+import pers.fancy.cloud.search.core.repository.PageList;
+import pers.fancy.cloud.search.core.repository.PageSortHighLight;
+import pers.fancy.cloud.search.core.repository.Sort;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 派生查询方法名的解析以及参数绑定，模板以动态代理记录调用，不访问es
+ *
+ * @author LiLiChai
+ */
+public class QueryMethodTest {
+
+    @ESMetaData(indexName = "query_method_test")
+    public static class Policy {
+        @ESID
+        private String proposal_no;
+        @ESMapping(datatype = DataType.keyword_type)
+        private String risk_code;
+        //以In结尾的属性名
+        @ESMapping(datatype = DataType.keyword_type)
+        private String origin;
+        @ESMapping(datatype = DataType.double_type)
+        private double sum_amount;
+        @ESMapping(datatype = DataType.date_type)
+        private Date operate_date;
+        //text，带keyword子字段
+        private String appli_name;
+        @ESMapping(keyword = false)
+        private String remark;
+    }
+
+    interface PolicyRepository {
+        List<Policy> findByRiskCode(String riskCode);
+
+        List<Policy> findByOrigin(String origin);
+
+        List<Policy> findByOriginIn(List<String> origins);
+
+        List<Policy> findByRiskCodeNotAndSumAmountBetween(String riskCode, double from, double to);
+
+        List<Policy> findByOperateDateBeforeOrAppliNameStartingWith(Date date, String prefix);
+
+        List<Policy> findByRemarkMatchAndOriginIsNotNull(String text);
+
+        List<Policy> findTop3ByRiskCodeOrderByOperateDateDescSumAmountAsc(String riskCode);
+
+        PageList<Policy> findByRiskCodeOrderBySumAmountDesc(String riskCode, PageSortHighLight page);
+
+        long countByRiskCode(String riskCode);
+
+        long deleteByRiskCodeIn(List<String> riskCodes);
+
+        void deleteAllByOrderByOperateDateDesc();
+
+        List<Policy> findDistinctByRiskCode(String riskCode);
+
+        List<Policy> findByRemark(String remark);
+
+        List<Policy> findByRiskCode(String riskCode, String extra);
+
+        List<Policy> findByNothing(String nothing);
+
+        List<Policy> findByRiskCodeOrderByDesc(String riskCode);
+
+        PageList<Policy> countByRiskCodeAndSumAmountGreaterThan(String riskCode, double amount, PageSortHighLight page);
+    }
+
+    /**
+     * 记录最后一次调用的模板
+     */
+    private static class Recorder {
+        Method method;
+        Object[] args;
+
+        ElasticsearchTemplate template() {
+            return (ElasticsearchTemplate) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ElasticsearchTemplate.class}, (proxy, m, a) -> {
+                method = m;
+                args = a;
+                Class<?> type = m.getReturnType();
+                if (type == long.class) {
+                    return 0L;
+                } else if (type == PageList.class) {
+                    PageList<Policy> pageList = new PageList<>();
+                    pageList.setList(new ArrayList<>());
+                    return pageList;
+                } else if (type == List.class) {
+                    return new ArrayList<>();
+                }
+                return null;
+            });
+        }
+    }
+
+    private static QueryMethod parse(String name, Class<?>... parameterTypes) throws Exception {
+        return QueryMethod.parse(PolicyRepository.class.getMethod(name, parameterTypes), Policy.class);
+    }
+
+    private static void assertRejected(String name, Class<?>... parameterTypes) {
+        try {
+            parse(name, parameterTypes);
+            fail(name + " should be rejected");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(name));
+        }
+    }
+
+    @Test
+    public void equalsOnKeywordField() throws Exception {
+        QueryBuilder query = parse("findByRiskCode", String.class).bind(new Object[]{"A01"});
+        assertEquals(QueryBuilders.boolQuery().filter(QueryBuilders.termQuery("risk_code", "A01")), query);
+    }
+
+    @Test
+    public void exactPropertyBeforeOperatorSuffix() throws Exception {
+        QueryBuilder origin = parse("findByOrigin", String.class).bind(new Object[]{"web"});
+        assertEquals(QueryBuilders.boolQuery().filter(QueryBuilders.termQuery("origin", "web")), origin);
+
+        QueryBuilder originIn = parse("findByOriginIn", List.class).bind(new Object[]{Arrays.asList("web", "app")});
+        assertEquals(QueryBuilders.boolQuery().filter(QueryBuilders.termsQuery("origin", Arrays.asList("web", "app"))), originIn);
+    }
+
+    @Test
+    public void andBindsParametersInOrder() throws Exception {
+        QueryBuilder query = parse("findByRiskCodeNotAndSumAmountBetween", String.class, double.class, double.class)
+                .bind(new Object[]{"A01", 10.0, 20.0});
+        assertEquals(QueryBuilders.boolQuery()
+                .filter(QueryBuilders.boolQuery().mustNot(QueryBuilders.termQuery("risk_code", "A01")))
+                .filter(QueryBuilders.rangeQuery("sum_amount").gte(10.0).lte(20.0)), query);
+    }
+
+    @Test
+    public void orGroupsUseKeywordSubFieldForTermConditions() throws Exception {
+        Date date = new Date(0);
+        QueryBuilder query = parse("findByOperateDateBeforeOrAppliNameStartingWith", Date.class, String.class)
+                .bind(new Object[]{date, "Li"});
+        assertEquals(QueryBuilders.boolQuery().minimumShouldMatch(1)
+                .should(QueryBuilders.boolQuery().filter(QueryBuilders.rangeQuery("operate_date").lt(date)))
+                .should(QueryBuilders.boolQuery().filter(QueryBuilders.prefixQuery("appli_name.keyword", "Li"))), query);
+    }
+
+    @Test
+    public void matchScoresAndNullChecksTakeNoParameter() throws Exception {
+        QueryBuilder query = parse("findByRemarkMatchAndOriginIsNotNull", String.class).bind(new Object[]{"fire"});
+        assertEquals(QueryBuilders.boolQuery()
+                .must(QueryBuilders.matchQuery("remark", "fire"))
+                .filter(QueryBuilders.existsQuery("origin")), query);
+    }
+
+    @Test
+    public void topAndOrderByBuildThePage() throws Exception {
+        Recorder recorder = new Recorder();
+        parse("findTop3ByRiskCodeOrderByOperateDateDescSumAmountAsc", String.class).execute(recorder.template(), new Object[]{"A01"});
+
+        assertEquals("search", recorder.method.getName());
+        PageSortHighLight page = (PageSortHighLight) recorder.args[1];
+        assertEquals(1, page.getCurrentPage());
+        assertEquals(3, page.getPageSize());
+        List<Sort.Order> orders = page.getSort().listOrders();
+        assertEquals(2, orders.size());
+        assertEquals("operate_date", orders.get(0).getProperty());
+        assertEquals(SortOrder.DESC, orders.get(0).getDirection());
+        assertEquals("sum_amount", orders.get(1).getProperty());
+        assertEquals(SortOrder.ASC, orders.get(1).getDirection());
+    }
+
+    @Test
+    public void callerPageKeepsMethodSortWhenUnsorted() throws Exception {
+        Recorder recorder = new Recorder();
+        PageSortHighLight page = new PageSortHighLight(3, 20);
+        parse("findByRiskCodeOrderBySumAmountDesc", String.class, PageSortHighLight.class)
+                .execute(recorder.template(), new Object[]{"A01", page});
+
+        PageSortHighLight bound = (PageSortHighLight) recorder.args[1];
+        assertEquals(3, bound.getCurrentPage());
+        assertEquals(20, bound.getPageSize());
+        assertEquals("sum_amount", bound.getSort().listOrders().get(0).getProperty());
+        assertEquals(SortOrder.DESC, bound.getSort().listOrders().get(0).getDirection());
+    }
+
+    @Test
+    public void countAndDeleteUseTheCondition() throws Exception {
+        Recorder recorder = new Recorder();
+        parse("countByRiskCode", String.class).execute(recorder.template(), new Object[]{"A01"});
+        assertEquals("count", recorder.method.getName());
+        assertEquals(QueryBuilders.boolQuery().filter(QueryBuilders.termQuery("risk_code", "A01")), recorder.args[0]);
+
+        QueryBuilder delete = parse("deleteByRiskCodeIn", List.class).bind(new Object[]{Arrays.asList("A01", "A02")});
+        assertEquals(QueryBuilders.boolQuery().filter(QueryBuilders.termsQuery("risk_code", Arrays.asList("A01", "A02"))), delete);
+    }
+
+    @Test
+    public void rejectsDeleteWithoutCondition() {
+        assertRejected("deleteAllByOrderByOperateDateDesc");
+    }
+
+    @Test
+    public void rejectsDistinct() {
+        assertRejected("findDistinctByRiskCode", String.class);
+    }
+
+    @Test
+    public void rejectsTermConditionOnTextWithoutKeyword() {
+        assertRejected("findByRemark", String.class);
+    }
+
+    @Test
+    public void rejectsParameterCountMismatch() {
+        assertRejected("findByRiskCode", String.class, String.class);
+    }
+
+    @Test
+    public void rejectsUnknownProperty() {
+        assertRejected("findByNothing", String.class);
+    }
+
+    @Test
+    public void rejectsOrderWithoutProperty() {
+        assertRejected("findByRiskCodeOrderByDesc", String.class);
+    }
+
+    @Test
+    public void rejectsPagingOnCount() {
+        assertRejected("countByRiskCodeAndSumAmountGreaterThan", String.class, double.class, PageSortHighLight.class);
+    }
+}
@@ -0,0 +1,161 @@
+package pers.fancy.cloud.search.core.lifecycle;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 代替es集群的LifecycleOperations内存实现
+ * 按es的语义修改索引状态（shrink后原索引删除、原名称作为新索引的别名等），并按顺序记录每次调用，用于验证生命周期任务的处理流程
+ *
+ * @author LiLiChai
+ */
+public class InMemoryLifecycleOperations implements LifecycleOperations {
+
+    private final Map<String, IndexState> indices = new TreeMap<>();
+    private final Map<String, String> aliases = new LinkedHashMap<>();
+    private final List<String> calls = new ArrayList<>();
+    private String lockOwner;
+    private String shrinkNode = "node-1";
+    private boolean failShrink;
+
+    public InMemoryLifecycleOperations index(String index, int shards, int replicas, boolean readOnly) {
+        indices.put(index, new IndexState(shards, replicas, readOnly));
+        return this;
+    }
+
+    /**
+     * 模拟其他服务实例持有锁
+     *
+     * @param owner
+     * @return
+     */
+    public InMemoryLifecycleOperations lockedBy(String owner) {
+        this.lockOwner = owner;
+        return this;
+    }
+
+    /**
+     * 模拟shrink超时等失败
+     *
+     * @return
+     */
+    public InMemoryLifecycleOperations failingShrink() {
+        this.failShrink = true;
+        return this;
+    }
+
+    public List<String> getCalls() {
+        return calls;
+    }
+
+    public Map<String, IndexState> getIndices() {
+        return indices;
+    }
+
+    public Map<String, String> getAliases() {
+        return aliases;
+    }
+
+    public String getLockOwner() {
+        return lockOwner;
+    }
+
+    @Override
+    public boolean tryLock(String owner, long ttlMillis) {
+        if (lockOwner != null && !lockOwner.equals(owner)) {
+            calls.add("tryLock rejected");
+            return false;
+        }
+        if (lockOwner == null) {
+            calls.add("lock");
+        }
+        lockOwner = owner;
+        return true;
+    }
+
+    @Override
+    public void unlock(String owner) {
+        if (owner.equals(lockOwner)) {
+            lockOwner = null;
+            calls.add("unlock");
+        }
+    }
+
+    @Override
+    public Map<String, IndexState> getIndices(String pattern) {
+        String prefix = pattern.endsWith("*") ? pattern.substring(0, pattern.length() - 1) : pattern;
+        Map<String, IndexState> result = new LinkedHashMap<>();
+        indices.forEach((index, state) -> {
+            if (pattern.endsWith("*") ? index.startsWith(prefix) : index.equals(prefix)) {
+                result.put(index, new IndexState(state.getShards(), state.getReplicas(), state.isReadOnly()));
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public String selectShrinkNode() {
+        return shrinkNode;
+    }
+
+    @Override
+    public void prepareShrink(String index, String node) {
+        IndexState state = get(index);
+        state.setReadOnly(true);
+        state.setReplicas(0);
+        calls.add(index + ": prepareShrink " + node);
+    }
+
+    @Override
+    public void cancelShrink(String index, int replicas, boolean readOnly) {
+        IndexState state = get(index);
+        state.setReplicas(replicas);
+        state.setReadOnly(readOnly);
+        calls.add(index + ": cancelShrink " + replicas);
+    }
+
+    @Override
+    public void shrink(String index, String target, int shards, int replicas) {
+        IndexState state = get(index);
+        if (failShrink) {
+            calls.add(index + ": shrink failed");
+            throw new IllegalStateException("wait for index " + target + " timed out");
+        }
+        if (!state.isReadOnly() || state.getShards() % shards != 0) {
+            throw new IllegalStateException("index " + index + " cannot be shrunk to " + shards + " shards");
+        }
+        indices.remove(index);
+        indices.put(target, new IndexState(shards, replicas, true));
+        aliases.put(index, target);
+        calls.add(index + ": shrink " + target + " " + shards + "/" + replicas);
+    }
+
+    @Override
+    public void forceMerge(String index, int maxNumSegments) {
+        get(index);
+        calls.add(index + ": forceMerge " + maxNumSegments);
+    }
+
+    @Override
+    public void setReplicas(String index, int replicas) {
+        get(index).setReplicas(replicas);
+        calls.add(index + ": replicas " + replicas);
+    }
+
+    @Override
+    public void setReadOnly(String index) {
+        get(index).setReadOnly(true);
+        calls.add(index + ": readOnly");
+    }
+
+    private IndexState get(String index) {
+        IndexState state = indices.get(index);
+        if (state == null) {
+            throw new IllegalStateException("index " + index + " does not exist");
+        }
+        return state;
+    }
+}
@@ -0,0 +1,126 @@
+package pers.fancy.cloud.search.core.lifecycle;
+
+import org.junit.Test;
+import pers.fancy.cloud.search.core.annotation.ESMetaData;
+import pers.fancy.cloud.search.core.enums.PartitionInterval;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * IndexLifecycleManager的处理流程，以InMemoryLifecycleOperations代替es集群
+ *
+ * @author LiLiChai
+ */
+public class IndexLifecycleManagerTest {
+
+    private static final LocalDate TODAY = LocalDate.of(2019, 1, 20);
+    private static final Collection<Class<?>> CLASSES = Collections.singletonList(LifecycleEntity.class);
+
+    @ESMetaData(indexName = "lifecycle_test", number_of_shards = 4, partitionField = "operate_date",
+            partitionInterval = PartitionInterval.day, hotDays = 7, warmShards = 2, warmReplicas = 0)
+    public static class LifecycleEntity {
+        private Date operate_date;
+    }
+
+    private InMemoryLifecycleOperations cluster() {
+        return new InMemoryLifecycleOperations()
+                //可以shrink：4个主分片 -> 2个
+                .index("lifecycle_test-2019.01.01", 4, 1, false)
+                //主分片数量不是warmShards的倍数，不shrink，只合并段、降副本、禁止写入
+                .index("lifecycle_test-2019.01.02", 3, 1, false)
+                //已经处理完成
+                .index("lifecycle_test-2019.01.03-shrunk", 2, 0, true)
+                //仍在hotDays内
+                .index("lifecycle_test-2019.01.19", 4, 1, false);
+    }
+
+    @Test
+    public void shrinksMergesAndBlocksWarmPartitionsInOrder() {
+        InMemoryLifecycleOperations cluster = cluster();
+        List<String> report = new IndexLifecycleManager().run(CLASSES, cluster, TODAY);
+
+        assertEquals(Arrays.asList(
+                "lock",
+                "lifecycle_test-2019.01.01: prepareShrink node-1",
+                "lifecycle_test-2019.01.01: shrink lifecycle_test-2019.01.01-shrunk 2/0",
+                "lifecycle_test-2019.01.01-shrunk: forceMerge 1",
+                "lifecycle_test-2019.01.01-shrunk: readOnly",
+                "lifecycle_test-2019.01.02: forceMerge 1",
+                "lifecycle_test-2019.01.02: replicas 0",
+                "lifecycle_test-2019.01.02: readOnly",
+                "unlock"), cluster.getCalls());
+        assertEquals(Arrays.asList(
+                "lifecycle_test-2019.01.01: shrink",
+                "lifecycle_test-2019.01.01-shrunk: forcemerge",
+                "lifecycle_test-2019.01.01-shrunk: read_only",
+                "lifecycle_test-2019.01.02: forcemerge",
+                "lifecycle_test-2019.01.02: replicas",
+                "lifecycle_test-2019.01.02: read_only"), report);
+
+        //shrink后原名称作为新索引的别名
+        assertEquals("lifecycle_test-2019.01.01-shrunk", cluster.getAliases().get("lifecycle_test-2019.01.01"));
+        assertFalse(cluster.getIndices().containsKey("lifecycle_test-2019.01.01"));
+        IndexState shrunk = cluster.getIndices().get("lifecycle_test-2019.01.01-shrunk");
+        assertEquals(2, shrunk.getShards());
+        assertEquals(0, shrunk.getReplicas());
+        assertTrue(shrunk.isReadOnly());
+        assertFalse(cluster.getIndices().get("lifecycle_test-2019.01.19").isReadOnly());
+        assertNull(cluster.getLockOwner());
+    }
+
+    @Test
+    public void secondRunOnlyTakesTheLock() {
+        InMemoryLifecycleOperations cluster = cluster();
+        IndexLifecycleManager manager = new IndexLifecycleManager();
+        manager.run(CLASSES, cluster, TODAY);
+        cluster.getCalls().clear();
+
+        List<String> report = manager.run(CLASSES, cluster, TODAY);
+
+        assertTrue(report.isEmpty());
+        assertEquals(Arrays.asList("lock", "unlock"), cluster.getCalls());
+    }
+
+    @Test
+    public void failedShrinkRestoresReplicasAndWrites() {
+        InMemoryLifecycleOperations cluster = new InMemoryLifecycleOperations()
+                .index("lifecycle_test-2019.01.01", 4, 1, false)
+                .failingShrink();
+
+        List<String> report = new IndexLifecycleManager().run(CLASSES, cluster, TODAY);
+
+        assertTrue(report.isEmpty());
+        assertEquals(Arrays.asList(
+                "lock",
+                "lifecycle_test-2019.01.01: prepareShrink node-1",
+                "lifecycle_test-2019.01.01: shrink failed",
+                "lifecycle_test-2019.01.01: cancelShrink 1",
+                "unlock"), cluster.getCalls());
+        IndexState state = cluster.getIndices().get("lifecycle_test-2019.01.01");
+        assertEquals(4, state.getShards());
+        assertEquals(1, state.getReplicas());
+        assertFalse(state.isReadOnly());
+    }
+
+    @Test
+    public void skipsWhileAnotherInstanceHoldsTheLock() {
+        InMemoryLifecycleOperations cluster = cluster().lockedBy("other-instance");
+
+        List<String> report = new IndexLifecycleManager().run(CLASSES, cluster, TODAY);
+
+        assertTrue(report.isEmpty());
+        assertEquals(Collections.singletonList("tryLock rejected"), cluster.getCalls());
+        assertEquals(4, cluster.getIndices().get("lifecycle_test-2019.01.01").getShards());
+        assertEquals("other-instance", cluster.getLockOwner());
+    }
+}
@@ -0,0 +1,114 @@
+package pers.fancy.cloud.search.core.repository;
+
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.ActiveShardCount;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.reindex.DeleteByQueryRequest;
+import org.junit.Test;
+import pers.fancy.cloud.search.core.annotation.ESMetaData;
+import pers.fancy.cloud.search.core.enums.RefreshPolicy;
+import pers.fancy.cloud.search.core.util.IndexTools;
+import pers.fancy.cloud.search.core.util.MetaData;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * WriteOptions：线程上绑定的选项与@ESMetaData默认值的合并，以及应用到写请求
+ *
+ * @author LiLiChai
+ */
+public class WriteOptionsTest {
+
+    @ESMetaData(indexName = "write_options_test", refreshPolicy = RefreshPolicy.wait_until, waitForActiveShards = "2", writeTimeout = 5000)
+    public static class WriteEntity {
+    }
+
+    private static final MetaData META_DATA = IndexTools.getMetaData(WriteEntity.class);
+
+    @Test
+    public void entityDefaultsWithoutBoundOptions() {
+        WriteOptions options = WriteOptions.resolve(META_DATA);
+
+        assertEquals(RefreshPolicy.wait_until, options.getRefreshPolicy());
+        assertEquals("2", options.getWaitForActiveShards());
+        assertEquals(5000, options.getTimeout());
+        assertNull(WriteOptions.current());
+    }
+
+    @Test
+    public void boundOptionsOverrideOnlyTheItemsTheySet() throws Exception {
+        WriteOptions options = WriteOptions.refresh(RefreshPolicy.immediate).call(() -> WriteOptions.resolve(META_DATA));
+
+        assertEquals(RefreshPolicy.immediate, options.getRefreshPolicy());
+        assertEquals("2", options.getWaitForActiveShards());
+        assertEquals(5000, options.getTimeout());
+    }
+
+    @Test
+    public void innerCallWinsAndOuterIsRestored() throws Exception {
+        WriteOptions outer = WriteOptions.create().refreshPolicy(RefreshPolicy.immediate).waitForActiveShards("all");
+        WriteOptions inner = WriteOptions.create().refreshPolicy(RefreshPolicy.none).timeout(1, TimeUnit.SECONDS);
+
+        outer.call(() -> {
+            WriteOptions nested = inner.call(() -> WriteOptions.resolve(META_DATA));
+            assertEquals(RefreshPolicy.none, nested.getRefreshPolicy());
+            assertEquals("all", nested.getWaitForActiveShards());
+            assertEquals(1000, nested.getTimeout());
+
+            WriteOptions restored = WriteOptions.resolve(META_DATA);
+            assertEquals(RefreshPolicy.immediate, restored.getRefreshPolicy());
+            assertEquals("all", restored.getWaitForActiveShards());
+            assertEquals(5000, restored.getTimeout());
+            return null;
+        });
+        assertNull(WriteOptions.current());
+    }
+
+    @Test
+    public void bindingIsRemovedWhenTheCallFails() {
+        try {
+            WriteOptions.refresh(RefreshPolicy.immediate).call(() -> {
+                throw new IllegalStateException("write failed");
+            });
+            fail("exception should be propagated");
+        } catch (Exception e) {
+            assertEquals("write failed", e.getMessage());
+        }
+        assertNull(WriteOptions.current());
+    }
+
+    @Test
+    public void resolvesWithoutMetaData() {
+        WriteOptions options = WriteOptions.resolve(null);
+
+        assertNull(options.getRefreshPolicy());
+        assertNull(options.getWaitForActiveShards());
+        assertEquals(-1, options.getTimeout());
+    }
+
+    @Test
+    public void appliesToWriteRequests() {
+        IndexRequest request = WriteOptions.resolve(META_DATA).applyTo(new IndexRequest("write_options_test"));
+
+        assertEquals(WriteRequest.RefreshPolicy.WAIT_UNTIL, request.getRefreshPolicy());
+        assertEquals(ActiveShardCount.from(2), request.waitForActiveShards());
+        assertEquals(TimeValue.timeValueMillis(5000), request.timeout());
+
+        IndexRequest unset = WriteOptions.resolve(null).applyTo(new IndexRequest("write_options_test"));
+        assertEquals(WriteRequest.RefreshPolicy.NONE, unset.getRefreshPolicy());
+        assertEquals(ActiveShardCount.DEFAULT, unset.waitForActiveShards());
+    }
+
+    @Test
+    public void deleteByQueryRefreshesOnceForWaitUntil() {
+        assertTrue(WriteOptions.resolve(META_DATA).applyTo(new DeleteByQueryRequest("write_options_test")).isRefresh());
+        assertFalse(WriteOptions.refresh(RefreshPolicy.none).applyTo(new DeleteByQueryRequest("write_options_test")).isRefresh());
+    }
+}
@@ -0,0 +1,134 @@
+package pers.fancy.cloud.search.core.util;
+
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * EntityCodec：三种格式的编解码往返、按内容判断格式以及读取请求的Accept头
+ *
+ * @author LiLiChai
+ */
+public class EntityCodecTest {
+
+    public static class Policy {
+        public String proposal_no;
+        public String risk_name;
+        public double sum_amount;
+        public Date operate_date;
+        public List<String> tags;
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Policy)) {
+                return false;
+            }
+            Policy other = (Policy) o;
+            return Objects.equals(proposal_no, other.proposal_no) && Objects.equals(risk_name, other.risk_name)
+                    && sum_amount == other.sum_amount && Objects.equals(operate_date, other.operate_date)
+                    && Objects.equals(tags, other.tags);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(proposal_no, risk_name, sum_amount, operate_date, tags);
+        }
+    }
+
+    private static Policy policy() {
+        Policy policy = new Policy();
+        policy.proposal_no = "P001";
+        policy.risk_name = "企业财产险";
+        policy.sum_amount = 1234.5;
+        policy.operate_date = new Date(1547553600000L);
+        policy.tags = Arrays.asList("fire", "flood");
+        return policy;
+    }
+
+    /**
+     * 与命中的_source一样，有效字节位于更大数组的中间
+     */
+    private static BytesArray slice(byte[] bytes) {
+        byte[] padded = new byte[bytes.length + 8];
+        System.arraycopy(bytes, 0, padded, 4, bytes.length);
+        return new BytesArray(padded, 4, bytes.length);
+    }
+
+    @Test
+    public void roundTripsEveryFormat() throws Exception {
+        for (String format : new String[]{"json", "smile", "cbor"}) {
+            EntityCodec codec = new EntityCodec(format);
+            byte[] encoded = codec.encode(policy());
+
+            assertEquals(format, policy(), EntityCodec.decode(slice(encoded), Policy.class));
+        }
+    }
+
+    @Test
+    public void decodeDetectsTheFormatFromTheContent() throws Exception {
+        byte[] smile = EntityCodec.encode(policy(), XContentType.SMILE);
+
+        //按json配置的codec也能解析smile的_source
+        assertEquals(policy(), EntityCodec.decode(new BytesArray(smile), Policy.class));
+    }
+
+    @Test
+    public void binarySourceDecodesToJsonString() throws Exception {
+        String json = EntityCodec.decode(new BytesArray(EntityCodec.encode(policy(), XContentType.CBOR)), String.class);
+
+        assertEquals(policy(), EntityCodec.decode(new BytesArray(json), Policy.class));
+        assertTrue(json.startsWith("{"));
+    }
+
+    @Test
+    public void jsonStringIsEncodedAsIs() throws Exception {
+        String json = "{\"proposal_no\":\"P001\",\"unknown\":1}";
+
+        assertEquals(json, new String(EntityCodec.encode(json, XContentType.JSON), "UTF-8"));
+        assertEquals("P001", EntityCodec.decode(new BytesArray(json), Policy.class).proposal_no);
+    }
+
+    @Test
+    public void emptySourceDecodesToNull() throws Exception {
+        assertNull(EntityCodec.decode(null, Policy.class));
+        assertNull(EntityCodec.decode(new BytesArray(new byte[0]), Policy.class));
+    }
+
+    @Test
+    public void bulkFallsBackToJsonForCbor() {
+        assertEquals(XContentType.JSON, new EntityCodec("cbor").getBulkXContentType());
+        assertEquals(XContentType.SMILE, new EntityCodec("smile").getBulkXContentType());
+        assertEquals(XContentType.JSON, new EntityCodec("json").getBulkXContentType());
+    }
+
+    @Test
+    public void binaryFormatsAskForTheSameFormatOnReads() {
+        RequestOptions options = RequestOptions.DEFAULT;
+
+        assertSame(options, new EntityCodec("json").readOptions(options));
+        assertEquals("application/smile", new EntityCodec("smile").readOptions(options).getHeaders().get(0).getValue());
+        assertEquals("Accept", new EntityCodec("cbor").readOptions(options).getHeaders().get(0).getName());
+    }
+
+    @Test
+    public void rejectsUnsupportedFormat() {
+        try {
+            new EntityCodec("yaml");
+            fail("yaml should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("yaml"));
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package pers.fancy.cloud.search.core.util;
+
+import org.junit.Test;
+import pers.fancy.cloud.search.core.annotation.ESID;
+import pers.fancy.cloud.search.core.annotation.ESMapping;
+import pers.fancy.cloud.search.core.annotation.ESMetaData;
+import pers.fancy.cloud.search.core.enums.DataType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * MappingTools.diff：实体生成的properties与线上properties的比较
+ *
+ * @author LiLiChai
+ */
+public class MappingToolsTest {
+
+    @ESMetaData(indexName = "mapping_tools_test", indexType = "main")
+    public static class MappingEntity {
+        @ESID
+        private String proposal_no;
+        @ESMapping(datatype = DataType.keyword_type, eager_global_ordinals = true)
+        private String risk_code;
+        @ESMapping(datatype = DataType.text_type, norms = false, index_options = "freqs")
+        private String risk_name;
+        @ESMapping(datatype = DataType.double_type, doc_values = false)
+        private double sum_amount;
+    }
+
+    private static Map<String, Object> field(Object... keyValues) {
+        Map<String, Object> field = new LinkedHashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            field.put((String) keyValues[i], keyValues[i + 1]);
+        }
+        return field;
+    }
+
+    private static Map<String, Object> text() {
+        return field("type", "text", "fields", field("keyword", field("type", "keyword", "ignore_above", 256)));
+    }
+
+    @Test
+    public void everyFieldIsAddedWithoutLiveMapping() {
+        Map<String, Object> generated = field("risk_code", field("type", "keyword"), "risk_name", text());
+        List<String> conflicts = new ArrayList<>();
+
+        assertEquals(generated, MappingTools.diff(generated, null, conflicts));
+        assertTrue(conflicts.isEmpty());
+    }
+
+    @Test
+    public void newFieldIsAdded() {
+        Map<String, Object> generated = field("risk_code", field("type", "keyword"), "com_code", field("type", "keyword"));
+        Map<String, Object> live = field("risk_code", field("type", "keyword"));
+        List<String> conflicts = new ArrayList<>();
+
+        Map<String, Object> additions = MappingTools.diff(generated, live, conflicts);
+
+        assertEquals(Collections.singleton("com_code"), additions.keySet());
+        assertTrue(conflicts.isEmpty());
+    }
+
+    @Test
+    public void newSubFieldAddsTheWholeField() {
+        Map<String, Object> generated = field("appli_name", text());
+        Map<String, Object> live = field("appli_name", field("type", "text"));
+        List<String> conflicts = new ArrayList<>();
+
+        Map<String, Object> additions = MappingTools.diff(generated, live, conflicts);
+
+        assertEquals(text(), additions.get("appli_name"));
+        assertTrue(conflicts.isEmpty());
+    }
+
+    @Test
+    public void typeChangeIsAConflict() {
+        Map<String, Object> generated = field("sum_amount", field("type", "double"));
+        Map<String, Object> live = field("sum_amount", field("type", "long"));
+        List<String> conflicts = new ArrayList<>();
+
+        assertTrue(MappingTools.diff(generated, live, conflicts).isEmpty());
+        assertEquals(Collections.singletonList("sum_amount: long -> double"), conflicts);
+    }
+
+    @Test
+    public void disablingNormsIsPut() {
+        Map<String, Object> generated = field("risk_name", field("type", "text", "norms", false));
+        Map<String, Object> live = field("risk_name", field("type", "text"));
+        List<String> conflicts = new ArrayList<>();
+
+        assertEquals(Collections.singleton("risk_name"), MappingTools.diff(generated, live, conflicts).keySet());
+        assertTrue(conflicts.isEmpty());
+    }
+
+    @Test
+    public void enablingNormsIsAConflict() {
+        Map<String, Object> generated = field("risk_name", field("type", "text"));
+        Map<String, Object> live = field("risk_name", field("type", "text", "norms", false));
+        List<String> conflicts = new ArrayList<>();
+
+        assertTrue(MappingTools.diff(generated, live, conflicts).isEmpty());
+        assertEquals(Collections.singletonList("risk_name: norms false -> true"), conflicts);
+    }
+
+    @Test
+    public void eagerGlobalOrdinalsIsPutInBothDirections() {
+        List<String> conflicts = new ArrayList<>();
+        Map<String, Object> on = MappingTools.diff(field("risk_code", field("type", "keyword", "eager_global_ordinals", true)),
+                field("risk_code", field("type", "keyword")), conflicts);
+        Map<String, Object> off = MappingTools.diff(field("risk_code", field("type", "keyword")),
+                field("risk_code", field("type", "keyword", "eager_global_ordinals", true)), conflicts);
+
+        assertEquals(Collections.singleton("risk_code"), on.keySet());
+        assertEquals(Collections.singleton("risk_code"), off.keySet());
+        assertTrue(conflicts.isEmpty());
+    }
+
+    @Test
+    public void fieldWithAnyConflictIsNotPut() {
+        Map<String, Object> generated = field("risk_code", field("type", "keyword", "eager_global_ordinals", true, "doc_values", false));
+        Map<String, Object> live = field("risk_code", field("type", "keyword"));
+        List<String> conflicts = new ArrayList<>();
+
+        assertTrue(MappingTools.diff(generated, live, conflicts).isEmpty());
+        assertEquals(Collections.singletonList("risk_code: doc_values true -> false"), conflicts);
+    }
+
+    @Test
+    public void explicitDefaultsAreNotDifferences() {
+        Map<String, Object> generated = field("risk_name", field("type", "text"), "risk_code", field("type", "keyword"));
+        Map<String, Object> live = field(
+                "risk_name", field("type", "text", "norms", true, "index_options", "positions"),
+                "risk_code", field("type", "keyword", "doc_values", true, "store", false, "index_options", "docs"));
+        List<String> conflicts = new ArrayList<>();
+
+        assertTrue(MappingTools.diff(generated, live, conflicts).isEmpty());
+        assertTrue(conflicts.isEmpty());
+    }
+
+    @Test
+    public void storageValuesDefaultToElasticsearchDefaults() {
+        Map<String, Object> text = field("type", "text");
+        Map<String, Object> keyword = field("type", "keyword");
+
+        assertEquals("positions", MappingTools.getStorageValue(text, "index_options"));
+        assertEquals("docs", MappingTools.getStorageValue(keyword, "index_options"));
+        for (String attribute : Arrays.asList("doc_values", "norms")) {
+            assertEquals("true", MappingTools.getStorageValue(keyword, attribute));
+        }
+        for (String attribute : Arrays.asList("store", "eager_global_ordinals")) {
+            assertEquals("false", MappingTools.getStorageValue(keyword, attribute));
+        }
+        assertEquals("freqs", MappingTools.getStorageValue(field("type", "text", "index_options", "freqs"), "index_options"));
+    }
+
+    @Test
+    public void entityMappingHasNoDifferenceFromItself() throws Exception {
+        Map<String, Object> properties = MappingTools.getProperties(MappingEntity.class);
+        List<String> conflicts = new ArrayList<>();
+
+        assertTrue(MappingTools.diff(properties, properties, conflicts).isEmpty());
+        assertTrue(conflicts.isEmpty());
+        assertEquals(false, ((Map<String, Object>) properties.get("risk_name")).get("norms"));
+        assertEquals("freqs", ((Map<String, Object>) properties.get("risk_name")).get("index_options"));
+        assertEquals(true, ((Map<String, Object>) properties.get("risk_code")).get("eager_global_ordinals"));
+        assertEquals(false, ((Map<String, Object>) properties.get("sum_amount")).get("doc_values"));
+    }
+}
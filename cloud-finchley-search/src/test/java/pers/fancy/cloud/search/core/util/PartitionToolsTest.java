@@ -0,0 +1,132 @@
+package pers.fancy.cloud.search.core.util;
+
+import org.elasticsearch.index.query.QueryBuilders;
+import org.junit.Test;
+import pers.fancy.cloud.search.core.annotation.ESMetaData;
+import pers.fancy.cloud.search.core.enums.PartitionInterval;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * PartitionTools：分区索引名称、分区结束日期、写入分区以及按range裁剪检索的分区
+ * 分区按系统时区划分，用例中的时间都取当天中午，避免受运行环境时区影响
+ *
+ * @author LiLiChai
+ */
+public class PartitionToolsTest {
+
+    @ESMetaData(indexName = "partition_day", partitionField = "operate_date", partitionInterval = PartitionInterval.day)
+    public static class DayEntity {
+        private Object operate_date;
+
+        DayEntity(Object operate_date) {
+            this.operate_date = operate_date;
+        }
+    }
+
+    @ESMetaData(indexName = "partition_week", partitionField = "operate_date", partitionInterval = PartitionInterval.week)
+    public static class WeekEntity {
+        private Date operate_date;
+    }
+
+    @ESMetaData(indexName = "partition_month", partitionField = "operate_date", partitionInterval = PartitionInterval.month)
+    public static class MonthEntity {
+        private Date operate_date;
+    }
+
+    @ESMetaData(indexName = "partition_none")
+    public static class PlainEntity {
+        private Date operate_date;
+    }
+
+    private static final MetaData DAY = IndexTools.getMetaData(DayEntity.class);
+    private static final MetaData WEEK = IndexTools.getMetaData(WeekEntity.class);
+    private static final MetaData MONTH = IndexTools.getMetaData(MonthEntity.class);
+
+    private static Date noon(int year, int month, int day) {
+        return Date.from(LocalDateTime.of(year, month, day, 12, 0).atZone(ZoneId.systemDefault()).toInstant());
+    }
+
+    @Test
+    public void partitionIndexNames() {
+        assertEquals("partition_day-*", PartitionTools.getIndexPattern(DAY));
+        assertEquals("partition_day-2019.01.15", PartitionTools.getPartitionIndexName(DAY, noon(2019, 1, 15)));
+        assertEquals("partition_month-2019.01", PartitionTools.getPartitionIndexName(MONTH, noon(2019, 1, 15)));
+        assertEquals("partition_week-2019.w03", PartitionTools.getPartitionIndexName(WEEK, noon(2019, 1, 15)));
+        //2018-12-31属于2019年的第一个ISO周
+        assertEquals("partition_week-2019.w01", PartitionTools.getPartitionIndexName(WEEK, noon(2018, 12, 31)));
+    }
+
+    @Test
+    public void partitionEndIsTheNextPartitionStart() {
+        assertEquals(LocalDate.of(2019, 1, 16), PartitionTools.getPartitionEnd(DAY, "partition_day-2019.01.15"));
+        assertEquals(LocalDate.of(2019, 1, 16), PartitionTools.getPartitionEnd(DAY, "partition_day-2019.01.15-shrunk"));
+        assertEquals(LocalDate.of(2019, 1, 7), PartitionTools.getPartitionEnd(WEEK, "partition_week-2019.w01"));
+        assertEquals(LocalDate.of(2019, 2, 1), PartitionTools.getPartitionEnd(MONTH, "partition_month-2019.01"));
+        assertNull(PartitionTools.getPartitionEnd(DAY, "other-2019.01.15"));
+        assertNull(PartitionTools.getPartitionEnd(DAY, "partition_day-latest"));
+    }
+
+    @Test
+    public void writeIndexFollowsThePartitionField() throws Exception {
+        assertEquals("partition_day-2019.01.15", PartitionTools.getWriteIndexName(DAY, new DayEntity(noon(2019, 1, 15))));
+        assertEquals("partition_day-2019.01.15", PartitionTools.getWriteIndexName(DAY, new DayEntity(noon(2019, 1, 15).getTime())));
+        assertEquals("partition_none", PartitionTools.getWriteIndexName(IndexTools.getMetaData(PlainEntity.class), new PlainEntity()));
+    }
+
+    @Test
+    public void writeIndexWithoutPartitionValueIsTheCurrentPartition() throws Exception {
+        DayEntity entity = new DayEntity(null);
+
+        assertFalse(PartitionTools.hasPartitionValue(DAY, entity));
+        assertTrue(PartitionTools.hasPartitionValue(DAY, new DayEntity(new Date())));
+        assertTrue(PartitionTools.hasPartitionValue(IndexTools.getMetaData(PlainEntity.class), new PlainEntity()));
+        assertEquals(PartitionTools.getPartitionIndexName(DAY, new Date()), PartitionTools.getWriteIndexName(DAY, entity));
+    }
+
+    @Test
+    public void invalidPartitionValueIsRejected() {
+        try {
+            PartitionTools.getWriteIndexName(DAY, new DayEntity("not a date"));
+            fail("invalid partition value should be rejected");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("operate_date"));
+        }
+    }
+
+    @Test
+    public void rangePrunesSearchedPartitions() {
+        String zone = ZoneId.systemDefault().getId();
+        String[] indices = PartitionTools.getSearchIndexNames(DAY, QueryBuilders.boolQuery()
+                .filter(QueryBuilders.rangeQuery("operate_date").gte("2019-01-30").lte("2019-02-02").timeZone(zone)));
+
+        assertArrayEquals(new String[]{"partition_day-2019.01.30*", "partition_day-2019.01.31*",
+                "partition_day-2019.02.01*", "partition_day-2019.02.02*"}, indices);
+    }
+
+    @Test
+    public void longRangeFallsBackToMonthWildcards() {
+        String zone = ZoneId.systemDefault().getId();
+        String[] indices = PartitionTools.getSearchIndexNames(DAY,
+                QueryBuilders.rangeQuery("operate_date").gte("2019-01-15").lt("2019-04-15").timeZone(zone));
+
+        assertArrayEquals(new String[]{"partition_day-2019.01.*", "partition_day-2019.02.*",
+                "partition_day-2019.03.*", "partition_day-2019.04.*"}, indices);
+    }
+
+    @Test
+    public void searchWithoutRangeUsesAllPartitions() {
+        assertArrayEquals(new String[]{"partition_day-*"},
+                PartitionTools.getSearchIndexNames(DAY, QueryBuilders.termQuery("risk_code", "A01")));
+    }
+}